@@ -235,7 +235,7 @@ public class DeviceActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
         // Unregister BLE connection listener
-        bleUtil.removeConnectListener(mac);
+        bleUtil.removeConnectListener(mac, bleConnectListener);
         // Disconnect device
         bleUtil.disconnect(mac);
     }
@@ -0,0 +1,14 @@
+package com.advantech.bleeplib.bean;
+
+/**
+ * An enum for the priority class of a device in the waiting queue of the connection slots. A
+ * released slot is handed to the waiting device of the highest class.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public enum ConnectionPriority {
+    INTERACTIVE, // e.g. an LED command of an operator
+    NORMAL, // e.g. a single push
+    BULK // e.g. a campaign of many devices
+}
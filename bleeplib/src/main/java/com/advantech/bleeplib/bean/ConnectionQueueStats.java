@@ -0,0 +1,143 @@
+package com.advantech.bleeplib.bean;
+
+/**
+ * A java bean for the metrics of the connection slots and the waiting queue.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class ConnectionQueueStats {
+    private final int activeCount;
+    private final int maxConnectionNumber;
+    private final int waitingCount;
+    private final int maxWaitingCount;
+    private final long admittedCount;
+    private final long queuedCount;
+    private final long promotedCount;
+    private final long averageWaitTime;
+    private final long slotTime;
+    private final long maxWaitTime;
+    private final long missedDeadlineCount;
+    private final long[] classAverageWaitTimes; // by ConnectionPriority ordinal
+
+    public ConnectionQueueStats(int activeCount, int maxConnectionNumber, int waitingCount, int maxWaitingCount,
+                                long admittedCount, long queuedCount, long promotedCount, long averageWaitTime, long slotTime,
+                                long maxWaitTime, long missedDeadlineCount, long[] classAverageWaitTimes) {
+        this.activeCount = activeCount;
+        this.maxConnectionNumber = maxConnectionNumber;
+        this.waitingCount = waitingCount;
+        this.maxWaitingCount = maxWaitingCount;
+        this.admittedCount = admittedCount;
+        this.queuedCount = queuedCount;
+        this.promotedCount = promotedCount;
+        this.averageWaitTime = averageWaitTime;
+        this.slotTime = slotTime;
+        this.maxWaitTime = maxWaitTime;
+        this.missedDeadlineCount = missedDeadlineCount;
+        this.classAverageWaitTimes = classAverageWaitTimes.clone();
+    }
+
+    /**
+     * Get the number of devices holding a connection slot.
+     *
+     * @return  the number of held slots
+     */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    public int getMaxConnectionNumber() {
+        return maxConnectionNumber;
+    }
+
+    public int getWaitingCount() {
+        return waitingCount;
+    }
+
+    public int getMaxWaitingCount() {
+        return maxWaitingCount;
+    }
+
+    /**
+     * Get the number of devices which got a slot without waiting.
+     *
+     * @return  the number of admitted devices
+     */
+    public long getAdmittedCount() {
+        return admittedCount;
+    }
+
+    public long getQueuedCount() {
+        return queuedCount;
+    }
+
+    /**
+     * Get the number of devices which got a slot from the waiting queue.
+     *
+     * @return  the number of promoted devices
+     */
+    public long getPromotedCount() {
+        return promotedCount;
+    }
+
+    /**
+     * Get the average time from the waiting queue to a slot.
+     *
+     * @return  the average wait time in milliseconds
+     */
+    public long getAverageWaitTime() {
+        return averageWaitTime;
+    }
+
+    /**
+     * Get the average time from the waiting queue to a slot of a priority class.
+     *
+     * @param priority  the priority class
+     * @return          the average wait time in milliseconds
+     */
+    public long getAverageWaitTime(ConnectionPriority priority) {
+        return classAverageWaitTimes[priority.ordinal()];
+    }
+
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * Get the number of devices which got a slot after their deadline.
+     *
+     * @return  the number of missed deadlines
+     */
+    public long getMissedDeadlineCount() {
+        return missedDeadlineCount;
+    }
+
+    /**
+     * Get the total time the slots have been held, e.g. divided by the elapsed time and the
+     * maximum connection number for the slot utilization.
+     *
+     * @return  the slot time in milliseconds
+     */
+    public long getSlotTime() {
+        return slotTime;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionQueueStats{" +
+                "active=" + activeCount + "/" + maxConnectionNumber +
+                ", waiting=" + waitingCount +
+                ", maxWaiting=" + maxWaitingCount +
+                ", admitted=" + admittedCount +
+                ", queued=" + queuedCount +
+                ", promoted=" + promotedCount +
+                ", averageWait=" + averageWaitTime + " ms" +
+                ", interactiveWait=" + getAverageWaitTime(ConnectionPriority.INTERACTIVE) + " ms" +
+                ", normalWait=" + getAverageWaitTime(ConnectionPriority.NORMAL) + " ms" +
+                ", bulkWait=" + getAverageWaitTime(ConnectionPriority.BULK) + " ms" +
+                ", maxWait=" + maxWaitTime + " ms" +
+                ", missedDeadlines=" + missedDeadlineCount +
+                ", slotTime=" + slotTime + " ms" +
+                '}';
+    }
+}
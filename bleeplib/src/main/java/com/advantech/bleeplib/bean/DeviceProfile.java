@@ -0,0 +1,155 @@
+package com.advantech.bleeplib.bean;
+
+import java.util.Arrays;
+
+/**
+ * A java bean for the cached profile of an EPD device, e.g. the firmware version and the LED
+ * status which are read in the handshake, the panel-type and the signal strength from the scan,
+ * the transfer rate of the past pushes, and the fingerprint of the last pushed frame.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class DeviceProfile {
+    private String address; // Mac Address
+    private String firmwareVersion;
+    private long firmwareTime = 0; // when the firmware version was read
+    private byte[] ledState;
+    private long ledTime = 0; // when the LED status was read
+    private int mtu = 0; // last negotiated MTU
+    private PanelType panelType; // from the device name
+    private int rssi = 0; // last signal strength in dBm, 0 if unknown
+    private long lastSeen = 0; // last scan result or connection
+    private int transferRate = 0; // smoothed throughput of the past block transfers in bytes per second, 0 if unknown
+    private String lastPushHash; // content hash of the last successfully pushed frame in hex
+    private long lastPushTime = 0;
+
+    public DeviceProfile(String address) {
+        this.address = address;
+    }
+
+    public DeviceProfile(DeviceProfile profile) {
+        this.address = profile.address;
+        this.firmwareVersion = profile.firmwareVersion;
+        this.firmwareTime = profile.firmwareTime;
+        this.ledState = profile.ledState;
+        this.ledTime = profile.ledTime;
+        this.mtu = profile.mtu;
+        this.panelType = profile.panelType;
+        this.rssi = profile.rssi;
+        this.lastSeen = profile.lastSeen;
+        this.transferRate = profile.transferRate;
+        this.lastPushHash = profile.lastPushHash;
+        this.lastPushTime = profile.lastPushTime;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getFirmwareVersion() {
+        return firmwareVersion;
+    }
+
+    public long getFirmwareTime() {
+        return firmwareTime;
+    }
+
+    public void setFirmwareVersion(String firmwareVersion, long firmwareTime) {
+        this.firmwareVersion = firmwareVersion;
+        this.firmwareTime = firmwareTime;
+    }
+
+    public byte[] getLedState() {
+        return ledState != null ? ledState.clone() : null;
+    }
+
+    public long getLedTime() {
+        return ledTime;
+    }
+
+    public void setLedState(byte[] ledState, long ledTime) {
+        this.ledState = ledState != null ? ledState.clone() : null;
+        this.ledTime = ledTime;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public PanelType getPanelType() {
+        return panelType;
+    }
+
+    public void setPanelType(PanelType panelType) {
+        this.panelType = panelType;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public void setRssi(int rssi) {
+        this.rssi = rssi;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public void setLastSeen(long lastSeen) {
+        this.lastSeen = lastSeen;
+    }
+
+    public int getTransferRate() {
+        return transferRate;
+    }
+
+    public void setTransferRate(int transferRate) {
+        this.transferRate = transferRate;
+    }
+
+    public String getLastPushHash() {
+        return lastPushHash;
+    }
+
+    public long getLastPushTime() {
+        return lastPushTime;
+    }
+
+    public void setLastPush(String lastPushHash, long lastPushTime) {
+        this.lastPushHash = lastPushHash;
+        this.lastPushTime = lastPushTime;
+    }
+
+    /**
+     * Get the time of the latest update of this profile.
+     *
+     * @return  the time in milliseconds
+     */
+    public long getUpdateTime() {
+        return Math.max(Math.max(lastSeen, lastPushTime), Math.max(firmwareTime, ledTime));
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceProfile{" +
+                "address=" + address +
+                ", firmwareVersion=" + firmwareVersion +
+                ", firmwareTime=" + firmwareTime +
+                ", ledState=" + Arrays.toString(ledState) +
+                ", ledTime=" + ledTime +
+                ", mtu=" + mtu +
+                ", panelType=" + panelType +
+                ", rssi=" + rssi +
+                ", lastSeen=" + lastSeen +
+                ", transferRate=" + transferRate +
+                ", lastPushHash=" + lastPushHash +
+                ", lastPushTime=" + lastPushTime +
+                '}';
+    }
+}
@@ -0,0 +1,62 @@
+package com.advantech.bleeplib.bean;
+
+/**
+ * A java bean for the progress summary of the running image transfers, delivered on a fixed tick.
+ * The counts start from the first transfer after the fleet was idle.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class FleetProgress {
+    private final int transferCount;
+    private final int averageProgress;
+    private final int minProgress;
+    private final int succeededCount;
+    private final int failedCount;
+
+    public FleetProgress(int transferCount, int averageProgress, int minProgress, int succeededCount, int failedCount) {
+        this.transferCount = transferCount;
+        this.averageProgress = averageProgress;
+        this.minProgress = minProgress;
+        this.succeededCount = succeededCount;
+        this.failedCount = failedCount;
+    }
+
+    /**
+     * Get the number of devices in an image transfer.
+     *
+     * @return  the number of running transfers
+     */
+    public int getTransferCount() {
+        return transferCount;
+    }
+
+    // average progress of the running transfers, 0 ~ 100, or -1 if no transfer is running
+    public int getAverageProgress() {
+        return averageProgress;
+    }
+
+    // progress of the slowest running transfer, or -1 if no transfer is running
+    public int getMinProgress() {
+        return minProgress;
+    }
+
+    public int getSucceededCount() {
+        return succeededCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "FleetProgress{" +
+                "transfers=" + transferCount +
+                ", average=" + averageProgress + "%" +
+                ", min=" + minProgress + "%" +
+                ", succeeded=" + succeededCount +
+                ", failed=" + failedCount +
+                '}';
+    }
+}
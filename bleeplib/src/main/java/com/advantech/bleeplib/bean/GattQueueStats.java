@@ -0,0 +1,89 @@
+package com.advantech.bleeplib.bean;
+
+/**
+ * A java bean for the metrics of the GATT operation queue of a connection.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class GattQueueStats {
+    private final int depth;
+    private final int maxDepth;
+    private final long executedCount;
+    private final long failedCount;
+    private final long timeoutCount;
+    private final long preemptCount;
+    private final long averageWaitTime;
+
+    public GattQueueStats(int depth, int maxDepth, long executedCount, long failedCount, long timeoutCount, long preemptCount, long averageWaitTime) {
+        this.depth = depth;
+        this.maxDepth = maxDepth;
+        this.executedCount = executedCount;
+        this.failedCount = failedCount;
+        this.timeoutCount = timeoutCount;
+        this.preemptCount = preemptCount;
+        this.averageWaitTime = averageWaitTime;
+    }
+
+    /**
+     * Get the number of queued operations, including the one in progress.
+     *
+     * @return  the queue depth
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getExecutedCount() {
+        return executedCount;
+    }
+
+    /**
+     * Get the number of operations which were rejected by the Bluetooth stack or completed with an
+     * error status.
+     *
+     * @return  the number of failed operations
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    /**
+     * Get the number of times an operation waited for the image blocks in flight.
+     *
+     * @return  the number of pre-emptions of the block transfer
+     */
+    public long getPreemptCount() {
+        return preemptCount;
+    }
+
+    /**
+     * Get the average time from enqueue to execution.
+     *
+     * @return  the average wait time in milliseconds
+     */
+    public long getAverageWaitTime() {
+        return averageWaitTime;
+    }
+
+    @Override
+    public String toString() {
+        return "GattQueueStats{" +
+                "depth=" + depth +
+                ", maxDepth=" + maxDepth +
+                ", executed=" + executedCount +
+                ", failed=" + failedCount +
+                ", timeout=" + timeoutCount +
+                ", preempt=" + preemptCount +
+                ", averageWait=" + averageWaitTime + " ms" +
+                '}';
+    }
+}
@@ -0,0 +1,12 @@
+package com.advantech.bleeplib.bean;
+
+/**
+ * An enum for the delivery of the image write progress to a listener.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public enum ProgressDelivery {
+    RAW, // every block notification
+    COALESCED // at most a few updates per second, and only on a percentage change
+}
@@ -0,0 +1,225 @@
+package com.advantech.bleeplib.bean;
+
+/**
+ * A java bean for the throughput measurement of an image block transfer.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class TransferStats {
+    private final int totalBlocks;
+    private final int packetLength;
+    private final int window;
+    private int writtenBlocks = 0;
+    private int busyCount = 0;
+    private int retransmittedBlocks = 0;
+    private int rewindCount = 0;
+    private int stallCount = 0;
+    private int resumedBlock = 0;
+    private int maxInFlight = 0;
+    private long startTime = -1;
+    private long endTime = -1;
+    private int connectionInterval = -1; // unit: 1.25 ms
+    private int txPhy = 1; // PHY_LE_1M
+    private int rxPhy = 1;
+
+    /**
+     * New a TransferStats constructor.
+     *
+     * @param totalBlocks   the number of blocks of the frame
+     * @param packetLength  the packet length in bytes, including the block number
+     * @param window        the in-flight window of the transfer
+     */
+    public TransferStats(int totalBlocks, int packetLength, int window) {
+        this.totalBlocks = totalBlocks;
+        this.packetLength = packetLength;
+        this.window = window;
+    }
+
+    /**
+     * Record a block write which was accepted by the Bluetooth stack.
+     *
+     * @param time      current time in milliseconds
+     * @param inFlight  the number of in-flight writes after this write
+     */
+    public void onBlockWritten(long time, int inFlight) {
+        if (startTime < 0) startTime = time;
+        writtenBlocks++;
+        if (inFlight > maxInFlight) maxInFlight = inFlight;
+    }
+
+    /**
+     * Record a block write which was rejected because the Bluetooth stack is busy.
+     */
+    public void onBusy() {
+        busyCount++;
+    }
+
+    /**
+     * Record the block which the transfer resumes from after a reconnection.
+     *
+     * @param resumedBlock  the first block of this transfer; {@code 0} for a full transfer
+     */
+    public void setResumedBlock(int resumedBlock) {
+        this.resumedBlock = resumedBlock;
+    }
+
+    /**
+     * Record a block write which resends a block already written.
+     */
+    public void onRetransmit() {
+        retransmittedBlocks++;
+    }
+
+    /**
+     * Record a rewind of the write cursor because the device requested a block again.
+     */
+    public void onRewind() {
+        rewindCount++;
+    }
+
+    /**
+     * Record a rewind of the write cursor because the device made no progress.
+     */
+    public void onStall() {
+        stallCount++;
+    }
+
+    /**
+     * Record the write completion of the last block.
+     *
+     * @param time  current time in milliseconds
+     */
+    public void onFinished(long time) {
+        endTime = time;
+    }
+
+    /**
+     * Record the connection parameters which are achieved during the transfer.
+     *
+     * @param connectionInterval    connection interval in the unit of 1.25 ms; {@code -1} if unknown
+     * @param txPhy                 transmitter PHY, e.g. {@code BluetoothDevice.PHY_LE_2M}
+     * @param rxPhy                 receiver PHY, e.g. {@code BluetoothDevice.PHY_LE_2M}
+     */
+    public void setLink(int connectionInterval, int txPhy, int rxPhy) {
+        this.connectionInterval = connectionInterval;
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+    }
+
+    /**
+     * Get the connection interval achieved during the transfer.
+     *
+     * @return  the connection interval in milliseconds; {@code -1} if unknown
+     */
+    public double getConnectionInterval() {
+        if (connectionInterval < 0) return -1;
+        return connectionInterval * 1.25;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    public int getTotalBlocks() {
+        return totalBlocks;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public int getWrittenBlocks() {
+        return writtenBlocks;
+    }
+
+    public int getBusyCount() {
+        return busyCount;
+    }
+
+    public int getResumedBlock() {
+        return resumedBlock;
+    }
+
+    public int getRetransmittedBlocks() {
+        return retransmittedBlocks;
+    }
+
+    public int getRewindCount() {
+        return rewindCount;
+    }
+
+    public int getStallCount() {
+        return stallCount;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Get the number of bytes written, including the block numbers.
+     *
+     * @return  the number of bytes
+     */
+    public long getWrittenBytes() {
+        return (long) writtenBlocks * packetLength;
+    }
+
+    /**
+     * Get the elapsed time of the block transfer, from the first block write to the write
+     * completion of the last block (or now if the transfer is still running).
+     *
+     * @return  the elapsed time in milliseconds
+     */
+    public long getElapsedTime() {
+        if (startTime < 0) return 0;
+        long end = (endTime >= 0) ? endTime : System.currentTimeMillis();
+        return end - startTime;
+    }
+
+    /**
+     * Get the throughput of the block transfer.
+     *
+     * @return  the throughput in bytes per second
+     */
+    public double getThroughput() {
+        long elapsed = getElapsedTime();
+        if (elapsed <= 0) return 0;
+        return getWrittenBytes() * 1000.0 / elapsed;
+    }
+
+    /**
+     * Get the block rate of the block transfer.
+     *
+     * @return  the number of blocks per second
+     */
+    public double getBlockRate() {
+        long elapsed = getElapsedTime();
+        if (elapsed <= 0) return 0;
+        return writtenBlocks * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferStats{" +
+                "blocks=" + writtenBlocks + "/" + totalBlocks +
+                ", resumedFrom=" + resumedBlock +
+                ", window=" + window +
+                ", maxInFlight=" + maxInFlight +
+                ", busy=" + busyCount +
+                ", retransmitted=" + retransmittedBlocks +
+                ", rewinds=" + rewindCount +
+                ", stalls=" + stallCount +
+                ", elapsed=" + getElapsedTime() + " ms" +
+                ", throughput=" + Math.round(getThroughput()) + " B/s" +
+                ", blockRate=" + Math.round(getBlockRate() * 10.0) / 10.0 + " blocks/s" +
+                ", interval=" + getConnectionInterval() + " ms" +
+                ", phy=" + txPhy + "/" + rxPhy +
+                '}';
+    }
+}
@@ -0,0 +1,282 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.protocol.EpdScheduler;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ConcurrencyController adapts the connection limit of a {@link ConnectionScheduler} to the central
+ * it runs on. Each phone model handles a different number of concurrent links: a newer gateway runs
+ * seven links or more, while an older one fails connections (e.g. GATT 133) and slows down every
+ * transfer with four.
+ * <p>
+ * The controller observes the connection results, the connect latency and the bytes transferred,
+ * and evaluates them once per window of connection results:
+ * <ul>
+ *     <li>too many failed connections, or a connect latency far above the baseline latency, lower
+ *     the limit at once;</li>
+ *     <li>otherwise, while devices are waiting for a slot, the limit is raised by one, and the
+ *     raise is taken back if the aggregate throughput of the next window does not grow.</li>
+ * </ul>
+ * A limit which was taken back is not tried again for a while, so the limit settles at the
+ * throughput optimum of the central, and the optimum is probed again later in case the
+ * environment changes. The limit stays within the configured bounds.
+ * <p>
+ * The baseline latency is the best connect latency observed, aged towards the latency of each
+ * window and reset when the latency lowers the limit, so a device mix which connects slower for
+ * good (e.g. devices farther away) lowers the limit once, not down to the lower bound. Such a
+ * limit is a sign of the devices rather than of the central, see {@link #isLatencyLowered()}.
+ * <p>
+ * This class is pure Java and has no Android dependency, so the same logic is used by
+ * {@code BLEUtil} and by the fleet simulations on the JVM.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class ConcurrencyController {
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 7; // most Android Bluetooth stacks allow seven links
+    public static final int MIN_SAMPLES = 8; // connection results of a window, at least twice the limit
+    public static final double MAX_FAILURE_RATE = 0.5;
+    public static final int MIN_FAILURES = 2; // a single GATT 133 is no sign of overload
+    public static final double MAX_LATENCY_FACTOR = 2.0; // of the baseline latency
+    public static final double LATENCY_AGING = 0.25; // weight of a window in the baseline latency
+    public static final double MIN_GAIN = 0.05; // throughput gain which keeps a raised limit
+    public static final int PROBE_INTERVAL = 8; // windows before a taken back limit is tried again
+
+    private static final int HOLD = 0;
+    private static final int RAISE = 1;
+    private static final int LOWER = -1;
+
+    /**
+     * Interface definition for a callback to be invoked when the connection limit is changed.
+     */
+    public interface Listener {
+        /**
+         * Called after the limit of the connection scheduler is changed.
+         *
+         * @param limit         the new connection limit
+         * @param promotedMacs  the waiting devices which hold a slot now, and the caller should
+         *                      connect to them
+         */
+        void onLimitChanged(int limit, List<String> promotedMacs);
+    }
+
+    private final ConnectionScheduler scheduler;
+    private final EpdScheduler clock;
+    private Listener listener;
+    private int minLimit = DEFAULT_MIN_LIMIT;
+    private int maxLimit = DEFAULT_MAX_LIMIT;
+    private int ceiling; // limits from here up failed recently
+    private int ceilingWindows = 0; // windows left before the ceiling is lifted
+    private int lastAction = HOLD;
+    private double[] throughputs = new double[0]; // smoothed throughput of each limit, bytes/s
+    private double baselineLatency = -1;
+    private boolean isLatencyLowered = false; // the limit was lowered by the latency only
+    private int changeCount = 0;
+
+    // the current window
+    private long windowStart = -1;
+    private int attempts = 0;
+    private int failures = 0;
+    private long latencySum = 0;
+    private long bytes = 0;
+    private boolean isSaturated = false; // devices waited for a slot
+
+    /**
+     * New a concurrency controller of a connection scheduler.
+     *
+     * @param scheduler the connection scheduler, whose limit is the initial limit
+     * @param clock     the clock of the throughput, or {@code null} for the system clock
+     */
+    public ConcurrencyController(ConnectionScheduler scheduler, EpdScheduler clock) {
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.ceiling = maxLimit + 1;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the bounds of the connection limit. The same value for both bounds gives a fixed limit.
+     *
+     * @param minLimit  the lowest connection limit, at least 1
+     * @param maxLimit  the highest connection limit
+     */
+    public void setBounds(int minLimit, int maxLimit) {
+        synchronized (this) {
+            this.minLimit = Math.max(1, minLimit);
+            this.maxLimit = Math.max(this.minLimit, maxLimit);
+            ceiling = this.maxLimit + 1;
+            ceilingWindows = 0;
+            resetWindow();
+        }
+        setLimit(scheduler.getMaxConnectionNumber());
+    }
+
+    public synchronized int getMinLimit() {
+        return minLimit;
+    }
+
+    public synchronized int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Set the connection limit, e.g. the limit remembered for this phone model. The limit is kept
+     * within the bounds.
+     *
+     * @param limit the connection limit
+     */
+    public void setLimit(int limit) {
+        List<String> promotedMacs;
+        Listener listener;
+        synchronized (this) {
+            limit = Math.max(minLimit, Math.min(maxLimit, limit));
+            if (limit == scheduler.getMaxConnectionNumber()) return;
+            promotedMacs = scheduler.setMaxConnectionNumber(limit);
+            lastAction = HOLD;
+            isLatencyLowered = false;
+            resetWindow();
+            listener = this.listener;
+        }
+        if (listener != null) listener.onLimitChanged(limit, promotedMacs);
+    }
+
+    public int getLimit() {
+        return scheduler.getMaxConnectionNumber();
+    }
+
+    /**
+     * Whether the current limit was lowered by a slow connect latency only, with few failed
+     * connections. The latency depends on the devices as much as on the central, so such a limit
+     * should not be remembered for the phone model.
+     *
+     * @return {@code true} the limit was lowered by the latency only; {@code false} otherwise
+     */
+    public synchronized boolean isLatencyLowered() {
+        return isLatencyLowered;
+    }
+
+    // how many times the limit was changed by the controller
+    public synchronized int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * Report the result of a connection attempt.
+     *
+     * @param isSuccess     {@code true} the device is connected;
+     *                      {@code false} the connection failed, e.g. GATT 133 or a timeout
+     * @param latency       the time from the connect request to the connection, ms
+     */
+    public void onConnectResult(boolean isSuccess, long latency) {
+        int limit;
+        List<String> promotedMacs;
+        Listener listener;
+        synchronized (this) {
+            startWindow();
+            attempts++;
+            if (isSuccess) {
+                latencySum += Math.max(0, latency);
+            } else {
+                failures++;
+            }
+            if (scheduler.getWaitingCount() > 0) isSaturated = true;
+            if (attempts < Math.max(MIN_SAMPLES, 2 * scheduler.getMaxConnectionNumber())) return;
+            limit = evaluate();
+            if (limit == scheduler.getMaxConnectionNumber()) return;
+            promotedMacs = scheduler.setMaxConnectionNumber(limit);
+            changeCount++;
+            listener = this.listener;
+        }
+        if (listener != null) listener.onLimitChanged(limit, promotedMacs);
+    }
+
+    /**
+     * Report the bytes written to a device, e.g. at the end of a transfer.
+     *
+     * @param bytes the bytes written
+     */
+    public synchronized void onBytesTransferred(long bytes) {
+        startWindow();
+        this.bytes += Math.max(0, bytes);
+        if (scheduler.getWaitingCount() > 0) isSaturated = true;
+    }
+
+    // decide the limit of the next window
+    private int evaluate() {
+        int limit = scheduler.getMaxConnectionNumber();
+        int successes = attempts - failures;
+        double failureRate = (double) failures / attempts;
+        double latency = (successes > 0) ? (double) latencySum / successes : -1;
+        double throughput = bytes * 1000.0 / Math.max(1, now() - windowStart);
+        double lastThroughput = getThroughput(limit - 1);
+        putThroughput(limit, throughput);
+        boolean isFailing = failures >= MIN_FAILURES && failureRate > MAX_FAILURE_RATE;
+        boolean isSlow = latency > 0 && baselineLatency > 0 && latency > baselineLatency * MAX_LATENCY_FACTOR;
+        if (latency > 0) {
+            // a better latency is the new baseline, a worse one ages the baseline
+            if (baselineLatency < 0 || latency < baselineLatency) baselineLatency = latency;
+            else baselineLatency += (latency - baselineLatency) * LATENCY_AGING;
+        }
+        if (ceilingWindows > 0 && --ceilingWindows == 0) ceiling = maxLimit + 1;
+
+        int action;
+        if (isFailing || isSlow) {
+            // the central is overloaded
+            action = (limit > minLimit) ? LOWER : HOLD;
+        } else if (lastAction == RAISE && throughput < lastThroughput * (1 + MIN_GAIN)) {
+            // no gain from the raised limit, take it back
+            action = LOWER;
+        } else if (isSaturated && limit + 1 < ceiling && limit < maxLimit) {
+            action = RAISE;
+        } else {
+            action = HOLD;
+        }
+        if (action == LOWER) {
+            ceiling = limit;
+            ceilingWindows = PROBE_INTERVAL;
+        }
+        if (action != HOLD) isLatencyLowered = action == LOWER && isSlow && !isFailing;
+        // the lowered limit starts over from the slow latency, so it is not lowered again at once
+        if (isLatencyLowered && action == LOWER) baselineLatency = latency;
+        lastAction = action;
+        resetWindow();
+        return limit + action;
+    }
+
+    private double getThroughput(int limit) {
+        return (limit >= 0 && limit < throughputs.length) ? throughputs[limit] : -1;
+    }
+
+    private void putThroughput(int limit, double throughput) {
+        if (limit >= throughputs.length) {
+            double[] newThroughputs = new double[limit + 1];
+            Arrays.fill(newThroughputs, -1);
+            System.arraycopy(throughputs, 0, newThroughputs, 0, throughputs.length);
+            throughputs = newThroughputs;
+        }
+        throughputs[limit] = (throughputs[limit] < 0) ? throughput : (throughputs[limit] + throughput) / 2;
+    }
+
+    private void startWindow() {
+        if (windowStart < 0) windowStart = now();
+    }
+
+    private void resetWindow() {
+        windowStart = now();
+        attempts = 0;
+        failures = 0;
+        latencySum = 0;
+        bytes = 0;
+        isSaturated = false;
+    }
+
+    private long now() {
+        return (clock != null) ? clock.now() : System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,20 @@
+package com.advantech.bleeplib.fleet;
+
+/**
+ * ConnectionOrder ranks the waiting devices of a priority class in a {@link ConnectionScheduler}.
+ * A device of a lower rank gets a released slot first, and the devices of the same rank are
+ * first-in-first-out. The rank is taken when the device is put into the waiting queue, or when
+ * the device is ranked again, e.g. after a new scan result.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public interface ConnectionOrder {
+    /**
+     * Get the rank of a waiting device.
+     *
+     * @param address   device mac address
+     * @return          the rank, lower goes first
+     */
+    int getRank(String address);
+}
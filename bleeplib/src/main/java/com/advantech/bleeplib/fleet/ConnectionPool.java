@@ -0,0 +1,271 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.protocol.EpdScheduler;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ConnectionPool releases the connection slots of a {@link ConnectionScheduler}, and keeps the
+ * idle connections for the next task to the same device.
+ * <p>
+ * A slot is released on the disconnection event of the device, or after the release timeout of
+ * the scheduler if the event is lost, e.g. a pending connection is cancelled. A reconnection keeps
+ * the slot, otherwise the slot is handed to the next device in the waiting queue. After a task, a
+ * reusable connection is kept open for the idle connection time, and the next task for the device
+ * runs on it without connecting and handshaking again. A slot of the pool is never kept from a
+ * waiting device: the least recently used idle connection is evicted when a device waits, and no
+ * connection is kept idle while devices are waiting.
+ * <p>
+ * The connection itself is handled by the {@link Host}, e.g. the BluetoothGatt of
+ * {@code BLEUtil}. This class is pure Java and has no Android dependency, so the same release
+ * logic is used by {@code BLEUtil} and by the fleet simulations on the JVM. It is not thread-safe:
+ * the calls and the timers of the clock are serialized by the caller.
+ *
+ * @param <C>   the connection of a device
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class ConnectionPool<C> {
+
+    /**
+     * Interface definition of the connections of the pool.
+     *
+     * @param <C>   the connection of a device
+     */
+    public interface Host<C> {
+        /**
+         * Check if the connection can run the next task.
+         *
+         * @param connection    the connection
+         * @return              {@code true} the handshake is done, and no task is running;
+         *                      {@code false} otherwise
+         */
+        boolean isReusable(C connection);
+
+        /**
+         * Check if the disconnection event of the connection has come.
+         *
+         * @param connection    the connection
+         * @return              {@code true} the connection is disconnected;
+         *                      {@code false} otherwise
+         */
+        boolean isDisconnected(C connection);
+
+        /**
+         * Request the disconnection. The host calls {@link ConnectionPool#onDisconnected} on the
+         * disconnection event.
+         *
+         * @param connection    the connection
+         */
+        void disconnect(C connection);
+
+        /**
+         * Called when the slot of the connection is released. The host removes the connection,
+         * and closes it if the disconnection event has not come.
+         *
+         * @param connection    the connection
+         */
+        void onReleased(C connection);
+
+        /**
+         * Connect a device which got a slot, or the same device again for a reconnection.
+         *
+         * @param address   device mac address
+         */
+        void connect(String address);
+    }
+
+    // an idle or a releasing connection
+    private static class Entry<C> {
+        final C connection;
+        boolean isReconnect = false;
+        Object timer; // evicts the idle connection, or releases the slot if the event is lost
+
+        Entry(C connection) {
+            this.connection = connection;
+        }
+    }
+
+    private final ConnectionScheduler scheduler;
+    private final EpdScheduler clock;
+    private final Host<C> host;
+    private long idleConnectionTime = 0; // ms, 0: disconnect after each task
+    private final Map<String, Entry<C>> idleConnections = new LinkedHashMap<>(); // mac, least recently used first
+    private final Map<String, Entry<C>> releasingConnections = new HashMap<>(); // mac, waiting for the disconnection event
+
+    /**
+     * New a connection pool of a connection scheduler.
+     *
+     * @param scheduler the connection scheduler, whose release timeout is the fallback of a lost
+     *                  disconnection event
+     * @param clock     the timers of the pool
+     * @param host      the connections
+     */
+    public ConnectionPool(ConnectionScheduler scheduler, EpdScheduler clock, Host<C> host) {
+        this.scheduler = scheduler;
+        this.clock = clock;
+        this.host = host;
+    }
+
+    /**
+     * Set how long a connection is kept open after a task. The idle connections are evicted when
+     * the time is {@code 0}.
+     *
+     * @param idleTime  idle connection time, ms; {@code 0} disconnect after each task
+     */
+    public void setIdleConnectionTime(long idleTime) {
+        idleConnectionTime = Math.max(0, idleTime);
+        if (idleConnectionTime > 0) return;
+        while (!idleConnections.isEmpty()) {
+            evict();
+        }
+    }
+
+    public long getIdleConnectionTime() {
+        return idleConnectionTime;
+    }
+
+    /**
+     * Release a connection after a task. A reusable connection is kept idle if the idle connection
+     * time is set and no device is waiting; otherwise the connection is disconnected.
+     *
+     * @param address       device mac address
+     * @param connection    the connection
+     * @return              {@code true} the connection is idle in the pool;
+     *                      {@code false} the connection is disconnected
+     */
+    public boolean release(final String address, final C connection) {
+        if (isIdle(address)) return true;
+        // a slot of the pool is never kept from a waiting device
+        if (idleConnectionTime <= 0 || releasingConnections.containsKey(address) || !host.isReusable(connection)
+                || scheduler.getWaitingCount() > 0) {
+            disconnect(address, connection, false);
+            return false;
+        }
+        final Entry<C> entry = new Entry<>(connection);
+        entry.timer = clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // the idle connection expired
+                if (idleConnections.get(address) == entry) disconnect(address, connection, false);
+            }
+        }, idleConnectionTime);
+        idleConnections.put(address, entry);
+        return true;
+    }
+
+    /**
+     * Take the idle connection of a device out of the pool, for the next task.
+     *
+     * @param address   device mac address
+     * @return          the idle connection, or {@code null} if the device has none
+     */
+    public C reuse(String address) {
+        Entry<C> entry = idleConnections.remove(address);
+        if (entry == null) return null;
+        clock.cancel(entry.timer);
+        return entry.connection;
+    }
+
+    /**
+     * Disconnect the least recently used idle connection, e.g. for a waiting device. Its slot is
+     * handed to the waiting queue on the disconnection event.
+     *
+     * @return  the mac address of the evicted device, or {@code null} if no connection is idle
+     */
+    public String evict() {
+        Iterator<Map.Entry<String, Entry<C>>> iterator = idleConnections.entrySet().iterator();
+        if (!iterator.hasNext()) return null;
+        Map.Entry<String, Entry<C>> entry = iterator.next();
+        disconnect(entry.getKey(), entry.getValue().connection, false);
+        return entry.getKey();
+    }
+
+    /**
+     * Disconnect a connection, and release its slot on the disconnection event, or after the
+     * release timeout if the event is lost.
+     *
+     * @param address       device mac address
+     * @param connection    the connection
+     * @param isReconnect   {@code true} keep the slot and connect the device again;
+     *                      {@code false} hand the slot to the next waiting device
+     */
+    public void disconnect(final String address, C connection, boolean isReconnect) {
+        Entry<C> idle = idleConnections.get(address);
+        if (idle != null && idle.connection == connection) reuse(address);
+        Entry<C> releasing = releasingConnections.get(address);
+        if (releasing != null && releasing.connection == connection) {
+            // the release is in progress, only the reconnection may change
+            releasing.isReconnect = isReconnect;
+            return;
+        }
+        final Entry<C> entry = new Entry<>(connection);
+        entry.isReconnect = isReconnect;
+        releasingConnections.put(address, entry);
+        if (host.isDisconnected(connection)) {
+            releaseConnection(address, entry);
+            return;
+        }
+        entry.timer = clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // no disconnection event, release the slot
+                releaseConnection(address, entry);
+            }
+        }, scheduler.getReleaseTimeout());
+        host.disconnect(connection);
+    }
+
+    /**
+     * Report the disconnection event of a connection. {@link Host#isDisconnected} returns
+     * {@code true} for the connection from now on.
+     *
+     * @param address       device mac address
+     * @param connection    the connection
+     * @return              {@code true} the slot is released, e.g. the pool disconnected it or the
+     *                      device dropped an idle connection;
+     *                      {@code false} the connection was lost during a task
+     */
+    public boolean onDisconnected(String address, C connection) {
+        Entry<C> idle = idleConnections.get(address);
+        if (idle != null && idle.connection == connection) {
+            // the device dropped the idle connection, e.g. out of range
+            disconnect(address, connection, false);
+            return true;
+        }
+        Entry<C> releasing = releasingConnections.get(address);
+        if (releasing != null && releasing.connection == connection) {
+            releaseConnection(address, releasing);
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isIdle(String address) {
+        return idleConnections.containsKey(address);
+    }
+
+    // the connection is disconnected by the pool, and the slot is not released yet
+    public boolean isReleasing(String address) {
+        return releasingConnections.containsKey(address);
+    }
+
+    public int getIdleCount() {
+        return idleConnections.size();
+    }
+
+    // remove the connection, and then connect it again or the next device
+    private void releaseConnection(String address, Entry<C> entry) {
+        if (releasingConnections.get(address) != entry) return; // released already
+        releasingConnections.remove(address);
+        clock.cancel(entry.timer);
+        host.onReleased(entry.connection);
+        // the slot is kept for a reconnection, otherwise it is handed to the next device in the waiting queue
+        String nextMac = entry.isReconnect ? address : scheduler.release(address);
+        if (nextMac != null) host.connect(nextMac);
+    }
+}
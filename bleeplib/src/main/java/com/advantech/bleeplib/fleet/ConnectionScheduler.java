@@ -0,0 +1,383 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.bean.ConnectionPriority;
+import com.advantech.bleeplib.bean.ConnectionQueueStats;
+import com.advantech.bleeplib.protocol.EpdScheduler;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * ConnectionScheduler keeps the connection slots of a central: at most {@code maxConnectionNumber}
+ * devices hold a slot at the same time, and the other devices wait in a priority queue. A released
+ * slot is handed to the waiting device of the highest {@link ConnectionPriority}, and within a
+ * class to the earliest deadline, then to the lowest rank of the {@link ConnectionOrder} (if any),
+ * and then first-in-first-out. A device whose deadline has passed goes ahead of all classes. The
+ * waiting devices are kept by mac address, so the membership is checked in constant time, and the
+ * cancellation and the re-prioritization in logarithmic time. The limit may be changed at runtime,
+ * e.g. by a {@link ConcurrencyController}. A device keeps its slot across a reconnection, and the
+ * slot is released on the disconnection event of the device, or after the release timeout if the
+ * event is lost, e.g. a pending connection is cancelled.
+ * <p>
+ * This class is pure Java and has no Android dependency, so the same queue logic is used by
+ * {@code BLEUtil} and by the fleet simulations on the JVM.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class ConnectionScheduler {
+    public static final int DEFAULT_MAX_CONNECTION_NUMBER = 4; // LG X9009 最多到四條連線同時
+    public static final int DEFAULT_RELEASE_TIMEOUT = 1000; // ms, fallback of a lost disconnection event
+
+    private final EpdScheduler clock;
+    private int maxConnectionNumber;
+    private int releaseTimeout = DEFAULT_RELEASE_TIMEOUT;
+    private final Set<String> activeSet = new LinkedHashSet<>(); // devices holding a slot
+    private final Map<String, WaitingEntry> waitingMap = new HashMap<>(); // mac, devices waiting for a slot
+    private final TreeSet<WaitingEntry> waitingQueue = new TreeSet<>(PRIORITY_ORDER);
+    private final TreeSet<WaitingEntry> deadlineQueue = new TreeSet<>(DEADLINE_ORDER); // entries with a deadline
+    private long sequence = 0;
+    private ConnectionOrder connectionOrder; // null: first-in-first-out within a class
+
+    // statistics
+    private int maxWaitingCount = 0;
+    private long admittedCount = 0;
+    private long queuedCount = 0;
+    private long promotedCount = 0;
+    private long totalWaitTime = 0;
+    private long maxWaitTime = 0;
+    private long missedDeadlineCount = 0; // promoted after the deadline
+    private final long[] classWaitTimes = new long[ConnectionPriority.values().length];
+    private final long[] classPromotedCounts = new long[ConnectionPriority.values().length];
+    private long slotTime = 0; // sum of the time each slot is held, ms
+    private long lastChangeTime = -1;
+
+    // a device in the waiting queue
+    private static class WaitingEntry {
+        final String address;
+        final long enqueueTime;
+        final long sequence; // first-in-first-out within a class and a deadline
+        ConnectionPriority priority;
+        long deadline; // 0: no deadline
+        int rank; // of the connection order
+
+        WaitingEntry(String address, ConnectionPriority priority, long deadline, long enqueueTime, long sequence) {
+            this.address = address;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.enqueueTime = enqueueTime;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<WaitingEntry> PRIORITY_ORDER = new Comparator<WaitingEntry>() {
+        @Override
+        public int compare(WaitingEntry a, WaitingEntry b) {
+            if (a.priority != b.priority) return a.priority.compareTo(b.priority);
+            long aDeadline = (a.deadline > 0) ? a.deadline : Long.MAX_VALUE;
+            long bDeadline = (b.deadline > 0) ? b.deadline : Long.MAX_VALUE;
+            if (aDeadline != bDeadline) return (aDeadline < bDeadline) ? -1 : 1;
+            if (a.rank != b.rank) return (a.rank < b.rank) ? -1 : 1;
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static final Comparator<WaitingEntry> DEADLINE_ORDER = new Comparator<WaitingEntry>() {
+        @Override
+        public int compare(WaitingEntry a, WaitingEntry b) {
+            if (a.deadline != b.deadline) return (a.deadline < b.deadline) ? -1 : 1;
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    /**
+     * New a connection scheduler on the system clock.
+     *
+     * @param maxConnectionNumber   the maximum number of concurrent connections
+     */
+    public ConnectionScheduler(int maxConnectionNumber) {
+        this(maxConnectionNumber, null);
+    }
+
+    /**
+     * New a connection scheduler.
+     *
+     * @param maxConnectionNumber   the maximum number of concurrent connections
+     * @param clock                 the clock of the wait time and slot time metrics, or
+     *                              {@code null} for the system clock
+     */
+    public ConnectionScheduler(int maxConnectionNumber, EpdScheduler clock) {
+        this.maxConnectionNumber = Math.max(1, maxConnectionNumber);
+        this.clock = clock;
+    }
+
+    /**
+     * Ask for a connection slot with {@code ConnectionPriority.NORMAL} and no deadline.
+     *
+     * @param address   device mac address
+     * @return          {@code true} the device holds a slot and can connect now;
+     *                  {@code false} the device is in the waiting queue
+     */
+    public boolean acquire(String address) {
+        return acquire(address, ConnectionPriority.NORMAL, 0);
+    }
+
+    /**
+     * Ask for a connection slot. The device is put into the waiting queue if all slots are held.
+     * A device which is waiting already keeps its priority, see
+     * {@link #reprioritize(String, ConnectionPriority, long)}.
+     *
+     * @param address   device mac address
+     * @param priority  the priority class in the waiting queue
+     * @param deadline  the time by which the device should hold a slot, in the time of the clock;
+     *                  {@code 0} no deadline
+     * @return          {@code true} the device holds a slot and can connect now;
+     *                  {@code false} the device is in the waiting queue
+     */
+    public synchronized boolean acquire(String address, ConnectionPriority priority, long deadline) {
+        if (activeSet.contains(address)) return true;
+        if (waitingMap.containsKey(address)) return false;
+        if (activeSet.size() < maxConnectionNumber) {
+            addActive(address);
+            admittedCount++;
+            return true;
+        }
+        WaitingEntry entry = new WaitingEntry(address, (priority != null) ? priority : ConnectionPriority.NORMAL,
+                Math.max(0, deadline), now(), sequence++);
+        entry.rank = rank(address);
+        waitingMap.put(address, entry);
+        addWaiting(entry);
+        queuedCount++;
+        maxWaitingCount = Math.max(maxWaitingCount, waitingMap.size());
+        return false;
+    }
+
+    /**
+     * Change the priority class and the deadline of a waiting device. The device keeps its place
+     * among the devices of the same class and deadline which came later.
+     *
+     * @param address   device mac address
+     * @param priority  the priority class in the waiting queue
+     * @param deadline  the time by which the device should hold a slot, in the time of the clock;
+     *                  {@code 0} no deadline
+     * @return          {@code true} the device is waiting;
+     *                  {@code false} otherwise
+     */
+    public synchronized boolean reprioritize(String address, ConnectionPriority priority, long deadline) {
+        WaitingEntry entry = waitingMap.get(address);
+        if (entry == null) return false;
+        removeWaiting(entry);
+        entry.priority = (priority != null) ? priority : ConnectionPriority.NORMAL;
+        entry.deadline = Math.max(0, deadline);
+        addWaiting(entry);
+        return true;
+    }
+
+    /**
+     * Set the order of the waiting devices within a priority class, e.g. a
+     * {@link LinkQualityOrder}. The waiting devices are ranked again.
+     *
+     * @param connectionOrder   the connection order, or {@code null} for first-in-first-out
+     */
+    public synchronized void setConnectionOrder(ConnectionOrder connectionOrder) {
+        this.connectionOrder = connectionOrder;
+        for (WaitingEntry entry : waitingMap.values()) {
+            removeWaiting(entry);
+            entry.rank = rank(entry.address);
+            addWaiting(entry);
+        }
+    }
+
+    public synchronized ConnectionOrder getConnectionOrder() {
+        return connectionOrder;
+    }
+
+    /**
+     * Rank a waiting device again, e.g. after a new scan result of a deferred device.
+     *
+     * @param address   device mac address
+     * @return          {@code true} the device is waiting;
+     *                  {@code false} otherwise
+     */
+    public synchronized boolean rerank(String address) {
+        WaitingEntry entry = waitingMap.get(address);
+        if (entry == null) return false;
+        int rank = rank(address);
+        if (rank == entry.rank) return true;
+        removeWaiting(entry);
+        entry.rank = rank;
+        addWaiting(entry);
+        return true;
+    }
+
+    /**
+     * Get the priority class of a waiting device.
+     *
+     * @param address   device mac address
+     * @return          the priority class; {@code null} if the device is not waiting
+     */
+    public synchronized ConnectionPriority getPriority(String address) {
+        WaitingEntry entry = waitingMap.get(address);
+        return (entry != null) ? entry.priority : null;
+    }
+
+    /**
+     * Release the slot of a device, and hand it to the next device in the waiting queue. The next
+     * device holds the slot when this method returns, and the caller should connect to it.
+     *
+     * @param address   device mac address
+     * @return          the mac address of the next device; {@code null} if the slot is free or
+     *                  the device held no slot
+     */
+    public synchronized String release(String address) {
+        if (!activeSet.contains(address)) return null;
+        updateSlotTime();
+        activeSet.remove(address);
+        if (activeSet.size() >= maxConnectionNumber) return null;
+        return promote();
+    }
+
+    /**
+     * Remove a device from the waiting queue.
+     *
+     * @param address   device mac address
+     * @return          {@code true} the device was waiting;
+     *                  {@code false} otherwise
+     */
+    public synchronized boolean cancel(String address) {
+        WaitingEntry entry = waitingMap.remove(address);
+        if (entry == null) return false;
+        removeWaiting(entry);
+        return true;
+    }
+
+    public synchronized boolean isActive(String address) {
+        return activeSet.contains(address);
+    }
+
+    public synchronized boolean isWaiting(String address) {
+        return waitingMap.containsKey(address);
+    }
+
+    public synchronized boolean isActiveOrWaiting(String address) {
+        return activeSet.contains(address) || waitingMap.containsKey(address);
+    }
+
+    public synchronized int getActiveCount() {
+        return activeSet.size();
+    }
+
+    public synchronized int getWaitingCount() {
+        return waitingMap.size();
+    }
+
+    public synchronized int getMaxConnectionNumber() {
+        return maxConnectionNumber;
+    }
+
+    /**
+     * Change the maximum number of concurrent connections. A raised limit hands the new slots to
+     * the devices in the waiting queue at once. A lowered limit keeps the current connections, and
+     * their slots are not handed over until the number of connections is below the limit.
+     *
+     * @param maxConnectionNumber   the maximum number of concurrent connections
+     * @return                      the mac addresses of the devices which hold a slot now, and the
+     *                              caller should connect to them
+     */
+    public synchronized List<String> setMaxConnectionNumber(int maxConnectionNumber) {
+        this.maxConnectionNumber = Math.max(1, maxConnectionNumber);
+        List<String> promotedList = new ArrayList<>();
+        while (activeSet.size() < this.maxConnectionNumber) {
+            String nextAddress = promote();
+            if (nextAddress == null) break;
+            promotedList.add(nextAddress);
+        }
+        return promotedList;
+    }
+
+    /**
+     * Set the longest time from a disconnect request to the release of the slot, if the
+     * disconnection event does not come.
+     *
+     * @param releaseTimeout    the timeout in milliseconds
+     */
+    public void setReleaseTimeout(int releaseTimeout) {
+        this.releaseTimeout = Math.max(0, releaseTimeout);
+    }
+
+    public int getReleaseTimeout() {
+        return releaseTimeout;
+    }
+
+    /**
+     * Get the metrics of the connection slots and the waiting queue.
+     *
+     * @return  the metrics
+     */
+    public synchronized ConnectionQueueStats getStats() {
+        updateSlotTime();
+        long averageWaitTime = (promotedCount > 0) ? totalWaitTime / promotedCount : 0;
+        long[] classAverageWaitTimes = new long[classWaitTimes.length];
+        for (int i = 0; i < classWaitTimes.length; i++) {
+            classAverageWaitTimes[i] = (classPromotedCounts[i] > 0) ? classWaitTimes[i] / classPromotedCounts[i] : 0;
+        }
+        return new ConnectionQueueStats(activeSet.size(), maxConnectionNumber, waitingMap.size(), maxWaitingCount,
+                admittedCount, queuedCount, promotedCount, averageWaitTime, slotTime,
+                maxWaitTime, missedDeadlineCount, classAverageWaitTimes);
+    }
+
+    // hand a free slot to the overdue device, or to the head of the waiting queue
+    private String promote() {
+        if (waitingMap.isEmpty()) return null;
+        long now = now();
+        WaitingEntry entry = deadlineQueue.isEmpty() ? null : deadlineQueue.first();
+        if (entry == null || entry.deadline > now) entry = waitingQueue.first();
+        waitingMap.remove(entry.address);
+        removeWaiting(entry);
+        long waitTime = now - entry.enqueueTime;
+        totalWaitTime += waitTime;
+        maxWaitTime = Math.max(maxWaitTime, waitTime);
+        classWaitTimes[entry.priority.ordinal()] += waitTime;
+        classPromotedCounts[entry.priority.ordinal()]++;
+        if (entry.deadline > 0 && entry.deadline < now) missedDeadlineCount++;
+        addActive(entry.address);
+        promotedCount++;
+        return entry.address;
+    }
+
+    private int rank(String address) {
+        return (connectionOrder != null) ? connectionOrder.getRank(address) : 0;
+    }
+
+    private void addWaiting(WaitingEntry entry) {
+        waitingQueue.add(entry);
+        if (entry.deadline > 0) deadlineQueue.add(entry);
+    }
+
+    private void removeWaiting(WaitingEntry entry) {
+        waitingQueue.remove(entry);
+        if (entry.deadline > 0) deadlineQueue.remove(entry);
+    }
+
+    private void addActive(String address) {
+        updateSlotTime();
+        activeSet.add(address);
+    }
+
+    // accumulate the time of the held slots up to now
+    private void updateSlotTime() {
+        long now = now();
+        if (lastChangeTime >= 0) slotTime += activeSet.size() * (now - lastChangeTime);
+        lastChangeTime = now;
+    }
+
+    private long now() {
+        return (clock != null) ? clock.now() : System.currentTimeMillis();
+    }
+}
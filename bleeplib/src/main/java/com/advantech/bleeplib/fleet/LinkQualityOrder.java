@@ -0,0 +1,119 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.bean.DeviceProfile;
+import com.advantech.bleeplib.protocol.EpdScheduler;
+
+/**
+ * LinkQualityOrder runs the devices with a good link first. Devices with a weak signal transfer
+ * slower and lose the connection more often, so they hold the scarce slots for a long time. This
+ * order ranks each waiting device by the recent RSSI of the scan results and the transfer rate of
+ * its past pushes:
+ * <pre>
+ * RANK_FAST     -&gt; RANK_NORMAL (or unknown) -&gt; RANK_WEAK -&gt; RANK_DEFERRED (not seen recently)
+ * </pre>
+ * The weak devices are grouped after the others, and with a stale time the devices which have not
+ * been seen recently (e.g. out of range) are deferred to the end of their priority class. A device
+ * is ranked by the worse of the signal and the transfer rate, if both are known.
+ * <p>
+ * This class is pure Java and has no Android dependency.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class LinkQualityOrder implements ConnectionOrder {
+    public static final int RANK_FAST = 0;
+    public static final int RANK_NORMAL = 1;
+    public static final int RANK_WEAK = 2;
+    public static final int RANK_DEFERRED = 3;
+    public static final int DEFAULT_FAST_RSSI = -70; // dBm
+    public static final int DEFAULT_WEAK_RSSI = -85; // dBm
+    public static final int DEFAULT_FAST_RATE = 16000; // bytes per second
+    public static final int DEFAULT_WEAK_RATE = 6000; // bytes per second
+
+    /**
+     * Interface definition for the source of the device profiles, e.g. {@code BLEUtil}.
+     */
+    public interface ProfileSource {
+        /**
+         * Get the cached profile of a device.
+         *
+         * @param address   device mac address
+         * @return          the profile, or {@code null} if the device is unknown
+         */
+        DeviceProfile getDeviceProfile(String address);
+    }
+
+    private final ProfileSource source;
+    private final EpdScheduler clock;
+    private int fastRssi = DEFAULT_FAST_RSSI;
+    private int weakRssi = DEFAULT_WEAK_RSSI;
+    private int fastRate = DEFAULT_FAST_RATE;
+    private int weakRate = DEFAULT_WEAK_RATE;
+    private long staleTime = 0; // 0: never defer
+
+    /**
+     * New a link quality order.
+     *
+     * @param source    the source of the device profiles
+     * @param clock     the clock of the last seen time, or {@code null} for the system clock
+     */
+    public LinkQualityOrder(ProfileSource source, EpdScheduler clock) {
+        this.source = source;
+        this.clock = clock;
+    }
+
+    /**
+     * Set the signal strength thresholds.
+     *
+     * @param fastRssi  a device at or above it is fast, in dBm
+     * @param weakRssi  a device below it is weak, in dBm
+     */
+    public void setRssiThresholds(int fastRssi, int weakRssi) {
+        this.fastRssi = fastRssi;
+        this.weakRssi = Math.min(fastRssi, weakRssi);
+    }
+
+    /**
+     * Set the transfer rate thresholds.
+     *
+     * @param fastRate  a device at or above it is fast, in bytes per second
+     * @param weakRate  a device below it is weak, in bytes per second
+     */
+    public void setRateThresholds(int fastRate, int weakRate) {
+        this.fastRate = fastRate;
+        this.weakRate = Math.min(fastRate, weakRate);
+    }
+
+    /**
+     * Defer the devices which have not been seen for a time, by a scan result or a connection.
+     *
+     * @param staleTime the time in milliseconds; {@code 0} never defer
+     */
+    public void setStaleTime(long staleTime) {
+        this.staleTime = Math.max(0, staleTime);
+    }
+
+    @Override
+    public int getRank(String address) {
+        DeviceProfile profile = source.getDeviceProfile(address);
+        if (profile == null) return (staleTime > 0) ? RANK_DEFERRED : RANK_NORMAL;
+        if (staleTime > 0 && now() - profile.getLastSeen() > staleTime) return RANK_DEFERRED;
+        int rank = -1;
+        if (profile.getRssi() != 0) {
+            rank = rank(profile.getRssi() >= fastRssi, profile.getRssi() < weakRssi);
+        }
+        if (profile.getTransferRate() > 0) {
+            rank = Math.max(rank, rank(profile.getTransferRate() >= fastRate, profile.getTransferRate() < weakRate));
+        }
+        return (rank >= 0) ? rank : RANK_NORMAL;
+    }
+
+    private static int rank(boolean isFast, boolean isWeak) {
+        if (isWeak) return RANK_WEAK;
+        return isFast ? RANK_FAST : RANK_NORMAL;
+    }
+
+    private long now() {
+        return (clock != null) ? clock.now() : System.currentTimeMillis();
+    }
+}
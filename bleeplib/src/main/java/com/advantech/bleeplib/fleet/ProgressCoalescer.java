@@ -0,0 +1,249 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.bean.FleetProgress;
+import com.advantech.bleeplib.protocol.EpdScheduler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ProgressCoalescer turns the progress of each block notification into a few updates for a user
+ * interface. A transfer of an EPD353 frame reports hundreds of blocks, and a list which is redrawn
+ * for each of them spends the main thread on redraws.
+ * <p>
+ * The progress of a device is delivered at most {@code maxRate} times per second, and only when
+ * it changes by {@code minStep} percent. An update which is held back by the rate is delivered at
+ * the end of the interval, so the last progress is never lost. While transfers are running, a
+ * summary of all transfers is delivered on a fixed tick.
+ * <p>
+ * This class is pure Java and has no Android dependency, so the same logic is used by
+ * {@code BLEUtil} and by the JVM tests.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class ProgressCoalescer {
+    public static final int DEFAULT_MAX_RATE = 4; // updates per second of a device
+    public static final int DEFAULT_MIN_STEP = 1; // percent
+    public static final long DEFAULT_FLEET_INTERVAL = 1000; // ms
+
+    /**
+     * Interface definition for a callback to be invoked with the coalesced progress.
+     */
+    public interface Listener {
+        /**
+         * Called with the coalesced progress of a device.
+         *
+         * @param mac       device mac address
+         * @param progress  the progress, 0 ~ 100
+         */
+        void onProgress(String mac, int progress);
+
+        /**
+         * Called on each tick while transfers are running, and once after the last one finished.
+         *
+         * @param progress  the summary of the transfers
+         */
+        void onFleetProgress(FleetProgress progress);
+    }
+
+    // the progress of a running transfer
+    private static class Transfer {
+        int progress = -1;
+        int deliveredProgress = -1;
+        long deliveredTime = -1;
+        Object timer; // the delivery held back by the rate
+    }
+
+    private final EpdScheduler clock;
+    private Listener listener;
+    private int maxRate = DEFAULT_MAX_RATE;
+    private int minStep = DEFAULT_MIN_STEP;
+    private long fleetInterval = DEFAULT_FLEET_INTERVAL;
+    private final Map<String, Transfer> transfers = new HashMap<>(); // mac, running transfer
+    private int succeededCount = 0;
+    private int failedCount = 0;
+    private Object fleetTimer;
+
+    /**
+     * New a progress coalescer.
+     *
+     * @param clock the clock and the timers of the deliveries
+     */
+    public ProgressCoalescer(EpdScheduler clock) {
+        this.clock = clock;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the rate and the step of the progress of a device.
+     *
+     * @param maxRate   updates per second of a device, {@code 0} no limit
+     * @param minStep   the change of the progress which is delivered, percent
+     */
+    public synchronized void setRate(int maxRate, int minStep) {
+        this.maxRate = Math.max(0, maxRate);
+        this.minStep = Math.max(1, minStep);
+    }
+
+    /**
+     * Set the tick of the fleet summary.
+     *
+     * @param fleetInterval the tick, ms; {@code 0} no fleet summary
+     */
+    public synchronized void setFleetInterval(long fleetInterval) {
+        this.fleetInterval = Math.max(0, fleetInterval);
+        if (this.fleetInterval == 0) {
+            clock.cancel(fleetTimer);
+            fleetTimer = null;
+        } else {
+            startFleetTick();
+        }
+    }
+
+    /**
+     * Report the progress of a device, e.g. on each block notification.
+     *
+     * @param mac       device mac address
+     * @param progress  the progress, 0 ~ 100
+     */
+    public void onProgress(String mac, int progress) {
+        Listener listener;
+        synchronized (this) {
+            Transfer transfer = transfers.get(mac);
+            if (transfer == null) {
+                transfer = new Transfer();
+                transfers.put(mac, transfer);
+                startFleetTick();
+            }
+            transfer.progress = progress;
+            if (!poll(mac, transfer)) return;
+            listener = this.listener;
+        }
+        if (listener != null) listener.onProgress(mac, progress);
+    }
+
+    /**
+     * Report the end of the transfer of a device. The progress held back by the rate is delivered
+     * at once.
+     *
+     * @param mac       device mac address
+     * @param isSuccess {@code true} the image is written
+     */
+    public void onFinished(String mac, boolean isSuccess) {
+        Listener listener;
+        Transfer transfer;
+        synchronized (this) {
+            transfer = remove(mac);
+            if (transfer == null) return;
+            if (isSuccess) {
+                succeededCount++;
+            } else {
+                failedCount++;
+            }
+            listener = this.listener;
+        }
+        if (transfer.progress != transfer.deliveredProgress && listener != null) listener.onProgress(mac, transfer.progress);
+    }
+
+    /**
+     * Report a transfer which is stopped and may be resumed, e.g. the connection is lost.
+     *
+     * @param mac       device mac address
+     */
+    public synchronized void onStopped(String mac) {
+        remove(mac);
+    }
+
+    /**
+     * Get the summary of the running transfers.
+     *
+     * @return  the summary
+     */
+    public synchronized FleetProgress getFleetProgress() {
+        int sum = 0;
+        int min = -1;
+        int count = 0;
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.progress < 0) continue;
+            sum += transfer.progress;
+            min = (min < 0) ? transfer.progress : Math.min(min, transfer.progress);
+            count++;
+        }
+        int average = (count > 0) ? Math.round((float) sum / count) : -1;
+        return new FleetProgress(transfers.size(), average, min, succeededCount, failedCount);
+    }
+
+    // deliver the progress now, or at the end of the rate interval
+    private boolean poll(final String mac, final Transfer transfer) {
+        int change = Math.abs(transfer.progress - transfer.deliveredProgress);
+        if (change == 0 || (change < minStep && transfer.progress != 100 && transfer.deliveredProgress >= 0)) return false;
+        long now = clock.now();
+        long next = (transfer.deliveredTime < 0 || maxRate == 0) ? now : transfer.deliveredTime + 1000 / maxRate;
+        if (now >= next) {
+            clock.cancel(transfer.timer);
+            transfer.timer = null;
+            transfer.deliveredProgress = transfer.progress;
+            transfer.deliveredTime = now;
+            return true;
+        }
+        if (transfer.timer == null) {
+            transfer.timer = clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onTimer(mac, transfer);
+                }
+            }, next - now);
+        }
+        return false;
+    }
+
+    private void onTimer(String mac, Transfer transfer) {
+        Listener listener;
+        int progress;
+        synchronized (this) {
+            transfer.timer = null;
+            if (transfers.get(mac) != transfer || !poll(mac, transfer)) return;
+            progress = transfer.progress;
+            listener = this.listener;
+        }
+        if (listener != null) listener.onProgress(mac, progress);
+    }
+
+    private Transfer remove(String mac) {
+        Transfer transfer = transfers.remove(mac);
+        if (transfer != null) clock.cancel(transfer.timer);
+        return transfer;
+    }
+
+    private void startFleetTick() {
+        if (fleetTimer != null || fleetInterval == 0 || transfers.isEmpty()) return;
+        fleetTimer = clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onFleetTick();
+            }
+        }, fleetInterval);
+    }
+
+    // the summary of each tick, and a last one after all transfers finished
+    private void onFleetTick() {
+        Listener listener;
+        FleetProgress progress;
+        synchronized (this) {
+            fleetTimer = null;
+            progress = getFleetProgress();
+            if (transfers.isEmpty()) {
+                succeededCount = 0;
+                failedCount = 0;
+            } else {
+                startFleetTick();
+            }
+            listener = this.listener;
+        }
+        if (listener != null) listener.onFleetProgress(progress);
+    }
+}
@@ -0,0 +1,39 @@
+package com.advantech.bleeplib.fleet;
+
+/**
+ * RetryPolicy decides whether a task reconnects to the device after the connection is lost. A
+ * task is given up after {@code maxRetryTimes} disconnections.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class RetryPolicy {
+    public static final int DEFAULT_MAX_RETRY_TIMES = 5;
+    public static final RetryPolicy DEFAULT = new RetryPolicy(DEFAULT_MAX_RETRY_TIMES);
+
+    private final int maxRetryTimes;
+
+    /**
+     * New a retry policy.
+     *
+     * @param maxRetryTimes the number of disconnections after which the task is given up
+     */
+    public RetryPolicy(int maxRetryTimes) {
+        this.maxRetryTimes = Math.max(1, maxRetryTimes);
+    }
+
+    /**
+     * Check if the task can reconnect.
+     *
+     * @param retry the number of disconnections so far, including this one
+     * @return      {@code true} reconnect to the device;
+     *              {@code false} give up the task
+     */
+    public boolean canRetry(int retry) {
+        return retry < maxRetryTimes;
+    }
+
+    public int getMaxRetryTimes() {
+        return maxRetryTimes;
+    }
+}
@@ -0,0 +1,109 @@
+package com.advantech.bleeplib.frame;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ArenaFrame is a frame stored in a {@link FrameArena}. The block packets live off-heap in a slab
+ * of the arena, in exactly the layout that is written to the image block characteristic. An
+ * ArenaFrame is reference counted: each {@link FrameArena#put(FrameSource)} of the same content
+ * returns the same frame with one more reference, and the storage is returned to the arena when
+ * the last reference is released.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class ArenaFrame implements FrameSource {
+    private final FrameArena arena;
+    final FrameArena.Slab slab;
+    final ByteBuffer key; // content hash
+    final int offset;
+    final int length;
+    private final byte[] header;
+    private final int blockLen;
+    private final int totalBlockNumber;
+    int refCount = 1; // guarded by arena
+
+    ArenaFrame(FrameArena arena, FrameArena.Slab slab, ByteBuffer key, int offset, byte[] header, int blockLen, int totalBlockNumber) {
+        this.arena = arena;
+        this.slab = slab;
+        this.key = key;
+        this.offset = offset;
+        this.header = header;
+        this.blockLen = blockLen;
+        this.totalBlockNumber = totalBlockNumber;
+        this.length = totalBlockNumber * (blockLen + 2);
+    }
+
+    /**
+     * Add a reference to the frame.
+     *
+     * @return  this frame
+     */
+    public ArenaFrame retain() {
+        arena.retain(this);
+        return this;
+    }
+
+    /**
+     * Remove a reference to the frame. The storage is returned to the arena when the last reference
+     * is released, and the frame must not be used afterward.
+     */
+    @Override
+    public void release() {
+        arena.release(this);
+    }
+
+    /**
+     * Get the number of references to the frame.
+     *
+     * @return  the number of references
+     */
+    public int getRefCount() {
+        synchronized (arena) {
+            return refCount;
+        }
+    }
+
+    /**
+     * Slice a block packet from the arena without copying.
+     *
+     * @param blockNumber   block number
+     * @return              a read-only view of the block packet
+     */
+    public ByteBuffer sliceBlock(int blockNumber) {
+        if (blockNumber < 0 || blockNumber >= totalBlockNumber) throw new IndexOutOfBoundsException("Block " + blockNumber);
+        ByteBuffer view = slab.buffer.asReadOnlyBuffer();
+        int position = offset + blockNumber * (blockLen + 2);
+        view.position(position);
+        view.limit(position + blockLen + 2);
+        return view.slice();
+    }
+
+    @Override
+    public byte[] getContentHash() {
+        return key.array().clone();
+    }
+
+    @Override
+    public byte[] getHeader() {
+        return header.clone();
+    }
+
+    @Override
+    public int getBlockLength() {
+        return blockLen;
+    }
+
+    @Override
+    public int getTotalBlockNumber() {
+        return totalBlockNumber;
+    }
+
+    @Override
+    public int readBlock(int blockNumber, byte[] packet) {
+        ByteBuffer block = sliceBlock(blockNumber);
+        int length = block.remaining();
+        block.get(packet, 0, length);
+        return length;
+    }
+}
@@ -0,0 +1,50 @@
+package com.advantech.bleeplib.frame;
+
+/**
+ * A fully framed payload in the byte array format, for internal usage.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class ByteArrayFrame implements FrameSource {
+    private final byte[] frameData;
+    private final int blockLen;
+    private byte[] contentHash;
+
+    ByteArrayFrame(byte[] frameData, int blockLen) {
+        this.frameData = frameData;
+        this.blockLen = blockLen;
+    }
+
+    @Override
+    public byte[] getHeader() {
+        byte[] header = new byte[FrameCodec.IMAGE_HEADER_LEN];
+        System.arraycopy(frameData, 0, header, 0, header.length);
+        return header;
+    }
+
+    @Override
+    public int getBlockLength() {
+        return blockLen;
+    }
+
+    @Override
+    public int getTotalBlockNumber() {
+        return FrameCodec.getTotalBlockNumber(frameData.length, blockLen);
+    }
+
+    @Override
+    public int readBlock(int blockNumber, byte[] packet) {
+        return FrameCodec.copyBlock(frameData, blockNumber, blockLen, packet);
+    }
+
+    @Override
+    public byte[] getContentHash() {
+        if (contentHash == null) contentHash = FrameCodec.contentHash(this);
+        return contentHash.clone();
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,257 @@
+package com.advantech.bleeplib.frame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * FrameArena is an off-heap store for encoded frames, designed for push campaigns which queue
+ * thousands of frames. Frames are copied into large direct ByteBuffer slabs by bump allocation, so
+ * the Java heap does not fill with long-lived byte arrays and the garbage collector does not stall
+ * the GATT callback thread. Frames with the same content are stored once and reference counted.
+ * A slab is recycled when all frames in it are released.
+ * <p>
+ * Usage: {@code ArenaFrame frame = arena.put(frameSource);} for each device, push the frame by
+ * {@code BLETaskHandler} or {@code BLEUtil#pushFrame}, and release the frame when the task is
+ * completed. {@code BLETaskHandler} releases the frame for you.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class FrameArena {
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024; // 1 MB
+    private static final int MAX_FREE_SLABS = 2; // keep a few empty slabs for the next frames
+
+    private final int slabSize;
+    private final List<Slab> slabs = new ArrayList<>();
+    private final List<Slab> freeSlabs = new ArrayList<>();
+    private final Map<ByteBuffer, ArenaFrame> frames = new HashMap<>(); // content hash, frame
+    private Slab current;
+    private long liveBytes = 0;
+    private long putCount = 0;
+    private long dedupHitCount = 0;
+
+    static class Slab {
+        final ByteBuffer buffer;
+        int top = 0; // bump pointer
+        int live = 0; // number of live frames
+
+        Slab(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    /**
+     * New a FrameArena constructor with the default slab size.
+     */
+    public FrameArena() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * New a FrameArena constructor.
+     *
+     * @param slabSize  slab size in bytes; a frame larger than a slab gets a dedicated slab
+     */
+    public FrameArena(int slabSize) {
+        if (slabSize <= 0) throw new IllegalArgumentException("Invalid slab size");
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * Store a fully framed payload, with or without the padding data.
+     *
+     * @param frameData     framed payload
+     * @return              the stored frame with one reference
+     */
+    public ArenaFrame put(byte[] frameData) {
+        return put(frameData, FrameCodec.BLOCK_LEN);
+    }
+
+    /**
+     * Store a fully framed payload, with or without the padding data, for a block length.
+     *
+     * @param frameData     framed payload
+     * @param blockLen      the block length in bytes, without the block number
+     * @return              the stored frame with one reference
+     */
+    public ArenaFrame put(byte[] frameData, int blockLen) {
+        if (frameData == null || frameData.length < FrameCodec.IMAGE_HEADER_LEN || blockLen <= 0) throw new IllegalArgumentException("Invalid frame");
+        return put(new ByteArrayFrame(frameData, blockLen));
+    }
+
+    /**
+     * Store a frame, e.g. an {@code ImageGenerator} after the task has been generated. If a frame
+     * with the same content is already stored, the stored frame is returned with one more
+     * reference.
+     *
+     * @param frameSource   the frame
+     * @return              the stored frame with one reference
+     */
+    public ArenaFrame put(FrameSource frameSource) {
+        byte[] header = frameSource.getHeader();
+        int blockLen = frameSource.getBlockLength();
+        int totalBlockNumber = frameSource.getTotalBlockNumber();
+        byte[] packet = new byte[blockLen + 2];
+
+        ByteBuffer key = ByteBuffer.wrap(frameSource.getContentHash());
+
+        synchronized (this) {
+            putCount++;
+            ArenaFrame frame = frames.get(key);
+            if (frame != null) {
+                dedupHitCount++;
+                frame.refCount++;
+                return frame;
+            }
+
+            int length = totalBlockNumber * (blockLen + 2);
+            Slab slab = allocate(length);
+            int offset = slab.top;
+            ByteBuffer view = slab.buffer.duplicate();
+            view.position(offset);
+            for (int i = 0; i < totalBlockNumber; i++) {
+                int len = frameSource.readBlock(i, packet);
+                view.put(packet, 0, len);
+            }
+            slab.top += length;
+            slab.live++;
+            liveBytes += length;
+
+            frame = new ArenaFrame(this, slab, key, offset, header, blockLen, totalBlockNumber);
+            frames.put(key, frame);
+            return frame;
+        }
+    }
+
+    // bump allocation in the current slab, or take a new slab
+    private Slab allocate(int length) {
+        if (length > slabSize) {
+            // dedicated slab for a large frame
+            Slab slab = new Slab(length);
+            slabs.add(slab);
+            return slab;
+        }
+        if (current == null || current.buffer.capacity() - current.top < length) {
+            Slab old = current;
+            current = freeSlabs.isEmpty() ? new Slab(slabSize) : freeSlabs.remove(freeSlabs.size() - 1);
+            slabs.add(current);
+            if (old != null && old.live == 0) recycle(old);
+        }
+        return current;
+    }
+
+    synchronized void retain(ArenaFrame frame) {
+        if (frame.refCount <= 0) throw new IllegalStateException("Frame released");
+        frame.refCount++;
+    }
+
+    synchronized void release(ArenaFrame frame) {
+        if (frame.refCount <= 0) return;
+        frame.refCount--;
+        if (frame.refCount > 0) return;
+
+        frames.remove(frame.key);
+        liveBytes -= frame.length;
+        Slab slab = frame.slab;
+        slab.live--;
+        if (slab.live > 0) return;
+        if (slab == current) {
+            slab.top = 0; // reuse in place
+        } else {
+            recycle(slab);
+        }
+    }
+
+    private void recycle(Slab slab) {
+        slabs.remove(slab);
+        if (slab.buffer.capacity() == slabSize && freeSlabs.size() < MAX_FREE_SLABS) {
+            slab.top = 0;
+            freeSlabs.add(slab);
+        }
+    }
+
+    /**
+     * Get the number of stored frames.
+     *
+     * @return  the number of stored frames
+     */
+    public synchronized int getFrameCount() {
+        return frames.size();
+    }
+
+    /**
+     * Get the number of slabs in use, not including the free slabs.
+     *
+     * @return  the number of slabs
+     */
+    public synchronized int getSlabCount() {
+        return slabs.size();
+    }
+
+    /**
+     * Get the off-heap memory reserved by the arena, including the free slabs.
+     *
+     * @return  the reserved memory in bytes
+     */
+    public synchronized long getCapacityBytes() {
+        long capacity = 0;
+        for (Slab slab : slabs) capacity += slab.buffer.capacity();
+        for (Slab slab : freeSlabs) capacity += slab.buffer.capacity();
+        return capacity;
+    }
+
+    /**
+     * Get the memory allocated in the slabs, including the holes of released frames which are
+     * reclaimed when the whole slab is released.
+     *
+     * @return  the allocated memory in bytes
+     */
+    public synchronized long getUsedBytes() {
+        long used = 0;
+        for (Slab slab : slabs) used += slab.top;
+        return used;
+    }
+
+    /**
+     * Get the memory of the frames which are still referenced.
+     *
+     * @return  the live memory in bytes
+     */
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Get the number of put requests.
+     *
+     * @return  the number of put requests
+     */
+    public synchronized long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * Get the number of put requests which were served by an already stored frame.
+     *
+     * @return  the number of deduplicated put requests
+     */
+    public synchronized long getDedupHitCount() {
+        return dedupHitCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameArena{" +
+                "frames=" + frames.size() +
+                ", slabs=" + slabs.size() +
+                ", freeSlabs=" + freeSlabs.size() +
+                ", liveBytes=" + liveBytes +
+                ", usedBytes=" + getUsedBytes() +
+                ", capacityBytes=" + getCapacityBytes() +
+                ", dedupHits=" + dedupHitCount + "/" + putCount +
+                '}';
+    }
+}
@@ -0,0 +1,279 @@
+package com.advantech.bleeplib.frame;
+
+import com.advantech.bleeplib.bean.PanelType;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * FrameCodec is a pure-Java utility class for framing EPD plane data and OTA package data in the
+ * format which the EPD device expects: a 32-byte image identify header (CRC value, image header and
+ * reserved bytes) followed by the data, and then split into blocks. This class has no Android
+ * dependencies, so frames can also be encoded on servers.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public final class FrameCodec {
+    public static final int IMAGE_HEADER_LEN = 32;
+    public static final int BLOCK_LEN = 240;
+    public static final int IMAGE_TYPE_FIRMWARE = 0x01;
+    public static final int IMAGE_TYPE_IMAGE = 0x02;
+    private static final int EPD_TYPE = 0x20;
+    private static final int HEADER_RESERVE_LEN = 16;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Get the length of the packed plane data for a panel-type.
+     *
+     * @param panelType     EPD panel-type {@see PanelType}
+     * @return              the length of the plane data in bytes
+     */
+    public static int getPlaneLength(PanelType panelType) {
+        int pixels = panelType.getWidth() * panelType.getHeight();
+        switch (panelType) {
+            case EPD252:
+                return pixels / 4; // white plane + red plane
+            case EPD353:
+                return pixels / 2; // 4 bits per pixel
+            case EPD250:
+            default:
+                return pixels / 8;
+        }
+    }
+
+    /**
+     * Frame plane data with the image header and the CRC value.
+     *
+     * @param planeData     packed plane data
+     * @param image_page    which page {@code number} on the EPD device; this number must be larger than 0
+     * @param image_action  refresh this image immediately {@code 1} or not {@code 0}
+     * @return              framed data without padding
+     */
+    public static byte[] frameImage(byte[] planeData, int image_page, int image_action) {
+        int page_num = image_page - 1; // Page Number 0 is First Page
+        return frame(planeData, IMAGE_TYPE_IMAGE, EPD_TYPE, page_num, image_action);
+    }
+
+    /**
+     * Frame OTA package data with the image header and the CRC value.
+     *
+     * @param packageData   OTA package data
+     * @return              framed data without padding
+     */
+    public static byte[] frameFirmware(byte[] packageData) {
+        return frame(packageData, IMAGE_TYPE_FIRMWARE, 0x00, 0x00, 0x00);
+    }
+
+    private static byte[] frame(byte[] data, int image_type, int epd_type, int page_num, int isRefresh) {
+        // High byte 要放前面，Low byte 要放後面
+        int length = data.length + IMAGE_HEADER_LEN;
+        int compress_type = 0;
+        int compress_len = 0;
+        byte[] header = new byte[] {
+            (byte) 0x00,
+            (byte) ((length >> 0) & 0xff),
+            (byte) ((length >> 8) & 0xff),
+            (byte) ((length >> 16) & 0xff),
+            (byte) ((length >> 24) & 0xff),
+            (byte) image_type,
+            (byte) compress_type,
+            (byte) ((compress_len >> 0) & 0xff),
+            (byte) ((compress_len >> 8) & 0xff),
+            (byte) ((compress_len >> 16) & 0xff),
+            (byte) ((compress_len >> 24) & 0xff),
+            (byte) epd_type,
+            (byte) page_num,
+            (byte) isRefresh
+        };
+
+        // CRC value + header + reserved bytes + data
+        byte[] frameData = new byte[length];
+        System.arraycopy(header, 0, frameData, 2, header.length);
+        System.arraycopy(data, 0, frameData, 2 + header.length + HEADER_RESERVE_LEN, data.length);
+
+        // calculate CRC16
+        int crc = crc16CCITT(frameData, 2, length);
+        frameData[0] = (byte) ((crc >> 0) & 0xff);
+        frameData[1] = (byte) ((crc >> 8) & 0xff);
+        return frameData;
+    }
+
+    /**
+     * Append the padding data to a frame. The last block is not full, so the number of padding bytes
+     * is appended as a single byte, and the rest of the block is filled with zero when it is sent.
+     *
+     * @param frameData     framed data
+     * @param blockLen      block length in bytes
+     * @return              framed data with padding
+     */
+    public static byte[] addPaddingData(byte[] frameData, int blockLen) {
+        int padding_len = (frameData.length - IMAGE_HEADER_LEN) % blockLen;
+        byte[] newFrameData;
+        if (padding_len > 0) {
+            newFrameData = new byte[frameData.length + 1];
+            System.arraycopy(frameData, 0, newFrameData, 0, frameData.length);
+            newFrameData[frameData.length] = (byte) (blockLen - padding_len);
+        } else {
+            newFrameData = new byte[frameData.length];
+            System.arraycopy(frameData, 0, newFrameData, 0, frameData.length);
+        }
+        return newFrameData;
+    }
+
+    /**
+     * Calculate the number of blocks of a frame.
+     *
+     * @param frameLength   length of the framed data, including the header
+     * @param blockLen      block length in bytes
+     * @return              the number of blocks
+     */
+    public static int getTotalBlockNumber(int frameLength, int blockLen) {
+        return (frameLength - IMAGE_HEADER_LEN + (blockLen - 1)) / blockLen;
+    }
+
+    /**
+     * Copy a block packet in the layout that is written to the image block characteristic: the
+     * block number (low byte first) followed by the block data. Data beyond the end of the frame
+     * is filled with zero.
+     *
+     * @param frameData     framed data
+     * @param blockNumber   block number
+     * @param blockLen      block length in bytes
+     * @param packet        output packet, at least {@code blockLen + 2} bytes
+     * @return              the packet length
+     */
+    public static int copyBlock(byte[] frameData, int blockNumber, int blockLen, byte[] packet) {
+        packet[0] = (byte) blockNumber;
+        packet[1] = (byte) (blockNumber >> 8);
+        int from = IMAGE_HEADER_LEN + blockNumber * blockLen;
+        int count = Math.max(0, Math.min(blockLen, frameData.length - from));
+        if (count > 0) {
+            System.arraycopy(frameData, from, packet, 2, count);
+        }
+        for (int i = 2 + count; i < blockLen + 2; i++) {
+            packet[i] = 0;
+        }
+        return blockLen + 2;
+    }
+
+    /**
+     * Calculate the content hash of a frame over the image header and all block packets, so the
+     * same frame has the same hash in any FrameSource.
+     *
+     * @param frameSource   the frame
+     * @return              SHA-256 of the header and all block packets
+     */
+    public static byte[] contentHash(FrameSource frameSource) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(frameSource.getHeader());
+        byte[] packet = new byte[frameSource.getBlockLength() + 2];
+        int totalBlockNumber = frameSource.getTotalBlockNumber();
+        for (int i = 0; i < totalBlockNumber; i++) {
+            int len = frameSource.readBlock(i, packet);
+            digest.update(packet, 0, len);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Check whether a fully framed image (CRC, header and plane data, with or without padding) is
+     * valid for a panel-type. The length field, the image type, the plane data length and the CRC
+     * value are all verified.
+     *
+     * @param panelType     EPD panel-type {@see PanelType}
+     * @param frameData     framed data
+     * @return              {@code true} the frame is valid;
+     *                      {@code false} otherwise
+     */
+    public static boolean isValidFrame(PanelType panelType, byte[] frameData) {
+        if (panelType == null || frameData == null || frameData.length < IMAGE_HEADER_LEN) return false;
+        int length = readFrameLength(frameData);
+        // length field includes the header, and only the padding data is allowed after it
+        if (length < IMAGE_HEADER_LEN || length > frameData.length || frameData.length - length > BLOCK_LEN) return false;
+        if (frameData[7] != IMAGE_TYPE_IMAGE) return false;
+        if (length - IMAGE_HEADER_LEN != getPlaneLength(panelType)) return false;
+        return readFrameCRC(frameData) == crc16CCITT(frameData, 2, length);
+    }
+
+    /**
+     * Read the length field of the image header.
+     *
+     * @param frameData     framed data
+     * @return              the frame length without padding, including the header
+     */
+    public static int readFrameLength(byte[] frameData) {
+        return (frameData[3] & 0xff) | ((frameData[4] & 0xff) << 8) | ((frameData[5] & 0xff) << 16) | ((frameData[6] & 0xff) << 24);
+    }
+
+    /**
+     * Read the CRC value of the image header.
+     *
+     * @param frameData     framed data
+     * @return              the CRC value
+     */
+    public static int readFrameCRC(byte[] frameData) {
+        return (frameData[0] & 0xff) | ((frameData[1] & 0xff) << 8);
+    }
+
+    /**
+     * Read the image type of the image header.
+     *
+     * @param frameData     framed data, or the image header
+     * @return              {@code IMAGE_TYPE_IMAGE} or {@code IMAGE_TYPE_FIRMWARE}
+     */
+    public static int readImageType(byte[] frameData) {
+        return frameData[7] & 0xff;
+    }
+
+    /******************************************************************************
+     *  Compilation:  javac CRC16CCITT.java
+     *  Execution:    java CRC16CCITT s
+     *  Dependencies:
+     *
+     *  Reads in a sequence of bytes and prints out its 16 bit
+     *  Cylcic Redundancy Check (CRC-CCIIT 0xFFFF).
+     *
+     *  1 + x + x^5 + x^12 + x^16 is irreducible polynomial.
+     *
+     *  % java CRC16-CCITT 123456789
+     *  CRC16-CCITT = 29b1
+     *
+     ******************************************************************************/
+    public static int crc16CCITT(byte[] bytes, int from, int to) {
+        return crc16CCITT(0x0000, bytes, from, to); // initial value
+    }
+
+    /**
+     * Continue the CRC16-CCITT calculation over another range of bytes.
+     *
+     * @param crc       the CRC value of the previous bytes
+     * @param bytes     data
+     * @param from      from index, inclusive
+     * @param to        to index, exclusive
+     * @return          the CRC value
+     */
+    public static int crc16CCITT(int crc, byte[] bytes, int from, int to) {
+        int polynomial = 0x1021;   // 0001 0000 0010 0001  (0, 5, 12)
+
+        for (int n = from; n < to; n++) {
+            byte b = bytes[n];
+            for (int i = 0; i < 8; i++) {
+                boolean bit = ((b >> (7 - i) & 1) == 1);
+                boolean c15 = ((crc >> 15 & 1) == 1);
+                crc <<= 1;
+                if (c15 ^ bit) crc ^= polynomial;
+            }
+        }
+
+        crc &= 0xffff;
+        return crc;
+    }
+}
@@ -0,0 +1,141 @@
+package com.advantech.bleeplib.frame;
+
+import com.advantech.bleeplib.bean.PanelType;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FrameFile defines a compact on-disk format for pre-encoded frames, so frames can be encoded once
+ * on servers and staged on the flash of the Android device. A frame file is memory-mapped when it
+ * is opened, and the block packets are served by slicing the mapping without holding the frame in
+ * the Java heap.
+ * <p>
+ * File layout (all numbers are little-endian):
+ * <pre>
+ * offset  size  field
+ *      0     4  magic "EPDF"
+ *      4     1  format version (1)
+ *      5     1  panel-type id, or 0xFF for OTA package
+ *      6     2  block length
+ *      8     4  total block number
+ *     12     2  CRC value of the frame
+ *     14     2  reserved
+ *     16    32  content hash (SHA-256 of the image header and all block packets)
+ *     48    32  image identify header
+ *     80   ...  block packets, each one is the block number (2 bytes) + block data (block length)
+ * </pre>
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public final class FrameFile {
+    public static final int VERSION = 1;
+    public static final int FILE_HEADER_LEN = 80;
+    public static final int HASH_LEN = 32;
+    public static final int NO_PANEL_TYPE = 0xff;
+    static final byte[] MAGIC = {'E', 'P', 'D', 'F'};
+    static final int HASH_OFFSET = 16;
+    static final int IMAGE_HEADER_OFFSET = 48;
+
+    private FrameFile() {
+    }
+
+    /**
+     * Write a framed image or OTA package to a frame file.
+     *
+     * @param file          the output file
+     * @param panelType     EPD panel-type {@see PanelType}, or {@code null} for OTA package
+     * @param frameData     framed data, with or without padding
+     * @throws IOException  if the frame is not valid or the file can not be written
+     */
+    public static void write(File file, PanelType panelType, byte[] frameData) throws IOException {
+        OutputStream outputStream = new FileOutputStream(file);
+        try {
+            write(outputStream, panelType, frameData);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Write a framed image or OTA package in the frame file format.
+     *
+     * @param outputStream  the output stream; the caller is responsible for closing it
+     * @param panelType     EPD panel-type {@see PanelType}, or {@code null} for OTA package
+     * @param frameData     framed data, with or without padding
+     * @throws IOException  if the frame is not valid or the stream can not be written
+     */
+    public static void write(OutputStream outputStream, PanelType panelType, byte[] frameData) throws IOException {
+        write(outputStream, panelType, frameData, FrameCodec.BLOCK_LEN);
+    }
+
+    /**
+     * Write a framed image or OTA package in the frame file format for a block length. The block
+     * length must be the one the target devices use for the transfer.
+     *
+     * @param outputStream  the output stream; the caller is responsible for closing it
+     * @param panelType     EPD panel-type {@see PanelType}, or {@code null} for OTA package
+     * @param frameData     framed data, with or without padding
+     * @param blockLen      the block length in bytes, without the block number
+     * @throws IOException  if the frame is not valid or the stream can not be written
+     */
+    public static void write(OutputStream outputStream, PanelType panelType, byte[] frameData, int blockLen) throws IOException {
+        if (blockLen <= 0 || blockLen > 0xffff) throw new IOException("Invalid block length");
+        if (frameData == null || frameData.length < FrameCodec.IMAGE_HEADER_LEN) throw new IOException("Invalid frame");
+        if (panelType != null && !FrameCodec.isValidFrame(panelType, frameData)) throw new IOException("Invalid frame");
+        int length = FrameCodec.readFrameLength(frameData);
+        if (length > frameData.length) throw new IOException("Invalid frame length");
+        // pad the frame as ImageGenerator does, so both paths send the same blocks and content hash
+        if (frameData.length == length) frameData = FrameCodec.addPaddingData(frameData, blockLen);
+
+        int totalBlockNumber = FrameCodec.getTotalBlockNumber(frameData.length, blockLen);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) (panelType != null ? panelType.getId() : NO_PANEL_TYPE));
+        header.putShort((short) blockLen);
+        header.putInt(totalBlockNumber);
+        header.putShort((short) FrameCodec.readFrameCRC(frameData));
+        header.putShort((short) 0);
+        header.put(FrameCodec.contentHash(new ByteArrayFrame(frameData, blockLen)));
+        header.put(frameData, 0, FrameCodec.IMAGE_HEADER_LEN);
+        outputStream.write(header.array());
+
+        byte[] packet = new byte[blockLen + 2];
+        for (int i = 0; i < totalBlockNumber; i++) {
+            int len = FrameCodec.copyBlock(frameData, i, blockLen, packet);
+            outputStream.write(packet, 0, len);
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Open a frame file by memory-mapping it. The frame file is validated, including the CRC value
+     * and the content hash of the frame.
+     *
+     * @param file          the frame file
+     * @return              the MappedFrame
+     * @throws IOException  if the file is not a valid frame file
+     */
+    public static MappedFrame open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            MappedFrame mappedFrame = new MappedFrame(buffer);
+            if (!mappedFrame.verify()) throw new IOException("Frame CRC or content hash error: " + file);
+            return mappedFrame;
+        } finally {
+            // the mapping stays valid after the channel is closed
+            randomAccessFile.close();
+        }
+    }
+}
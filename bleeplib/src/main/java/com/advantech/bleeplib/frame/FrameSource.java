@@ -0,0 +1,56 @@
+package com.advantech.bleeplib.frame;
+
+/**
+ * FrameSource provides an encoded frame to the block transfer: the image identify header and the
+ * block packets in the layout that is written to the image block characteristic.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public interface FrameSource {
+    /**
+     * Get the image identify header.
+     *
+     * @return  the header with {@code FrameCodec.IMAGE_HEADER_LEN} bytes
+     */
+    public byte[] getHeader();
+
+    /**
+     * Get the block length.
+     *
+     * @return  the block length in bytes, without the block number
+     */
+    public int getBlockLength();
+
+    /**
+     * Get the number of blocks.
+     *
+     * @return  the number of blocks
+     */
+    public int getTotalBlockNumber();
+
+    /**
+     * Copy a block packet: the block number (low byte first) followed by the block data.
+     *
+     * @param blockNumber   block number
+     * @param packet        output packet, at least {@code getBlockLength() + 2} bytes
+     * @return              the packet length
+     */
+    public int readBlock(int blockNumber, byte[] packet);
+
+    /**
+     * Get the content hash of the frame, which identifies the frame in the arena and in the
+     * transfer checkpoints.
+     * @see FrameCodec#contentHash(FrameSource)
+     *
+     * @return  SHA-256 of the header and all block packets
+     */
+    public byte[] getContentHash();
+
+    /**
+     * Release the frame after the task is completed. Frames which do not hold shared resources do
+     * nothing here.
+     * @see FrameArena
+     */
+    public void release();
+}
@@ -0,0 +1,149 @@
+package com.advantech.bleeplib.frame;
+
+import com.advantech.bleeplib.bean.PanelType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * MappedFrame is a frame backed by a memory-mapped frame file. Block packets are stored in the
+ * file in exactly the layout that is written to the image block characteristic, so each block is
+ * served by slicing the mapping.
+ * @see FrameFile
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class MappedFrame implements FrameSource {
+    private final ByteBuffer buffer;
+    private final PanelType panelType;
+    private final int blockLen;
+    private final int totalBlockNumber;
+    private final int crc;
+    private final byte[] contentHash = new byte[FrameFile.HASH_LEN];
+    private final byte[] header = new byte[FrameCodec.IMAGE_HEADER_LEN];
+
+    MappedFrame(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < FrameFile.FILE_HEADER_LEN) throw new IOException("Invalid frame file");
+        for (int i = 0; i < FrameFile.MAGIC.length; i++) {
+            if (buffer.get(i) != FrameFile.MAGIC[i]) throw new IOException("Invalid frame file");
+        }
+        if (buffer.get(4) != FrameFile.VERSION) throw new IOException("Unsupported frame file version");
+
+        int panelId = buffer.get(5) & 0xff;
+        PanelType type = null;
+        for (PanelType panel : PanelType.values()) {
+            if (panel.getId() == panelId) {
+                type = panel;
+                break;
+            }
+        }
+        panelType = type;
+        blockLen = buffer.getShort(6) & 0xffff;
+        totalBlockNumber = buffer.getInt(8);
+        crc = buffer.getShort(12) & 0xffff;
+        if (blockLen <= 0 || totalBlockNumber < 0
+                || buffer.capacity() != FrameFile.FILE_HEADER_LEN + (long) totalBlockNumber * (blockLen + 2)) {
+            throw new IOException("Invalid frame file size");
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(FrameFile.HASH_OFFSET);
+        view.get(contentHash);
+        view.position(FrameFile.IMAGE_HEADER_OFFSET);
+        view.get(header);
+    }
+
+    /**
+     * Verify the CRC value of the frame over the image header and all block data, and the content
+     * hash over the image header and all block packets. The content hash identifies the frame,
+     * e.g. for the checkpoints of a transfer, so a wrong hash is not accepted either.
+     *
+     * @return  {@code true} the frame is valid;
+     *          {@code false} otherwise
+     */
+    public boolean verify() {
+        int length = FrameCodec.readFrameLength(header);
+        if (length < FrameCodec.IMAGE_HEADER_LEN || length > FrameCodec.IMAGE_HEADER_LEN + (long) totalBlockNumber * blockLen) return false;
+        if (FrameCodec.readFrameCRC(header) != crc) return false;
+
+        int value = FrameCodec.crc16CCITT(header, 2, FrameCodec.IMAGE_HEADER_LEN);
+        int remaining = length - FrameCodec.IMAGE_HEADER_LEN;
+        byte[] packet = new byte[blockLen + 2];
+        for (int i = 0; i < totalBlockNumber && remaining > 0; i++) {
+            readBlock(i, packet);
+            if ((packet[0] & 0xff | (packet[1] & 0xff) << 8) != i) return false;
+            int count = Math.min(blockLen, remaining);
+            value = FrameCodec.crc16CCITT(value, packet, 2, 2 + count);
+            remaining -= count;
+        }
+        return value == crc && Arrays.equals(FrameCodec.contentHash(this), contentHash);
+    }
+
+    /**
+     * Slice a block packet from the mapping without copying.
+     *
+     * @param blockNumber   block number
+     * @return              a read-only view of the block packet
+     */
+    public ByteBuffer sliceBlock(int blockNumber) {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        int position = FrameFile.FILE_HEADER_LEN + blockNumber * (blockLen + 2);
+        view.position(position);
+        view.limit(position + blockLen + 2);
+        return view.slice();
+    }
+
+    /**
+     * Get the panel-type of the frame.
+     *
+     * @return  EPD panel-type {@see PanelType}, or {@code null} for OTA package
+     */
+    public PanelType getPanelType() {
+        return panelType;
+    }
+
+    @Override
+    public byte[] getContentHash() {
+        return contentHash.clone();
+    }
+
+    /**
+     * Get the CRC value of the frame.
+     *
+     * @return  the CRC value
+     */
+    public int getCRC() {
+        return crc;
+    }
+
+    @Override
+    public byte[] getHeader() {
+        return header.clone();
+    }
+
+    @Override
+    public int getBlockLength() {
+        return blockLen;
+    }
+
+    @Override
+    public int getTotalBlockNumber() {
+        return totalBlockNumber;
+    }
+
+    @Override
+    public int readBlock(int blockNumber, byte[] packet) {
+        ByteBuffer block = sliceBlock(blockNumber);
+        int length = block.remaining();
+        block.get(packet, 0, length);
+        return length;
+    }
+
+    @Override
+    public void release() {
+        // nothing to release, the memory is reclaimed by the garbage collector
+    }
+}
@@ -112,14 +112,24 @@ public class Dithering {
      * @return
      */
     public static RGBTriple findNearestColor(final int argb, RGBTriple[] palette) {
-        final int a = (argb >> 24) & 0xff;
+        return palette[findNearestIndex(argb, palette)];
+    }
+
+    /**
+     * Find the index of the nearest color using RGBTriple palette.
+     *
+     * @param argb      the source color in argb format
+     * @param palette   the palette you want to find the nearest color to the source color
+     * @return          the index of the nearest color in the palette
+     */
+    public static int findNearestIndex(final int argb, RGBTriple[] palette) {
         final int r = (argb >> 16) & 0xff;
         final int g = (argb >> 8) & 0xff;
         final int b = argb & 0xff;
 
         int minDistanceSquared = 255*255 + 255*255 + 255*255 + 1;
         int bestIndex = 0;
-        for (byte i = 0; i < palette.length; i++) {
+        for (int i = 0; i < palette.length; i++) {
             int Rdiff = r - palette[i].channels[0];
             int Gdiff = g - palette[i].channels[1];
             int Bdiff = b - palette[i].channels[2];
@@ -129,7 +139,7 @@ public class Dithering {
                 bestIndex = i;
             }
         }
-        return palette[bestIndex];
+        return bestIndex;
     }
 
 }
@@ -1,13 +1,14 @@
 package com.advantech.bleeplib.image;
 
 import android.graphics.Bitmap;
-import android.net.Uri;
 
 import com.advantech.bleeplib.bean.PanelType;
 import com.advantech.bleeplib.bean.TaskType;
+import com.advantech.bleeplib.frame.FrameCodec;
+import com.advantech.bleeplib.frame.FrameSource;
+import com.advantech.bleeplib.trace.Tracer;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * An image generator for internal usage.
@@ -15,27 +16,30 @@ import java.io.IOException;
  * @author Fabian Chung
  * @version 1.0.0
  */
-public class ImageGenerator {
+public class ImageGenerator implements FrameSource {
 
-    public static final int IMAGE_HEADER_LEN = 32;
-    public static final int BLOCK_LEN = 240;
+    public static final int IMAGE_HEADER_LEN = FrameCodec.IMAGE_HEADER_LEN;
+    public static final int BLOCK_LEN = FrameCodec.BLOCK_LEN;
     public int total_block_number;
+    private int blockLen = BLOCK_LEN;
+    private int generatedBlockLen = -1; // block length of the generated imageData
+    private byte[] sourceData; // package data or framed payload
     private byte[] imageData;
+    private byte[] contentHash;
     private int image_page;
     private int image_action;
     private Bitmap bitmap;
+    private IndexedImage indexedImage;
+    private byte[] planeData;
+    private boolean isFramed = false;
     private PanelType panelType;
     private int width;
     private int height;
-    private static final int MIN = 0;
-    private static final int MAX = 255;
-    private static final int CENTER = 128;
     private TaskType taskType;
-    private Uri packageUri;
 
     public ImageGenerator(TaskType taskType, byte[] packageData) {
         this.taskType = taskType;
-        this.imageData = packageData;
+        this.sourceData = packageData;
     }
 
     public ImageGenerator(TaskType taskType, PanelType panelType, Bitmap bitmap, int image_page, int image_action) {
@@ -46,6 +50,29 @@ public class ImageGenerator {
         this.image_action = image_action;
     }
 
+    public ImageGenerator(TaskType taskType, PanelType panelType, IndexedImage indexedImage, int image_page, int image_action) {
+        this.taskType = taskType;
+        this.panelType = panelType;
+        this.indexedImage = indexedImage;
+        this.image_page = image_page;
+        this.image_action = image_action;
+    }
+
+    public ImageGenerator(TaskType taskType, PanelType panelType, byte[] planeData, int image_page, int image_action) {
+        this.taskType = taskType;
+        this.panelType = panelType;
+        this.planeData = planeData;
+        this.image_page = image_page;
+        this.image_action = image_action;
+    }
+
+    public ImageGenerator(TaskType taskType, PanelType panelType, byte[] frameData) {
+        this.taskType = taskType;
+        this.panelType = panelType;
+        this.sourceData = frameData;
+        this.isFramed = true;
+    }
+
     /**
      * Task type or image data is valid or not.
      *
@@ -53,12 +80,22 @@ public class ImageGenerator {
      */
     public boolean isValid() {
         if (taskType == TaskType.PUSH_IMAGE) {
-            if (panelType == null || bitmap == null) return false;
+            if (panelType == null) return false;
             width = panelType.getWidth();
             height = panelType.getHeight();
+            if (isFramed) {
+                return isValidFrame(panelType, sourceData);
+            }
+            if (planeData != null) {
+                return planeData.length == getPlaneLength(panelType);
+            }
+            if (indexedImage != null) {
+                return (width == indexedImage.getWidth() && height == indexedImage.getHeight());
+            }
+            if (bitmap == null) return false;
             return (width == bitmap.getWidth() && height == bitmap.getHeight());
         } else {
-            return imageData != null;
+            return sourceData != null;
         }
     }
 
@@ -68,7 +105,20 @@ public class ImageGenerator {
      * @return
      */
     public boolean executeTask() {
+        // the frame is generated once for a block length, so retries of a task reuse it
+        if (imageData != null && generatedBlockLen == blockLen) return true;
+        contentHash = null;
+        boolean result = generate();
+        if (result) generatedBlockLen = blockLen;
+        return result;
+    }
+
+    private boolean generate() {
         if (taskType == TaskType.PUSH_IMAGE) {
+            width = panelType.getWidth();
+            height = panelType.getHeight();
+            if (isFramed) return generateFrame();
+            if (planeData != null) return generatePlanes();
             switch (panelType) {
                 case EPD250:
                     return generateEPD250();
@@ -90,9 +140,9 @@ public class ImageGenerator {
      * @return
      */
     private boolean generatePackage() {
-        byte[] newImageData = preProcessFOTAImage(imageData);
+        byte[] newImageData = preProcessFOTAImage(sourceData);
         newImageData = addPaddingData(newImageData);
-        total_block_number = (newImageData.length - IMAGE_HEADER_LEN + (BLOCK_LEN - 1)) / BLOCK_LEN;
+        total_block_number = FrameCodec.getTotalBlockNumber(newImageData.length, blockLen);
         this.imageData = newImageData;
         return true;
     }
@@ -103,32 +153,10 @@ public class ImageGenerator {
      * @return
      */
     private boolean generateEPD250() {
-        RGBTriple[] palette = Dithering.bw;
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
-
-        byte[] imageData = new byte[width * height / 8];
-        int m = 0;
-        for (int i = 0; i < width; i++) {
-            for (int j = (height - 1); j >= 0; j = j - 8) {
-                byte total = 0;
-                for (int k = 0; k < 8; k++) {
-                    int pixel = bitmap.getPixel(i, j - k);
-                    RGBTriple rgbTriple = Dithering.findNearestColor(pixel, palette);
-                    int argb = (0 << 24) | (rgbTriple.channels[0] << 16) | (rgbTriple.channels[1] << 8) | rgbTriple.channels[2];
-                    if ((argb & 0xff) == 0xff) { // white
-                        int res = 1 << (7 - k);
-                        total = (byte) (total + (byte) res);
-                    }
-                }
-                imageData[m] = total;
-                m++;
-            }
-        }
-
+        byte[] imageData = PanelPacker.packEPD250(getPixelCodes(), width, height);
         imageData = preProcessImage(imageData, image_page, image_action);
         imageData = addPaddingData(imageData);
-        total_block_number = (imageData.length - IMAGE_HEADER_LEN + (BLOCK_LEN - 1)) / BLOCK_LEN;
+        total_block_number = FrameCodec.getTotalBlockNumber(imageData.length, blockLen);
         this.imageData = imageData;
         return true;
     }
@@ -139,37 +167,10 @@ public class ImageGenerator {
      * @return
      */
     private boolean generateEPD252() {
-        RGBTriple[] palette = Dithering.bwr;
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
-
-        byte[] imageData = new byte[width * height / 4];
-        int m = 0;
-        for (int i = 0; i < width; i++) {
-            for (int j = (height - 1); j >= 0; j = j - 8) {
-                byte total = 0;
-                byte total_2 = 0;
-                for (int k = 0; k < 8; k++) {
-                    int pixel = bitmap.getPixel(i, j - k);
-                    RGBTriple rgbTriple = Dithering.findNearestColor(pixel, palette);
-                    int argb = (0 << 24) | (rgbTriple.channels[0] << 16) | (rgbTriple.channels[1] << 8) | rgbTriple.channels[2];
-                    if ((argb & 0xff) == 0xff) { // white
-                        int res = 1 << (7 - k);
-                        total = (byte) (total + (byte) res);
-                    } else if ((argb & 0xff0000) == 0xff0000) { // red
-                        int res = 1 << (7 - k);
-                        total_2 = (byte) (total_2 + (byte) res);
-                    }
-                }
-                imageData[m] = total;
-                imageData[m + (width * height) / 8] = total_2;
-                m++;
-            }
-        }
-
+        byte[] imageData = PanelPacker.packEPD252(getPixelCodes(), width, height);
         imageData = preProcessImage(imageData, image_page, image_action);
         imageData = addPaddingData(imageData);
-        total_block_number = (imageData.length - IMAGE_HEADER_LEN + (BLOCK_LEN - 1)) / BLOCK_LEN;
+        total_block_number = FrameCodec.getTotalBlockNumber(imageData.length, blockLen);
         this.imageData = imageData;
         return true;
     }
@@ -180,303 +181,108 @@ public class ImageGenerator {
      * @return
      */
     private boolean generateEPD353() {
-        RGBTriple[] palette = Dithering.sevenColor;
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
-
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        for (int y = 0; y < height; y++) {
-            byte total = 0;
-            int k = 0;
-            for (int x = 0; x < width; x++) {
-                int color = bitmap.getPixel(x, y);
-                int b = color & 0xff;
-                int g = (color & 0xff00) >> 8;
-                int r = (color & 0xff0000) >> 16;
-                while (true) {
-                    if (r == MIN && g == MIN && b == MIN) { // Black
-                        total |= 0b000 << ((1 - k) * 4);
-                        break;
-                    } else if (r == MIN && g == MAX && b == MIN) { // Green
-                        total |= 0b010 << ((1 - k) * 4);
-                        break;
-                    } else if (r == MIN && g == MIN && b == MAX) { // Blue
-                        total |= 0b011 << ((1 - k) * 4);
-                        break;
-                    } else if (r == MAX && g == MIN && b == MIN) { // Red
-                        total |= 0b100 << ((1 - k) * 4);
-                        break;
-                    } else if (r == MAX && g == MAX && b == MIN) { // Yellow
-                        total |= 0b101 << ((1 - k) * 4);
-                        break;
-                    } else if (r == MAX && g == CENTER && b == MIN) { // Orange
-                        total |= 0b110 << ((1 - k) * 4);
-                        break;
-                    } else if (r == MAX && g == MAX && b == MAX) { // White
-                        total |= 0b001 << ((1 - k) * 4);
-                        break;
-                    } else { // Others
-                        RGBTriple rgbTriple = Dithering.findNearestColor(color, palette);
-                        r = rgbTriple.channels[0];
-                        g = rgbTriple.channels[1];
-                        b = rgbTriple.channels[2];
-                    }
-                }
-
-                k++;
-                if (k >= 2) { // write to byte stream
-                    os.write(total);
-                    k = 0;
-                    total = 0;
-                }
-            }
-        }
-
-        byte[] imageData = os.toByteArray();
+        byte[] imageData = PanelPacker.packEPD353(getPixelCodes(), width, height);
         imageData = preProcessImage(imageData, image_page, image_action);
         imageData = addPaddingData(imageData);
-        total_block_number = (imageData.length - IMAGE_HEADER_LEN + (BLOCK_LEN - 1)) / BLOCK_LEN;
+        total_block_number = FrameCodec.getTotalBlockNumber(imageData.length, blockLen);
         this.imageData = imageData;
         return true;
     }
 
     /**
-     * Pre-process image and calculate the CRC value.
+     * Generate the image from pre-packed plane data.
      *
-     * @param imageData
-     * @param image_page
-     * @param image_action
      * @return
      */
-    public byte[] preProcessImage(byte[] imageData, int image_page, int image_action) {
-        byte[] newImageData = null;
-        int image_data_len = imageData.length;
-        byte[] oad_crc = new byte[]{(byte) 0xff};
-        byte[] version = new byte[]{(byte) 0x00};
-        // High byte 要放前面，Low byte 要放後面
-        int length = image_data_len + IMAGE_HEADER_LEN;
-        int image_type = 0x02;
-        int compress_type = 0;
-        int compress_len = 0;
-        // image
-        int epd_type = 0x20;
-        int page_num = image_page - 1; // Page Number 0 is First Page
-        int isRefresh = image_action;
-        byte[] header = new byte[] {
-            (byte) 0x00,
-            (byte) ((length >> 0) & 0xff),
-            (byte) ((length >> 8) & 0xff),
-            (byte) ((length >> 16) & 0xff),
-            (byte) ((length >> 24) & 0xff),
-            (byte) image_type,
-            (byte) compress_type,
-            (byte) ((compress_len >> 0) & 0xff),
-            (byte) ((compress_len >> 8) & 0xff),
-            (byte) ((compress_len >> 16) & 0xff),
-            (byte) ((compress_len >> 24) & 0xff),
-            (byte) epd_type,
-            (byte) page_num,
-            (byte) isRefresh
-        };
-
-        byte[] header_reserve_array = new byte[16];
-        for(int i = 0; i < header_reserve_array.length; i++) {
-            header_reserve_array[i] = 0x00;
-        }
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            outputStream.write(header, 0, header.length);
-            outputStream.write(header_reserve_array, 0, header_reserve_array.length);
-            outputStream.write(imageData, 0, imageData.length);
-            byte[] combined = outputStream.toByteArray();
-            outputStream.flush();
-            outputStream.close();
-
-            // calculate CRC16
-            int crc = crc16CCITT(combined);
-
-            // High byte 要放前面，Low byte 要放後面
-            oad_crc = new byte[]{
-                (byte) ((crc >> 0) & 0xff),
-                (byte) ((crc >> 8) & 0xff)
-            };
-
-            outputStream = new ByteArrayOutputStream();
-            outputStream.write(oad_crc, 0, oad_crc.length);
-            outputStream.write(combined, 0, combined.length);
-            newImageData = outputStream.toByteArray();
-            outputStream.flush();
-            outputStream.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                outputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        return newImageData;
+    private boolean generatePlanes() {
+        byte[] imageData = preProcessImage(planeData, image_page, image_action);
+        imageData = addPaddingData(imageData);
+        total_block_number = FrameCodec.getTotalBlockNumber(imageData.length, blockLen);
+        this.imageData = imageData;
+        return true;
     }
 
     /**
-     * Pre-process OTA package data.
+     * Generate the image from a fully framed payload. The payload is used as it is if it has been
+     * padded already.
      *
-     * @param imageData
      * @return
      */
-    public byte[] preProcessFOTAImage(byte[] imageData) {
-        byte[] newImageData = null;
-        int image_data_len = imageData.length;
-        byte[] oad_crc = new byte[]{(byte) 0xff};
-        byte[] version = new byte[]{(byte) 0x00};
-        // High byte 要放前面，Low byte 要放後面
-        int length = image_data_len + IMAGE_HEADER_LEN;
-        int image_type = 0x01;
-        int compress_type = 0;
-        int compress_len = 0;
-
-        byte[] header = new byte[]{
-                (byte) 0x00,
-                (byte) ((length >> 0) & 0xff),
-                (byte) ((length >> 8) & 0xff),
-                (byte) ((length >> 16) & 0xff),
-                (byte) ((length >> 24) & 0xff),
-                (byte) image_type,
-                (byte) compress_type,
-                (byte) ((compress_len >> 0) & 0xff),
-                (byte) ((compress_len >> 8) & 0xff),
-                (byte) ((compress_len >> 16) & 0xff),
-                (byte) ((compress_len >> 24) & 0xff),
-                (byte) 0x00,
-                (byte) 0x00,
-                (byte) 0x00
-        };
-        byte[] header_reserve_array = new byte[16];
-        for(int i = 0; i < header_reserve_array.length; i++) {
-            header_reserve_array[i] = 0x00;
+    private boolean generateFrame() {
+        imageData = sourceData;
+        if (imageData.length == FrameCodec.readFrameLength(imageData)) {
+            imageData = addPaddingData(imageData);
         }
+        total_block_number = FrameCodec.getTotalBlockNumber(imageData.length, blockLen);
+        return true;
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            outputStream.write(header, 0, header.length);
-            outputStream.write(header_reserve_array, 0, header_reserve_array.length);
-            outputStream.write(imageData, 0, imageData.length);
-            byte[] combined = outputStream.toByteArray();
-            outputStream.flush();
-            outputStream.close();
-
-            // calculate CRC16
-            int crc = crc16CCITT(combined);
-            // High byte 要放前面，Low byte 要放後面
-            oad_crc = new byte[] {
-                    (byte) ((crc >> 0) & 0xff),
-                    (byte) ((crc >> 8) & 0xff)
-            };
-
-            outputStream = new ByteArrayOutputStream();
-            outputStream.write(oad_crc, 0, oad_crc.length);
-            outputStream.write(combined, 0, combined.length);
-            newImageData = outputStream.toByteArray();
-            outputStream.flush();
-            outputStream.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                outputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+    /**
+     * Get the length of the packed plane data for a panel-type.
+     * @see FrameCodec#getPlaneLength(PanelType)
+     *
+     * @param panelType     EPD panel-type {@see PanelType}
+     * @return              the length of the plane data in bytes
+     */
+    public static int getPlaneLength(PanelType panelType) {
+        return FrameCodec.getPlaneLength(panelType);
+    }
 
-        return newImageData;
+    /**
+     * Check whether a fully framed payload (CRC, header and plane data, with or without padding)
+     * is valid for a panel-type.
+     * @see FrameCodec#isValidFrame(PanelType, byte[])
+     *
+     * @param panelType     EPD panel-type {@see PanelType}
+     * @param frameData     framed payload
+     * @return              {@code true} the payload is valid;
+     *                      {@code false} otherwise
+     */
+    public static boolean isValidFrame(PanelType panelType, byte[] frameData) {
+        return FrameCodec.isValidFrame(panelType, frameData);
     }
 
-    private byte[] addPaddingData(byte[] imageData) {
-        byte[] newImageData = null;
-        int padding_len = (imageData.length - IMAGE_HEADER_LEN) % BLOCK_LEN;
-        System.out.println("Padding Length : " + (BLOCK_LEN - padding_len));
-        if (padding_len > 0) {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try {
-                outputStream.write(imageData, 0, imageData.length);
-                outputStream.write(BLOCK_LEN - padding_len);
-                newImageData = outputStream.toByteArray();
-                outputStream.flush();
-                outputStream.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    outputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        } else {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try {
-                outputStream.write(imageData, 0, imageData.length);
-                newImageData = outputStream.toByteArray();
-                outputStream.flush();
-                outputStream.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    outputStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * Convert the source image to panel color codes. Indexed images skip the ARGB expansion and
+     * the color quantization for each pixel.
+     *
+     * @return
+     */
+    private byte[] getPixelCodes() {
+        PanelPacker packer = new PanelPacker(panelType);
+        if (indexedImage != null) {
+            return packer.toCodes(indexedImage);
         }
-
-        return newImageData;
+        return packer.toCodes(bitmap);
     }
 
-    private static byte[] intToBytes(final int data) {
-        return new byte[]{
-                (byte) ((data >> 24) & 0xff),
-                (byte) ((data >> 16) & 0xff),
-                (byte) ((data >> 8) & 0xff),
-                (byte) ((data >> 0) & 0xff)
-        };
+    /**
+     * Pre-process image and calculate the CRC value.
+     *
+     * @param imageData
+     * @param image_page
+     * @param image_action
+     * @return
+     */
+    public byte[] preProcessImage(byte[] imageData, int image_page, int image_action) {
+        return FrameCodec.frameImage(imageData, image_page, image_action);
     }
 
-    /******************************************************************************
-     *  Compilation:  javac CRC16CCITT.java
-     *  Execution:    java CRC16CCITT s
-     *  Dependencies:
-     *
-     *  Reads in a sequence of bytes and prints out its 16 bit
-     *  Cylcic Redundancy Check (CRC-CCIIT 0xFFFF).
-     *
-     *  1 + x + x^5 + x^12 + x^16 is irreducible polynomial.
-     *
-     *  % java CRC16-CCITT 123456789
-     *  CRC16-CCITT = 29b1
+    /**
+     * Pre-process OTA package data.
      *
-     ******************************************************************************/
-    private int crc16CCITT(byte[] bytes) {
-        int crc = 0x0000;          // initial value
-        int polynomial = 0x1021;   // 0001 0000 0010 0001  (0, 5, 12)
-
-        for (byte b : bytes) {
-            for (int i = 0; i < 8; i++) {
-                boolean bit = ((b >> (7 - i) & 1) == 1);
-                boolean c15 = ((crc >> 15 & 1) == 1);
-                crc <<= 1;
-                if (c15 ^ bit) crc ^= polynomial;
-            }
-        }
-
-        crc &= 0xffff;
-        return crc;
+     * @param imageData
+     * @return
+     */
+    public byte[] preProcessFOTAImage(byte[] imageData) {
+        return FrameCodec.frameFirmware(imageData);
     }
 
+    private byte[] addPaddingData(byte[] imageData) {
+        int padding_len = (imageData.length - IMAGE_HEADER_LEN) % blockLen;
+        Tracer.trace(Tracer.DEBUG, Tracer.PHASE_FRAME, null, -1, -1, blockLen - padding_len, "Padding length");
+        return FrameCodec.addPaddingData(imageData, blockLen);
+    }
 
     /**
      * Get image data or package data.
@@ -486,4 +292,46 @@ public class ImageGenerator {
     public byte[] getImageData() {
         return imageData;
     }
+
+    @Override
+    public byte[] getHeader() {
+        return Arrays.copyOfRange(imageData, 0, IMAGE_HEADER_LEN);
+    }
+
+    /**
+     * Set the block length before executing the task. The block length is selected per connection
+     * from the negotiated MTU and the firmware version of the device.
+     *
+     * @param blockLen  the block length in bytes, without the block number
+     */
+    public void setBlockLength(int blockLen) {
+        if (blockLen <= 0) throw new IllegalArgumentException("Invalid block length");
+        this.blockLen = blockLen;
+    }
+
+    @Override
+    public int getBlockLength() {
+        return blockLen;
+    }
+
+    @Override
+    public int getTotalBlockNumber() {
+        return total_block_number;
+    }
+
+    @Override
+    public int readBlock(int blockNumber, byte[] packet) {
+        return FrameCodec.copyBlock(imageData, blockNumber, blockLen, packet);
+    }
+
+    @Override
+    public byte[] getContentHash() {
+        if (contentHash == null) contentHash = FrameCodec.contentHash(this);
+        return contentHash.clone();
+    }
+
+    @Override
+    public void release() {
+        // nothing to release, the memory is reclaimed by the garbage collector
+    }
 }
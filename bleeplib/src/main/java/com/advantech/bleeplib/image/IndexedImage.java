@@ -0,0 +1,97 @@
+package com.advantech.bleeplib.image;
+
+/**
+ * A java bean for storing an indexed-color image. Each pixel is stored as one byte index into the
+ * color palette, so images which are already authored in the panel palette can be packed for the
+ * EPD device without ARGB expansion and color quantization.
+ * @see IndexedImageReader
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class IndexedImage {
+    private final int width;
+    private final int height;
+    private final int[] palette; // colors in argb format
+    private final byte[] indices; // row-major, one byte per pixel
+
+    /**
+     * New an IndexedImage constructor.
+     *
+     * @param width     image width
+     * @param height    image height
+     * @param palette   color palette in argb format, at most 256 colors
+     * @param indices   palette index for each pixel in row-major order
+     */
+    public IndexedImage(int width, int height, int[] palette, byte[] indices) {
+        if (width <= 0 || height <= 0 || palette == null || indices == null
+                || palette.length == 0 || palette.length > 256 || indices.length != width * height) {
+            throw new IllegalArgumentException("Invalid indexed image");
+        }
+        this.width = width;
+        this.height = height;
+        this.palette = palette;
+        this.indices = indices;
+    }
+
+    /**
+     * Get the image width.
+     *
+     * @return  the image width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the image height.
+     *
+     * @return  the image height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Get the color palette in argb format.
+     *
+     * @return  the color palette
+     */
+    public int[] getPalette() {
+        return palette;
+    }
+
+    /**
+     * Get the palette index for each pixel in row-major order.
+     *
+     * @return  the palette indices
+     */
+    public byte[] getIndices() {
+        return indices;
+    }
+
+    /**
+     * Get the color of a pixel in argb format.
+     *
+     * @param x     x coordinate
+     * @param y     y coordinate
+     * @return      the color in argb format
+     */
+    public int getPixel(int x, int y) {
+        return palette[indices[y * width + x] & 0xff];
+    }
+
+    /**
+     * Rotate the image for 180 degrees, which is the orientation expected by the EPD device.
+     *
+     * @return  a new rotated IndexedImage
+     */
+    public IndexedImage rotate180() {
+        int length = indices.length;
+        byte[] rotated = new byte[length];
+        for (int i = 0; i < length; i++) {
+            rotated[i] = indices[length - 1 - i];
+        }
+        return new IndexedImage(width, height, palette, rotated);
+    }
+}
@@ -0,0 +1,406 @@
+package com.advantech.bleeplib.image;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An utility class for decoding BMP, PNG and PBM files straight to palette indices without
+ * creating an Android Bitmap. Indexed-color files keep their own palette, and true-color files are
+ * accepted only if they use at most 256 distinct colors, which is always the case for the images
+ * authored in the EPD panel palette. For other images, this reader returns {@code null} and the
+ * caller should decode them as a Bitmap instead.
+ * <p>
+ * Supported formats: uncompressed BMP (1, 4, 8, 24 and 32 bits), non-interlaced PNG (bit depth up
+ * to 8) and PBM (P1 and P4).
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class IndexedImageReader {
+    private static final int MAX_COLORS = 256;
+    private static final int WHITE = 0xffffffff;
+    private static final int BLACK = 0xff000000;
+
+    /**
+     * Decode an image file to palette indices.
+     *
+     * @param file      the source image file
+     * @return          the IndexedImage;
+     *                  {@code null} if the format is not supported or there are too many colors
+     */
+    public static IndexedImage read(File file) {
+        if (file == null) return null;
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            return read(inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode an image stream to palette indices.
+     *
+     * @param inputStream   the source image stream; the caller is responsible for closing it
+     * @return              the IndexedImage;
+     *                      {@code null} if the format is not supported or there are too many colors
+     */
+    public static IndexedImage read(InputStream inputStream) {
+        if (inputStream == null) return null;
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+            return read(outputStream.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Decode image data to palette indices.
+     *
+     * @param data      the source image data
+     * @return          the IndexedImage;
+     *                  {@code null} if the format is not supported or there are too many colors
+     */
+    public static IndexedImage read(byte[] data) {
+        if (data == null || data.length < 8) return null;
+        try {
+            if ((data[0] & 0xff) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+                return readPNG(data);
+            } else if (data[0] == 'B' && data[1] == 'M') {
+                return readBMP(data);
+            } else if (data[0] == 'P' && (data[1] == '1' || data[1] == '4')) {
+                return readPBM(data);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    // PNG --- START
+    private static IndexedImage readPNG(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 8, data.length - 8));
+        int width = 0, height = 0, bitDepth = 0, colorType = -1, interlace = 0;
+        int[] plte = null;
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        while (in.available() >= 12) {
+            int length = in.readInt();
+            byte[] type = new byte[4];
+            in.readFully(type);
+            byte[] chunk = new byte[length];
+            in.readFully(chunk);
+            in.readInt(); // crc
+            String chunkType = new String(type, "US-ASCII");
+            if ("IHDR".equals(chunkType)) {
+                width = readIntBE(chunk, 0);
+                height = readIntBE(chunk, 4);
+                bitDepth = chunk[8] & 0xff;
+                colorType = chunk[9] & 0xff;
+                interlace = chunk[12] & 0xff;
+            } else if ("PLTE".equals(chunkType)) {
+                plte = new int[length / 3];
+                for (int i = 0; i < plte.length; i++) {
+                    plte[i] = 0xff000000 | ((chunk[i * 3] & 0xff) << 16) | ((chunk[i * 3 + 1] & 0xff) << 8) | (chunk[i * 3 + 2] & 0xff);
+                }
+            } else if ("IDAT".equals(chunkType)) {
+                idat.write(chunk, 0, chunk.length);
+            } else if ("IEND".equals(chunkType)) {
+                break;
+            }
+        }
+        if (width <= 0 || height <= 0 || interlace != 0 || bitDepth > 8) return null;
+
+        int channels;
+        switch (colorType) {
+            case 0: channels = 1; break; // gray
+            case 2: channels = 3; break; // rgb
+            case 3: channels = 1; break; // indexed
+            case 4: channels = 2; break; // gray + alpha
+            case 6: channels = 4; break; // rgb + alpha
+            default: return null;
+        }
+        if (colorType == 3 && plte == null) return null;
+
+        int bitsPerPixel = channels * bitDepth;
+        int rowBytes = (width * bitsPerPixel + 7) / 8;
+        int filterUnit = Math.max(1, bitsPerPixel / 8);
+        byte[] indices = new byte[width * height];
+        ColorTable colorTable = new ColorTable();
+        int[] palette = null;
+        if (colorType == 3) {
+            palette = plte;
+        } else if (colorType == 0 || colorType == 4) {
+            palette = grayPalette(colorType == 0 ? bitDepth : 8);
+        }
+
+        DataInputStream pixels = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(idat.toByteArray())));
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        for (int y = 0; y < height; y++) {
+            int filter = pixels.readUnsignedByte();
+            pixels.readFully(current);
+            unfilter(filter, current, previous, filterUnit);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int index;
+                if (colorType == 2 || colorType == 6) {
+                    int p = x * channels;
+                    int argb = 0xff000000 | ((current[p] & 0xff) << 16) | ((current[p + 1] & 0xff) << 8) | (current[p + 2] & 0xff);
+                    index = colorTable.indexOf(argb);
+                    if (index < 0) return null; // too many colors
+                } else if (colorType == 4) {
+                    index = current[x * 2] & 0xff;
+                } else {
+                    index = readSample(current, x, bitDepth);
+                }
+                if (palette != null && index >= palette.length) return null;
+                indices[offset + x] = (byte) index;
+            }
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        if (palette == null) palette = colorTable.toPalette();
+        return new IndexedImage(width, height, palette, indices);
+    }
+
+    private static void unfilter(int filter, byte[] current, byte[] previous, int filterUnit) throws IOException {
+        switch (filter) {
+            case 0: // None
+                break;
+            case 1: // Sub
+                for (int i = filterUnit; i < current.length; i++) {
+                    current[i] = (byte) (current[i] + current[i - filterUnit]);
+                }
+                break;
+            case 2: // Up
+                for (int i = 0; i < current.length; i++) {
+                    current[i] = (byte) (current[i] + previous[i]);
+                }
+                break;
+            case 3: // Average
+                for (int i = 0; i < current.length; i++) {
+                    int left = i >= filterUnit ? current[i - filterUnit] & 0xff : 0;
+                    current[i] = (byte) (current[i] + ((left + (previous[i] & 0xff)) >> 1));
+                }
+                break;
+            case 4: // Paeth
+                for (int i = 0; i < current.length; i++) {
+                    int a = i >= filterUnit ? current[i - filterUnit] & 0xff : 0;
+                    int b = previous[i] & 0xff;
+                    int c = i >= filterUnit ? previous[i - filterUnit] & 0xff : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    int predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                    current[i] = (byte) (current[i] + predictor);
+                }
+                break;
+            default:
+                throw new IOException("Unknown PNG filter type: " + filter);
+        }
+    }
+
+    private static int[] grayPalette(int bitDepth) {
+        int levels = 1 << bitDepth;
+        int[] palette = new int[levels];
+        for (int i = 0; i < levels; i++) {
+            int gray = i * 255 / (levels - 1);
+            palette[i] = 0xff000000 | (gray << 16) | (gray << 8) | gray;
+        }
+        return palette;
+    }
+    // PNG --- END
+
+    // BMP --- START
+    private static IndexedImage readBMP(byte[] data) {
+        int pixelOffset = readIntLE(data, 10);
+        int dibSize = readIntLE(data, 14);
+        if (dibSize < 40) return null; // OS/2 headers are not supported
+        int width = readIntLE(data, 18);
+        int rawHeight = readIntLE(data, 22);
+        int bitCount = readShortLE(data, 28);
+        int compression = readIntLE(data, 30);
+        int colorsUsed = readIntLE(data, 46);
+        if (width <= 0 || rawHeight == 0 || compression != 0) return null;
+        boolean bottomUp = rawHeight > 0;
+        int height = Math.abs(rawHeight);
+        int stride = ((width * bitCount + 31) / 32) * 4;
+        if (pixelOffset + (long) stride * height > data.length) return null;
+
+        int[] palette = null;
+        if (bitCount == 1 || bitCount == 4 || bitCount == 8) {
+            int colors = colorsUsed != 0 ? colorsUsed : 1 << bitCount;
+            if (colors > MAX_COLORS) return null;
+            palette = new int[colors];
+            int p = 14 + dibSize;
+            for (int i = 0; i < colors; i++, p += 4) {
+                palette[i] = 0xff000000 | ((data[p + 2] & 0xff) << 16) | ((data[p + 1] & 0xff) << 8) | (data[p] & 0xff);
+            }
+        } else if (bitCount != 24 && bitCount != 32) {
+            return null;
+        }
+
+        byte[] indices = new byte[width * height];
+        ColorTable colorTable = new ColorTable();
+        for (int y = 0; y < height; y++) {
+            int row = pixelOffset + (bottomUp ? (height - 1 - y) : y) * stride;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int index;
+                if (palette != null) {
+                    index = readSample(data, row, x, bitCount);
+                    if (index >= palette.length) return null;
+                } else {
+                    int p = row + x * (bitCount / 8);
+                    int argb = 0xff000000 | ((data[p + 2] & 0xff) << 16) | ((data[p + 1] & 0xff) << 8) | (data[p] & 0xff);
+                    index = colorTable.indexOf(argb);
+                    if (index < 0) return null; // too many colors
+                }
+                indices[offset + x] = (byte) index;
+            }
+        }
+        if (palette == null) palette = colorTable.toPalette();
+        return new IndexedImage(width, height, palette, indices);
+    }
+    // BMP --- END
+
+    // PBM --- START
+    private static IndexedImage readPBM(byte[] data) {
+        boolean binary = data[1] == '4';
+        int[] position = new int[]{2};
+        int width = readPBMInt(data, position);
+        int height = readPBMInt(data, position);
+        if (width <= 0 || height <= 0) return null;
+
+        byte[] indices = new byte[width * height];
+        int p = position[0];
+        if (binary) {
+            p++; // single whitespace after the header
+            int rowBytes = (width + 7) / 8;
+            if (p + (long) rowBytes * height > data.length) return null;
+            for (int y = 0; y < height; y++) {
+                int row = p + y * rowBytes;
+                for (int x = 0; x < width; x++) {
+                    indices[y * width + x] = (byte) ((data[row + (x >> 3)] >> (7 - (x & 7))) & 0x01);
+                }
+            }
+        } else {
+            for (int i = 0; i < indices.length; i++) {
+                while (p < data.length && data[p] != '0' && data[p] != '1') {
+                    if (data[p] == '#') {
+                        while (p < data.length && data[p] != '\n') p++;
+                    } else {
+                        p++;
+                    }
+                }
+                if (p >= data.length) return null;
+                indices[i] = (byte) (data[p++] - '0');
+            }
+        }
+        // in PBM, 1 is black and 0 is white
+        return new IndexedImage(width, height, new int[]{WHITE, BLACK}, indices);
+    }
+
+    private static int readPBMInt(byte[] data, int[] position) {
+        int p = position[0];
+        while (p < data.length && (data[p] < '0' || data[p] > '9')) {
+            if (data[p] == '#') {
+                while (p < data.length && data[p] != '\n') p++;
+            } else {
+                p++;
+            }
+        }
+        int value = 0;
+        while (p < data.length && data[p] >= '0' && data[p] <= '9') {
+            value = value * 10 + (data[p] - '0');
+            p++;
+        }
+        position[0] = p;
+        return value;
+    }
+    // PBM --- END
+
+    private static int readSample(byte[] row, int x, int bitDepth) {
+        return readSample(row, 0, x, bitDepth);
+    }
+
+    private static int readSample(byte[] data, int offset, int x, int bitDepth) {
+        switch (bitDepth) {
+            case 8:
+                return data[offset + x] & 0xff;
+            case 4:
+                return (data[offset + (x >> 1)] >> ((1 - (x & 1)) * 4)) & 0x0f;
+            case 2:
+                return (data[offset + (x >> 2)] >> ((3 - (x & 3)) * 2)) & 0x03;
+            default:
+                return (data[offset + (x >> 3)] >> (7 - (x & 7))) & 0x01;
+        }
+    }
+
+    private static int readIntBE(byte[] data, int p) {
+        return ((data[p] & 0xff) << 24) | ((data[p + 1] & 0xff) << 16) | ((data[p + 2] & 0xff) << 8) | (data[p + 3] & 0xff);
+    }
+
+    private static int readIntLE(byte[] data, int p) {
+        return (data[p] & 0xff) | ((data[p + 1] & 0xff) << 8) | ((data[p + 2] & 0xff) << 16) | ((data[p + 3] & 0xff) << 24);
+    }
+
+    private static int readShortLE(byte[] data, int p) {
+        return (data[p] & 0xff) | ((data[p + 1] & 0xff) << 8);
+    }
+
+    // Collect distinct colors of a true-color image, at most 256 colors
+    private static class ColorTable {
+        private final Map<Integer, Integer> indexMap = new HashMap<>();
+        private final int[] colors = new int[MAX_COLORS];
+        private int lastColor;
+        private int lastIndex = -1;
+
+        int indexOf(int argb) {
+            if (lastIndex >= 0 && lastColor == argb) return lastIndex;
+            Integer index = indexMap.get(argb);
+            if (index == null) {
+                if (indexMap.size() >= MAX_COLORS) return -1;
+                index = indexMap.size();
+                indexMap.put(argb, index);
+                colors[index] = argb;
+            }
+            lastColor = argb;
+            lastIndex = index;
+            return index;
+        }
+
+        int[] toPalette() {
+            int[] palette = new int[Math.max(1, indexMap.size())];
+            System.arraycopy(colors, 0, palette, 0, indexMap.size());
+            return palette;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.advantech.bleeplib.image;
+
+import android.graphics.Bitmap;
+
+import com.advantech.bleeplib.bean.PanelType;
+
+/**
+ * An image packer for internal usage. Pixels are first converted to panel color codes (one byte per
+ * pixel) and then packed into the EPD planes. Colors which exactly match the panel palette are
+ * resolved by a table lookup, and only other colors fall back to the nearest-color search.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class PanelPacker {
+    // Panel color codes of EPD-250 / EPD-252
+    static final byte CODE_BLACK = 0;
+    static final byte CODE_WHITE = 1;
+    static final byte CODE_RED = 2;
+
+    // Panel color codes of Dithering palettes, in the same order as the palettes
+    private static final byte[] BW_CODES = {CODE_WHITE, CODE_BLACK};
+    private static final byte[] BWR_CODES = {CODE_WHITE, CODE_BLACK, CODE_RED};
+    private static final byte[] SEVEN_COLOR_CODES = {0b000, 0b011, 0b010, 0b100, 0b110, 0b101, 0b001}; // black, blue, green, red, orange, yellow, white
+
+    private final RGBTriple[] palette;
+    private final int[] paletteRGB;
+    private final byte[] paletteCodes;
+    private int lastColor = -1;
+    private byte lastCode = 0;
+
+    PanelPacker(PanelType panelType) {
+        switch (panelType) {
+            case EPD252:
+                palette = Dithering.bwr;
+                paletteCodes = BWR_CODES;
+                break;
+            case EPD353:
+                palette = Dithering.sevenColor;
+                paletteCodes = SEVEN_COLOR_CODES;
+                break;
+            case EPD250:
+            default:
+                palette = Dithering.bw;
+                paletteCodes = BW_CODES;
+                break;
+        }
+        paletteRGB = new int[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            paletteRGB[i] = (palette[i].channels[0] << 16) | (palette[i].channels[1] << 8) | palette[i].channels[2];
+        }
+    }
+
+    /**
+     * Convert a color to the panel color code.
+     *
+     * @param argb  color in argb format, alpha channel is ignored
+     * @return      panel color code
+     */
+    byte toCode(int argb) {
+        int rgb = argb & 0xffffff;
+        // exact match of panel palette
+        for (int i = 0; i < paletteRGB.length; i++) {
+            if (paletteRGB[i] == rgb) return paletteCodes[i];
+        }
+        // others
+        if (rgb == lastColor) return lastCode;
+        lastColor = rgb;
+        lastCode = paletteCodes[Dithering.findNearestIndex(rgb, palette)];
+        return lastCode;
+    }
+
+    /**
+     * Convert a bitmap to panel color codes.
+     *
+     * @param bitmap    source image
+     * @return          panel color codes in row-major order
+     */
+    byte[] toCodes(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        byte[] codes = new byte[width * height];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            bitmap.getPixels(row, 0, width, 0, y, width, 1);
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                codes[offset + x] = toCode(row[x]);
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * Convert an indexed image to panel color codes. Only palette entries are converted, each pixel
+     * is then a table lookup.
+     *
+     * @param image     source image
+     * @return          panel color codes in row-major order
+     */
+    byte[] toCodes(IndexedImage image) {
+        int[] imagePalette = image.getPalette();
+        byte[] lookup = new byte[imagePalette.length];
+        for (int i = 0; i < imagePalette.length; i++) {
+            lookup[i] = toCode(imagePalette[i]);
+        }
+        byte[] indices = image.getIndices();
+        byte[] codes = new byte[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            codes[i] = lookup[indices[i] & 0xff];
+        }
+        return codes;
+    }
+
+    /**
+     * Pack EPD-250 plane: column by column from the bottom, 1 bit per pixel, 1 is white.
+     */
+    static byte[] packEPD250(byte[] codes, int width, int height) {
+        byte[] imageData = new byte[width * height / 8];
+        int m = 0;
+        for (int i = 0; i < width; i++) {
+            for (int j = (height - 1); j >= 0; j = j - 8) {
+                int total = 0;
+                for (int k = 0; k < 8; k++) {
+                    if (codes[(j - k) * width + i] == CODE_WHITE) {
+                        total |= 1 << (7 - k);
+                    }
+                }
+                imageData[m] = (byte) total;
+                m++;
+            }
+        }
+        return imageData;
+    }
+
+    /**
+     * Pack EPD-252 planes: same order as EPD-250, the first plane marks white pixels and the second
+     * plane marks red pixels.
+     */
+    static byte[] packEPD252(byte[] codes, int width, int height) {
+        int planeLen = width * height / 8;
+        byte[] imageData = new byte[planeLen * 2];
+        int m = 0;
+        for (int i = 0; i < width; i++) {
+            for (int j = (height - 1); j >= 0; j = j - 8) {
+                int total = 0;
+                int total_2 = 0;
+                for (int k = 0; k < 8; k++) {
+                    byte code = codes[(j - k) * width + i];
+                    if (code == CODE_WHITE) {
+                        total |= 1 << (7 - k);
+                    } else if (code == CODE_RED) {
+                        total_2 |= 1 << (7 - k);
+                    }
+                }
+                imageData[m] = (byte) total;
+                imageData[m + planeLen] = (byte) total_2;
+                m++;
+            }
+        }
+        return imageData;
+    }
+
+    /**
+     * Pack EPD-353 plane: row by row, 4 bits per pixel, the first pixel in the high nibble.
+     */
+    static byte[] packEPD353(byte[] codes, int width, int height) {
+        byte[] imageData = new byte[width * height / 2];
+        int m = 0;
+        for (int p = 0; p + 1 < codes.length; p += 2) {
+            imageData[m++] = (byte) ((codes[p] << 4) | codes[p + 1]);
+        }
+        return imageData;
+    }
+}
@@ -0,0 +1,167 @@
+package com.advantech.bleeplib.protocol;
+
+import com.advantech.bleeplib.bean.TransferStats;
+import com.advantech.bleeplib.frame.FrameSource;
+
+/**
+ * BlockTransfer is the state of an image block transfer for internal usage. Blocks are written
+ * back-to-back as no-response writes, and at most {@code window} writes may be in flight, i.e.
+ * accepted by the transport but not yet confirmed by the write callback. When the transport
+ * reports busy, the transfer waits for the next write confirmation, or backs off for a short time
+ * if there is no write in flight.
+ * <p>
+ * The block number in each image block notification is the next block the device needs. A request
+ * which repeats or goes back from the previous one means the device lost a block, and a request
+ * beyond the written blocks means the device has it already, so the write cursor moves to the
+ * requested block. Every block written after the lost one makes the device repeat the request, so
+ * these repeats are ignored after the rewind instead of rewinding again. If the device makes no
+ * progress for a while, the transfer is stalled and the cursor rewinds to the last requested block.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class BlockTransfer {
+    private static final int BACKOFF_MIN_TIME = 5; // ms
+    private static final int BACKOFF_MAX_TIME = 200; // ms
+    private static final int MAX_STALL_REWIND = 5; // give up to the task timeout afterward
+
+    private final FrameSource frameSource;
+    private final int window;
+    private final TransferStats stats;
+    private int next_block_number = 0;
+    private int written_block_number = 0; // high-water mark of the written blocks
+    private int requested_block_number = -1; // last block requested by the device
+    private int in_flight = 0;
+    private int stall_count = 0;
+    private int stale_requests = 0; // repeated requests still coming from the blocks written before the rewind
+    private int busy_streak = 0;
+    private boolean isBackoff = false;
+
+    BlockTransfer(FrameSource frameSource, int window) {
+        this(frameSource, window, 0);
+    }
+
+    // resume the transfer from a block which the device requests
+    BlockTransfer(FrameSource frameSource, int window, int start_block_number) {
+        this.frameSource = frameSource;
+        this.window = Math.max(1, window);
+        this.stats = new TransferStats(frameSource.getTotalBlockNumber(), frameSource.getBlockLength() + 2, this.window);
+        this.next_block_number = start_block_number;
+        this.written_block_number = start_block_number;
+        stats.setResumedBlock(start_block_number);
+    }
+
+    FrameSource getFrameSource() {
+        return frameSource;
+    }
+
+    TransferStats getStats() {
+        return stats;
+    }
+
+    // whether a block can be written now
+    synchronized boolean canWrite() {
+        return !isBackoff && in_flight < window && next_block_number < frameSource.getTotalBlockNumber();
+    }
+
+    synchronized int getNext_block_number() {
+        return next_block_number;
+    }
+
+    // the stack accepted the write of the next block
+    synchronized void onWritten(long now) {
+        if (next_block_number < written_block_number) {
+            stats.onRetransmit();
+        }
+        next_block_number++;
+        written_block_number = Math.max(written_block_number, next_block_number);
+        in_flight++;
+        busy_streak = 0;
+        stats.onBlockWritten(now, in_flight);
+    }
+
+    /**
+     * The stack rejected the write of the next block because it is busy.
+     *
+     * @return  the backoff time in milliseconds; {@code 0} to wait for the next write confirmation
+     */
+    synchronized int onBusy() {
+        stats.onBusy();
+        if (in_flight > 0) return 0;
+        int time = Math.min(BACKOFF_MAX_TIME, BACKOFF_MIN_TIME << Math.min(busy_streak, 6));
+        busy_streak++;
+        isBackoff = true;
+        return time;
+    }
+
+    synchronized void onBackoffEnd() {
+        isBackoff = false;
+    }
+
+    // onCharacteristicWrite of a block
+    synchronized void onWriteConfirmed(long now) {
+        if (in_flight > 0) in_flight--;
+        if (in_flight == 0 && next_block_number == frameSource.getTotalBlockNumber()) {
+            stats.onFinished(now);
+        }
+    }
+
+    /**
+     * The device requests its next needed block.
+     *
+     * @param block_number  the requested block number
+     * @return              {@code true} the write cursor has been moved to the requested block;
+     *                      {@code false} the request follows the written blocks
+     */
+    synchronized boolean onBlockRequested(int block_number) {
+        if (block_number < 0 || block_number >= frameSource.getTotalBlockNumber()) return false;
+        if (block_number == requested_block_number && stale_requests > 0) {
+            // a block written before the rewind, the requested block is on its way
+            stale_requests--;
+            return false;
+        }
+        boolean isLost = block_number <= requested_block_number; // repeated or going back
+        boolean isAhead = block_number > next_block_number;
+        if (block_number > requested_block_number) {
+            // progress
+            stall_count = 0;
+            stale_requests = 0;
+        }
+        requested_block_number = block_number;
+        if (!isLost && !isAhead) return false;
+        if (isLost) {
+            // the block after the lost one caused this request, the blocks behind it repeat the request
+            stale_requests = Math.max(0, next_block_number - block_number - 2);
+            stats.onRewind();
+        }
+        next_block_number = block_number;
+        return true;
+    }
+
+    /**
+     * The device makes no progress within the stall time. Rewind the write cursor to the last
+     * requested block.
+     *
+     * @return  {@code true} the write cursor has been rewound;
+     *          {@code false} too many stalls without progress
+     */
+    synchronized boolean onStalled() {
+        if (stall_count >= MAX_STALL_REWIND) return false;
+        stall_count++;
+        stats.onStall();
+        next_block_number = Math.max(0, requested_block_number);
+        stale_requests = 0;
+        in_flight = 0; // the writes in flight are lost
+        isBackoff = false;
+        return true;
+    }
+
+    // whether block writes are accepted by the stack but not yet confirmed
+    synchronized boolean isInFlight() {
+        return in_flight > 0;
+    }
+
+    synchronized boolean isWriting() {
+        return next_block_number < frameSource.getTotalBlockNumber() || in_flight > 0;
+    }
+}
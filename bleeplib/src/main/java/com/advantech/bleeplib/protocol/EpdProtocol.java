@@ -0,0 +1,95 @@
+package com.advantech.bleeplib.protocol;
+
+/**
+ * EpdProtocol defines the GATT characteristics and status codes of the Advantech EPD device. This
+ * class has no Android dependencies.
+ * <pre>
+ * characteristic      usage
+ * 0000FFF3            LED lights, read / write
+ * 00002A26            firmware version, read
+ * F000FFC1            image identify: the image header is written, a notification rejects it
+ * F000FFC2            image block: the device notifies the next block number it needs, and the
+ *                     block number (2 bytes, low byte first) + block data is written
+ * F000FFC4            image status: the device notifies the result of the transfer
+ * 0000FFF4            device event: alarm and image refresh events
+ * </pre>
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public final class EpdProtocol {
+    public static final String LED_CHAR_UUID = "0000FFF3-0000-1000-8000-00805F9B34FB";
+    public static final String FIRMWARE_CHAR_UUID = "00002A26-0000-1000-8000-00805F9B34FB";
+    public static final String IMAGE_ID_CHAR_UUID = "F000FFC1-0451-4000-B000-000000000000";
+    public static final String IMAGE_BLOCK_CHAR_UUID = "F000FFC2-0451-4000-B000-000000000000";
+    public static final String IMAGE_STATUS_CHAR_UUID = "F000FFC4-0451-4000-B000-000000000000";
+    public static final String DEVICE_EVENT_CHAR_UUID = "0000FFF4-0000-1000-8000-00805F9B34FB";
+    public static final String CCC_DESCRIPTOR_UUID = "00002902-0000-1000-8000-00805F9B34FB";
+
+    // image status notification
+    public static final int STATUS_SUCCESS = 0x00;
+    public static final int STATUS_CRC_ERROR = 0x01;
+    public static final int STATUS_FLASH_ERROR = 0x02;
+    public static final int STATUS_BLOCK_OVERFLOW = 0x03;
+    public static final int STATUS_IDENTIFY_ERROR = 0x04;
+    public static final int STATUS_UNKNOWN = 0xff;
+    // transfer results without an image status notification
+    public static final int STATUS_IDENTIFY_REJECTED = -1; // image identify notification
+    public static final int STATUS_IDENTIFY_NOT_SENT = -2; // the image header write failed
+
+    // device event notification
+    public static final int EVENT_ALARM = 0x01;
+    public static final int EVENT_EPD = 0x02;
+    public static final int EVENT_SRC_REFRESH = 0x02;
+
+    private EpdProtocol() {
+    }
+
+    /**
+     * Parse the block number of an image block notification.
+     *
+     * @param notifyData    notification value
+     * @return              the block number the device needs next, or {@code -1} if not valid
+     */
+    public static int parseBlockNumber(byte[] notifyData) {
+        if (notifyData == null || notifyData.length < 2) return -1;
+        return ((notifyData[1] & 0xff) << 8) | (notifyData[0] & 0xff);
+    }
+
+    /**
+     * Parse the status code of an image status notification.
+     *
+     * @param notifyData    notification value
+     * @return              the status code, {@code STATUS_UNKNOWN} if not valid
+     */
+    public static int parseStatus(byte[] notifyData) {
+        if (notifyData == null || notifyData.length != 1) return STATUS_UNKNOWN;
+        return notifyData[0] & 0xff;
+    }
+
+    /**
+     * Get the message of a transfer status.
+     *
+     * @param status    status code
+     * @return          the message
+     */
+    public static String getStatusMessage(int status) {
+        switch (status) {
+            case STATUS_SUCCESS:
+                return "Success";
+            case STATUS_CRC_ERROR:
+                return "CRC Error";
+            case STATUS_FLASH_ERROR:
+                return "Flash Error";
+            case STATUS_BLOCK_OVERFLOW:
+                return "Block Overflow";
+            case STATUS_IDENTIFY_ERROR:
+                return "Identify Error";
+            case STATUS_IDENTIFY_REJECTED:
+            case STATUS_IDENTIFY_NOT_SENT:
+                return "Characteristic Error";
+            default:
+                return "Unknown Error";
+        }
+    }
+}
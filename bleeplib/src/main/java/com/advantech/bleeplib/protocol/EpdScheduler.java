@@ -0,0 +1,35 @@
+package com.advantech.bleeplib.protocol;
+
+/**
+ * EpdScheduler provides the clock and the timers of the {@link ImageTransferEngine}, e.g. the
+ * stall timer and the busy backoff. The Android implementation posts to a Handler, and a virtual
+ * clock makes the protocol deterministic in JVM tests.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public interface EpdScheduler {
+
+    /**
+     * Get the current time.
+     *
+     * @return  the time in milliseconds
+     */
+    long now();
+
+    /**
+     * Run a task after a delay.
+     *
+     * @param task      the task
+     * @param delay     the delay in milliseconds
+     * @return          a token to cancel the task
+     */
+    Object schedule(Runnable task, long delay);
+
+    /**
+     * Cancel a scheduled task. Nothing happens if the task has run or has been cancelled.
+     *
+     * @param token     the token returned by {@link #schedule(Runnable, long)}
+     */
+    void cancel(Object token);
+}
@@ -0,0 +1,78 @@
+package com.advantech.bleeplib.protocol;
+
+/**
+ * EpdTransport is the connection to an EPD device which the {@link ImageTransferEngine} talks to.
+ * Characteristics are identified by the UUID strings in {@link EpdProtocol}. The Android
+ * implementation binds to a {@code BluetoothGatt} connection, and other implementations (e.g. an
+ * emulator) run the protocol on a plain JVM.
+ * <p>
+ * The results of the operations are reported to the {@link Callback} asynchronously, and status
+ * {@code STATUS_SUCCESS} means success.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public interface EpdTransport {
+    int STATUS_SUCCESS = 0;
+
+    int WRITE_SUCCESS = 0; // the write is accepted, the result follows in onWriteComplete
+    int WRITE_BUSY = 1; // the transport is busy, try again later
+    int WRITE_ERROR = 2;
+
+    interface Callback {
+        void onWriteComplete(String uuid, int status);
+
+        void onRead(String uuid, int status, byte[] value);
+
+        void onNotifyEnabled(String uuid, int status);
+
+        void onNotify(String uuid, byte[] value);
+
+        // a paused transport can accept data writes again
+        void onResume();
+    }
+
+    void setCallback(Callback callback);
+
+    /**
+     * Write a characteristic without response.
+     *
+     * @param uuid      characteristic uuid
+     * @param value     value to write; the transport must not keep a reference after the write
+     * @return          {@code WRITE_SUCCESS}, {@code WRITE_BUSY} or {@code WRITE_ERROR}
+     */
+    int write(String uuid, byte[] value);
+
+    /**
+     * Read a characteristic. The value is reported in {@link Callback#onRead(String, int, byte[])}.
+     *
+     * @param uuid      characteristic uuid
+     * @return          {@code true} the read has been requested;
+     *                  {@code false} otherwise
+     */
+    boolean read(String uuid);
+
+    /**
+     * Enable the notifications of a characteristic. The result is reported in
+     * {@link Callback#onNotifyEnabled(String, int)}.
+     *
+     * @param uuid      characteristic uuid
+     * @return          {@code true} the request has been sent;
+     *                  {@code false} otherwise
+     */
+    boolean enableNotify(String uuid);
+
+    /**
+     * Whether control operations are pending, so data writes (image blocks) have to wait until
+     * {@link Callback#onResume()}.
+     *
+     * @return  {@code true} data writes are paused;
+     *          {@code false} otherwise
+     */
+    boolean isPaused();
+
+    /**
+     * No data write is in flight anymore, a paused transport can run its control operations now.
+     */
+    void onDataIdle();
+}
@@ -0,0 +1,346 @@
+package com.advantech.bleeplib.protocol;
+
+import com.advantech.bleeplib.bean.TransferStats;
+import com.advantech.bleeplib.frame.FrameSource;
+
+/**
+ * ImageTransferEngine is the image transfer protocol of an EPD device as a platform-neutral state
+ * machine. It talks to the device through an {@link EpdTransport} and runs its timers on an
+ * {@link EpdScheduler}, so the same protocol runs on Android and on a plain JVM.
+ * <p>
+ * Protocol:
+ * <pre>
+ * 1. the image header is written to the image identify characteristic;
+ * 2. the device notifies the next block number it needs on the image block characteristic, and
+ *    the blocks are written back-to-back within the in-flight window (see BlockTransfer);
+ * 3. the device notifies the result on the image status characteristic.
+ * </pre>
+ * A transfer interrupted by a disconnection resumes from the checkpoint if the device requests a
+ * block of the same frame after the reconnection. Device events (alarm and image refresh) are
+ * parsed as well.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class ImageTransferEngine implements EpdTransport.Callback {
+    public static final int DEFAULT_WINDOW = 1; // one write per callback
+    public static final int DEFAULT_STALL_TIME = 2000; // ms
+
+    public interface Listener {
+        // the device requests a block, including repeated requests
+        void onBlockRequested(int blockNumber, int totalBlockNumber);
+
+        // the first block request of the frame, from block 0 or from the checkpoint
+        void onTransferStarted(TransferStats stats, int blockNumber);
+
+        // no progress within the stall time; isGivenUp: too many stalls, wait for the task timeout
+        void onTransferStalled(int blockNumber, boolean isGivenUp);
+
+        // the transfer ends, see the STATUS_* codes in EpdProtocol
+        void onTransferFinished(int status);
+
+        void onAlarmDetected(boolean isWarning);
+
+        void onImageRefresh(boolean isSuccess, int page);
+    }
+
+    private final String deviceId;
+    private final EpdTransport transport;
+    private final EpdScheduler scheduler;
+    private final TransferCheckpoints checkpoints;
+    private Listener listener;
+    private int window = DEFAULT_WINDOW;
+    private int stallTime = DEFAULT_STALL_TIME;
+
+    private volatile FrameSource frameSource; // frame in transfer or the last one
+    private volatile BlockTransfer blockTransfer; // block transfer in progress or the last one
+    private volatile boolean isRunning = false;
+    private String checkpointKey; // device id + content hash of the frame in transfer
+    private Object stallToken;
+
+    /**
+     * New an engine for a device.
+     *
+     * @param deviceId      device id, e.g. the mac address; it keys the checkpoints
+     * @param transport     the connection to the device
+     * @param scheduler     clock and timers
+     * @param checkpoints   checkpoints shared by all devices, or {@code null} to disable resuming
+     */
+    public ImageTransferEngine(String deviceId, EpdTransport transport, EpdScheduler scheduler, TransferCheckpoints checkpoints) {
+        this.deviceId = deviceId;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.checkpoints = (checkpoints != null) ? checkpoints : new TransferCheckpoints();
+        transport.setCallback(this);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Set the maximum number of block writes in flight of the next transfer.
+     *
+     * @param window    the window size, at least 1
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    /**
+     * Set the time without any block request after which the transfer rewinds to the last
+     * requested block.
+     *
+     * @param stallTime     the stall time in milliseconds
+     */
+    public void setStallTime(int stallTime) {
+        this.stallTime = Math.max(1, stallTime);
+    }
+
+    /**
+     * Start a transfer by sending the image header.
+     *
+     * @param frameSource   the frame, already encoded
+     * @return              {@code true} the image header has been sent;
+     *                      {@code false} a transfer is running or the header can not be written
+     */
+    public boolean start(FrameSource frameSource) {
+        synchronized (this) {
+            if (isRunning) return false;
+            isRunning = true;
+        }
+        this.frameSource = frameSource;
+        this.blockTransfer = null;
+        this.checkpointKey = TransferCheckpoints.key(deviceId, frameSource.getContentHash());
+        // 1. Send Image Identify Characteristic
+        if (transport.write(EpdProtocol.IMAGE_ID_CHAR_UUID, frameSource.getHeader()) != EpdTransport.WRITE_SUCCESS) {
+            isRunning = false;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop the transfer without a result, e.g. after the task timeout or the disconnection. The
+     * checkpoint is kept, so the transfer can resume later.
+     */
+    public void stop() {
+        if (!markStopped()) return;
+        stopStallTimer();
+        transport.onDataIdle();
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    // whether block writes are accepted by the transport but not yet confirmed
+    public boolean isDataInFlight() {
+        BlockTransfer transfer = blockTransfer;
+        return transfer != null && isRunning && transfer.isInFlight();
+    }
+
+    public FrameSource getFrameSource() {
+        return frameSource;
+    }
+
+    /**
+     * Get the statistics of the running or the last transfer.
+     *
+     * @return  the transfer statistics, or {@code null} if no block has been requested
+     */
+    public TransferStats getTransferStats() {
+        BlockTransfer transfer = blockTransfer;
+        return (transfer != null) ? transfer.getStats() : null;
+    }
+
+    // EpdTransport.Callback --- START
+    @Override
+    public void onWriteComplete(String uuid, int status) {
+        if (EpdProtocol.IMAGE_BLOCK_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            BlockTransfer transfer = blockTransfer;
+            if (transfer == null) return;
+            transfer.onWriteConfirmed(scheduler.now());
+            if (transport.isPaused()) {
+                // control operations go first between blocks
+                if (!transfer.isInFlight()) transport.onDataIdle();
+                return;
+            }
+            // continue running blocks --- B1
+            writeBlocks(transfer);
+        } else if (EpdProtocol.IMAGE_ID_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            // the image header was not sent, so the device will not request any block
+            if (status != EpdTransport.STATUS_SUCCESS && blockTransfer == null) {
+                finish(EpdProtocol.STATUS_IDENTIFY_NOT_SENT, false);
+            }
+        }
+    }
+
+    @Override
+    public void onRead(String uuid, int status, byte[] value) {
+    }
+
+    @Override
+    public void onNotifyEnabled(String uuid, int status) {
+    }
+
+    @Override
+    public void onNotify(String uuid, byte[] value) {
+        if (EpdProtocol.IMAGE_ID_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            // the device rejects the image header
+            finish(EpdProtocol.STATUS_IDENTIFY_REJECTED, true);
+        } else if (EpdProtocol.IMAGE_BLOCK_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            // 2. Send Image Block Characteristic
+            onBlockRequested(EpdProtocol.parseBlockNumber(value));
+        } else if (EpdProtocol.IMAGE_STATUS_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            // 3. the frame is done or the device discards it, no resume
+            finish(EpdProtocol.parseStatus(value), true);
+        } else if (EpdProtocol.DEVICE_EVENT_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            onDeviceEvent(value);
+        }
+    }
+
+    @Override
+    public void onResume() {
+        BlockTransfer transfer = blockTransfer;
+        if (transfer != null && isRunning) writeBlocks(transfer);
+    }
+    // EpdTransport.Callback --- END
+
+    private void onBlockRequested(int block_number) {
+        if (!isRunning || block_number < 0) return;
+        int total_block_number = frameSource.getTotalBlockNumber();
+        if (listener != null) listener.onBlockRequested(block_number, total_block_number);
+
+        BlockTransfer transfer = blockTransfer;
+        if (transfer == null) {
+            if (block_number == 0) {
+                // start running blocks --- B1
+                transfer = new BlockTransfer(frameSource, window);
+            } else if (checkpoints.get(checkpointKey) >= 0 && block_number < total_block_number) {
+                // the device reports the same image identity after a reconnection
+                transfer = new BlockTransfer(frameSource, window, block_number);
+            } else {
+                // unexpected block request without checkpoint
+                return;
+            }
+            blockTransfer = transfer;
+            transfer.onBlockRequested(block_number);
+            if (listener != null) listener.onTransferStarted(transfer.getStats(), block_number);
+        } else {
+            // the device lost a block or has it already, continue from the requested block
+            transfer.onBlockRequested(block_number);
+        }
+        checkpoints.put(checkpointKey, block_number);
+        restartStallTimer(transfer);
+        writeBlocks(transfer);
+    }
+
+    private void onDeviceEvent(byte[] notify_data) {
+        if (notify_data == null || notify_data.length < 2 || listener == null) return;
+        byte first = notify_data[0];
+        byte second = notify_data[1];
+        if (first == EpdProtocol.EVENT_ALARM) {
+            if (second == 0x00) {
+                listener.onAlarmDetected(false);
+            } else if (second == 0x01) {
+                listener.onAlarmDetected(true);
+            }
+        } else if (first == EpdProtocol.EVENT_EPD && notify_data.length > 3) {
+            byte src = notify_data[1];
+            byte result = notify_data[2];
+            byte page = notify_data[3];
+            if (src == EpdProtocol.EVENT_SRC_REFRESH) {
+                listener.onImageRefresh(result == 0x00, (page & 0xff) + 1);
+            }
+        }
+    }
+
+    private void finish(int status, boolean isCheckpointDone) {
+        if (!markStopped()) return;
+        stopStallTimer();
+        if (isCheckpointDone) checkpoints.remove(checkpointKey);
+        transport.onDataIdle();
+        if (listener != null) listener.onTransferFinished(status);
+    }
+
+    private synchronized boolean markStopped() {
+        if (!isRunning) return false;
+        isRunning = false;
+        return true;
+    }
+
+    // write blocks while the in-flight window is open
+    private void writeBlocks(final BlockTransfer transfer) {
+        synchronized (transfer) {
+            while (blockTransfer == transfer && isRunning && !transport.isPaused() && transfer.canWrite()) {
+                int block_number = transfer.getNext_block_number();
+                // block number (low byte first) + block data, a new value buffer for each write
+                byte[] packet = new byte[frameSource.getBlockLength() + 2];
+                int result;
+                try {
+                    frameSource.readBlock(block_number, packet);
+                    result = transport.write(EpdProtocol.IMAGE_BLOCK_CHAR_UUID, packet);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    result = EpdTransport.WRITE_ERROR;
+                }
+                if (result == EpdTransport.WRITE_SUCCESS) {
+                    transfer.onWritten(scheduler.now());
+                } else if (result == EpdTransport.WRITE_BUSY) {
+                    int backoff = transfer.onBusy();
+                    if (backoff > 0) {
+                        // no write in flight, so no callback will resume the transfer
+                        scheduler.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                transfer.onBackoffEnd();
+                                writeBlocks(transfer);
+                            }
+                        }, backoff);
+                    }
+                    break;
+                } else {
+                    // write error, the stall timer rewinds the transfer
+                    break;
+                }
+            }
+        }
+    }
+
+    // Stall timer --- START
+    // restart the stall timer whenever the device makes a request
+    private synchronized void restartStallTimer(final BlockTransfer transfer) {
+        if (stallToken != null) scheduler.cancel(stallToken);
+        stallToken = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTransferStalled(transfer);
+            }
+        }, stallTime);
+    }
+
+    private synchronized void stopStallTimer() {
+        if (stallToken != null) {
+            scheduler.cancel(stallToken);
+            stallToken = null;
+        }
+    }
+
+    private void onTransferStalled(BlockTransfer transfer) {
+        if (blockTransfer != transfer || !isRunning) return;
+        if (!transfer.onStalled()) {
+            if (listener != null) listener.onTransferStalled(transfer.getNext_block_number(), true);
+            return;
+        }
+        if (listener != null) listener.onTransferStalled(transfer.getNext_block_number(), false);
+        restartStallTimer(transfer);
+        if (transport.isPaused()) {
+            // the writes in flight are lost, let the control operations go first
+            transport.onDataIdle();
+            return;
+        }
+        writeBlocks(transfer);
+    }
+    // Stall timer --- END
+}
@@ -0,0 +1,58 @@
+package com.advantech.bleeplib.protocol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TransferCheckpoints keeps the last block acknowledged by each device for each frame, and it is
+ * shared by the {@link ImageTransferEngine}s of all devices. A checkpoint is keyed by the device id
+ * and the content hash of the frame, so a transfer interrupted by a disconnection can resume after
+ * the reconnection if the device reports the same image identity. Only the most recent checkpoints
+ * are kept.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class TransferCheckpoints {
+    private static final int MAX_CHECKPOINTS = 64;
+
+    public TransferCheckpoints() {
+    }
+
+    private final Map<String, Integer> checkpoints = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_CHECKPOINTS;
+        }
+    };
+
+    static String key(String deviceId, byte[] contentHash) {
+        StringBuilder key = new StringBuilder(deviceId).append('/');
+        for (byte b : contentHash) {
+            key.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Save the block number which the device requests next, i.e. all blocks before it have been
+     * acknowledged.
+     */
+    synchronized void put(String key, int block_number) {
+        checkpoints.put(key, block_number);
+    }
+
+    /**
+     * Get the checkpoint.
+     *
+     * @return  the block number which the device requested last; {@code -1} if no checkpoint
+     */
+    synchronized int get(String key) {
+        Integer block_number = checkpoints.get(key);
+        return (block_number != null) ? block_number : -1;
+    }
+
+    synchronized void remove(String key) {
+        checkpoints.remove(key);
+    }
+}
@@ -0,0 +1,65 @@
+package com.advantech.bleeplib.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * FileSink appends the trace events to a text file, one event per line. The lines are buffered,
+ * so please call {@link #flush()} before reading the file, and {@link #close()} at the end.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class FileSink implements TraceSink {
+    private final StringBuilder line = new StringBuilder(128); // reused for each event
+    private Writer writer;
+
+    /**
+     * New a file sink.
+     *
+     * @param file  the trace file, the events are appended
+     * @throws IOException  if the file can not be opened
+     */
+    public FileSink(File file) throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void write(int level, long time, String phase, String mac, int block, int status, long value, String message) {
+        if (writer == null) return;
+        line.setLength(0);
+        line.append(time).append(' ');
+        Tracer.format(line, level, phase, mac, block, status, value, message);
+        line.append('\n');
+        try {
+            writer.append(line);
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    public synchronized void flush() {
+        if (writer == null) return;
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void close() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        writer = null;
+    }
+}
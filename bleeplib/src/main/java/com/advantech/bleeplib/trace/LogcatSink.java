@@ -0,0 +1,30 @@
+package com.advantech.bleeplib.trace;
+
+import android.util.Log;
+
+/**
+ * LogcatSink writes the trace events to logcat. This is the sink of the library by default.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class LogcatSink implements TraceSink {
+    public static final String DEFAULT_TAG = "BLEEPLib";
+
+    private final String tag;
+
+    public LogcatSink() {
+        this(DEFAULT_TAG);
+    }
+
+    public LogcatSink(String tag) {
+        this.tag = tag;
+    }
+
+    @Override
+    public void write(int level, long time, String phase, String mac, int block, int status, long value, String message) {
+        StringBuilder builder = new StringBuilder(96);
+        Tracer.format(builder, level, phase, mac, block, status, value, message);
+        Log.println(level, tag, builder.toString());
+    }
+}
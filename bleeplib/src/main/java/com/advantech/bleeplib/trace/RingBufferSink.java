@@ -0,0 +1,92 @@
+package com.advantech.bleeplib.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RingBufferSink keeps the latest trace events in memory, e.g. to attach them to a bug report of a
+ * failed campaign. The events are stored in preallocated arrays, so tracing allocates nothing.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class RingBufferSink implements TraceSink {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final int[] levels;
+    private final long[] times;
+    private final String[] phases;
+    private final String[] macs;
+    private final int[] blocks;
+    private final int[] statuses;
+    private final long[] values;
+    private final String[] messages;
+    private int next = 0; // the slot of the next event
+    private long count = 0; // events written
+
+    public RingBufferSink() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * New a ring buffer sink.
+     *
+     * @param capacity  the number of the latest events which are kept
+     */
+    public RingBufferSink(int capacity) {
+        capacity = Math.max(1, capacity);
+        levels = new int[capacity];
+        times = new long[capacity];
+        phases = new String[capacity];
+        macs = new String[capacity];
+        blocks = new int[capacity];
+        statuses = new int[capacity];
+        values = new long[capacity];
+        messages = new String[capacity];
+    }
+
+    @Override
+    public synchronized void write(int level, long time, String phase, String mac, int block, int status, long value, String message) {
+        levels[next] = level;
+        times[next] = time;
+        phases[next] = phase;
+        macs[next] = mac;
+        blocks[next] = block;
+        statuses[next] = status;
+        values[next] = value;
+        messages[next] = message;
+        next = (next + 1) % levels.length;
+        count++;
+    }
+
+    /**
+     * Get a copy of the kept events, oldest first.
+     *
+     * @return  the events
+     */
+    public synchronized List<TraceEvent> getEvents() {
+        int size = (int) Math.min(count, levels.length);
+        List<TraceEvent> events = new ArrayList<>(size);
+        int first = (next - size + levels.length) % levels.length;
+        for (int i = 0; i < size; i++) {
+            int slot = (first + i) % levels.length;
+            events.add(new TraceEvent(levels[slot], times[slot], phases[slot], macs[slot], blocks[slot], statuses[slot], values[slot], messages[slot]));
+        }
+        return events;
+    }
+
+    // events written since the start, including the ones which are overwritten
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized void clear() {
+        next = 0;
+        count = 0;
+        for (int i = 0; i < levels.length; i++) {
+            phases[i] = null;
+            macs[i] = null;
+            messages[i] = null;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.advantech.bleeplib.trace;
+
+/**
+ * A java bean for a trace event, e.g. in a snapshot of the {@link RingBufferSink}.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class TraceEvent {
+    private final int level;
+    private final long time;
+    private final String phase;
+    private final String mac;
+    private final int block;
+    private final int status;
+    private final long value;
+    private final String message;
+
+    public TraceEvent(int level, long time, String phase, String mac, int block, int status, long value, String message) {
+        this.level = level;
+        this.time = time;
+        this.phase = phase;
+        this.mac = mac;
+        this.block = block;
+        this.status = status;
+        this.value = value;
+        this.message = message;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    // device mac address, or null
+    public String getMac() {
+        return mac;
+    }
+
+    // block number, or -1
+    public int getBlock() {
+        return block;
+    }
+
+    // status, or -1
+    public int getStatus() {
+        return status;
+    }
+
+    // value, or -1
+    public long getValue() {
+        return value;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(time).append(' ');
+        Tracer.format(builder, level, phase, mac, block, status, value, message);
+        return builder.toString();
+    }
+}
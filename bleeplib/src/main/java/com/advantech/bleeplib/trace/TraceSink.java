@@ -0,0 +1,26 @@
+package com.advantech.bleeplib.trace;
+
+/**
+ * TraceSink receives the trace events of the library, e.g. logcat, a ring buffer in memory or a
+ * file. The fields of an event are passed as arguments, so a sink which stores them (e.g. the
+ * {@link RingBufferSink}) traces without any allocation.
+ * @see Tracer#setSink(TraceSink)
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public interface TraceSink {
+    /**
+     * Write a trace event. The call may come from any thread.
+     *
+     * @param level     {@code Tracer.VERBOSE} ~ {@code Tracer.ERROR}
+     * @param time      the time of the event, ms
+     * @param phase     the phase, e.g. {@code Tracer.PHASE_TRANSFER}
+     * @param mac       device mac address, or {@code null}
+     * @param block     the block number, or -1
+     * @param status    the status, e.g. a GATT status, or -1
+     * @param value     a value of the event, e.g. a time or a length, or -1
+     * @param message   the message
+     */
+    void write(int level, long time, String phase, String mac, int block, int status, long value, String message);
+}
@@ -0,0 +1,136 @@
+package com.advantech.bleeplib.trace;
+
+/**
+ * Tracer is the tracing facility of the library. Each event has structured fields, i.e. the
+ * phase, the device mac address, the block number, the status and a value, and it is written to a
+ * pluggable {@link TraceSink}, e.g. logcat, a ring buffer in memory or a file.
+ * <p>
+ * An event below the level is dropped by a field read, before any string is built, so the events
+ * of each block cost nothing in a production build. The fields are passed as primitives and
+ * constant strings; a message which has to be built is guarded by {@link #isLoggable(int)}.
+ * {@link #COMPILED_LEVEL} is a compile-time constant: the traces guarded by
+ * {@code if (Tracer.COMPILED_LEVEL <= Tracer.VERBOSE)} are removed by the compiler when it is
+ * raised.
+ *
+ * <pre>
+ * Tracer.setLevel(Tracer.VERBOSE); // the events of each block
+ * RingBufferSink ring = new RingBufferSink(10000);
+ * Tracer.setSink(ring);
+ * </pre>
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public final class Tracer {
+    // the same priorities as android.util.Log
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int NONE = 7; // no event
+
+    // the lowest level which is compiled in
+    public static final int COMPILED_LEVEL = VERBOSE;
+
+    public static final String PHASE_SCAN = "scan";
+    public static final String PHASE_CONNECT = "connect"; // connection slots, waiting queue and connection pool
+    public static final String PHASE_HANDSHAKE = "handshake";
+    public static final String PHASE_GATT = "gatt";
+    public static final String PHASE_LINK = "link"; // MTU, PHY and connection interval
+    public static final String PHASE_TRANSFER = "transfer";
+    public static final String PHASE_TASK = "task";
+    public static final String PHASE_FRAME = "frame";
+
+    private static final char[] LEVEL_CHARS = {'?', '?', 'V', 'D', 'I', 'W', 'E', 'A'};
+
+    private static volatile int level = DEBUG;
+    private static volatile TraceSink sink;
+    private static boolean isSinkSet = false;
+
+    private Tracer() {
+    }
+
+    /**
+     * Set the level of the events which are written. The default level is {@code DEBUG}, and the
+     * events of each block are {@code VERBOSE}.
+     *
+     * @param level {@code VERBOSE} ~ {@code ERROR}, or {@code NONE} for no event
+     */
+    public static void setLevel(int level) {
+        Tracer.level = level;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * Set the sink of the events. By default, {@code BLEUtil} writes the events to logcat.
+     *
+     * @param sink  the sink, or {@code null} for no event
+     */
+    public static synchronized void setSink(TraceSink sink) {
+        Tracer.sink = sink;
+        isSinkSet = true;
+    }
+
+    public static TraceSink getSink() {
+        return sink;
+    }
+
+    // set the default sink, unless a sink has been set
+    public static synchronized void setDefaultSink(TraceSink sink) {
+        if (!isSinkSet) Tracer.sink = sink;
+    }
+
+    /**
+     * Check if the events of a level are written, e.g. before building a message.
+     *
+     * @param level the level of the event
+     * @return      {@code true} the events of the level are written
+     */
+    public static boolean isLoggable(int level) {
+        return level >= COMPILED_LEVEL && level >= Tracer.level && sink != null;
+    }
+
+    /**
+     * Write an event.
+     *
+     * @param level     the level of the event
+     * @param phase     the phase, e.g. {@code PHASE_CONNECT}
+     * @param mac       device mac address, or {@code null}
+     * @param message   the message
+     */
+    public static void trace(int level, String phase, String mac, String message) {
+        trace(level, phase, mac, -1, -1, -1, message);
+    }
+
+    /**
+     * Write an event with the structured fields.
+     *
+     * @param level     the level of the event
+     * @param phase     the phase, e.g. {@code PHASE_TRANSFER}
+     * @param mac       device mac address, or {@code null}
+     * @param block     the block number, or -1
+     * @param status    the status, e.g. a GATT status, or -1
+     * @param value     a value of the event, e.g. a time or a length, or -1
+     * @param message   the message
+     */
+    public static void trace(int level, String phase, String mac, int block, int status, long value, String message) {
+        if (level < COMPILED_LEVEL || level < Tracer.level) return;
+        TraceSink sink = Tracer.sink;
+        if (sink == null) return;
+        sink.write(level, System.currentTimeMillis(), phase, mac, block, status, value, message);
+    }
+
+    // D/transfer 00:11:22:33:44:55 block=12 status=0 value=240 message
+    static void format(StringBuilder builder, int level, String phase, String mac, int block, int status, long value, String message) {
+        builder.append(LEVEL_CHARS[Math.max(0, Math.min(LEVEL_CHARS.length - 1, level))]).append('/').append(phase);
+        if (mac != null) builder.append(' ').append(mac);
+        if (block >= 0) builder.append(" block=").append(block);
+        if (status != -1) builder.append(" status=").append(status);
+        if (value != -1) builder.append(" value=").append(value);
+        if (message != null) builder.append(' ').append(message);
+    }
+}
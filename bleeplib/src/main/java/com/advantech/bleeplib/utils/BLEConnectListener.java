@@ -54,6 +54,16 @@ public interface BLEConnectListener {
      */
     public void onLEDRead(int result, byte[] read);
 
+    /**
+     * Device ready callback. You will receive this event at the end of the handshake of each
+     * connection, when the EPD device is ready for commands and image writes. The firmware and LED
+     * reads of the handshake may be skipped by a {@code HandshakeProfile}, so wait for this event
+     * instead of the read callbacks. The default implementation does nothing, so existing
+     * listeners need not implement it.
+     */
+    default void onDeviceReady() {
+    }
+
     /**
      * LED write callback.
      *
@@ -3,10 +3,9 @@ package com.advantech.bleeplib.utils;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.os.Handler;
-import android.os.Looper;
 import android.util.ArrayMap;
 
-import com.advantech.bleeplib.image.ImageGenerator;
+import com.advantech.bleeplib.protocol.ImageTransferEngine;
 
 import java.util.Map;
 import java.util.Objects;
@@ -22,27 +21,70 @@ class BLEDeviceBean {
     private BluetoothGatt bluetoothGatt; // BluetoothGatt 物件實體
     private Map<String, BluetoothGattCharacteristic> charMap = new ArrayMap<>(); // characteristics map
 
-    private int descCounter = 0; // 用來計數是否達到三
-    private ImageGenerator imageGenerator;
+    private final GattQueue gattQueue; // serialized GATT operations of this connection
+    private final GattTransport gattTransport; // EpdTransport binding of this connection
+    private ImageTransferEngine transferEngine; // image transfer protocol of this connection
     private long start_send_image_time = -1;
     private long end_send_image_time = -1;
     private int progress_percent = 0;
-    private int running_block_number = 0;
     private boolean isImageWriting = false;
     private BLEDeviceBeanTimeoutCallback timeoutCallback; // Task Timeout callback
     private Handler taskTimeoutHandler; // 該 Handler 用來確認推圖工作是否能在 60 秒內完成，否則 timeout
     private static final int TASK_TIMEOUT_TIME = 60 * 1000; // 60 sec
 
+    private int mtu = DEFAULT_MTU; // negotiated ATT MTU
+    private static final int DEFAULT_MTU = 23; // BLE default ATT MTU
+    private String firmwareVersion; // firmware version read in the handshake
+    private int connectionInterval = -1; // achieved connection interval, unit: 1.25 ms
+    private int txPhy = 1; // PHY_LE_1M
+    private int rxPhy = 1; // PHY_LE_1M
+
+    private HandshakeProfile handshakeProfile = HandshakeProfile.FULL;
+    private long connectTime = -1; // when the connection was requested
+    private boolean isFirstBlockMeasured = false;
+    private boolean isConnectMeasured = false; // the connect result is reported to the concurrency controller
+
+    private boolean isDisconnected = false; // STATE_DISCONNECTED received, and the BluetoothGatt closed
+
+    private boolean isReady = false; // the first handshake is done
+    private int enabledNotifications = 0; // HandshakeProfile.NOTIFY_* enabled on this connection
+
     private boolean isConnecting = false;
     private Handler connTimeoutHandler; // 該 Handler 用來確認連線是否能在 30 秒內完成，否則 timeout
     private static final int CONN_TIMEOUT_TIME = 30 * 1000; // 30 sec
 
-    public BLEDeviceBean(String address, BluetoothGatt bluetoothGatt, BLEDeviceBeanTimeoutCallback timeoutCallback) {
+    /**
+     * New a device bean.
+     *
+     * @param address           device mac address
+     * @param bluetoothGatt     BluetoothGatt object of the connection
+     * @param timeoutCallback   task timeout and connection timeout callback
+     * @param handler           handler of the worker thread, for the timers and the GATT queue
+     */
+    public BLEDeviceBean(String address, BluetoothGatt bluetoothGatt, BLEDeviceBeanTimeoutCallback timeoutCallback, Handler handler) {
         this.address = address;
         this.bluetoothGatt = bluetoothGatt;
         this.timeoutCallback = timeoutCallback;
-        taskTimeoutHandler = new Handler(Looper.getMainLooper());
-        connTimeoutHandler = new Handler(Looper.getMainLooper());
+        taskTimeoutHandler = handler;
+        connTimeoutHandler = handler;
+        gattQueue = new GattQueue(this, handler);
+        gattTransport = new GattTransport(this);
+    }
+
+    public GattQueue getGattQueue() {
+        return gattQueue;
+    }
+
+    public GattTransport getGattTransport() {
+        return gattTransport;
+    }
+
+    public ImageTransferEngine getTransferEngine() {
+        return transferEngine;
+    }
+
+    public void setTransferEngine(ImageTransferEngine transferEngine) {
+        this.transferEngine = transferEngine;
     }
 
     // Task Timer --- START
@@ -115,18 +157,6 @@ class BLEDeviceBean {
         this.charMap = charMap;
     }
 
-    public int getDescCounter() {
-        return descCounter;
-    }
-
-    public void addDescCounter(int add) {
-        this.descCounter += add;
-    }
-
-    public void setDescCounter(int descCounter) {
-        this.descCounter = descCounter;
-    }
-
     public boolean isImageWriting() {
         return isImageWriting;
     }
@@ -151,14 +181,6 @@ class BLEDeviceBean {
         this.progress_percent = progress_percent;
     }
 
-    public ImageGenerator getImageGenerator() {
-        return imageGenerator;
-    }
-
-    public void setImageGenerator(ImageGenerator imageGenerator) {
-        this.imageGenerator = imageGenerator;
-    }
-
     public long getStart_send_image_time() {
         return start_send_image_time;
     }
@@ -175,16 +197,97 @@ class BLEDeviceBean {
         this.end_send_image_time = end_send_image_time;
     }
 
-    public int getRunning_block_number() {
-        return running_block_number;
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public String getFirmwareVersion() {
+        return firmwareVersion;
+    }
+
+    public void setFirmwareVersion(String firmwareVersion) {
+        this.firmwareVersion = firmwareVersion;
+    }
+
+    public int getConnectionInterval() {
+        return connectionInterval;
+    }
+
+    public void setConnectionInterval(int connectionInterval) {
+        this.connectionInterval = connectionInterval;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    public void setPhy(int txPhy, int rxPhy) {
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+    }
+
+    public HandshakeProfile getHandshakeProfile() {
+        return handshakeProfile;
+    }
+
+    public void setHandshakeProfile(HandshakeProfile handshakeProfile) {
+        this.handshakeProfile = handshakeProfile;
+    }
+
+    public long getConnectTime() {
+        return connectTime;
+    }
+
+    public void setConnectTime(long connectTime) {
+        this.connectTime = connectTime;
+    }
+
+    public boolean isDisconnected() {
+        return isDisconnected;
+    }
+
+    public void setDisconnected(boolean disconnected) {
+        isDisconnected = disconnected;
+    }
+
+    public boolean isFirstBlockMeasured() {
+        return isFirstBlockMeasured;
+    }
+
+    public void setFirstBlockMeasured(boolean firstBlockMeasured) {
+        isFirstBlockMeasured = firstBlockMeasured;
+    }
+
+    public boolean isConnectMeasured() {
+        return isConnectMeasured;
+    }
+
+    public void setConnectMeasured(boolean connectMeasured) {
+        isConnectMeasured = connectMeasured;
+    }
+
+    public boolean isReady() {
+        return isReady;
+    }
+
+    public void setReady(boolean ready) {
+        isReady = ready;
     }
 
-    public void setRunning_block_number(int running_block_number) {
-        this.running_block_number = running_block_number;
+    public int getEnabledNotifications() {
+        return enabledNotifications;
     }
 
-    public void addRunning_block_number(int add) {
-        this.running_block_number += add;
+    public void setEnabledNotifications(int enabledNotifications) {
+        this.enabledNotifications = enabledNotifications;
     }
 
     @Override
@@ -0,0 +1,113 @@
+package com.advantech.bleeplib.utils;
+
+import com.advantech.bleeplib.bean.BLEImageWriteStatus;
+import com.advantech.bleeplib.bean.FleetProgress;
+
+/**
+ * BLEFleetListener is a callback listener which will returns the connection results of all
+ * devices, e.g. for a dashboard of a campaign, after you register a listener using the following
+ * method. Each callback carries the mac address of the device.
+ * @see BLEUtil#addFleetListener(BLEFleetListener, java.util.concurrent.Executor)
+ * @see BLEConnectListener
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public interface BLEFleetListener {
+    /**
+     * BLE connection callback.
+     *
+     * @param mac       device mac address
+     * @param result    connection result, e.g. {@code BluetoothProfile.STATE_CONNECTED}
+     */
+    public void onConnectionStateChange(String mac, int result);
+
+    /**
+     * BLE connection timeout callback.
+     *
+     * @param mac       device mac address
+     * @param message   error message
+     */
+    public void onConnectionTimeout(String mac, String message);
+
+    /**
+     * BLE service discovered callback.
+     *
+     * @param mac       device mac address
+     * @param result    if success, you will receive {@code BluetoothGatt.GATT_SUCCESS}
+     */
+    public void onServicesDiscovered(String mac, int result);
+
+    /**
+     * Firmware read callback.
+     *
+     * @param mac       device mac address
+     * @param result    if success, you will receive {@code BluetoothGatt.GATT_SUCCESS}
+     * @param read      read data
+     */
+    public void onFirmwareRead(String mac, int result, byte[] read);
+
+    /**
+     * LED read callback.
+     *
+     * @param mac       device mac address
+     * @param result    if success, you will receive {@code BluetoothGatt.GATT_SUCCESS}
+     * @param read      read data
+     */
+    public void onLEDRead(String mac, int result, byte[] read);
+
+    /**
+     * Device ready callback. The default implementation does nothing.
+     *
+     * @param mac       device mac address
+     */
+    default void onDeviceReady(String mac) {
+    }
+
+    /**
+     * LED write callback.
+     *
+     * @param mac       device mac address
+     * @param result    if success, you will receive {@code BluetoothGatt.GATT_SUCCESS}
+     * @param read      read data
+     */
+    public void onLEDWrite(String mac, int result, byte[] read);
+
+    /**
+     * Image write callback.
+     *
+     * @param mac       device mac address
+     * @param status    image write status. Please see {@code BLEImageWriteStatus} for all status.
+     * @param progress  image write progress
+     * @param message   image write message
+     */
+    public void onImageWrite(String mac, BLEImageWriteStatus status, int progress, String message);
+
+    /**
+     * Image refresh callback.
+     *
+     * @param mac        device mac address
+     * @param isSuccess  {@code true} if the EPD device refresh the image successfully;
+     *                   {@code false} otherwise
+     * @param page       refresh page {@code number}
+     */
+    public void onImageRefresh(String mac, boolean isSuccess, int page);
+
+    /**
+     * Alarm triggered callback.
+     *
+     * @param mac           device mac address
+     * @param isWarning     {@code true} if the alarm flag is raising;
+     *                      {@code false} otherwise
+     */
+    public void onAlarmDetected(String mac, boolean isWarning);
+
+    /**
+     * Fleet progress callback. You will receive the summary of the running image transfers on a
+     * fixed tick, and once after the last transfer is finished.
+     * @see BLEUtil#setFleetProgressInterval(long)
+     *
+     * @param progress  the summary of the running transfers
+     */
+    public void onFleetProgress(FleetProgress progress);
+}
@@ -3,13 +3,21 @@ package com.advantech.bleeplib.utils;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothProfile;
 import android.graphics.Bitmap;
-import android.util.Log;
 
 import com.advantech.bleeplib.bean.BLEImageWriteStatus;
+import com.advantech.bleeplib.bean.ConnectionPriority;
+import com.advantech.bleeplib.bean.DeviceProfile;
 import com.advantech.bleeplib.bean.PanelType;
+import com.advantech.bleeplib.bean.ProgressDelivery;
 import com.advantech.bleeplib.bean.TaskType;
+import com.advantech.bleeplib.fleet.RetryPolicy;
+import com.advantech.bleeplib.frame.FrameSource;
+import com.advantech.bleeplib.image.ImageGenerator;
+import com.advantech.bleeplib.image.IndexedImage;
+import com.advantech.bleeplib.trace.Tracer;
 
 import java.io.UnsupportedEncodingException;
+import java.util.concurrent.Executor;
 
 /**
  * BLETaskHandler is an ready-to-use handler class that can assist user to do batch tasks for
@@ -21,18 +29,25 @@ import java.io.UnsupportedEncodingException;
  * connection timeout is set to 20 seconds and task timeout is set to 60 seconds to address the
  * problems about no response from EPD devices. We highly recommend to use this handler if you have
  * more than one jobs need to done for bulk of devices.
+ * If {@link BLEUtil#setIdleConnectionTime(long)} is set, a successful task releases the connection
+ * to the connection pool instead of disconnecting it, and the next task for the same device runs
+ * on it without connecting again.
  *
  * @author Fabian Chung
  * @version 1.0.0
  *
  */
 public class BLETaskHandler {
-    private static final String TAG = "BLETaskHandler";
     private BLEUtil bleUtil = BLEUtil.getInstance();
     private String deviceMac;
     private TaskType taskType;
     private byte[] packageData;
     private Bitmap image;
+    private IndexedImage indexedImage;
+    private byte[] planeData;
+    private byte[] frameData;
+    private FrameSource frameSource;
+    private ImageGenerator imageGenerator; // encoded frame, kept across retries
     private int page = 1;
     private int action = 1;
     private PanelType panelType;
@@ -40,11 +55,15 @@ public class BLETaskHandler {
     private BLETaskHandlerCallback bleTaskHandlerCallback;
     private boolean isTaskExecuting = false;
     private int retry = 0;
-    private static final int MAX_RETRY_TIMES = 5;
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT; // at most 5 times retry
     private String read_firmware;
     private byte[] read_led;
     private String firmwareVersion;
     private boolean autoDisconnect = false;
+    private HandshakeProfile handshakeProfile; // null: selected by the task type
+    private ConnectionPriority priority; // null: selected by the task type
+    private long deadline = 0; // 0: no deadline
+    private ProgressDelivery progressDelivery = ProgressDelivery.COALESCED; // of onProgress
 
     /**
      * New a BLETaskHandler constructor.
@@ -54,7 +73,26 @@ public class BLETaskHandler {
      *                                  results.
      */
     public BLETaskHandler(String deviceMac, BLETaskHandlerCallback bleTaskHandlerCallback) {
+        this(deviceMac, bleTaskHandlerCallback, BLEUtil.getInstance().getCallbackExecutor());
+    }
+
+    /**
+     * New a BLETaskHandler constructor which returns the task results on an executor, e.g. an
+     * executor on the main looper for updating the UI. The task itself runs on the Bluetooth and
+     * worker threads of the library.
+     *
+     * @param deviceMac                 device mac address
+     * @param bleTaskHandlerCallback    add a task handler callback which will returns the task
+     *                                  results.
+     * @param executor                  the executor which runs the callback in order;
+     *                                  {@code BLEUtil.DIRECT_EXECUTOR} runs it on the calling
+     *                                  thread
+     */
+    public BLETaskHandler(String deviceMac, BLETaskHandlerCallback bleTaskHandlerCallback, Executor executor) {
         this.deviceMac = deviceMac;
+        if (bleTaskHandlerCallback != null && executor != null && executor != BLEUtil.DIRECT_EXECUTOR) {
+            bleTaskHandlerCallback = new ExecutorTaskHandlerCallback(bleTaskHandlerCallback, executor);
+        }
         this.bleTaskHandlerCallback = bleTaskHandlerCallback;
     }
 
@@ -75,17 +113,21 @@ public class BLETaskHandler {
         this.taskType = taskType;
         this.packageData = packageData;
         this.firmwareVersion = firmwareVersion;
+        setPayload(null, null, null, null, null);
         this.autoDisconnect = autoDisconnect;
 
-        // 先判斷是否已經被連線？
-        if(bleUtil.isConnectedOrInWaitingQueue(deviceMac)) {
-            return false;
-        } else {
-            // 如果沒有，才註冊 BLE 連接後的回調事件
-            bleUtil.addConnectListener(deviceMac, bleConnectListener);
-            // 再去連接設備
-            return bleUtil.connect(deviceMac);
+        // a fresh cached firmware version is identical, the connection can not change the outcome
+        DeviceProfile cached = bleUtil.getDeviceProfile(deviceMac);
+        if (firmwareVersion != null && cached != null && firmwareVersion.equals(cached.getFirmwareVersion())
+                && getHandshakeProfile().isFresh(cached.getFirmwareTime(), System.currentTimeMillis())) {
+            Tracer.trace(Tracer.DEBUG, Tracer.PHASE_TASK, deviceMac, "Identical cached firmware version");
+            if (bleTaskHandlerCallback != null) {
+                bleTaskHandlerCallback.onSuccess("Identical Firmware Version!");
+            }
+            return true;
         }
+
+        return connectForTask();
     }
 
     /**
@@ -106,20 +148,111 @@ public class BLETaskHandler {
 
         this.taskType = taskType;
         this.panelType = panelType;
-        this.image = image;
+        setPayload(image, null, null, null, null);
         this.page = page;
         this.action = action;
         this.autoDisconnect = autoDisconnect;
 
-        // 先判斷是否已經被連線？
-        if(bleUtil.isConnectedOrInWaitingQueue(deviceMac)) {
-            return false;
-        } else {
-            // 如果沒有，才註冊 BLE 連接後的回調事件
-            bleUtil.addConnectListener(deviceMac, bleConnectListener);
-            // 再去連接設備
-            return bleUtil.connect(deviceMac);
-        }
+        return connectForTask();
+    }
+
+    /**
+     * Start a task for pushing an indexed-color image using this BLETaskHandler object. Images which
+     * are already authored in the panel palette skip the color quantization for each pixel.
+     *
+     * @param taskType       task type, must be {@code TaskType.PUSH_IMAGE}
+     * @param panelType      EPD panel-type {@see PanelType}
+     * @param image          image in the indexed-color format; the image size must fit the panel-type {@see PanelType}
+     * @param page           which page {@code number} you want to transmit image on the EPD device; this number must be larger than 0
+     * @param action         refresh this image immediately {@code 1} or not {@code 0}
+     * @param autoDisconnect {@code true} disconnect the device after the task is done;
+     *                       {@code false} remain the connection after the task is done
+     * @return               {@code true} send this command successfully;
+     *                       {@code false} an existing task is still running or device in the waiting queue
+     */
+    public boolean startTask(TaskType taskType, PanelType panelType, IndexedImage image, int page, int action, boolean autoDisconnect) {
+        if (isTaskExecuting) return false;
+
+        this.taskType = taskType;
+        this.panelType = panelType;
+        setPayload(null, image, null, null, null);
+        this.page = page;
+        this.action = action;
+        this.autoDisconnect = autoDisconnect;
+
+        return connectForTask();
+    }
+
+    /**
+     * Start a task for pushing pre-packed EPD plane data using this BLETaskHandler object.
+     *
+     * @param taskType       task type, must be {@code TaskType.PUSH_IMAGE}
+     * @param panelType      EPD panel-type {@see PanelType}
+     * @param planeData      packed plane data; the length must fit the panel-type {@see PanelType}
+     * @param page           which page {@code number} you want to transmit image on the EPD device; this number must be larger than 0
+     * @param action         refresh this image immediately {@code 1} or not {@code 0}
+     * @param autoDisconnect {@code true} disconnect the device after the task is done;
+     *                       {@code false} remain the connection after the task is done
+     * @return               {@code true} send this command successfully;
+     *                       {@code false} an existing task is still running or device in the waiting queue
+     */
+    public boolean startTask(TaskType taskType, PanelType panelType, byte[] planeData, int page, int action, boolean autoDisconnect) {
+        if (isTaskExecuting) return false;
+
+        this.taskType = taskType;
+        this.panelType = panelType;
+        setPayload(null, null, planeData, null, null);
+        this.page = page;
+        this.action = action;
+        this.autoDisconnect = autoDisconnect;
+
+        return connectForTask();
+    }
+
+    /**
+     * Start a task for pushing a fully framed payload (CRC, image header and plane data) using this
+     * BLETaskHandler object.
+     *
+     * @param taskType       task type, must be {@code TaskType.PUSH_IMAGE}
+     * @param panelType      EPD panel-type {@see PanelType}
+     * @param frameData      framed payload, with or without the padding data
+     * @param autoDisconnect {@code true} disconnect the device after the task is done;
+     *                       {@code false} remain the connection after the task is done
+     * @return               {@code true} send this command successfully;
+     *                       {@code false} an existing task is still running or device in the waiting queue
+     */
+    public boolean startTask(TaskType taskType, PanelType panelType, byte[] frameData, boolean autoDisconnect) {
+        if (isTaskExecuting) return false;
+
+        this.taskType = taskType;
+        this.panelType = panelType;
+        setPayload(null, null, null, frameData, null);
+        this.autoDisconnect = autoDisconnect;
+
+        return connectForTask();
+    }
+
+    /**
+     * Start a task for pushing a pre-encoded frame, e.g. a memory-mapped frame file or a frame in
+     * the FrameArena, using this BLETaskHandler object. The frame is released when the task is
+     * completed.
+     * @see com.advantech.bleeplib.frame.FrameFile#open(java.io.File)
+     *
+     * @param taskType       task type, must be {@code TaskType.PUSH_IMAGE}
+     * @param frameSource    the pre-encoded frame
+     * @param autoDisconnect {@code true} disconnect the device after the task is done;
+     *                       {@code false} remain the connection after the task is done
+     * @return               {@code true} send this command successfully;
+     *                       {@code false} an existing task is still running or device in the waiting queue
+     */
+    public boolean startTask(TaskType taskType, FrameSource frameSource, boolean autoDisconnect) {
+        if (isTaskExecuting) return false;
+
+        this.taskType = taskType;
+        setPayload(null, null, null, null, frameSource);
+        this.autoDisconnect = autoDisconnect;
+
+        return connectForTask();
     }
 
     /**
@@ -137,29 +270,133 @@ public class BLETaskHandler {
         this.taskType = taskType;
         this.autoDisconnect = autoDisconnect;
 
-        // 先判斷是否已經被連線？
-        if(bleUtil.isConnectedOrInWaitingQueue(deviceMac)) {
+        return connectForTask();
+    }
+
+    // the payload of the next task, only one of them is set; the encoded frame is dropped
+    private void setPayload(Bitmap image, IndexedImage indexedImage, byte[] planeData, byte[] frameData, FrameSource frameSource) {
+        this.image = image;
+        this.indexedImage = indexedImage;
+        this.planeData = planeData;
+        this.frameData = frameData;
+        this.frameSource = frameSource;
+        this.imageGenerator = null;
+    }
+
+    private boolean connectForTask() {
+        // 先判斷是否已經被連線？(an idle connection of the pool runs the task)
+        if(bleUtil.isConnectedOrInWaitingQueue(deviceMac) && !bleUtil.isIdleConnection(deviceMac)) {
             return false;
         } else {
             // 如果沒有，才註冊 BLE 連接後的回調事件
-            bleUtil.addConnectListener(deviceMac, bleConnectListener);
+            bleUtil.addConnectListener(deviceMac, bleConnectListener, BLEUtil.DIRECT_EXECUTOR, progressDelivery);
             // 再去連接設備
-            return bleUtil.connect(deviceMac);
+            return bleUtil.connect(deviceMac, getHandshakeProfile(), getPriority(), deadline);
+        }
+    }
+
+    /**
+     * Set the handshake profile of the next task. By default, the profile is selected by the task
+     * type, e.g. {@code HandshakeProfile.PUSH_IMAGE} for pushing image.
+     * @see HandshakeProfile
+     *
+     * @param handshakeProfile  handshake profile, or {@code null} to select it by the task type
+     */
+    public void setHandshakeProfile(HandshakeProfile handshakeProfile) {
+        this.handshakeProfile = handshakeProfile;
+    }
+
+    private HandshakeProfile getHandshakeProfile() {
+        if (handshakeProfile != null) return handshakeProfile;
+        switch (taskType) {
+            case PUSH_IMAGE:
+                return HandshakeProfile.PUSH_IMAGE;
+            case FIRMWARE_UPGRADE:
+                return HandshakeProfile.FIRMWARE_UPGRADE;
+            case CHECK_STATUS:
+                return HandshakeProfile.CHECK_STATUS;
+            default:
+                return HandshakeProfile.FULL;
         }
     }
 
+    /**
+     * Set the priority class of the next task in the waiting queue of the connection slots. By
+     * default, {@code TaskType.CHECK_STATUS} (e.g. an LED command) is
+     * {@code ConnectionPriority.INTERACTIVE}, and the other tasks are
+     * {@code ConnectionPriority.NORMAL}. Set {@code ConnectionPriority.BULK} for the tasks of a
+     * campaign, so the single tasks go ahead of it.
+     * @see ConnectionPriority
+     *
+     * @param priority  the priority class, or {@code null} to select it by the task type
+     */
+    public void setPriority(ConnectionPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Set the deadline of the next task in the waiting queue. A device whose deadline has passed
+     * gets the next released slot, ahead of all priority classes.
+     *
+     * @param deadline  the time by which the device should be connected, e.g.
+     *                  {@code System.currentTimeMillis() + 10000}; {@code 0} no deadline
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = Math.max(0, deadline);
+    }
+
+    private ConnectionPriority getPriority() {
+        if (priority != null) return priority;
+        return (taskType == TaskType.CHECK_STATUS) ? ConnectionPriority.INTERACTIVE : ConnectionPriority.NORMAL;
+    }
+
+    /**
+     * Set the delivery of the task progress. By default, {@code onProgress} is called a few times
+     * per second, and only when the progress changes; {@code ProgressDelivery.RAW} calls it for
+     * every image block.
+     * @see BLEUtil#setProgressRate(int, int)
+     *
+     * @param progressDelivery  the delivery of the progress
+     */
+    public void setProgressDelivery(ProgressDelivery progressDelivery) {
+        this.progressDelivery = (progressDelivery != null) ? progressDelivery : ProgressDelivery.COALESCED;
+    }
+
+    /**
+     * Set the retry policy after the connection is lost. By default, the task is given up after 5
+     * disconnections.
+     * @see RetryPolicy
+     *
+     * @param retryPolicy   retry policy
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = (retryPolicy != null) ? retryPolicy : RetryPolicy.DEFAULT;
+    }
+
     /**
      * Terminate the task and disconnect the device.
      */
     public void disconnect() {
         // 解除工作狀態
         isTaskExecuting = false;
+        releaseFrame();
         // 取消註冊 BLE 連接後的回調事件
-        bleUtil.removeConnectListener(deviceMac);
+        bleUtil.removeConnectListener(deviceMac, bleConnectListener);
         // 斷開設備
         bleUtil.disconnect(deviceMac);
     }
 
+    // finish the task, and keep the connection in the connection pool of BLEUtil if it is enabled
+    private void release() {
+        // 解除工作狀態
+        isTaskExecuting = false;
+        releaseFrame();
+        // 取消註冊 BLE 連接後的回調事件
+        bleUtil.removeConnectListener(deviceMac, bleConnectListener);
+        // 釋放設備
+        bleUtil.release(deviceMac);
+    }
+
     private void executeTask() {
         boolean result = false;
         if (taskType == TaskType.FIRMWARE_UPGRADE) {
@@ -169,16 +406,36 @@ public class BLETaskHandler {
                 }
                 // 解除工作狀態
                 isTaskExecuting = false;
-                // Device disconnect
+                // Device release, the connection may be kept for the next task
                 if(autoDisconnect) {
-                    disconnect();
+                    release();
                 }
                 result = true;
             } else {
-                result = bleUtil.firmwareUpgrade(deviceMac, packageData);
+                // the encoded package is kept across retries, so the transfer can resume
+                if (imageGenerator == null) {
+                    imageGenerator = new ImageGenerator(TaskType.FIRMWARE_UPGRADE, packageData);
+                }
+                result = bleUtil.pushFrame(deviceMac, imageGenerator);
             }
         } else if (taskType == TaskType.PUSH_IMAGE) {
-            result = bleUtil.pushImage(deviceMac, panelType, image, page, action);
+            if (frameSource != null) {
+                result = bleUtil.pushFrame(deviceMac, frameSource);
+            } else {
+                // the encoded frame is kept across retries, so the transfer can resume
+                if (imageGenerator == null) {
+                    if (frameData != null) {
+                        imageGenerator = new ImageGenerator(TaskType.PUSH_IMAGE, panelType, frameData);
+                    } else if (planeData != null) {
+                        imageGenerator = new ImageGenerator(TaskType.PUSH_IMAGE, panelType, planeData, page, action);
+                    } else if (indexedImage != null) {
+                        imageGenerator = new ImageGenerator(TaskType.PUSH_IMAGE, panelType, indexedImage, page, action);
+                    } else {
+                        imageGenerator = new ImageGenerator(TaskType.PUSH_IMAGE, panelType, image, page, action);
+                    }
+                }
+                result = bleUtil.pushFrame(deviceMac, imageGenerator);
+            }
         } else if (taskType == TaskType.CHECK_STATUS) {
             if (bleTaskHandlerCallback != null) {
                 bleTaskHandlerCallback.onFirmwareRead(read_firmware);
@@ -189,6 +446,7 @@ public class BLETaskHandler {
             result = true;
         }
         if (!result) {
+            releaseFrame();
             if (bleTaskHandlerCallback != null)
                 bleTaskHandlerCallback.onError("Task Existed / Image not valid");
             // Device disconnect
@@ -200,15 +458,29 @@ public class BLETaskHandler {
 
     private void retryTask() {
         retry++;
-        if (retry < MAX_RETRY_TIMES) {
+        if (retryPolicy.canRetry(retry)) {
             // 連接設備
             if (bleTaskHandlerCallback != null)
                 bleTaskHandlerCallback.onReady("Lost Connection! " + retry + " times");
             // 強制斷線並重新連線
             bleUtil.reconnect(deviceMac);
         } else {
+            releaseFrame();
             if (bleTaskHandlerCallback != null)
                 bleTaskHandlerCallback.onError("Lost Connection! " + retry + " times");
+            // Device disconnect, release the connection slot for the waiting devices
+            if(autoDisconnect) {
+                disconnect();
+            }
+        }
+    }
+
+    // release the pre-encoded frame after the task is completed, e.g. return it to the FrameArena
+    private void releaseFrame() {
+        imageGenerator = null;
+        if (frameSource != null) {
+            frameSource.release();
+            frameSource = null;
         }
     }
 
@@ -245,16 +517,18 @@ public class BLETaskHandler {
         @Override
         public void onLEDRead(int status, byte[] read) {
             read_led = read;
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (connectStatus == BluetoothGatt.STATE_CONNECTED) {
-                    Log.d(TAG, " Job Executed! " + deviceMac);
-                    // 開啟工作的狀態
-                    isTaskExecuting = true;
-                    // execute job here!
-                    executeTask();
-                } else {
-                    retryTask();
-                }
+        }
+
+        @Override
+        public void onDeviceReady() {
+            if (connectStatus == BluetoothGatt.STATE_CONNECTED) {
+                Tracer.trace(Tracer.DEBUG, Tracer.PHASE_TASK, deviceMac, "Job executed");
+                // 開啟工作的狀態
+                isTaskExecuting = true;
+                // execute job here!
+                executeTask();
+            } else {
+                retryTask();
             }
         }
 
@@ -274,16 +548,23 @@ public class BLETaskHandler {
                 case FINISH:
                     // 解除工作狀態
                     isTaskExecuting = false;
+                    releaseFrame();
                     if (bleTaskHandlerCallback != null) bleTaskHandlerCallback.onSuccess(message);
-                    // Device disconnect
+                    // Device release, the connection may be kept for the next task (the device
+                    // restarts after a firmware upgrade)
                     if(autoDisconnect) {
-                        disconnect();
+                        if (taskType == TaskType.FIRMWARE_UPGRADE) {
+                            disconnect();
+                        } else {
+                            release();
+                        }
                     }
                     break;
                 case TIMEOUT:
                 case ERROR:
                     // 解除工作狀態
                     isTaskExecuting = false;
+                    releaseFrame();
                     if (bleTaskHandlerCallback != null) bleTaskHandlerCallback.onError(message);
                     // Device disconnect
                     if(autoDisconnect) {
@@ -307,6 +588,7 @@ public class BLETaskHandler {
         public void onConnectionTimeout(String message) {
             // 解除工作狀態
             isTaskExecuting = false;
+            releaseFrame();
             if (bleTaskHandlerCallback != null) bleTaskHandlerCallback.onError(message);
             // Device disconnect
             if(autoDisconnect) {
@@ -14,28 +14,47 @@ import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.os.Build;
 import android.os.Handler;
-import android.os.Looper;
-import android.util.Log;
+import android.os.HandlerThread;
 
 import com.advantech.bleeplib.bean.BLEImageWriteStatus;
+import com.advantech.bleeplib.bean.ConnectionPriority;
+import com.advantech.bleeplib.bean.ConnectionQueueStats;
+import com.advantech.bleeplib.bean.DeviceProfile;
+import com.advantech.bleeplib.bean.FleetProgress;
+import com.advantech.bleeplib.bean.GattQueueStats;
 import com.advantech.bleeplib.bean.PanelType;
+import com.advantech.bleeplib.bean.ProgressDelivery;
 import com.advantech.bleeplib.bean.TaskType;
+import com.advantech.bleeplib.bean.TransferStats;
+import com.advantech.bleeplib.fleet.ConcurrencyController;
+import com.advantech.bleeplib.fleet.ConnectionOrder;
+import com.advantech.bleeplib.fleet.ConnectionPool;
+import com.advantech.bleeplib.fleet.ConnectionScheduler;
+import com.advantech.bleeplib.fleet.LinkQualityOrder;
+import com.advantech.bleeplib.fleet.ProgressCoalescer;
+import com.advantech.bleeplib.frame.FrameCodec;
+import com.advantech.bleeplib.frame.FrameSource;
 import com.advantech.bleeplib.image.ImageGenerator;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
+import com.advantech.bleeplib.image.IndexedImage;
+import com.advantech.bleeplib.protocol.EpdProtocol;
+import com.advantech.bleeplib.protocol.EpdScheduler;
+import com.advantech.bleeplib.protocol.ImageTransferEngine;
+import com.advantech.bleeplib.protocol.TransferCheckpoints;
+import com.advantech.bleeplib.trace.LogcatSink;
+import com.advantech.bleeplib.trace.Tracer;
+
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 import static android.content.Context.BLUETOOTH_SERVICE;
 import static com.advantech.bleeplib.utils.Common.byteArrayToHexStr;
@@ -45,9 +64,11 @@ import static com.advantech.bleeplib.utils.Common.byteArrayToHexStr;
  * class provides customized functions for scanning nearby devices, making a connection with a
  * device, opening LED lights, firmware upgrading, and pushing image on the EPD device screen.
  * Handshake protocol between Advantech EPD devices and the Android mobile has been well-defined
- * based on Android Bluetooth Low Energy (BLE) APIs. In this class, we only allow four device
- * connections at a time and other devices will be in the waiting queue temporarily. After a device
- * is disconnected, we will pull a device from the waiting queue to continue to make the connection.
+ * based on Android Bluetooth Low Energy (BLE) APIs. In this class, we only allow a limited number
+ * of device connections at a time and other devices will be in the waiting queue temporarily. After
+ * a device is disconnected, we will pull a device from the waiting queue to continue to make the
+ * connection. The limit adapts to the connection failures and the throughput of this phone, and it
+ * is remembered for the phone model.
  * Note: Because each Android device has the maximum connection limitations for concurrent
  * device connections, please remember to disconnect EPD devices if no necessary to use them.
  *
@@ -56,32 +77,79 @@ import static com.advantech.bleeplib.utils.Common.byteArrayToHexStr;
  * 
  */
 public class BLEUtil {
-    private static String TAG = "BLEUtil";
     private static BLEUtil instance = null;
     private BluetoothManager bluetoothManager;
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothLeScanner bluetoothLeScanner;
-    private List<BLEScanListener> bleScanListeners = new ArrayList<>();
+    private List<BLEScanListener> bleScanListeners = new CopyOnWriteArrayList<>();
     private Map<String, BLEDeviceBean> connectionQueue = new ConcurrentHashMap<>();
-    private Map<String, BLEConnectListener> bleConnectListeners = new ConcurrentHashMap<>(); // mac, listener
-    private ConcurrentLinkedQueue<String> waitingQueue = new ConcurrentLinkedQueue<>(); // 最多四條同時連線，其餘放入 waitingList
-    private static final int MAX_CONNECTION_NUMBER = 4; // LG X9009 最多到四條連線同時
+    private final ConnectEventBus connectEventBus = new ConnectEventBus(); // mac, listeners of the device, and the fleet listeners
+    private final ConnectionScheduler connectionScheduler = new ConnectionScheduler(ConnectionScheduler.DEFAULT_MAX_CONNECTION_NUMBER); // slots up to the connection limit, the other devices wait in the queue
+    private final ConcurrencyController concurrencyController = new ConcurrencyController(connectionScheduler, null); // adapts the connection limit to this phone
+    private final static String CONNECTION_LIMIT_PREFS_NAME = "bleeplib_connection_limits"; // phone model, connection limit
+    private SharedPreferences connectionLimitPreferences;
     private boolean isScanning = false;
-    private Handler mHandler; // 該 Handler 用來搜尋Devices scanTime 秒後，自動停止搜尋
+    private HandlerThread workerThread; // timers, GATT queues and image encoding of the library, off the main thread
+    private Handler mHandler; // 該 Handler 用來搜尋Devices scanTime 秒後，自動停止搜尋，以及所有連線的計時器
+    // run the listeners on the calling thread, i.e. the Bluetooth or worker thread
+    public final static Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+    private volatile Executor callbackExecutor = DIRECT_EXECUTOR; // default executor of the listeners
 
     private final static int BLE_MTU = 251;
-    private final static String LED_CHAR_UUID = "0000FFF3-0000-1000-8000-00805F9B34FB";
-    private final static String FIRMWARE_CHAR_UUID = "00002A26-0000-1000-8000-00805F9B34FB";
-    private final static String IMAGE_ID_CHAR_UUID = "F000FFC1-0451-4000-B000-000000000000";
-    private final static String IMAGE_BLOCK_CHAR_UUID = "F000FFC2-0451-4000-B000-000000000000";
-    private final static String IMAGE_STATUS_CHAR_UUID = "F000FFC4-0451-4000-B000-000000000000";
-    private final static String DEVICE_EVENT_CHAR_UUID = "0000FFF4-0000-1000-8000-00805F9B34FB";
-
-    private final static String IMAGE_DESCRIPTOR_UUID = "00002902-0000-1000-8000-00805f9b34fb".toUpperCase();
+    private final static int MAX_BLE_MTU = 517;
+    private final static int ATT_HEADER_LEN = 3; // opcode + attribute handle
+    private final static int BLOCK_NUMBER_LEN = 2;
+    private int requestedMtu = BLE_MTU;
+    // all released firmware uses 240-byte blocks
+    public final static BlockLengthPolicy DEFAULT_BLOCK_LENGTH_POLICY = new BlockLengthPolicy() {
+        @Override
+        public int getBlockLength(String firmwareVersion, int maxBlockLength) {
+            return (maxBlockLength >= FrameCodec.BLOCK_LEN) ? FrameCodec.BLOCK_LEN : 0;
+        }
+    };
+    private BlockLengthPolicy blockLengthPolicy = DEFAULT_BLOCK_LENGTH_POLICY;
+    private boolean isLinkTuning = true; // high priority and 2M PHY during block transfers
+    private int idlePriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    public final static int DEFAULT_TRANSFER_WINDOW = 1; // one write per callback
+    public final static int MAX_TRANSFER_WINDOW = 16;
+    private int transferWindow = DEFAULT_TRANSFER_WINDOW;
+    public final static int DEFAULT_STALL_TIME = ImageTransferEngine.DEFAULT_STALL_TIME; // ms
+    private int stallTime = DEFAULT_STALL_TIME;
+    private final TransferCheckpoints checkpoints = new TransferCheckpoints(); // resume after reconnection
+    private EpdScheduler transferScheduler; // timers of the image transfer engines
+    private ProgressCoalescer progressCoalescer; // coalesced progress and fleet summaries
+    private int progressRate = ProgressCoalescer.DEFAULT_MAX_RATE;
+    private int progressStep = ProgressCoalescer.DEFAULT_MIN_STEP;
+    private long fleetProgressInterval = ProgressCoalescer.DEFAULT_FLEET_INTERVAL;
+    private final static String PROGRESS_MESSAGE = "Sending image ...";
+    private final DeviceProfileStore deviceProfileStore = new DeviceProfileStore(); // cached handshake reads
+    private Map<String, HandshakeProfile> handshakeProfiles = new ConcurrentHashMap<>(); // mac, profile of the next connection
+    private final ConnectionPool<BLEDeviceBean> connectionPool = new ConnectionPool<>(connectionScheduler, createPoolScheduler(), createPoolHost()); // slot release and idle connections
+    private final static String LED_CHAR_UUID = EpdProtocol.LED_CHAR_UUID;
+    private final static String FIRMWARE_CHAR_UUID = EpdProtocol.FIRMWARE_CHAR_UUID;
+    private final static String IMAGE_ID_CHAR_UUID = EpdProtocol.IMAGE_ID_CHAR_UUID;
+    private final static String IMAGE_BLOCK_CHAR_UUID = EpdProtocol.IMAGE_BLOCK_CHAR_UUID;
+    private final static String IMAGE_STATUS_CHAR_UUID = EpdProtocol.IMAGE_STATUS_CHAR_UUID;
+    private final static String DEVICE_EVENT_CHAR_UUID = EpdProtocol.DEVICE_EVENT_CHAR_UUID;
+
+    private final static String IMAGE_DESCRIPTOR_UUID = EpdProtocol.CCC_DESCRIPTOR_UUID;
+    private final static String HANDSHAKE_TAG = "handshake"; // GATT operations of the handshake sequence
     private Context context;
-    private static final int IMAGE_HEADER_LEN = 32;
 
     private BLEUtil() {
+        // trace to logcat, unless clients set a sink
+        Tracer.setDefaultSink(new LogcatSink());
+        concurrencyController.setListener(new ConcurrencyController.Listener() {
+            @Override
+            public void onLimitChanged(int limit, List<String> promotedMacs) {
+                onConnectionLimitChanged(limit, promotedMacs);
+            }
+        });
     }
 
     /**
@@ -111,10 +179,18 @@ public class BLEUtil {
      */
     public boolean initial(Context context) {
         this.context = context;
+        loadConnectionLimit(context);
         bluetoothManager = (BluetoothManager) context.getSystemService(BLUETOOTH_SERVICE);
         bluetoothAdapter = bluetoothManager.getAdapter();
         bluetoothLeScanner = bluetoothAdapter.getBluetoothLeScanner();
-        mHandler = new Handler(Looper.getMainLooper());
+        if (workerThread == null) {
+            workerThread = new HandlerThread("BLEUtil");
+            workerThread.start();
+            mHandler = new Handler(workerThread.getLooper());
+            transferScheduler = new HandlerScheduler(mHandler);
+            progressCoalescer = createProgressCoalescer(transferScheduler);
+        }
+        deviceProfileStore.load(context, mHandler);
         return bluetoothAdapter != null;
     }
 
@@ -137,11 +213,9 @@ public class BLEUtil {
         // 開始搜尋 BLE 設備
         bluetoothLeScanner.startScan(null, createScanSetting(), leScanCallback);
         isScanning = true;
-        Log.d(TAG, "Start Scan");
+        Tracer.trace(Tracer.DEBUG, Tracer.PHASE_SCAN, null, "Start scan");
         // notify clients
-        for (BLEScanListener bleScanListener : bleScanListeners) {
-            bleScanListener.onScanStatusChanged(isScanning);
-        }
+        notifyScanStatusChanged(isScanning);
         return true;
     }
 
@@ -153,12 +227,21 @@ public class BLEUtil {
         // 停止搜尋
         bluetoothLeScanner.stopScan(leScanCallback);
         isScanning = false;
-        Log.d(TAG, "Stop Scan");
+        Tracer.trace(Tracer.DEBUG, Tracer.PHASE_SCAN, null, "Stop scan");
         mHandler.removeCallbacks(myRunnable);
         // notify clients
-        for (BLEScanListener bleScanListener : bleScanListeners) {
-            bleScanListener.onScanStatusChanged(isScanning);
-        }
+        notifyScanStatusChanged(isScanning);
+    }
+
+    private void notifyScanStatusChanged(final boolean isScanning) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (BLEScanListener bleScanListener : bleScanListeners) {
+                    bleScanListener.onScanStatusChanged(isScanning);
+                }
+            }
+        });
     }
 
     private ScanSettings createScanSetting() {
@@ -184,14 +267,22 @@ public class BLEUtil {
     private ScanCallback leScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            BluetoothDevice device = result.getDevice();
-            int rssi = result.getRssi();
-            byte[] scanRecord = result.getScanRecord().getBytes();
+            final BluetoothDevice device = result.getDevice();
+            final int rssi = result.getRssi();
+            final byte[] scanRecord = result.getScanRecord().getBytes();
+            deviceProfileStore.putScanResult(device.getAddress(), result.getScanRecord().getDeviceName(), rssi);
+            // a waiting device may have a better (or a deferred device a new) rank
+            connectionScheduler.rerank(device.getAddress());
 
             // notify clients
-            for (BLEScanListener bleScanListener : bleScanListeners) {
-                bleScanListener.onLeScan(device, rssi, scanRecord);
-            }
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (BLEScanListener bleScanListener : bleScanListeners) {
+                        bleScanListener.onLeScan(device, rssi, scanRecord);
+                    }
+                }
+            });
         }
 
         @Override
@@ -212,19 +303,43 @@ public class BLEUtil {
      *
      * @param address   device mac address
      * @return          {@code true} if connect a device successfully (Note: it's possible to stay
-     *                  in the waiting queue temporarily if reach the four maximum connections
-     *                  limit);
+     *                  in the waiting queue temporarily if reach the connection limit);
      *                  {@code false} if connection exists or already in the waiting queue, we will
      *                  return false
      */
     public synchronized boolean connect(String address) {
+        return connect(address, ConnectionPriority.NORMAL, 0);
+    }
+
+    /**
+     * Make a connection with a device using the mac address, with a priority class and a deadline
+     * in the waiting queue. A released slot is handed to the waiting device of the highest class,
+     * e.g. an LED command of an operator goes ahead of a campaign, and a device whose deadline
+     * has passed goes ahead of all classes.
+     * @see BLEUtil#setConnectionPriority(String, ConnectionPriority, long)
+     *
+     * @param address   device mac address
+     * @param priority  the priority class in the waiting queue
+     * @param deadline  the time by which the device should be connected, e.g.
+     *                  {@code System.currentTimeMillis() + 10000}; {@code 0} no deadline
+     * @return          {@code true} if connect a device successfully (Note: it's possible to stay
+     *                  in the waiting queue temporarily if reach the connection limit);
+     *                  {@code false} if connection exists or already in the waiting queue
+     */
+    public synchronized boolean connect(String address, ConnectionPriority priority, long deadline) {
         boolean result = false;
         BLEDeviceBean bean = connectionQueue.get(address);
+        // hand the idle connection of the pool to the next task, without connecting again
+        if (bean != null && connectionPool.reuse(address) != null) {
+            return reuseIdleConnection(bean);
+        }
         // if this mac is not in connection and not in the waiting queue
-        if (bean == null && !waitingQueue.contains(address)) {
-            // over the max limit, offer to the waiting queue first
-            if (connectionQueue.size() >= MAX_CONNECTION_NUMBER) {
-                waitingQueue.offer(address);
+        if (bean == null && !connectionScheduler.isWaiting(address)) {
+            // over the max limit, offer to the waiting queue first (a reconnection keeps its slot)
+            if (!connectionScheduler.acquire(address, priority, deadline)) {
+                // the waiting device takes the slot of the least recently used idle connection
+                String evictedMac = connectionPool.evict();
+                if (evictedMac != null) Tracer.trace(Tracer.DEBUG, Tracer.PHASE_CONNECT, evictedMac, "Evict the idle connection");
                 return true;
             }
 
@@ -235,35 +350,56 @@ public class BLEUtil {
             BLEDeviceBean bleDeviceBean = new BLEDeviceBean(address, bluetoothGatt, new BLEDeviceBeanTimeoutCallback() {
                 @Override
                 public void onTaskTimeout(int progress) {
-                    // notify clients
-                    for (String mac : bleConnectListeners.keySet()) {
-                        if (mac.equals(address)) {
-                            BLEConnectListener listener = bleConnectListeners.get(address);
-                            listener.onImageWrite(BLEImageWriteStatus.TIMEOUT, progress, "Task Timeout");
-                            break;
-                        }
+                    // restore the idle link
+                    BLEDeviceBean bean = connectionQueue.get(address);
+                    if (bean != null) {
+                        tuneLinkForIdle(bean);
+                        bean.getTransferEngine().stop();
+                        progressCoalescer.onStopped(address);
                     }
+                    // notify clients
+                    BLEConnectListener listener = connectEventBus.get(address);
+                    if (listener != null) listener.onImageWrite(BLEImageWriteStatus.TIMEOUT, progress, "Task Timeout");
                 }
 
                 @Override
                 public void onConnectionTimeout() {
-                    // notify clients
-                    for (String mac : bleConnectListeners.keySet()) {
-                        if (mac.equals(address)) {
-                            BLEConnectListener listener = bleConnectListeners.get(address);
-                            listener.onConnectionTimeout("Connect Timeout");
-                            break;
-                        }
+                    BLEDeviceBean bean = connectionQueue.get(address);
+                    if (bean != null && !bean.isConnectMeasured()) {
+                        bean.setConnectMeasured(true);
+                        concurrencyController.onConnectResult(false, System.currentTimeMillis() - bean.getConnectTime());
                     }
+                    // notify clients
+                    BLEConnectListener listener = connectEventBus.get(address);
+                    if (listener != null) listener.onConnectionTimeout("Connect Timeout");
+                }
+            }, mHandler);
+            HandshakeProfile profile = handshakeProfiles.get(address);
+            bleDeviceBean.setHandshakeProfile(profile != null ? profile : HandshakeProfile.FULL);
+            bleDeviceBean.setConnectTime(System.currentTimeMillis());
+            // the image transfer protocol runs on the GATT binding of this connection
+            final ImageTransferEngine engine = new ImageTransferEngine(address, bleDeviceBean.getGattTransport(), transferScheduler, checkpoints);
+            engine.setListener(createTransferListener(bleDeviceBean));
+            bleDeviceBean.setTransferEngine(engine);
+            // queued GATT operations pre-empt the block transfer between blocks
+            bleDeviceBean.getGattQueue().setDataLane(new GattQueue.DataLane() {
+                @Override
+                public boolean isDataInFlight() {
+                    return engine.isDataInFlight();
+                }
+
+                @Override
+                public void onQueueIdle() {
+                    bleDeviceBean.getGattTransport().onQueueIdle();
                 }
             });
             // start a connection timeout timer
             result = bleDeviceBean.startConnTimeoutChecker();
             connectionQueue.put(address, bleDeviceBean);
-            Log.d(TAG, "Connection Number (add " + address + "): " + connectionQueue.size());
+            Tracer.trace(Tracer.DEBUG, Tracer.PHASE_CONNECT, address, -1, -1, connectionQueue.size(), "Connection added");
             return result;
         } else {
-            Log.d(TAG, "Connection existed or already in Waiting Queue !!! ( " + address + " )");
+            Tracer.trace(Tracer.DEBUG, Tracer.PHASE_CONNECT, address, "Connection existed or already in the waiting queue");
             result = false;
             return result;
         }
@@ -271,45 +407,77 @@ public class BLEUtil {
 
 
     /**
-     * Disconnect a device using the mac address.
+     * Connect to a device with a handshake profile. The profile enables only the notifications
+     * the task needs, and skips the firmware and LED reads while the cached values are fresh. The
+     * profile is kept for the reconnections of this device.
+     * @see HandshakeProfile
+     *
+     * @param address   device mac address
+     * @param profile   handshake profile, e.g. {@code HandshakeProfile.PUSH_IMAGE}
+     * @return          {@code true} if connect a device successfully (Note: it's possible to stay
+     *                  in the waiting queue temporarily if reach the connection limit);
+     *                  {@code false} if connection exists or already in the waiting queue
+     */
+    public synchronized boolean connect(String address, HandshakeProfile profile) {
+        return connect(address, profile, ConnectionPriority.NORMAL, 0);
+    }
+
+    /**
+     * Connect to a device with a handshake profile, a priority class and a deadline in the waiting
+     * queue.
+     * @see BLEUtil#connect(String, HandshakeProfile)
+     * @see BLEUtil#connect(String, ConnectionPriority, long)
      *
      * @param address   device mac address
+     * @param profile   handshake profile, e.g. {@code HandshakeProfile.PUSH_IMAGE}
+     * @param priority  the priority class in the waiting queue
+     * @param deadline  the time by which the device should be connected; {@code 0} no deadline
+     * @return          {@code true} if connect a device successfully (Note: it's possible to stay
+     *                  in the waiting queue temporarily if reach the connection limit);
+     *                  {@code false} if connection exists or already in the waiting queue
      */
-    public synchronized void disconnect(String address) {
+    public synchronized boolean connect(String address, HandshakeProfile profile, ConnectionPriority priority, long deadline) {
         BLEDeviceBean bean = connectionQueue.get(address);
-        if (bean != null) {
-            BluetoothGatt bluetoothGatt = bean.getBluetoothGatt();
-            if (bluetoothGatt != null) {
-                // disconnect a device
-                bluetoothGatt.disconnect();
+        if ((bean != null && !connectionPool.isIdle(address)) || connectionScheduler.isWaiting(address)) return connect(address, priority, deadline);
+        if (profile != null) {
+            handshakeProfiles.put(address, profile);
+        } else {
+            handshakeProfiles.remove(address);
+        }
+        return connect(address, priority, deadline);
+    }
 
-                new Thread(new Runnable() {
-                    public void run() {
-                        try {
-                            // 1 seconds later, remove the device from the connection queue
-                            Thread.sleep(1000);
-                            connectionQueue.remove(address);
-                            Log.d(TAG, "Connection Number (remove " + address + "): " + connectionQueue.size());
-                            // ask the waiting queue if have other devices?
-                            if (waitingQueue.size() > 0) {
-                                String nextMac = waitingQueue.poll();
-                                // Fix a bug: Can't create handler inside thread Thread[Thread-80,5,main] that has not called Looper.prepare()
-                                Looper.prepare(); // *
-                                connect(nextMac); // here has a handler
-                                Looper.loop(); // * 這種情形下，Runnable 物件是運行在子執行緒的，可以進行長時間的聯網操作，但不能更新 UI
-                            }
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }).start();
-            }
-            // remove connection timeout timer and task timeout timer
-            bean.removeTaskTimeoutChecker();
-            bean.removeConnTimeoutChecker();
+    /**
+     * Disconnect a device using the mac address. A device in the waiting queue is removed from the
+     * queue, see {@link BLEUtil#cancelConnection(String)}.
+     *
+     * @param address   device mac address
+     */
+    public synchronized void disconnect(String address) {
+        BLEDeviceBean bean = connectionQueue.get(address);
+        if (bean == null) {
+            cancelConnection(address);
+        } else {
+            // disconnect a device, the slot is released on the disconnection event
+            connectionPool.disconnect(address, bean, false);
         }
     }
 
+    /**
+     * Cancel the connection of a device in the waiting queue, so it does not take the next free
+     * slot. A connected device is not affected, see {@link BLEUtil#disconnect(String)}.
+     *
+     * @param address   device mac address
+     * @return          {@code true} the device was in the waiting queue;
+     *                  {@code false} otherwise
+     */
+    public synchronized boolean cancelConnection(String address) {
+        if (!connectionScheduler.cancel(address)) return false;
+        handshakeProfiles.remove(address);
+        Tracer.trace(Tracer.DEBUG, Tracer.PHASE_CONNECT, address, "Cancel the waiting connection");
+        return true;
+    }
+
     /**
      * Reconnect a device using the mac address. This function will force to disconnect the device
      * if the connection has been existed.
@@ -319,33 +487,10 @@ public class BLEUtil {
     public synchronized void reconnect(String address) {
         BLEDeviceBean bean = connectionQueue.get(address);
         if (bean != null) { // if the connection existed
-            BluetoothGatt bluetoothGatt = bean.getBluetoothGatt();
-            if (bluetoothGatt != null) {
-                // disconnect a device
-                bluetoothGatt.disconnect();
-
-                new Thread(new Runnable() {
-                    public void run() {
-                        try {
-                            // 1 seconds later, remove the device from the connection queue
-                            Thread.sleep(1000);
-                            connectionQueue.remove(address);
-                            Log.d(TAG, "Connection Number: " + connectionQueue.size());
-                            // Fix a bug: Can't create handler inside thread Thread[Thread-80,5,main] that has not called Looper.prepare()
-                            Looper.prepare(); // *
-                            connect(address); // here has a handler
-                            Looper.loop(); // * 這種情形下，Runnable 物件是運行在子執行緒的，可以進行長時間的聯網操作，但不能更新 UI
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }).start();
-            }
-            // remove connection timeout timer and task timeout timer
-            bean.removeTaskTimeoutChecker();
-            bean.removeConnTimeoutChecker();
+            // disconnect a device, and connect again on the disconnection event
+            connectionPool.disconnect(address, bean, true);
         } else {  // if already disconnected
-            connect(address); // here has a handler
+            connect(address);
         }
     }
 
@@ -358,9 +503,255 @@ public class BLEUtil {
      */
     public synchronized boolean isConnectedOrInWaitingQueue(String address) {
         BLEDeviceBean bean = connectionQueue.get(address);
-        return bean != null || waitingQueue.contains(address);
+        return bean != null || connectionScheduler.isWaiting(address);
+    }
+
+    /**
+     * Get the metrics of the connection slots and the waiting queue, e.g. the average wait time of
+     * the devices in a batch of tasks, for each priority class.
+     *
+     * @return  the metrics
+     */
+    public ConnectionQueueStats getConnectionQueueStats() {
+        return connectionScheduler.getStats();
+    }
+
+    /**
+     * Change the priority class and the deadline of a device in the waiting queue, e.g. move the
+     * device of an operator ahead of a campaign.
+     *
+     * @param address   device mac address
+     * @param priority  the priority class in the waiting queue
+     * @param deadline  the time by which the device should be connected; {@code 0} no deadline
+     * @return          {@code true} the device is in the waiting queue;
+     *                  {@code false} otherwise
+     */
+    public boolean setConnectionPriority(String address, ConnectionPriority priority, long deadline) {
+        return connectionScheduler.reprioritize(address, priority, deadline);
+    }
+
+    /**
+     * Set the order of the waiting devices within a priority class. By default, the devices are
+     * first-in-first-out. A {@link LinkQualityOrder} runs the devices with a good link first, to
+     * shorten a campaign.
+     * @see BLEUtil#createLinkQualityOrder()
+     *
+     * @param connectionOrder   the connection order, or {@code null} for first-in-first-out
+     */
+    public void setConnectionOrder(ConnectionOrder connectionOrder) {
+        connectionScheduler.setConnectionOrder(connectionOrder);
+    }
+
+    /**
+     * Create a link quality order on the device profiles, i.e. the RSSI of the scan results and
+     * the transfer rate of the past pushes.
+     *
+     * @return  the link quality order, to be set by {@link BLEUtil#setConnectionOrder(ConnectionOrder)}
+     */
+    public LinkQualityOrder createLinkQualityOrder() {
+        return new LinkQualityOrder(new LinkQualityOrder.ProfileSource() {
+            @Override
+            public DeviceProfile getDeviceProfile(String address) {
+                return deviceProfileStore.get(address);
+            }
+        }, null);
+    }
+
+    /**
+     * Get the number of devices which can be connected at the same time. The limit adapts to the
+     * connection failures (e.g. GATT 133), the connect latency and the image throughput of this
+     * phone, and it is remembered for the phone model.
+     *
+     * @return  the connection limit
+     */
+    public int getConnectionLimit() {
+        return concurrencyController.getLimit();
+    }
+
+    /**
+     * Set the bounds of the connection limit. The same value for both bounds gives a fixed limit,
+     * e.g. {@code setConnectionLimitBounds(4, 4)}.
+     *
+     * @param minLimit  the lowest connection limit, default: {@link ConcurrencyController#DEFAULT_MIN_LIMIT}
+     * @param maxLimit  the highest connection limit, default: {@link ConcurrencyController#DEFAULT_MAX_LIMIT}
+     */
+    public void setConnectionLimitBounds(int minLimit, int maxLimit) {
+        concurrencyController.setBounds(minLimit, maxLimit);
+    }
+
+    /**
+     * Release a device after a task. If the idle connection time is set, a ready connection is
+     * kept open in the connection pool, and the next task for this device runs on it without
+     * connecting and handshaking again. The idle connection is disconnected after the idle
+     * connection time, or as soon as a waiting device needs the slot. Otherwise, the device is
+     * disconnected.
+     * @see BLEUtil#setIdleConnectionTime(long)
+     *
+     * @param address   device mac address
+     */
+    public synchronized void release(String address) {
+        BLEDeviceBean bean = connectionQueue.get(address);
+        if (bean == null) return;
+        if (connectionPool.release(address, bean)) {
+            Tracer.trace(Tracer.DEBUG, Tracer.PHASE_CONNECT, address, -1, -1, connectionPool.getIdleCount(), "Idle connection");
+        }
+    }
+
+    /**
+     * Check if the device is an idle connection in the connection pool.
+     *
+     * @param address   device mac address
+     * @return          {@code true} the connection is idle, and the next task can run on it;
+     *                  {@code false} otherwise
+     */
+    public synchronized boolean isIdleConnection(String address) {
+        return connectionPool.isIdle(address);
+    }
+
+    /**
+     * Set how long a connection is kept open after a task, for the next task to the same device,
+     * e.g. turning on the LED after pushing an image, or pushing page 2 after page 1. The idle
+     * connections are evicted, least recently used first, when the waiting devices need the slots.
+     * @see BLEUtil#release(String)
+     *
+     * @param idleTime  idle connection time, ms; {@code 0} disconnect after each task (default)
+     */
+    public synchronized void setIdleConnectionTime(long idleTime) {
+        connectionPool.setIdleConnectionTime(idleTime);
     }
 
+    public synchronized long getIdleConnectionTime() {
+        return connectionPool.getIdleConnectionTime();
+    }
+
+    // the number of idle connections in the connection pool
+    public synchronized int getIdleConnectionCount() {
+        return connectionPool.getIdleCount();
+    }
+
+    // Connection slots --- START
+    // the connections of the pool are the BluetoothGatt connections of the connection queue
+    private ConnectionPool.Host<BLEDeviceBean> createPoolHost() {
+        return new ConnectionPool.Host<BLEDeviceBean>() {
+            @Override
+            public boolean isReusable(BLEDeviceBean bean) {
+                return bean.isReady() && !bean.isConnecting() && !bean.isImageWriting() && !bean.isDisconnected();
+            }
+
+            @Override
+            public boolean isDisconnected(BLEDeviceBean bean) {
+                return bean.isDisconnected();
+            }
+
+            @Override
+            public void disconnect(BLEDeviceBean bean) {
+                Tracer.trace(Tracer.DEBUG, Tracer.PHASE_CONNECT, bean.getAddress(), "Disconnect");
+                // remove connection timeout timer and task timeout timer
+                bean.removeTaskTimeoutChecker();
+                bean.removeConnTimeoutChecker();
+                BluetoothGatt bluetoothGatt = bean.getBluetoothGatt();
+                if (bluetoothGatt != null) bluetoothGatt.disconnect();
+            }
+
+            // remove the device from the connection queue
+            @Override
+            public void onReleased(BLEDeviceBean bean) {
+                String address = bean.getAddress();
+                bean.removeTaskTimeoutChecker();
+                bean.removeConnTimeoutChecker();
+                if (!bean.isDisconnected()) {
+                    // e.g. a pending connection is cancelled, close it so no more events come
+                    Tracer.trace(Tracer.WARN, Tracer.PHASE_CONNECT, address, "No disconnection event, release the slot");
+                    try {
+                        bean.getBluetoothGatt().close();
+                    } catch (Exception e) {
+                        if (Tracer.isLoggable(Tracer.WARN)) Tracer.trace(Tracer.WARN, Tracer.PHASE_CONNECT, address, "close ignoring: " + e);
+                    }
+                    bean.getTransferEngine().stop();
+                    bean.getGattQueue().clear();
+                }
+                progressCoalescer.onStopped(address);
+                if (connectionQueue.get(address) == bean) connectionQueue.remove(address);
+                Tracer.trace(Tracer.DEBUG, Tracer.PHASE_CONNECT, address, -1, -1, connectionQueue.size(), "Connection removed");
+            }
+
+            @Override
+            public void connect(String address) {
+                BLEUtil.this.connect(address);
+            }
+        };
+    }
+
+    // the timers of the pool run under the lock of BLEUtil, like the other calls of the pool
+    private EpdScheduler createPoolScheduler() {
+        return new EpdScheduler() {
+            @Override
+            public long now() {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public Object schedule(final Runnable task, long delay) {
+                return transferScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (BLEUtil.this) {
+                            task.run();
+                        }
+                    }
+                }, delay);
+            }
+
+            @Override
+            public void cancel(Object token) {
+                transferScheduler.cancel(token);
+            }
+        };
+    }
+
+    // start with the limit of the last run on this phone model
+    private void loadConnectionLimit(Context context) {
+        if (connectionLimitPreferences != null) return;
+        connectionLimitPreferences = context.getApplicationContext().getSharedPreferences(CONNECTION_LIMIT_PREFS_NAME, Context.MODE_PRIVATE);
+        int limit = connectionLimitPreferences.getInt(Build.MODEL, -1);
+        if (limit > 0) concurrencyController.setLimit(limit);
+    }
+
+    // the next task runs on the idle connection, after enabling the notifications and the reads it needs
+    private boolean reuseIdleConnection(BLEDeviceBean bean) {
+        String mac = bean.getAddress();
+        HandshakeProfile profile = handshakeProfiles.get(mac);
+        bean.setHandshakeProfile(profile != null ? profile : HandshakeProfile.FULL);
+        bean.setConnectTime(System.currentTimeMillis());
+        boolean result = bean.startConnTimeoutChecker();
+        Tracer.trace(Tracer.DEBUG, Tracer.PHASE_CONNECT, mac, "Reuse the idle connection");
+        // notify clients
+        BLEConnectListener listener = connectEventBus.get(mac);
+        if (listener != null) listener.onConnectionStateChange(BluetoothProfile.STATE_CONNECTED);
+        startHandshake(bean);
+        return result;
+    }
+
+    private synchronized boolean isReleasing(String address) {
+        return connectionPool.isReleasing(address);
+    }
+
+    private synchronized void onDisconnected(String address, BLEDeviceBean bean) {
+        connectionPool.onDisconnected(address, bean);
+    }
+
+    // remember the limit, and connect the waiting devices which got a new slot
+    private void onConnectionLimitChanged(int limit, List<String> promotedMacs) {
+        if (Tracer.isLoggable(Tracer.INFO)) Tracer.trace(Tracer.INFO, Tracer.PHASE_CONNECT, null, -1, -1, limit, "Connection limit of " + Build.MODEL);
+        SharedPreferences preferences = connectionLimitPreferences;
+        // a limit lowered by slow devices is not a limit of this phone model
+        if (preferences != null && !concurrencyController.isLatencyLowered()) preferences.edit().putInt(Build.MODEL, limit).apply();
+        for (String mac : promotedMacs) {
+            connect(mac);
+        }
+    }
+    // Connection slots --- END
+
     BluetoothGattCallback bluetoothGattCallback = new BluetoothGattCallback() {
 
         /**
@@ -375,35 +766,45 @@ public class BLEUtil {
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             super.onConnectionStateChange(gatt, status, newState);
             String mac = gatt.getDevice().getAddress();
+            BLEDeviceBean bean = connectionQueue.get(mac);
+            if (bean != null && bean.getBluetoothGatt() == gatt && !bean.isConnectMeasured() && !isReleasing(mac)) {
+                // a disconnection before the connection is a failed connection, e.g. GATT 133
+                bean.setConnectMeasured(true);
+                boolean isConnected = (newState == BluetoothProfile.STATE_CONNECTED);
+                concurrencyController.onConnectResult(isConnected, System.currentTimeMillis() - bean.getConnectTime());
+            }
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.d(TAG, mac + " Connected");
+                Tracer.trace(Tracer.DEBUG, Tracer.PHASE_CONNECT, mac, -1, status, -1, "Connected");
+                deviceProfileStore.putLastSeen(mac);
                 // Step 1. discover services
                 gatt.discoverServices();
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.d(TAG, mac + " Disconnected");
+                Tracer.trace(Tracer.DEBUG, Tracer.PHASE_CONNECT, mac, -1, status, -1, "Disconnected");
                 // close the BluetoothGatt object after receiving disconnection event.
                 // fix a bug 183108: https://code.google.com/p/android/issues/detail?id=183108
                 try {
                     gatt.close();
                 } catch (Exception e) {
-                    Log.e(TAG, "close ignoring: " + e);
+                    if (Tracer.isLoggable(Tracer.WARN)) Tracer.trace(Tracer.WARN, Tracer.PHASE_CONNECT, mac, "close ignoring: " + e);
                 }
 
                 // remove connection timeout timer and task timeout timer
-                BLEDeviceBean bean = connectionQueue.get(mac);
-                if (bean != null) {
+                if (bean != null && bean.getBluetoothGatt() == gatt) {
+                    bean.setDisconnected(true);
                     bean.removeTaskTimeoutChecker();
                     bean.removeConnTimeoutChecker();
+                    // the checkpoint is kept, and the queued GATT operations are cancelled
+                    bean.getTransferEngine().stop();
+                    bean.getGattQueue().clear();
+                    progressCoalescer.onStopped(mac);
+                    // disconnect() or reconnect() is waiting for this event, or the device dropped
+                    // the idle connection, e.g. out of range
+                    onDisconnected(mac, bean);
                 }
             }
             // notify clients
-            for (String address : bleConnectListeners.keySet()) {
-                if (address.equals(mac)) {
-                    BLEConnectListener listener = bleConnectListeners.get(address);
-                    listener.onConnectionStateChange(newState);
-                    break;
-                }
-            }
+            BLEConnectListener listener = connectEventBus.get(mac);
+            if (listener != null) listener.onConnectionStateChange(newState);
         }
 
         /**
@@ -417,7 +818,7 @@ public class BLEUtil {
             super.onServicesDiscovered(gatt, status);
             String mac = gatt.getDevice().getAddress();
             if (BluetoothGatt.GATT_SUCCESS == status) {
-                Log.d(TAG, mac + " Service Discovery...");
+                Tracer.trace(Tracer.DEBUG, Tracer.PHASE_HANDSHAKE, mac, "Service discovery");
                 Map<String, BluetoothGattCharacteristic> characteristicMap = new HashMap<>();
                 List<BluetoothGattService> gattServices = gatt.getServices();
                 // for-loop all service
@@ -443,22 +844,16 @@ public class BLEUtil {
                 BLEDeviceBean bean = connectionQueue.get(mac);
                 if (bean != null) {
                     bean.setCharMap(characteristicMap);
+                    // Step 2-5. MTU -> image descriptors -> firmware -> LED status
+                    startHandshake(bean);
                 }
-
-                // Step 2. set MTU Level to 251
-                boolean result = gatt.requestMtu(BLE_MTU);
             } else {
-                Log.e(TAG, mac + " Service Discovery Error");
+                Tracer.trace(Tracer.ERROR, Tracer.PHASE_HANDSHAKE, mac, -1, status, -1, "Service discovery error");
             }
 
             // notify clients
-            for (String address : bleConnectListeners.keySet()) {
-                if (address.equals(mac)) {
-                    BLEConnectListener listener = bleConnectListeners.get(address);
-                    listener.onServicesDiscovered(status);
-                    break;
-                }
-            }
+            BLEConnectListener listener = connectEventBus.get(mac);
+            if (listener != null) listener.onServicesDiscovered(status);
         }
 
         /**
@@ -475,35 +870,30 @@ public class BLEUtil {
             byte[] read = characteristic.getValue();
 
             if (LED_CHAR_UUID.equalsIgnoreCase(characteristic.getUuid().toString())) {
-                Log.d(TAG, mac + " LED Read: 0x" + byteArrayToHexStr(read));
+                if (Tracer.isLoggable(Tracer.DEBUG)) Tracer.trace(Tracer.DEBUG, Tracer.PHASE_GATT, mac, -1, status, -1, "LED read: 0x" + byteArrayToHexStr(read));
                 // notify clients
-                for (String address : bleConnectListeners.keySet()) {
-                    if (address.equals(mac)) {
-                        BLEConnectListener listener = bleConnectListeners.get(address);
-                        listener.onLEDRead(status, read);
-                        break;
-                    }
-                }
-                // Step 6. Handshake done!
-                BLEDeviceBean bean = connectionQueue.get(mac);
-                if (bean == null) return;
-                // remove connection timeout timer
-                bean.removeConnTimeoutChecker();
+                BLEConnectListener listener = connectEventBus.get(mac);
+                if (listener != null) listener.onLEDRead(status, read);
+                if (status == BluetoothGatt.GATT_SUCCESS) deviceProfileStore.putLedState(mac, read);
             } else if (FIRMWARE_CHAR_UUID.equalsIgnoreCase(characteristic.getUuid().toString())) {
                 try {
-                    Log.d(TAG, mac + " Firmware Read: " + new String(read, "UTF-8"));
+                    String firmwareVersion = new String(read, "UTF-8");
+                    if (Tracer.isLoggable(Tracer.DEBUG)) Tracer.trace(Tracer.DEBUG, Tracer.PHASE_GATT, mac, -1, status, -1, "Firmware read: " + firmwareVersion);
+                    BLEDeviceBean bean = connectionQueue.get(mac);
+                    if (bean != null && status == BluetoothGatt.GATT_SUCCESS) {
+                        bean.setFirmwareVersion(firmwareVersion.trim());
+                        deviceProfileStore.putFirmwareVersion(mac, firmwareVersion);
+                    }
                 } catch (Exception e) {
                 }
                 // notify clients
-                for (String address : bleConnectListeners.keySet()) {
-                    if (address.equals(mac)) {
-                        BLEConnectListener listener = bleConnectListeners.get(address);
-                        listener.onFirmwareRead(status, read);
-                        break;
-                    }
-                }
-                // Step 5. Read LED status
-                readLEDStatus(gatt);
+                BLEConnectListener listener = connectEventBus.get(mac);
+                if (listener != null) listener.onFirmwareRead(status, read);
+            }
+            // complete the queued read
+            BLEDeviceBean bean = connectionQueue.get(mac);
+            if (bean != null) {
+                bean.getGattQueue().onCallback(GattOperation.TYPE_READ, characteristic.getUuid().toString(), status, read);
             }
         }
 
@@ -518,28 +908,23 @@ public class BLEUtil {
             super.onCharacteristicWrite(gatt, characteristic, status);
             String mac = gatt.getDevice().getAddress();
             byte[] read = characteristic.getValue();
-            String data = byteArrayToHexStr(read);
             BLEDeviceBean bean = connectionQueue.get(mac);
             if (bean == null) return;
 
             if (LED_CHAR_UUID.equalsIgnoreCase(characteristic.getUuid().toString())) {
+                // the cached LED status is out of date
+                deviceProfileStore.invalidateLedState(mac);
                 // notify clients
-                for (String address : bleConnectListeners.keySet()) {
-                    if (address.equals(mac)) {
-                        BLEConnectListener listener = bleConnectListeners.get(address);
-                        listener.onLEDWrite(status, read);
-                        break;
-                    }
-                }
+                BLEConnectListener listener = connectEventBus.get(mac);
+                if (listener != null) listener.onLEDWrite(status, read);
             }
 
             if (IMAGE_BLOCK_CHAR_UUID.equalsIgnoreCase(characteristic.getUuid().toString())) {
-                bean.addRunning_block_number(1);
-                int running_block_number = bean.getRunning_block_number();
-                if (running_block_number < bean.getImageGenerator().total_block_number) {
-                    // continue running blocks --- B1
-                    writeBlock(bean, running_block_number);
-                }
+                // continue running blocks --- B1
+                bean.getGattTransport().onBlockWritten(status);
+            } else {
+                // complete the queued write
+                bean.getGattQueue().onCallback(GattOperation.TYPE_WRITE, characteristic.getUuid().toString(), status, read);
             }
         }
 
@@ -558,151 +943,8 @@ public class BLEUtil {
             BLEDeviceBean bean = connectionQueue.get(mac);
             if (bean == null) return;
 
-            if (IMAGE_ID_CHAR_UUID.equalsIgnoreCase(uuid)) {
-                // stop task timeout timer
-                bean.removeTaskTimeoutChecker();
-                Log.e(TAG, "Error! Send Image Identify Characteristic Error!");
-
-                // notify clients
-                for (String address : bleConnectListeners.keySet()) {
-                    if (address.equals(mac)) {
-                        BLEConnectListener listener = bleConnectListeners.get(address);
-                        listener.onImageWrite(BLEImageWriteStatus.ERROR, bean.getProgress_percent(), "Characteristic Error");
-                        break;
-                    }
-                }
-            } else if (IMAGE_BLOCK_CHAR_UUID.equalsIgnoreCase(uuid)) {
-                // 2. Send Image Block Characteristic
-                int block_number = ((notify_data[1] & 0xff) << 8) | (notify_data[0] & 0xff);
-                // notify
-                ImageGenerator imageGenerator = bean.getImageGenerator();
-                Log.d(TAG, mac + ": Writing image blocks.... Number: " + (block_number + 1) + " / " + imageGenerator.total_block_number);
-                int progress_percent = Math.round(((float) (block_number + 1) / (float) imageGenerator.total_block_number) * 100f);
-                bean.setProgress_percent(progress_percent);
-                for (String address : bleConnectListeners.keySet()) {
-                    if (address.equals(mac)) {
-                        BLEConnectListener listener = bleConnectListeners.get(address);
-                        listener.onImageWrite(BLEImageWriteStatus.IN_PROGRESS, progress_percent, "Sending image ...");
-                        break;
-                    }
-                }
-
-                if (block_number > 0) return;
-                // start running blocks --- B1
-                bean.setRunning_block_number(0);
-                writeBlock(bean, 0);
-
-            } else if (IMAGE_STATUS_CHAR_UUID.equalsIgnoreCase(uuid)) {
-                // stop task timeout timer
-                bean.removeTaskTimeoutChecker();
-                bean.setEnd_send_image_time(new Date().getTime());
-                long time = bean.getEnd_send_image_time() - bean.getStart_send_image_time();
-                Log.d(TAG, "Done! Send Image Done!");
-                Log.d(TAG, gatt.getDevice().getAddress() + " Time elapsed: " + time + " ms");
-                String data = byteArrayToHexStr(notify_data);
-                boolean result = false;
-                String message = "";
-                switch (data) {
-                    case "00": {
-                        result = true;
-                        message = "Success! Take " + Math.round((double) time / (double) 1000 * 100.0) / 100.0 + " s";
-                        break;
-                    }
-                    case "01": {
-                        result = false;
-                        message = "CRC Error";
-                        break;
-                    }
-                    case "02": {
-                        result = false;
-                        message = "Flash Error";
-                        break;
-                    }
-                    case "03": {
-                        result = false;
-                        message = "Block Overflow";
-                        break;
-                    }
-                    case "04": {
-                        result = false;
-                        message = "Identify Error";
-                        break;
-                    }
-                    default: {
-                        result = false;
-                        message = "Unknown Error";
-                        break;
-                    }
-                }
-                // notify clients
-                int progress_percent = bean.getProgress_percent();
-                for (String address : bleConnectListeners.keySet()) {
-                    if (address.equals(mac)) {
-                        BLEConnectListener listener = bleConnectListeners.get(address);
-                        if (result) {
-                            listener.onImageWrite(BLEImageWriteStatus.FINISH, progress_percent, message);
-                        } else {
-                            listener.onImageWrite(BLEImageWriteStatus.ERROR, progress_percent, message);
-                        }
-                        break;
-                    }
-                }
-            } else if (DEVICE_EVENT_CHAR_UUID.equalsIgnoreCase(uuid)) {
-                String data = byteArrayToHexStr(notify_data);
-                if (notify_data != null && notify_data.length > 1) {
-                    byte first = notify_data[0];
-                    byte second = notify_data[1];
-                    if (first == 0x01) {
-                        if (second == 0x00) {
-                            // notify clients
-                            for (String address : bleConnectListeners.keySet()) {
-                                if (address.equals(mac)) {
-                                    BLEConnectListener listener = bleConnectListeners.get(address);
-                                    listener.onAlarmDetected(false);
-                                    break;
-                                }
-                            }
-                        } else if (second == 0x01) {
-                            // notify clients
-                            for (String address : bleConnectListeners.keySet()) {
-                                if (address.equals(mac)) {
-                                    BLEConnectListener listener = bleConnectListeners.get(address);
-                                    listener.onAlarmDetected(true);
-                                    break;
-                                }
-                            }
-                        }
-                    } else if (first == 0x02) {
-                        byte src = notify_data[1];
-                        byte result = notify_data[2];
-                        byte page = notify_data[3];
-                        Log.d(TAG, "EPD Event Src: " + (src & 0xff) + " Result: " + (result & 0xff) + " Page Numb: " + (page & 0xff));
-                        if (src == 0x02) { // refresh
-                            if (result == 0x00) {
-                                // notify clients
-                                for (String address : bleConnectListeners.keySet()) {
-                                    if (address.equals(mac)) {
-                                        BLEConnectListener listener = bleConnectListeners.get(address);
-                                        listener.onImageRefresh(true, (page & 0xff) + 1);
-                                        break;
-                                    }
-                                }
-                            } else {
-                                // notify clients
-                                for (String address : bleConnectListeners.keySet()) {
-                                    if (address.equals(mac)) {
-                                        BLEConnectListener listener = bleConnectListeners.get(address);
-                                        listener.onImageRefresh(false, (page & 0xff) + 1);
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                    } else {
-                        Log.e(TAG, "Unknown alarm value: " + data);
-                    }
-                }
-            }
+            // image identify, image block, image status and device event
+            bean.getGattTransport().onNotify(uuid, notify_data);
         }
 
         /**
@@ -734,48 +976,12 @@ public class BLEUtil {
             BLEDeviceBean bean = connectionQueue.get(mac);
             if (bean == null) return;
 
-            Map<String, BluetoothGattCharacteristic> characteristicMap = bean.getCharMap();
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (IMAGE_DESCRIPTOR_UUID.equalsIgnoreCase(descriptor.getUuid().toString())) {
-                    BluetoothGattCharacteristic gattCharacteristic = descriptor.getCharacteristic();
-                    if (IMAGE_ID_CHAR_UUID.equalsIgnoreCase(gattCharacteristic.getUuid().toString())) {
-                        Log.d(TAG, mac + " Enable Image Identify notify success");
-                        bean.addDescCounter(1);
-
-                        // Descriptor 2. Enable Image Block notify ......
-                        if (characteristicMap != null) {
-                            BluetoothGattCharacteristic gattCharacteristic1 = characteristicMap.get(IMAGE_BLOCK_CHAR_UUID);
-                            enableNotification(gatt, gattCharacteristic1, UUID.fromString(IMAGE_DESCRIPTOR_UUID), true);
-                        }
-                    } else if (IMAGE_BLOCK_CHAR_UUID.equalsIgnoreCase(gattCharacteristic.getUuid().toString())) {
-                        Log.d(TAG, mac + " Enable Image Block notify success");
-                        bean.addDescCounter(1);
-
-                        // Descriptor 3. Enable Image Status notify ......
-                        if (characteristicMap != null) {
-                            BluetoothGattCharacteristic gattCharacteristic1 = characteristicMap.get(IMAGE_STATUS_CHAR_UUID);
-                            enableNotification(gatt, gattCharacteristic1, UUID.fromString(IMAGE_DESCRIPTOR_UUID), true);
-                        }
-                    } else if (IMAGE_STATUS_CHAR_UUID.equalsIgnoreCase(gattCharacteristic.getUuid().toString())) {
-                        Log.d(TAG, mac + " Enable Image Status notify success");
-                        bean.addDescCounter(1);
-
-                        // Descriptor 4. Enable Device event notify ......
-                        if (characteristicMap != null) {
-                            BluetoothGattCharacteristic gattCharacteristic1 = characteristicMap.get(DEVICE_EVENT_CHAR_UUID);
-                            enableNotification(gatt, gattCharacteristic1, UUID.fromString(IMAGE_DESCRIPTOR_UUID), true);
-                        }
-                    } else if (DEVICE_EVENT_CHAR_UUID.equalsIgnoreCase(gattCharacteristic.getUuid().toString())) {
-                        Log.d(TAG, mac + " Enable Device event notify success");
-                        bean.addDescCounter(1);
-
-                        if (bean.getDescCounter() == 4) {
-                            // Step 4. Read Firmware
-                            readFirmware(gatt);
-                        }
-                    }
-                }
+            BluetoothGattCharacteristic gattCharacteristic = descriptor.getCharacteristic();
+            if (status == BluetoothGatt.GATT_SUCCESS && IMAGE_DESCRIPTOR_UUID.equalsIgnoreCase(descriptor.getUuid().toString())) {
+                if (Tracer.isLoggable(Tracer.DEBUG)) Tracer.trace(Tracer.DEBUG, Tracer.PHASE_HANDSHAKE, mac, "Enable notify success: " + gattCharacteristic.getUuid());
             }
+            // complete the queued descriptor write, the next descriptor follows in the queue
+            bean.getGattQueue().onCallback(GattOperation.TYPE_DESCRIPTOR, gattCharacteristic.getUuid().toString(), status, null);
         }
 
         /**
@@ -799,92 +1005,449 @@ public class BLEUtil {
         @Override
         public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
             super.onReadRemoteRssi(gatt, rssi, status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                deviceProfileStore.putRssi(gatt.getDevice().getAddress(), rssi);
+            }
         }
 
         /**
-         * MTU changed callback.
+         * PHY update callback.
          *
-         * @param gatt
-         * @param mtu
-         * @param status
+         * @param gatt      BluetoothGatt object
+         * @param txPhy     transmitter PHY in use
+         * @param rxPhy     receiver PHY in use
+         * @param status    if success, then return {@link BluetoothGatt#GATT_SUCCESS}
          */
         @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            super.onMtuChanged(gatt, mtu, status);
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            super.onPhyUpdate(gatt, txPhy, rxPhy, status);
             String mac = gatt.getDevice().getAddress();
-            Log.d(TAG, mac + " MTU Changed " + mtu);
-            // Step 3. start reading sequences
-            readStatusSequence(gatt);
+            if (Tracer.isLoggable(Tracer.DEBUG)) Tracer.trace(Tracer.DEBUG, Tracer.PHASE_LINK, mac, -1, status, txPhy, "PHY updated, rx " + rxPhy);
+            BLEDeviceBean bean = connectionQueue.get(mac);
+            if (bean == null || status != BluetoothGatt.GATT_SUCCESS) return;
+            bean.setPhy(txPhy, rxPhy);
+            updateTransferLink(bean);
         }
-    };
 
-    private void writeBlock(BLEDeviceBean bean, int block_number) {
-        ImageGenerator imageGenerator = bean.getImageGenerator();
-        byte[] notify_data = new byte[]{(byte) block_number, (byte) (block_number >> 8)};
-        byte[] data = Arrays.copyOfRange(imageGenerator.getImageData(), IMAGE_HEADER_LEN + block_number * imageGenerator.BLOCK_LEN,
-                IMAGE_HEADER_LEN + (block_number * imageGenerator.BLOCK_LEN + imageGenerator.BLOCK_LEN));
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            outputStream.write(notify_data, 0, notify_data.length);
-            outputStream.write(data, 0, data.length);
-            byte[] sendData = outputStream.toByteArray();
-            outputStream.flush();
-            outputStream.close();
-
-            Map<String, BluetoothGattCharacteristic> characteristicMap = bean.getCharMap();
-            BluetoothGattCharacteristic gattCharacteristic = characteristicMap.get(IMAGE_BLOCK_CHAR_UUID);
-            Boolean result = writeCharacteristic(bean.getBluetoothGatt(), gattCharacteristic, sendData);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                outputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        /**
+         * Connection parameters updated callback. This callback is hidden in the Android SDK, so
+         * it has no {@code @Override}, and it is called on Android 8.0 and later.
+         *
+         * @param gatt      BluetoothGatt object
+         * @param interval  connection interval in the unit of 1.25 ms
+         * @param latency   slave latency in the unit of connection events
+         * @param timeout   supervision timeout in the unit of 10 ms
+         * @param status    if success, then return {@link BluetoothGatt#GATT_SUCCESS}
+         */
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            String mac = gatt.getDevice().getAddress();
+            if (Tracer.isLoggable(Tracer.DEBUG)) Tracer.trace(Tracer.DEBUG, Tracer.PHASE_LINK, mac, -1, status, interval, "Connection updated, interval " + (interval * 1.25) + " ms, latency " + latency);
+            BLEDeviceBean bean = connectionQueue.get(mac);
+            if (bean == null || status != BluetoothGatt.GATT_SUCCESS) return;
+            bean.setConnectionInterval(interval);
+            updateTransferLink(bean);
+        }
+
+        /**
+         * MTU changed callback.
+         *
+         * @param gatt
+         * @param mtu
+         * @param status
+         */
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            super.onMtuChanged(gatt, mtu, status);
+            String mac = gatt.getDevice().getAddress();
+            Tracer.trace(Tracer.DEBUG, Tracer.PHASE_LINK, mac, -1, status, mtu, "MTU changed");
+            BLEDeviceBean bean = connectionQueue.get(mac);
+            if (bean == null) return;
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                bean.setMtu(mtu);
+                deviceProfileStore.putMtu(mac, mtu);
+            }
+            // Step 3. continue the handshake sequence in the queue
+            bean.getGattQueue().onCallback(GattOperation.TYPE_MTU, null, status, null);
+        }
+    };
+
+    // Link tuning --- START
+    // high priority (short connection interval) and 2M PHY for the block transfer
+    private void tuneLinkForTransfer(BLEDeviceBean bean) {
+        if (!isLinkTuning) return;
+        bean.getGattQueue().enqueue(priorityOperation(BluetoothGatt.CONNECTION_PRIORITY_HIGH, GattOperation.PRIORITY_NORMAL));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bluetoothAdapter.isLe2MPhySupported()) {
+            bean.getGattQueue().enqueue(phyOperation(BluetoothDevice.PHY_LE_2M_MASK));
         }
     }
 
-    // enable Image descriptors -> read firmware version -> read LED status
-    private void readStatusSequence(BluetoothGatt gatt) {
-        enableImageDescriptors(gatt);
+    // idle priority and 1M PHY after the block transfer
+    private void tuneLinkForIdle(BLEDeviceBean bean) {
+        if (!isLinkTuning) return;
+        bean.getGattQueue().enqueue(priorityOperation(idlePriority, GattOperation.PRIORITY_NORMAL));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bean.getTxPhy() != BluetoothDevice.PHY_LE_1M) {
+            bean.getGattQueue().enqueue(phyOperation(BluetoothDevice.PHY_LE_1M_MASK));
+        }
     }
 
-    // Enable image descriptors
-    private boolean enableImageDescriptors(BluetoothGatt gatt) {
-        boolean result = false;
-        // Descriptor 1. Enable Image Identify notify ......
-        String mac = gatt.getDevice().getAddress();
-        BLEDeviceBean bean = connectionQueue.get(mac);
-        if (bean == null) return result;
+    // record the achieved link in the running transfer
+    private void updateTransferLink(BLEDeviceBean bean) {
+        ImageTransferEngine engine = bean.getTransferEngine();
+        if (engine.isRunning() && engine.getTransferStats() != null) {
+            engine.getTransferStats().setLink(bean.getConnectionInterval(), bean.getTxPhy(), bean.getRxPhy());
+        }
+    }
+    // Link tuning --- END
+
+    // Image transfer --- START
+    // client notifications, link tuning and device profiles of the image transfer engine
+    private ImageTransferEngine.Listener createTransferListener(final BLEDeviceBean bean) {
+        final String mac = bean.getAddress();
+        return new ImageTransferEngine.Listener() {
+            @Override
+            public void onBlockRequested(int blockNumber, int totalBlockNumber) {
+                // the events of each block, removed from a build with a higher compiled level
+                if (Tracer.COMPILED_LEVEL <= Tracer.VERBOSE) {
+                    Tracer.trace(Tracer.VERBOSE, Tracer.PHASE_TRANSFER, mac, blockNumber + 1, -1, totalBlockNumber, "Writing image blocks");
+                }
+                int progress_percent = Math.round(((float) (blockNumber + 1) / (float) totalBlockNumber) * 100f);
+                bean.setProgress_percent(progress_percent);
+                // notify clients
+                connectEventBus.onProgress(mac, progress_percent, PROGRESS_MESSAGE, ProgressDelivery.RAW);
+                progressCoalescer.onProgress(mac, progress_percent);
+            }
 
-        Map<String, BluetoothGattCharacteristic> characteristicMap = bean.getCharMap();
-        if (characteristicMap != null) {
-            BluetoothGattCharacteristic gattCharacteristic = characteristicMap.get(IMAGE_ID_CHAR_UUID);
-            if (gattCharacteristic != null) {
-                result = enableNotification(gatt, gattCharacteristic, UUID.fromString(IMAGE_DESCRIPTOR_UUID), true);
+            @Override
+            public void onTransferStarted(TransferStats stats, int blockNumber) {
+                if (blockNumber > 0) Tracer.trace(Tracer.DEBUG, Tracer.PHASE_TRANSFER, mac, blockNumber, -1, -1, "Resume image blocks");
+                if (!bean.isFirstBlockMeasured()) {
+                    bean.setFirstBlockMeasured(true);
+                    long timeToFirstBlock = System.currentTimeMillis() - bean.getConnectTime();
+                    bean.getHandshakeProfile().onFirstBlock(timeToFirstBlock);
+                    if (Tracer.isLoggable(Tracer.DEBUG)) Tracer.trace(Tracer.DEBUG, Tracer.PHASE_TRANSFER, mac, -1, -1, timeToFirstBlock, "First block, " + bean.getHandshakeProfile().getName());
+                }
+                stats.setLink(bean.getConnectionInterval(), bean.getTxPhy(), bean.getRxPhy());
             }
-        }
-        return result;
+
+            @Override
+            public void onTransferStalled(int blockNumber, boolean isGivenUp) {
+                if (isGivenUp) {
+                    Tracer.trace(Tracer.ERROR, Tracer.PHASE_TRANSFER, mac, blockNumber, -1, -1, "Block transfer stalled, wait for the task timeout");
+                } else {
+                    Tracer.trace(Tracer.WARN, Tracer.PHASE_TRANSFER, mac, blockNumber, -1, -1, "Block transfer stalled, rewind");
+                }
+            }
+
+            @Override
+            public void onTransferFinished(int status) {
+                // stop task timeout timer
+                bean.removeTaskTimeoutChecker();
+                tuneLinkForIdle(bean);
+                boolean result = (status == EpdProtocol.STATUS_SUCCESS);
+                progressCoalescer.onFinished(mac, result);
+                String message = EpdProtocol.getStatusMessage(status);
+                if (status == EpdProtocol.STATUS_IDENTIFY_REJECTED || status == EpdProtocol.STATUS_IDENTIFY_NOT_SENT) {
+                    Tracer.trace(Tracer.ERROR, Tracer.PHASE_TRANSFER, mac, -1, status, -1, "Send image identify error");
+                } else {
+                    bean.setEnd_send_image_time(new Date().getTime());
+                    long time = bean.getEnd_send_image_time() - bean.getStart_send_image_time();
+                    Tracer.trace(Tracer.INFO, Tracer.PHASE_TRANSFER, mac, -1, status, time, "Send image done");
+                    TransferStats stats = bean.getTransferEngine().getTransferStats();
+                    if (stats != null) {
+                        if (Tracer.isLoggable(Tracer.DEBUG)) Tracer.trace(Tracer.DEBUG, Tracer.PHASE_TRANSFER, mac, stats.toString());
+                        concurrencyController.onBytesTransferred(stats.getWrittenBytes());
+                    }
+                    if (result) {
+                        if (stats != null) deviceProfileStore.putTransferRate(mac, stats.getThroughput());
+                        FrameSource frameSource = bean.getTransferEngine().getFrameSource();
+                        // the device runs a new firmware after the upgrade
+                        if (FrameCodec.readImageType(frameSource.getHeader()) == FrameCodec.IMAGE_TYPE_FIRMWARE) {
+                            deviceProfileStore.invalidateFirmwareVersion(mac);
+                        } else {
+                            deviceProfileStore.putPush(mac, frameSource.getContentHash());
+                        }
+                        message = "Success! Take " + Math.round((double) time / (double) 1000 * 100.0) / 100.0 + " s";
+                    }
+                }
+                // notify clients
+                int progress_percent = bean.getProgress_percent();
+                BLEConnectListener listener = connectEventBus.get(mac);
+                if (listener != null) {
+                    if (result) {
+                        listener.onImageWrite(BLEImageWriteStatus.FINISH, progress_percent, message);
+                    } else {
+                        listener.onImageWrite(BLEImageWriteStatus.ERROR, progress_percent, message);
+                    }
+                }
+            }
+
+            @Override
+            public void onAlarmDetected(boolean isWarning) {
+                // notify clients
+                BLEConnectListener listener = connectEventBus.get(mac);
+                if (listener != null) listener.onAlarmDetected(isWarning);
+            }
+
+            @Override
+            public void onImageRefresh(boolean isSuccess, int page) {
+                Tracer.trace(isSuccess ? Tracer.DEBUG : Tracer.WARN, Tracer.PHASE_TRANSFER, mac, -1, -1, page, "EPD refresh");
+                // notify clients
+                BLEConnectListener listener = connectEventBus.get(mac);
+                if (listener != null) listener.onImageRefresh(isSuccess, page);
+            }
+        };
     }
+    // the coalesced progress of the devices, and the fleet summaries
+    private ProgressCoalescer createProgressCoalescer(EpdScheduler scheduler) {
+        ProgressCoalescer coalescer = new ProgressCoalescer(scheduler);
+        coalescer.setRate(progressRate, progressStep);
+        coalescer.setFleetInterval(fleetProgressInterval);
+        coalescer.setListener(new ProgressCoalescer.Listener() {
+            @Override
+            public void onProgress(String mac, int progress) {
+                connectEventBus.onProgress(mac, progress, PROGRESS_MESSAGE, ProgressDelivery.COALESCED);
+            }
 
-    // Read Firmware Version
-    private boolean readFirmware(BluetoothGatt gatt) {
-        boolean result = false;
-        String mac = gatt.getDevice().getAddress();
-        BLEDeviceBean bean = connectionQueue.get(mac);
-        if (bean == null) return result;
+            @Override
+            public void onFleetProgress(FleetProgress progress) {
+                connectEventBus.onFleetProgress(progress);
+            }
+        });
+        return coalescer;
+    }
+
+    /**
+     * Set the rate of the coalesced progress of each device. The listeners which choose
+     * {@code ProgressDelivery.COALESCED} receive at most {@code maxRate} progress updates per
+     * second, and only when the progress changes by {@code minStep} percent.
+     * @see BLEUtil#addConnectListener(String, BLEConnectListener, Executor, ProgressDelivery)
+     *
+     * @param maxRate   updates per second, default: {@link ProgressCoalescer#DEFAULT_MAX_RATE};
+     *                  {@code 0} no limit
+     * @param minStep   percent, default: {@link ProgressCoalescer#DEFAULT_MIN_STEP}
+     */
+    public void setProgressRate(int maxRate, int minStep) {
+        progressRate = maxRate;
+        progressStep = minStep;
+        if (progressCoalescer != null) progressCoalescer.setRate(maxRate, minStep);
+    }
 
-        Map<String, BluetoothGattCharacteristic> characteristicMap = bean.getCharMap();
-        if (characteristicMap != null) {
-            BluetoothGattCharacteristic gattCharacteristic = characteristicMap.get(FIRMWARE_CHAR_UUID);
-            if (gattCharacteristic != null) {
-                result = gatt.readCharacteristic(gattCharacteristic);
+    /**
+     * Set the tick of the fleet progress. While image transfers are running, the fleet listeners
+     * receive the summary of all transfers on each tick.
+     * @see BLEFleetListener#onFleetProgress(FleetProgress)
+     *
+     * @param interval  the tick in milliseconds, default: {@link ProgressCoalescer#DEFAULT_FLEET_INTERVAL};
+     *                  {@code 0} no fleet progress
+     */
+    public void setFleetProgressInterval(long interval) {
+        fleetProgressInterval = interval;
+        if (progressCoalescer != null) progressCoalescer.setFleetInterval(interval);
+    }
+
+    /**
+     * Get the summary of the running image transfers, e.g. the average progress.
+     *
+     * @return  the summary, or {@code null} if BLEUtil is not initialized
+     */
+    public FleetProgress getFleetProgress() {
+        return (progressCoalescer != null) ? progressCoalescer.getFleetProgress() : null;
+    }
+    // Image transfer --- END
+
+    // GATT operations --- START
+    // MTU -> image descriptors -> firmware version -> LED status, one by one in the GATT queue
+    // A reused idle connection keeps its MTU and the enabled notifications
+    private void startHandshake(final BLEDeviceBean bean) {
+        HandshakeProfile profile = bean.getHandshakeProfile();
+        GattQueue gattQueue = bean.getGattQueue();
+        if (!bean.isReady()) {
+            // the priority request has no GATT callback, so it does not delay the MTU exchange
+            if (profile.isFastLink() && isLinkTuning) {
+                gattQueue.enqueue(priorityOperation(BluetoothGatt.CONNECTION_PRIORITY_HIGH, GattOperation.PRIORITY_NORMAL));
             }
+            gattQueue.enqueue(mtuOperation(requestedMtu));
         }
-        return result;
+        String[] notifyUuids = {IMAGE_ID_CHAR_UUID, IMAGE_BLOCK_CHAR_UUID, IMAGE_STATUS_CHAR_UUID, DEVICE_EVENT_CHAR_UUID};
+        int[] notifyFlags = {HandshakeProfile.NOTIFY_IMAGE_IDENTIFY, HandshakeProfile.NOTIFY_IMAGE_BLOCK, HandshakeProfile.NOTIFY_IMAGE_STATUS, HandshakeProfile.NOTIFY_DEVICE_EVENT};
+        for (int i = 0; i < notifyUuids.length; i++) {
+            if ((profile.getNotifications() & notifyFlags[i]) == 0) continue;
+            if ((bean.getEnabledNotifications() & notifyFlags[i]) != 0) continue;
+            enqueueHandshake(bean, GattOperation.descriptor(bean, notifyUuids[i], GattOperation.PRIORITY_NORMAL, HANDSHAKE_TAG));
+            bean.setEnabledNotifications(bean.getEnabledNotifications() | notifyFlags[i]);
+        }
+        // skip the reads whose cached values are fresh
+        long now = System.currentTimeMillis();
+        DeviceProfile cached = deviceProfileStore.get(bean.getAddress());
+        final boolean isFirmwareRead = profile.isFirmwareNeeded() && (cached == null || cached.getFirmwareVersion() == null || !profile.isFresh(cached.getFirmwareTime(), now));
+        final boolean isLEDRead = profile.isLEDNeeded() && (cached == null || cached.getLedState() == null || !profile.isFresh(cached.getLedTime(), now));
+        if (isFirmwareRead) {
+            gattQueue.enqueue(GattOperation.read(bean, FIRMWARE_CHAR_UUID, GattOperation.PRIORITY_NORMAL, HANDSHAKE_TAG));
+        }
+        if (isLEDRead) {
+            gattQueue.enqueue(GattOperation.read(bean, LED_CHAR_UUID, GattOperation.PRIORITY_NORMAL, HANDSHAKE_TAG));
+        }
+        gattQueue.enqueue(new GattOperation(GattOperation.TYPE_IMMEDIATE, null, GattOperation.PRIORITY_NORMAL, HANDSHAKE_TAG) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                onHandshakeDone(bean, isFirmwareRead, isLEDRead);
+                return true;
+            }
+        });
+    }
+
+    // Step 6. Handshake done! Report the skipped reads from the cache
+    private void onHandshakeDone(BLEDeviceBean bean, boolean isFirmwareRead, boolean isLEDRead) {
+        String mac = bean.getAddress();
+        DeviceProfile cached = deviceProfileStore.get(mac);
+        // remove connection timeout timer
+        bean.removeConnTimeoutChecker();
+        bean.setReady(true);
+        long timeToReady = System.currentTimeMillis() - bean.getConnectTime();
+        bean.getHandshakeProfile().onHandshakeDone(timeToReady);
+        if (Tracer.isLoggable(Tracer.DEBUG)) Tracer.trace(Tracer.DEBUG, Tracer.PHASE_HANDSHAKE, mac, -1, -1, timeToReady, "Handshake done, " + bean.getHandshakeProfile().getName());
+
+        if (!isFirmwareRead && cached != null && cached.getFirmwareVersion() != null) {
+            bean.setFirmwareVersion(cached.getFirmwareVersion().trim());
+            byte[] read = cached.getFirmwareVersion().getBytes(StandardCharsets.UTF_8);
+            // notify clients
+            BLEConnectListener listener = connectEventBus.get(mac);
+            if (listener != null) listener.onFirmwareRead(BluetoothGatt.GATT_SUCCESS, read);
+        }
+        if (!isLEDRead && cached != null && cached.getLedState() != null) {
+            // notify clients
+            BLEConnectListener listener = connectEventBus.get(mac);
+            if (listener != null) listener.onLEDRead(BluetoothGatt.GATT_SUCCESS, cached.getLedState());
+        }
+        // notify clients
+        BLEConnectListener listener = connectEventBus.get(mac);
+        if (listener != null) listener.onDeviceReady();
+        // idle or monitoring connection, unless a task has been started by clients
+        if (!bean.isImageWriting()) tuneLinkForIdle(bean);
+    }
+
+    // a failed handshake step cancels the rest, and the connection timeout notifies clients
+    private void enqueueHandshake(final BLEDeviceBean bean, final GattOperation operation) {
+        bean.getGattQueue().enqueue(operation).setListener(new GattFuture.Listener() {
+            @Override
+            public void onComplete(int status, byte[] value) {
+                if (status == BluetoothGatt.GATT_SUCCESS || status == GattFuture.STATUS_CANCELLED) return;
+                if (Tracer.isLoggable(Tracer.ERROR)) Tracer.trace(Tracer.ERROR, Tracer.PHASE_HANDSHAKE, bean.getAddress(), -1, status, -1, operation.toString());
+                bean.getGattQueue().cancel(HANDSHAKE_TAG);
+            }
+        });
+    }
+
+    private GattOperation mtuOperation(final int mtu) {
+        return new GattOperation(GattOperation.TYPE_MTU, null, GattOperation.PRIORITY_NORMAL, HANDSHAKE_TAG) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.requestMtu(mtu);
+            }
+        };
+    }
+
+    private GattOperation priorityOperation(final int connectionPriority, int priority) {
+        return new GattOperation(GattOperation.TYPE_IMMEDIATE, null, priority, null) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return gatt.requestConnectionPriority(connectionPriority);
+            }
+        };
+    }
+
+    // onPhyUpdate is not called if the PHY does not change, so the request completes immediately
+    private GattOperation phyOperation(final int phyMask) {
+        return new GattOperation(GattOperation.TYPE_IMMEDIATE, null, GattOperation.PRIORITY_NORMAL, null) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return false;
+                gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                return true;
+            }
+        };
+    }
+
+    // queue a control command if the characteristic exists
+    private boolean enqueueControl(BLEDeviceBean bean, GattOperation operation) {
+        if (bean == null || operation.uuid != null && bean.getCharMap().get(operation.uuid) == null) return false;
+        bean.getGattQueue().enqueue(operation);
+        return true;
     }
 
+    /**
+     * Get the metrics of the GATT operation queue of a device, e.g. the queue depth and the number
+     * of timeouts. All reads, writes, descriptor writes, MTU and connection priority requests are
+     * serialized in this queue, and they pre-empt the block transfer between blocks.
+     *
+     * @param mac       device mac address
+     * @return          the metrics snapshot, or {@code null} if the device has not been connected
+     */
+    public GattQueueStats getGattQueueStats(String mac) {
+        BLEDeviceBean bean = connectionQueue.get(mac);
+        if (bean == null) return null;
+        return bean.getGattQueue().getStats();
+    }
+    // GATT operations --- END
+
+    // Device profiles --- START
+    /**
+     * Get the cached profile of a device, e.g. the firmware version, LED status, panel-type,
+     * signal strength and the fingerprint of the last pushed frame. Profiles are persisted, so they
+     * are available before any connection after the application restarts.
+     *
+     * @param mac       device mac address
+     * @return          a copy of the cached profile, or {@code null} if the device is unknown
+     */
+    public DeviceProfile getDeviceProfile(String mac) {
+        return deviceProfileStore.get(mac);
+    }
+
+    /**
+     * Get the cached profiles of all known devices.
+     *
+     * @return          copies of the cached profiles
+     */
+    public List<DeviceProfile> getDeviceProfiles() {
+        return deviceProfileStore.getAll();
+    }
+
+    /**
+     * Remove the cached profile of a device, e.g. after the device is replaced. The next handshake
+     * reads the firmware version and LED status again.
+     *
+     * @param mac       device mac address
+     */
+    public void removeDeviceProfile(String mac) {
+        deviceProfileStore.remove(mac);
+    }
+
+    /**
+     * Set the time to live of the cached profiles. Profiles which are not updated within this time
+     * are removed.
+     *
+     * @param ttl       time to live in milliseconds; the default is 30 days
+     */
+    public void setDeviceProfileTTL(long ttl) {
+        deviceProfileStore.setTTL(ttl);
+    }
+
+    /**
+     * Check whether a frame is the last one which was pushed to a device successfully, e.g. to skip
+     * the connection for a frame which the device already shows.
+     *
+     * @param mac           device mac address
+     * @param frameSource   the frame
+     * @return              {@code true} the content hash of the frame matches the last push;
+     *                      {@code false} otherwise
+     */
+    public boolean isLastPushed(String mac, FrameSource frameSource) {
+        DeviceProfile profile = deviceProfileStore.get(mac);
+        if (profile == null || profile.getLastPushHash() == null || frameSource == null) return false;
+        return profile.getLastPushHash().equals(byteArrayToHexStr(frameSource.getContentHash()));
+    }
+    // Device profiles --- END
+
     /**
      * Read firmware version for a device.
      * Firmware read result returns in the connection listener.
@@ -895,36 +1458,9 @@ public class BLEUtil {
      *                  {@code false} device has not been connected or read characteristic failure
      */
     public boolean readFirmware(String mac) {
-        boolean result = false;
-        BLEDeviceBean bean = connectionQueue.get(mac);
-        if (bean == null) return result;
-
-        BluetoothGatt gatt = bean.getBluetoothGatt();
-        Map<String, BluetoothGattCharacteristic> characteristicMap = bean.getCharMap();
-        if (characteristicMap != null) {
-            BluetoothGattCharacteristic gattCharacteristic = characteristicMap.get(FIRMWARE_CHAR_UUID);
-            if (gattCharacteristic != null) {
-                result = gatt.readCharacteristic(gattCharacteristic);
-            }
-        }
-        return result;
-    }
-
-    // Read LED Status
-    private boolean readLEDStatus(BluetoothGatt gatt) {
-        boolean result = false;
-        String mac = gatt.getDevice().getAddress();
         BLEDeviceBean bean = connectionQueue.get(mac);
-        if (bean == null) return result;
-
-        Map<String, BluetoothGattCharacteristic> characteristicMap = bean.getCharMap();
-        if (characteristicMap != null) {
-            BluetoothGattCharacteristic gattCharacteristic = characteristicMap.get(LED_CHAR_UUID);
-            if (gattCharacteristic != null) {
-                result = gatt.readCharacteristic(gattCharacteristic);
-            }
-        }
-        return result;
+        if (bean == null) return false;
+        return enqueueControl(bean, GattOperation.read(bean, FIRMWARE_CHAR_UUID, GattOperation.PRIORITY_CONTROL, null));
     }
 
     /**
@@ -937,19 +1473,9 @@ public class BLEUtil {
      *                  {@code false} device has not been connected or read characteristic failure
      */
     public boolean readLEDStatus(String mac) {
-        boolean result = false;
         BLEDeviceBean bean = connectionQueue.get(mac);
-        if (bean == null) return result;
-
-        BluetoothGatt gatt = bean.getBluetoothGatt();
-        Map<String, BluetoothGattCharacteristic> characteristicMap = bean.getCharMap();
-        if (characteristicMap != null) {
-            BluetoothGattCharacteristic gattCharacteristic = characteristicMap.get(LED_CHAR_UUID);
-            if (gattCharacteristic != null) {
-                result = gatt.readCharacteristic(gattCharacteristic);
-            }
-        }
-        return result;
+        if (bean == null) return false;
+        return enqueueControl(bean, GattOperation.read(bean, LED_CHAR_UUID, GattOperation.PRIORITY_CONTROL, null));
     }
 
     /**
@@ -967,7 +1493,7 @@ public class BLEUtil {
     public boolean changeConnectionPriority(String mac, int priority) {
         BLEDeviceBean bean = connectionQueue.get(mac);
         if (bean == null) return false;
-        return bean.getBluetoothGatt().requestConnectionPriority(priority);
+        return enqueueControl(bean, priorityOperation(priority, GattOperation.PRIORITY_CONTROL));
     }
 
     /**
@@ -995,7 +1521,7 @@ public class BLEUtil {
             int led3_bit = (led3) ? 0b11 : 0b10;
             int led = led3_bit << 4 | led2_bit << 2 | led1_bit;
             byte[] data = new byte[]{(byte) (led & 0xff)};
-            result = writeCharacteristic(bean.getBluetoothGatt(), gattCharacteristic, data);
+            result = enqueueControl(bean, GattOperation.write(bean, LED_CHAR_UUID, data, GattOperation.PRIORITY_CONTROL));
         }
         return result;
     }
@@ -1019,9 +1545,9 @@ public class BLEUtil {
         BluetoothGattCharacteristic gattCharacteristic = charMap.get(LED_CHAR_UUID);
         if (gattCharacteristic != null) {
             if (open)
-                result = writeCharacteristic(bean.getBluetoothGatt(), gattCharacteristic, new byte[]{0x03});
+                result = enqueueControl(bean, GattOperation.write(bean, LED_CHAR_UUID, new byte[]{0x03}, GattOperation.PRIORITY_CONTROL));
             else
-                result = writeCharacteristic(bean.getBluetoothGatt(), gattCharacteristic, new byte[]{0x02});
+                result = enqueueControl(bean, GattOperation.write(bean, LED_CHAR_UUID, new byte[]{0x02}, GattOperation.PRIORITY_CONTROL));
         }
         return result;
     }
@@ -1045,10 +1571,10 @@ public class BLEUtil {
         BluetoothGattCharacteristic gattCharacteristic = charMap.get(LED_CHAR_UUID);
         if (gattCharacteristic != null) {
             if (open)
-                result = writeCharacteristic(bean.getBluetoothGatt(), gattCharacteristic, new byte[]{0x0c});
+                result = enqueueControl(bean, GattOperation.write(bean, LED_CHAR_UUID, new byte[]{0x0c}, GattOperation.PRIORITY_CONTROL));
 
             else
-                result = writeCharacteristic(bean.getBluetoothGatt(), gattCharacteristic, new byte[]{0x08});
+                result = enqueueControl(bean, GattOperation.write(bean, LED_CHAR_UUID, new byte[]{0x08}, GattOperation.PRIORITY_CONTROL));
         }
         return result;
     }
@@ -1072,9 +1598,9 @@ public class BLEUtil {
         BluetoothGattCharacteristic gattCharacteristic = charMap.get(LED_CHAR_UUID);
         if (gattCharacteristic != null) {
             if (open)
-                result = writeCharacteristic(bean.getBluetoothGatt(), gattCharacteristic, new byte[]{0x30});
+                result = enqueueControl(bean, GattOperation.write(bean, LED_CHAR_UUID, new byte[]{0x30}, GattOperation.PRIORITY_CONTROL));
             else
-                result = writeCharacteristic(bean.getBluetoothGatt(), gattCharacteristic, new byte[]{0x20});
+                result = enqueueControl(bean, GattOperation.write(bean, LED_CHAR_UUID, new byte[]{0x20}, GattOperation.PRIORITY_CONTROL));
         }
         return result;
     }
@@ -1091,40 +1617,79 @@ public class BLEUtil {
      *                      {@code false} device is not connected or an existing task is still running
      */
     public boolean pushImage(String mac, PanelType panelType, Bitmap bitmap, int image_page, int image_action) {
-        boolean result = false;
-        BLEDeviceBean bean = connectionQueue.get(mac);
-        if (bean == null) return result;
-
         ImageGenerator imageGenerator = new ImageGenerator(TaskType.PUSH_IMAGE, panelType, bitmap, image_page, image_action);
-        if (!bean.isImageWriting() && imageGenerator.isValid()) {
-            bean.setDescCounter(0);
-            bean.setProgress_percent(0);
-            bean.setImageGenerator(imageGenerator);
+        return executeImageTask(mac, imageGenerator);
+    }
 
-            result = bean.startTaskTimeoutChecker();
-            if (result) {
-                // notify clients
-                for (String address : bleConnectListeners.keySet()) {
-                    if (address.equals(mac)) {
-                        BLEConnectListener listener = bleConnectListeners.get(address);
-                        listener.onImageWrite(BLEImageWriteStatus.START, 0, "Start sending command");
-                        break;
-                    }
-                }
+    /**
+     * Push an indexed-color image to the EPD device. Images which are already authored in the
+     * panel palette skip the color quantization for each pixel.
+     * @see com.advantech.bleeplib.image.IndexedImageReader
+     *
+     * @param mac           device mac address
+     * @param panelType     EPD panel-type {@see PanelType}
+     * @param image         image in the indexed-color format; the image size must fit the panel-type {@see PanelType}
+     * @param image_page    which page {@code number} you want to transmit image on the EPD device; this number must be larger than 0
+     * @param image_action  refresh this image immediately {@code 1} or not {@code 0}
+     * @return              {@code true} send this command successfully;
+     *                      {@code false} device is not connected or an existing task is still running
+     */
+    public boolean pushImage(String mac, PanelType panelType, IndexedImage image, int image_page, int image_action) {
+        ImageGenerator imageGenerator = new ImageGenerator(TaskType.PUSH_IMAGE, panelType, image, image_page, image_action);
+        return executeImageTask(mac, imageGenerator);
+    }
 
-                // start push image and count the timer
-                bean.setStart_send_image_time(new Date().getTime());
-                // 1. Send Image Identify Characteristic
-                result = imageGenerator.executeTask();
-                if (result) {
-                    Map<String, BluetoothGattCharacteristic> characteristicMap = bean.getCharMap();
-                    BluetoothGattCharacteristic gattCharacteristic1 = characteristicMap.get(IMAGE_ID_CHAR_UUID);
-                    result = writeCharacteristic(bean.getBluetoothGatt(), gattCharacteristic1, Arrays.copyOfRange(imageGenerator.getImageData(), 0, imageGenerator.IMAGE_HEADER_LEN));
-                    Log.d(TAG, "Send result: " + result);
-                }
-            }
-        }
-        return result;
+    /**
+     * Push pre-packed EPD plane data to the EPD device. The plane data is only framed with the
+     * image header and CRC value, and no image work is done on the Android device.
+     * @see ImageGenerator#getPlaneLength(PanelType)
+     *
+     * @param mac           device mac address
+     * @param panelType     EPD panel-type {@see PanelType}
+     * @param planeData     packed plane data; the length must fit the panel-type {@see PanelType}
+     * @param image_page    which page {@code number} you want to transmit image on the EPD device; this number must be larger than 0
+     * @param image_action  refresh this image immediately {@code 1} or not {@code 0}
+     * @return              {@code true} send this command successfully;
+     *                      {@code false} device is not connected, an existing task is still running
+     *                      or the plane data length is not valid
+     */
+    public boolean pushImage(String mac, PanelType panelType, byte[] planeData, int image_page, int image_action) {
+        ImageGenerator imageGenerator = new ImageGenerator(TaskType.PUSH_IMAGE, panelType, planeData, image_page, image_action);
+        return executeImageTask(mac, imageGenerator);
+    }
+
+    /**
+     * Push a fully framed payload (CRC, image header and plane data) to the EPD device. The
+     * length and CRC value of the payload are verified before the block transfer.
+     * @see ImageGenerator#isValidFrame(PanelType, byte[])
+     *
+     * @param mac           device mac address
+     * @param panelType     EPD panel-type {@see PanelType}
+     * @param frameData     framed payload, with or without the padding data
+     * @return              {@code true} send this command successfully;
+     *                      {@code false} device is not connected, an existing task is still running
+     *                      or the payload is not valid
+     */
+    public boolean pushImage(String mac, PanelType panelType, byte[] frameData) {
+        ImageGenerator imageGenerator = new ImageGenerator(TaskType.PUSH_IMAGE, panelType, frameData);
+        return executeImageTask(mac, imageGenerator);
+    }
+
+    /**
+     * Push a pre-encoded frame to the EPD device, e.g. a frame file which is encoded on servers and
+     * staged on the flash of the Android device. No image work is done on the Android device, and
+     * the block packets of a memory-mapped frame file are served without copying the whole frame
+     * into the Java heap.
+     * @see com.advantech.bleeplib.frame.FrameFile#open(java.io.File)
+     *
+     * @param mac           device mac address
+     * @param frameSource   the pre-encoded frame
+     * @return              {@code true} send this command successfully;
+     *                      {@code false} device is not connected, an existing task is still running
+     *                      or the frame is empty
+     */
+    public boolean pushFrame(String mac, FrameSource frameSource) {
+        return executeImageTask(mac, frameSource);
     }
 
     /**
@@ -1136,67 +1701,214 @@ public class BLEUtil {
      *                      {@code false} device is not connected or an existing task is still running
      */
     public boolean firmwareUpgrade(String mac, byte[] packageData) {
+        ImageGenerator imageGenerator = new ImageGenerator(TaskType.FIRMWARE_UPGRADE, packageData);
+        return executeImageTask(mac, imageGenerator);
+    }
+
+    // Generate the image / package data and send the image identify characteristic
+    private boolean executeImageTask(String mac, FrameSource frameSource) {
         boolean result = false;
         BLEDeviceBean bean = connectionQueue.get(mac);
         if (bean == null) return result;
 
-        ImageGenerator imageGenerator = new ImageGenerator(TaskType.FIRMWARE_UPGRADE, packageData);
-        if (!bean.isImageWriting() && imageGenerator.isValid()) {
-            bean.setDescCounter(0);
+        // select the block length for this connection
+        int blockLen = getBlockLength(mac);
+        if (blockLen <= 0) {
+            Tracer.trace(Tracer.ERROR, Tracer.PHASE_TRANSFER, mac, -1, -1, bean.getMtu(), "No supported block length for the MTU");
+            return result;
+        }
+        if (frameSource instanceof ImageGenerator) {
+            ((ImageGenerator) frameSource).setBlockLength(blockLen);
+        } else if (frameSource != null && frameSource.getBlockLength() != blockLen) {
+            Tracer.trace(Tracer.ERROR, Tracer.PHASE_TRANSFER, mac, -1, -1, frameSource.getBlockLength(), "Frame block length does not match");
+            return result;
+        }
+
+        if (!bean.isImageWriting() && isValidFrameSource(frameSource)) {
             bean.setProgress_percent(0);
-            bean.setImageGenerator(imageGenerator);
 
             result = bean.startTaskTimeoutChecker();
             if (result) {
                 // notify clients
-                for (String address : bleConnectListeners.keySet()) {
-                    if (address.equals(mac)) {
-                        BLEConnectListener listener = bleConnectListeners.get(address);
-                        listener.onImageWrite(BLEImageWriteStatus.START, 0, "Start sending command");
-                        break;
-                    }
-                }
+                BLEConnectListener listener = connectEventBus.get(mac);
+                if (listener != null) listener.onImageWrite(BLEImageWriteStatus.START, 0, "Start sending command");
 
-                // 開始推圖並計時
+                // shorten the connection interval for the block transfer
+                tuneLinkForTransfer(bean);
+                // start push image and count the timer
                 bean.setStart_send_image_time(new Date().getTime());
-                // 1. Send Image Identify Characteristic
-                result = imageGenerator.executeTask();
-                if (result) {
-                    Map<String, BluetoothGattCharacteristic> characteristicMap = bean.getCharMap();
-                    BluetoothGattCharacteristic gattCharacteristic1 = characteristicMap.get(IMAGE_ID_CHAR_UUID);
-                    result = writeCharacteristic(bean.getBluetoothGatt(), gattCharacteristic1, Arrays.copyOfRange(imageGenerator.getImageData(), 0, imageGenerator.IMAGE_HEADER_LEN));
-                    Log.d(TAG, "Send result: " + result);
+                if (frameSource instanceof ImageGenerator) {
+                    // generate the frame on the worker thread, not on the calling thread
+                    final BLEDeviceBean imageBean = bean;
+                    final ImageGenerator imageGenerator = (ImageGenerator) frameSource;
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            startImageTransfer(imageBean, imageGenerator);
+                        }
+                    });
+                } else {
+                    result = startTransfer(bean, frameSource);
                 }
             }
         }
         return result;
     }
 
-    private boolean writeCharacteristic(BluetoothGatt gatt, BluetoothGattCharacteristic gattCharacteristic, byte[] data) {
-        boolean result = false;
-        if (gattCharacteristic != null) {
-            gattCharacteristic.setValue(data);
-            gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-            result = gatt.writeCharacteristic(gattCharacteristic);
-        }
+    // 1. Send Image Identify Characteristic, queued after the link tuning requests
+    private boolean startTransfer(BLEDeviceBean bean, FrameSource frameSource) {
+        ImageTransferEngine engine = bean.getTransferEngine();
+        engine.setWindow(transferWindow);
+        engine.setStallTime(stallTime);
+        boolean result = engine.start(frameSource);
+        Tracer.trace(result ? Tracer.DEBUG : Tracer.ERROR, Tracer.PHASE_TRANSFER, bean.getAddress(), "Send image started");
         return result;
     }
 
-    private boolean enableNotification(BluetoothGatt gatt, BluetoothGattCharacteristic gattCharacteristic, UUID descripterUUID, boolean enable) {
-        boolean result = false;
-        if (gattCharacteristic != null) {
-            // Enable Local Notification
-            gatt.setCharacteristicNotification(gattCharacteristic, enable);
+    // generate the frame, and then start the transfer if the task is still running
+    private void startImageTransfer(BLEDeviceBean bean, ImageGenerator imageGenerator) {
+        boolean result = imageGenerator.executeTask();
+        String mac = bean.getAddress();
+        // the task is stopped, e.g. disconnected while generating
+        if (connectionQueue.get(mac) != bean || !bean.isImageWriting()) return;
+        if (result) result = startTransfer(bean, imageGenerator);
+        if (result) return;
+        // restore the idle link
+        bean.removeTaskTimeoutChecker();
+        tuneLinkForIdle(bean);
+        // notify clients
+        BLEConnectListener listener = connectEventBus.get(mac);
+        if (listener != null) listener.onImageWrite(BLEImageWriteStatus.ERROR, 0, "Image not valid");
+    }
 
-            // Enable Remote Notification
-            BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(descripterUUID);
-            if (enable)
-                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-            else
-                descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-            result = gatt.writeDescriptor(descriptor);
-        }
-        return result;
+    private boolean isValidFrameSource(FrameSource frameSource) {
+        if (frameSource instanceof ImageGenerator) return ((ImageGenerator) frameSource).isValid();
+        return frameSource != null && frameSource.getTotalBlockNumber() > 0;
+    }
+
+    /**
+     * Set the MTU which is requested after the service discovery. The negotiated MTU is the smaller
+     * one of the requested MTU and the MTU the device supports, and it limits the block length.
+     * The MTU applies to the next connection.
+     *
+     * @param mtu   the requested MTU, from 23 to 517; the default is 251
+     */
+    public void setRequestedMtu(int mtu) {
+        requestedMtu = Math.max(23, Math.min(MAX_BLE_MTU, mtu));
+    }
+
+    /**
+     * Set the policy which selects the block length from the firmware version and the negotiated
+     * MTU. The default policy {@code DEFAULT_BLOCK_LENGTH_POLICY} uses 240-byte blocks, which all
+     * released firmware supports, and rejects the transfer if the negotiated MTU is too small.
+     *
+     * @param policy    the block length policy; {@code null} to use the default policy
+     */
+    public void setBlockLengthPolicy(BlockLengthPolicy policy) {
+        blockLengthPolicy = (policy != null) ? policy : DEFAULT_BLOCK_LENGTH_POLICY;
+    }
+
+    /**
+     * Get the negotiated MTU of a device.
+     *
+     * @param mac   device mac address
+     * @return      the negotiated MTU; {@code -1} if device is not connected
+     */
+    public int getMtu(String mac) {
+        BLEDeviceBean bean = connectionQueue.get(mac);
+        if (bean == null) return -1;
+        return bean.getMtu();
+    }
+
+    /**
+     * Get the block length of the image block transfer for a device, which is selected by the
+     * block length policy from the firmware version and the negotiated MTU.
+     * @see BLEUtil#setBlockLengthPolicy(BlockLengthPolicy)
+     *
+     * @param mac   device mac address
+     * @return      the block length in bytes, without the block number; {@code 0} if no block
+     *              length is supported; {@code -1} if device is not connected
+     */
+    public int getBlockLength(String mac) {
+        BLEDeviceBean bean = connectionQueue.get(mac);
+        if (bean == null) return -1;
+        int maxBlockLength = bean.getMtu() - ATT_HEADER_LEN - BLOCK_NUMBER_LEN;
+        int blockLen = blockLengthPolicy.getBlockLength(bean.getFirmwareVersion(), maxBlockLength);
+        return (blockLen > 0 && blockLen <= maxBlockLength) ? blockLen : 0;
+    }
+
+    /**
+     * Enable or disable the automatic link tuning. If enabled, the connection priority is set to
+     * {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} and the 2M PHY is requested (Android 8.0 and
+     * later, if supported) for the duration of an image block transfer, and the idle priority is
+     * restored afterward. The achieved connection interval and PHY are recorded in the
+     * TransferStats. The default is enabled.
+     * @see BLEUtil#getTransferStats(String)
+     *
+     * @param enable    {@code true} enable the automatic link tuning;
+     *                  {@code false} otherwise
+     */
+    public void setLinkTuning(boolean enable) {
+        isLinkTuning = enable;
+    }
+
+    /**
+     * Set the connection priority for idle or monitoring connections, which is requested after the
+     * handshake and after each image block transfer when the automatic link tuning is enabled.
+     *
+     * @param priority      Must be one of {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED} or
+     *                      {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}; the default is
+     *                      {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED}.
+     */
+    public void setIdleConnectionPriority(int priority) {
+        idlePriority = priority;
+    }
+
+    /**
+     * Set the stall time of the image block transfer. If the device requests no block within the
+     * stall time, the transfer resends from the last requested block instead of waiting for the
+     * task timeout.
+     *
+     * @param stallTime     the stall time in milliseconds; the default is {@code DEFAULT_STALL_TIME}
+     */
+    public void setStallTime(int stallTime) {
+        this.stallTime = Math.max(100, stallTime);
+    }
+
+    /**
+     * Set the in-flight window of the image block transfer, i.e. the maximum number of block writes
+     * which are accepted by the Bluetooth stack but not yet confirmed. The default window
+     * {@code DEFAULT_TRANSFER_WINDOW} writes one block per write callback. A larger window lets the
+     * Bluetooth stack queue more no-response writes on the stacks which support it; if the stack
+     * reports busy, the transfer waits for the next write callback or backs off for a short time.
+     * The window applies to the next transfer.
+     *
+     * @param window    the number of in-flight writes, from 1 to {@code MAX_TRANSFER_WINDOW}
+     */
+    public void setTransferWindow(int window) {
+        transferWindow = Math.max(1, Math.min(MAX_TRANSFER_WINDOW, window));
+    }
+
+    /**
+     * Get the in-flight window of the image block transfer.
+     *
+     * @return      the number of in-flight writes
+     */
+    public int getTransferWindow() {
+        return transferWindow;
+    }
+
+    /**
+     * Get the throughput measurement of the current or the last image block transfer of a device.
+     *
+     * @param mac   device mac address
+     * @return      the TransferStats; {@code null} if device is not connected or has not started
+     *              a block transfer
+     */
+    public TransferStats getTransferStats(String mac) {
+        BLEDeviceBean bean = connectionQueue.get(mac);
+        if (bean == null) return null;
+        return bean.getTransferEngine().getTransferStats();
     }
 
     /**
@@ -1219,6 +1931,24 @@ public class BLEUtil {
         return isScanning;
     }
 
+    /**
+     * Set the default executor of the scan listeners, the connection listeners which are added
+     * afterward, and the callbacks of the task handlers which are created afterward. All
+     * Bluetooth work and timers run on a worker thread of the library, and the listeners run on
+     * the calling thread by default ({@code DIRECT_EXECUTOR}). Use an executor on the main looper
+     * to update the UI in the listeners; the main thread is never on the transfer path.
+     *
+     * @param executor  the executor which runs the listeners in order; {@code null} for
+     *                  {@code DIRECT_EXECUTOR}
+     */
+    public void setCallbackExecutor(Executor executor) {
+        callbackExecutor = (executor != null) ? executor : DIRECT_EXECUTOR;
+    }
+
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
     /**
      * Add a scan listener which will returns the scanning results.
      *
@@ -1238,22 +1968,107 @@ public class BLEUtil {
     }
 
     /**
-     * Add a connection listener which will returns the connection results.
+     * Add a connection listener which will returns the connection results. A device may have
+     * several listeners, e.g. your activity and a {@link BLETaskHandler}.
      *
      * @param address               device mac address
      * @param bleConnectListener    BLE connection listener
      */
     public void addConnectListener(String address, BLEConnectListener bleConnectListener) {
-        bleConnectListeners.put(address, bleConnectListener);
+        addConnectListener(address, bleConnectListener, callbackExecutor);
+    }
+
+    /**
+     * Add a connection listener which will returns the connection results on an executor, e.g. an
+     * executor on the main looper for updating the UI. The executor should run the results in
+     * order. Each listener has its own executor, so a slow listener does not delay the Bluetooth
+     * thread or the other listeners. Adding a listener again changes its executor.
+     *
+     * @param address               device mac address
+     * @param bleConnectListener    BLE connection listener
+     * @param executor              the executor of the listener; {@code DIRECT_EXECUTOR} runs the
+     *                              listener on the Bluetooth or worker thread
+     */
+    public void addConnectListener(String address, BLEConnectListener bleConnectListener, Executor executor) {
+        addConnectListener(address, bleConnectListener, executor, ProgressDelivery.RAW);
+    }
+
+    /**
+     * Add a connection listener with a delivery of the image write progress. By default, the
+     * progress of each block is delivered; {@code ProgressDelivery.COALESCED} delivers a few
+     * updates per second, e.g. for a list of devices which is redrawn for each update.
+     * @see BLEUtil#setProgressRate(int, int)
+     *
+     * @param address               device mac address
+     * @param bleConnectListener    BLE connection listener
+     * @param executor              the executor of the listener
+     * @param delivery              the delivery of {@code BLEImageWriteStatus.IN_PROGRESS}
+     */
+    public void addConnectListener(String address, BLEConnectListener bleConnectListener, Executor executor, ProgressDelivery delivery) {
+        connectEventBus.subscribe(address, bleConnectListener, executor, delivery);
+    }
+
+    /**
+     * Remove a connection listener of a device.
+     *
+     * @param address               device mac address
+     * @param bleConnectListener    BLE connection listener
+     */
+    public void removeConnectListener(String address, BLEConnectListener bleConnectListener) {
+        connectEventBus.unsubscribe(address, bleConnectListener);
     }
 
     /**
-     * Remove a connection listener according to the device mac address.
+     * Remove all connection listeners according to the device mac address. The fleet listeners
+     * are kept.
      *
      * @param address               device mac address
      */
     public void removeConnectListener(String address) {
-        bleConnectListeners.remove(address);
+        connectEventBus.unsubscribeAll(address);
+    }
+
+    /**
+     * Add a fleet listener which will returns the connection results of all devices, e.g. for a
+     * dashboard of a campaign.
+     *
+     * @param bleFleetListener      BLE fleet listener
+     */
+    public void addFleetListener(BLEFleetListener bleFleetListener) {
+        addFleetListener(bleFleetListener, callbackExecutor);
+    }
+
+    /**
+     * Add a fleet listener which will returns the connection results of all devices on an
+     * executor. The executor should run the results in order.
+     *
+     * @param bleFleetListener      BLE fleet listener
+     * @param executor              the executor of the listener; {@code DIRECT_EXECUTOR} runs the
+     *                              listener on the Bluetooth or worker thread
+     */
+    public void addFleetListener(BLEFleetListener bleFleetListener, Executor executor) {
+        addFleetListener(bleFleetListener, executor, ProgressDelivery.RAW);
+    }
+
+    /**
+     * Add a fleet listener with a delivery of the image write progress of the devices.
+     * @see BLEUtil#addConnectListener(String, BLEConnectListener, Executor, ProgressDelivery)
+     *
+     * @param bleFleetListener      BLE fleet listener
+     * @param executor              the executor of the listener
+     * @param delivery              the delivery of {@code BLEImageWriteStatus.IN_PROGRESS}
+     */
+    public void addFleetListener(BLEFleetListener bleFleetListener, Executor executor, ProgressDelivery delivery) {
+        connectEventBus.subscribeFleet(bleFleetListener, executor, delivery);
+    }
+
+    /**
+     * Remove a fleet listener.
+     *
+     * @param bleFleetListener      BLE fleet listener
+     */
+    public void removeFleetListener(BLEFleetListener bleFleetListener) {
+        connectEventBus.unsubscribeFleet(bleFleetListener);
     }
 
 }
@@ -0,0 +1,23 @@
+package com.advantech.bleeplib.utils;
+
+/**
+ * BlockLengthPolicy selects the block length of the image block transfer for a connection. The
+ * EPD device locates each block by its block number, so the block length must be one the firmware
+ * supports, and a block packet (block number + block data) must fit the negotiated MTU.
+ * @see BLEUtil#setBlockLengthPolicy(BlockLengthPolicy)
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public interface BlockLengthPolicy {
+    /**
+     * Select the block length for a connection.
+     *
+     * @param firmwareVersion   firmware version of the device; {@code null} if it has not been read
+     * @param maxBlockLength    the largest block length which fits the negotiated MTU
+     * @return                  the block length in bytes, without the block number;
+     *                          {@code 0} if the firmware does not support any block length within
+     *                          {@code maxBlockLength}
+     */
+    public int getBlockLength(String firmwareVersion, int maxBlockLength);
+}
@@ -0,0 +1,353 @@
+package com.advantech.bleeplib.utils;
+
+import com.advantech.bleeplib.bean.BLEImageWriteStatus;
+import com.advantech.bleeplib.bean.FleetProgress;
+import com.advantech.bleeplib.bean.ProgressDelivery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * ConnectEventBus dispatches the connection events of the devices to their subscribers, for
+ * internal usage. A device may have several subscribers, e.g. an activity and a
+ * {@link BLETaskHandler}, and a fleet subscriber receives the events of all devices.
+ * <p>
+ * The subscribers of a device are looked up by the mac address in a single map access, and they
+ * are kept in an array which is rebuilt on each subscription, so an event is dispatched without
+ * any allocation. Each subscriber receives the events on its own executor, so a slow subscriber
+ * does not block the Bluetooth and worker threads, or the other subscribers. The image write
+ * progress is delivered either for every block, or coalesced, as chosen by each subscriber.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class ConnectEventBus {
+    private static final BLEConnectListener[] NO_LISTENERS = new BLEConnectListener[0];
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>(); // mac, subscribers of the device
+    private final List<Subscriber> fleetSubscribers = new ArrayList<>(); // guarded by this
+    private volatile Subscriber[] fleetSnapshot = NO_SUBSCRIBERS;
+    private volatile boolean hasFleetSubscribers = false;
+
+    // a listener, the executor of its events and the delivery of the progress
+    private static class Subscriber {
+        final Object listener; // BLEConnectListener or BLEFleetListener
+        final Executor executor;
+        final ProgressDelivery delivery;
+
+        Subscriber(Object listener, Executor executor, ProgressDelivery delivery) {
+            this.listener = listener;
+            this.executor = executor;
+            this.delivery = (delivery != null) ? delivery : ProgressDelivery.RAW;
+        }
+    }
+
+    /**
+     * Get the dispatcher of the events of a device.
+     *
+     * @param mac   device mac address
+     * @return      a listener which delivers the events to all subscribers of the device, or
+     *              {@code null} if the device has no subscriber
+     */
+    BLEConnectListener get(String mac) {
+        Channel channel = channels.get(mac);
+        if (channel == null && hasFleetSubscribers) {
+            synchronized (this) {
+                channel = getChannel(mac);
+            }
+        }
+        return (channel != null && channel.listeners.length > 0) ? channel : null;
+    }
+
+    /**
+     * Deliver the image write progress of a device to the subscribers of a delivery.
+     *
+     * @param mac       device mac address
+     * @param progress  the progress, 0 ~ 100
+     * @param message   image write message
+     * @param delivery  {@code RAW} for each block, or {@code COALESCED}
+     */
+    void onProgress(String mac, int progress, String message, ProgressDelivery delivery) {
+        Channel channel = channels.get(mac);
+        if (channel == null && hasFleetSubscribers) {
+            synchronized (this) {
+                channel = getChannel(mac);
+            }
+        }
+        if (channel == null) return;
+        BLEConnectListener[] listeners = (delivery == ProgressDelivery.RAW) ? channel.rawListeners : channel.coalescedListeners;
+        for (BLEConnectListener listener : listeners) {
+            listener.onImageWrite(BLEImageWriteStatus.IN_PROGRESS, progress, message);
+        }
+    }
+
+    // deliver the summary of the transfers to the fleet subscribers
+    void onFleetProgress(final FleetProgress progress) {
+        for (Subscriber subscriber : fleetSnapshot) {
+            final BLEFleetListener listener = (BLEFleetListener) subscriber.listener;
+            if (subscriber.executor == null || subscriber.executor == BLEUtil.DIRECT_EXECUTOR) {
+                listener.onFleetProgress(progress);
+            } else {
+                subscriber.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onFleetProgress(progress);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Subscribe to the events of a device. A listener is subscribed once, a second subscription
+     * changes its executor and its delivery.
+     *
+     * @param mac       device mac address
+     * @param listener  connection listener
+     * @param executor  the executor of the events, or {@code null} to run them on the calling thread
+     * @param delivery  the delivery of the image write progress
+     */
+    synchronized void subscribe(String mac, BLEConnectListener listener, Executor executor, ProgressDelivery delivery) {
+        Channel channel = getChannel(mac);
+        remove(channel.subscribers, listener);
+        channel.subscribers.add(new Subscriber(listener, executor, delivery));
+        channel.rebuild();
+    }
+
+    synchronized void unsubscribe(String mac, BLEConnectListener listener) {
+        Channel channel = channels.get(mac);
+        if (channel == null || !remove(channel.subscribers, listener)) return;
+        channel.rebuild();
+        removeIfUnused(channel);
+    }
+
+    // unsubscribe all listeners of a device, but not the fleet listeners
+    synchronized void unsubscribeAll(String mac) {
+        Channel channel = channels.get(mac);
+        if (channel == null) return;
+        channel.subscribers.clear();
+        channel.rebuild();
+        removeIfUnused(channel);
+    }
+
+    synchronized void subscribeFleet(BLEFleetListener listener, Executor executor, ProgressDelivery delivery) {
+        remove(fleetSubscribers, listener);
+        fleetSubscribers.add(new Subscriber(listener, executor, delivery));
+        fleetSnapshot = fleetSubscribers.toArray(NO_SUBSCRIBERS);
+        hasFleetSubscribers = true;
+        for (Channel channel : channels.values()) {
+            channel.rebuild();
+        }
+    }
+
+    synchronized void unsubscribeFleet(BLEFleetListener listener) {
+        if (!remove(fleetSubscribers, listener)) return;
+        fleetSnapshot = fleetSubscribers.toArray(NO_SUBSCRIBERS);
+        hasFleetSubscribers = !fleetSubscribers.isEmpty();
+        for (Channel channel : new ArrayList<>(channels.values())) {
+            channel.rebuild();
+            removeIfUnused(channel);
+        }
+    }
+
+    private Channel getChannel(String mac) {
+        Channel channel = channels.get(mac);
+        if (channel == null) {
+            channel = new Channel(mac);
+            channel.rebuild();
+            channels.put(mac, channel);
+        }
+        return channel;
+    }
+
+    private void removeIfUnused(Channel channel) {
+        if (channel.listeners.length == 0) channels.remove(channel.mac);
+    }
+
+    private static boolean remove(List<Subscriber> subscribers, Object listener) {
+        for (int i = 0; i < subscribers.size(); i++) {
+            if (subscribers.get(i).listener == listener) {
+                subscribers.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static BLEConnectListener deliver(BLEConnectListener listener, Executor executor) {
+        if (executor == null || executor == BLEUtil.DIRECT_EXECUTOR) return listener;
+        return new ExecutorConnectListener(listener, executor);
+    }
+
+    // the subscribers of a device, and the dispatcher of its events
+    private class Channel implements BLEConnectListener {
+        final String mac;
+        final List<Subscriber> subscribers = new ArrayList<>(); // guarded by ConnectEventBus.this
+        volatile BLEConnectListener[] listeners = NO_LISTENERS;
+        volatile BLEConnectListener[] rawListeners = NO_LISTENERS; // of the progress of each block
+        volatile BLEConnectListener[] coalescedListeners = NO_LISTENERS; // of the coalesced progress
+
+        Channel(String mac) {
+            this.mac = mac;
+        }
+
+        // the device subscribers, and then the fleet subscribers bound to this device
+        void rebuild() {
+            List<BLEConnectListener> newListeners = new ArrayList<>();
+            List<BLEConnectListener> newRawListeners = new ArrayList<>();
+            List<BLEConnectListener> newCoalescedListeners = new ArrayList<>();
+            List<Subscriber> all = new ArrayList<>(subscribers);
+            all.addAll(fleetSubscribers);
+            for (Subscriber subscriber : all) {
+                BLEConnectListener listener = (subscriber.listener instanceof BLEFleetListener)
+                        ? new FleetConnectListener(mac, (BLEFleetListener) subscriber.listener)
+                        : (BLEConnectListener) subscriber.listener;
+                listener = deliver(listener, subscriber.executor);
+                newListeners.add(listener);
+                if (subscriber.delivery == ProgressDelivery.RAW) {
+                    newRawListeners.add(listener);
+                } else {
+                    newCoalescedListeners.add(listener);
+                }
+            }
+            rawListeners = newRawListeners.toArray(NO_LISTENERS);
+            coalescedListeners = newCoalescedListeners.toArray(NO_LISTENERS);
+            listeners = newListeners.toArray(NO_LISTENERS);
+        }
+
+        @Override
+        public void onConnectionStateChange(int result) {
+            for (BLEConnectListener listener : listeners) {
+                listener.onConnectionStateChange(result);
+            }
+        }
+
+        @Override
+        public void onConnectionTimeout(String message) {
+            for (BLEConnectListener listener : listeners) {
+                listener.onConnectionTimeout(message);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(int result) {
+            for (BLEConnectListener listener : listeners) {
+                listener.onServicesDiscovered(result);
+            }
+        }
+
+        @Override
+        public void onFirmwareRead(int result, byte[] read) {
+            for (BLEConnectListener listener : listeners) {
+                listener.onFirmwareRead(result, read);
+            }
+        }
+
+        @Override
+        public void onLEDRead(int result, byte[] read) {
+            for (BLEConnectListener listener : listeners) {
+                listener.onLEDRead(result, read);
+            }
+        }
+
+        @Override
+        public void onDeviceReady() {
+            for (BLEConnectListener listener : listeners) {
+                listener.onDeviceReady();
+            }
+        }
+
+        @Override
+        public void onLEDWrite(int result, byte[] read) {
+            for (BLEConnectListener listener : listeners) {
+                listener.onLEDWrite(result, read);
+            }
+        }
+
+        @Override
+        public void onImageWrite(BLEImageWriteStatus status, int progress, String message) {
+            for (BLEConnectListener listener : listeners) {
+                listener.onImageWrite(status, progress, message);
+            }
+        }
+
+        @Override
+        public void onImageRefresh(boolean isSuccess, int page) {
+            for (BLEConnectListener listener : listeners) {
+                listener.onImageRefresh(isSuccess, page);
+            }
+        }
+
+        @Override
+        public void onAlarmDetected(boolean isWarning) {
+            for (BLEConnectListener listener : listeners) {
+                listener.onAlarmDetected(isWarning);
+            }
+        }
+    }
+
+    // a fleet listener bound to the events of one device
+    private static class FleetConnectListener implements BLEConnectListener {
+        private final String mac;
+        private final BLEFleetListener listener;
+
+        FleetConnectListener(String mac, BLEFleetListener listener) {
+            this.mac = mac;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onConnectionStateChange(int result) {
+            listener.onConnectionStateChange(mac, result);
+        }
+
+        @Override
+        public void onConnectionTimeout(String message) {
+            listener.onConnectionTimeout(mac, message);
+        }
+
+        @Override
+        public void onServicesDiscovered(int result) {
+            listener.onServicesDiscovered(mac, result);
+        }
+
+        @Override
+        public void onFirmwareRead(int result, byte[] read) {
+            listener.onFirmwareRead(mac, result, read);
+        }
+
+        @Override
+        public void onLEDRead(int result, byte[] read) {
+            listener.onLEDRead(mac, result, read);
+        }
+
+        @Override
+        public void onDeviceReady() {
+            listener.onDeviceReady(mac);
+        }
+
+        @Override
+        public void onLEDWrite(int result, byte[] read) {
+            listener.onLEDWrite(mac, result, read);
+        }
+
+        @Override
+        public void onImageWrite(BLEImageWriteStatus status, int progress, String message) {
+            listener.onImageWrite(mac, status, progress, message);
+        }
+
+        @Override
+        public void onImageRefresh(boolean isSuccess, int page) {
+            listener.onImageRefresh(mac, isSuccess, page);
+        }
+
+        @Override
+        public void onAlarmDetected(boolean isWarning) {
+            listener.onAlarmDetected(mac, isWarning);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.advantech.bleeplib.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+
+import com.advantech.bleeplib.bean.DeviceProfile;
+import com.advantech.bleeplib.bean.PanelType;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * DeviceProfileStore keeps the cached profiles of EPD devices by mac address, for internal usage.
+ * Profiles are updated from the scan results and the handshake reads, and the handshake skips the
+ * reads whose cached values are fresh for the {@link HandshakeProfile}.
+ * <p>
+ * Profiles are persisted in the SharedPreferences as one JSON string per device, so they survive
+ * restarts of the application. Scan results update profiles frequently, so changes are written in
+ * a batch shortly afterward. Profiles which are not updated within the TTL are removed.
+ * <p>
+ * The scan is not filtered, so a scan result creates a profile only for an EPD device, i.e. an
+ * {@code "Advantech_"} device name, and updates the profiles of the devices the library has
+ * connected. At most {@code MAX_PROFILES} profiles are kept, the least recently updated profile
+ * is removed first.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class DeviceProfileStore {
+    private static final String PREFS_NAME = "bleeplib_device_profiles";
+    private static final int SAVE_DELAY = 2 * 1000; // 2 sec
+    static final long DEFAULT_TTL = 30 * 24 * 60 * 60 * 1000L; // 30 days
+    static final int MAX_PROFILES = 1000;
+    private static final String EPD_NAME_PREFIX = "Advantech_";
+
+    private final Map<String, DeviceProfile> profiles = new HashMap<>();
+    private final Set<String> dirtyMacs = new HashSet<>(); // changed or removed since the last save
+    private SharedPreferences preferences;
+    private Handler handler;
+    private boolean isSaveScheduled = false;
+    private long ttl = DEFAULT_TTL;
+
+    /**
+     * Load the persisted profiles. Before it is loaded, the store works in memory only.
+     *
+     * @param context   the context of Android application
+     * @param handler   the handler of the saves, off the main thread
+     */
+    synchronized void load(Context context, Handler handler) {
+        if (preferences != null) return;
+        preferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.handler = handler;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            String mac = entry.getKey();
+            if (profiles.containsKey(mac) || !(entry.getValue() instanceof String)) continue;
+            try {
+                DeviceProfile profile = fromJson(mac, new JSONObject((String) entry.getValue()));
+                if (now - profile.getUpdateTime() < ttl && !isScanOnly(profile)) {
+                    if (profiles.size() >= MAX_PROFILES) removeOldest();
+                    profiles.put(mac, profile);
+                } else {
+                    dirtyMacs.add(mac); // expired, or another advertiser stored by an older version
+                }
+            } catch (JSONException e) {
+                e.printStackTrace();
+                dirtyMacs.add(mac);
+            }
+        }
+        if (!dirtyMacs.isEmpty()) scheduleSave();
+    }
+
+    synchronized void setTTL(long ttl) {
+        this.ttl = Math.max(0, ttl);
+    }
+
+    /**
+     * Get a copy of the cached profile.
+     *
+     * @param mac   device mac address
+     * @return      the cached profile, or {@code null} if the device is unknown or expired
+     */
+    synchronized DeviceProfile get(String mac) {
+        DeviceProfile profile = profiles.get(mac);
+        if (profile == null) return null;
+        if (System.currentTimeMillis() - profile.getUpdateTime() >= ttl) {
+            remove(mac);
+            return null;
+        }
+        return new DeviceProfile(profile);
+    }
+
+    synchronized List<DeviceProfile> getAll() {
+        long now = System.currentTimeMillis();
+        List<DeviceProfile> list = new ArrayList<>();
+        for (DeviceProfile profile : profiles.values()) {
+            if (now - profile.getUpdateTime() < ttl) list.add(new DeviceProfile(profile));
+        }
+        return list;
+    }
+
+    synchronized void putFirmwareVersion(String mac, String firmwareVersion) {
+        obtain(mac).setFirmwareVersion(firmwareVersion, System.currentTimeMillis());
+        scheduleSave();
+    }
+
+    synchronized void putLedState(String mac, byte[] ledState) {
+        obtain(mac).setLedState(ledState, System.currentTimeMillis());
+        scheduleSave();
+    }
+
+    // the LED status is changed by a write, read it again in the next handshake
+    synchronized void invalidateLedState(String mac) {
+        DeviceProfile profile = profiles.get(mac);
+        if (profile == null || profile.getLedTime() == 0) return;
+        profile.setLedState(null, 0);
+        dirtyMacs.add(mac);
+        scheduleSave();
+    }
+
+    // the firmware version is changed by an upgrade
+    synchronized void invalidateFirmwareVersion(String mac) {
+        DeviceProfile profile = profiles.get(mac);
+        if (profile == null || profile.getFirmwareTime() == 0) return;
+        profile.setFirmwareVersion(null, 0);
+        dirtyMacs.add(mac);
+        scheduleSave();
+    }
+
+    synchronized void putMtu(String mac, int mtu) {
+        obtain(mac).setMtu(mtu);
+        scheduleSave();
+    }
+
+    // a scan result, the panel-type is parsed from the device name; other advertisers are ignored
+    synchronized void putScanResult(String mac, String deviceName, int rssi) {
+        boolean isEpd = deviceName != null && deviceName.startsWith(EPD_NAME_PREFIX);
+        if (!isEpd && !profiles.containsKey(mac)) return;
+        DeviceProfile profile = obtain(mac);
+        profile.setRssi(rssi);
+        profile.setLastSeen(System.currentTimeMillis());
+        if (isEpd) {
+            PanelType panelType = Common.getPanelTypeByName(deviceName);
+            if (panelType != null) profile.setPanelType(panelType);
+        }
+        scheduleSave();
+    }
+
+    synchronized void putRssi(String mac, int rssi) {
+        DeviceProfile profile = obtain(mac);
+        profile.setRssi(rssi);
+        profile.setLastSeen(System.currentTimeMillis());
+        scheduleSave();
+    }
+
+    synchronized void putLastSeen(String mac) {
+        obtain(mac).setLastSeen(System.currentTimeMillis());
+        scheduleSave();
+    }
+
+    // the throughput of a block transfer, smoothed with the past transfers
+    synchronized void putTransferRate(String mac, double throughput) {
+        if (throughput <= 0) return;
+        DeviceProfile profile = obtain(mac);
+        int transferRate = profile.getTransferRate();
+        profile.setTransferRate((int) Math.round((transferRate > 0) ? (transferRate + throughput) / 2 : throughput));
+        scheduleSave();
+    }
+
+    // a frame was pushed successfully
+    synchronized void putPush(String mac, byte[] contentHash) {
+        obtain(mac).setLastPush(Common.byteArrayToHexStr(contentHash), System.currentTimeMillis());
+        scheduleSave();
+    }
+
+    synchronized void remove(String mac) {
+        if (profiles.remove(mac) == null) return;
+        dirtyMacs.add(mac);
+        scheduleSave();
+    }
+
+    synchronized void clear() {
+        dirtyMacs.addAll(profiles.keySet());
+        profiles.clear();
+        scheduleSave();
+    }
+
+    private DeviceProfile obtain(String mac) {
+        DeviceProfile profile = profiles.get(mac);
+        if (profile == null) {
+            if (profiles.size() >= MAX_PROFILES) removeOldest();
+            profile = new DeviceProfile(mac);
+            profiles.put(mac, profile);
+        }
+        dirtyMacs.add(mac);
+        return profile;
+    }
+
+    // a profile of a scan result only, neither of an EPD device nor of a connected device
+    private static boolean isScanOnly(DeviceProfile profile) {
+        return profile.getPanelType() == null && profile.getFirmwareVersion() == null && profile.getLedState() == null
+                && profile.getMtu() == 0 && profile.getTransferRate() == 0 && profile.getLastPushHash() == null;
+    }
+
+    // remove the least recently updated profile, only when the store is full
+    private void removeOldest() {
+        String oldestMac = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (DeviceProfile profile : profiles.values()) {
+            if (profile.getUpdateTime() < oldestTime) {
+                oldestTime = profile.getUpdateTime();
+                oldestMac = profile.getAddress();
+            }
+        }
+        if (oldestMac != null) remove(oldestMac);
+    }
+
+    // Persistence --- START
+    private void scheduleSave() {
+        if (preferences == null || isSaveScheduled) return;
+        isSaveScheduled = true;
+        handler.postDelayed(saveRunnable, SAVE_DELAY);
+    }
+
+    private Runnable saveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    private synchronized void save() {
+        isSaveScheduled = false;
+        if (preferences == null || dirtyMacs.isEmpty()) return;
+        SharedPreferences.Editor editor = preferences.edit();
+        Iterator<String> iterator = dirtyMacs.iterator();
+        while (iterator.hasNext()) {
+            String mac = iterator.next();
+            DeviceProfile profile = profiles.get(mac);
+            if (profile == null) {
+                editor.remove(mac);
+            } else {
+                try {
+                    editor.putString(mac, toJson(profile).toString());
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+            iterator.remove();
+        }
+        editor.apply();
+    }
+
+    private static JSONObject toJson(DeviceProfile profile) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("firmwareVersion", profile.getFirmwareVersion());
+        json.put("firmwareTime", profile.getFirmwareTime());
+        json.put("ledState", Common.byteArrayToHexStr(profile.getLedState()));
+        json.put("ledTime", profile.getLedTime());
+        json.put("mtu", profile.getMtu());
+        json.put("panelType", profile.getPanelType() != null ? profile.getPanelType().name() : null);
+        json.put("rssi", profile.getRssi());
+        json.put("lastSeen", profile.getLastSeen());
+        json.put("transferRate", profile.getTransferRate());
+        json.put("lastPushHash", profile.getLastPushHash());
+        json.put("lastPushTime", profile.getLastPushTime());
+        return json;
+    }
+
+    private static DeviceProfile fromJson(String mac, JSONObject json) {
+        DeviceProfile profile = new DeviceProfile(mac);
+        if (!json.isNull("firmwareVersion")) {
+            profile.setFirmwareVersion(json.optString("firmwareVersion"), json.optLong("firmwareTime", 0));
+        }
+        if (!json.isNull("ledState")) {
+            profile.setLedState(hexStrToByteArray(json.optString("ledState")), json.optLong("ledTime", 0));
+        }
+        profile.setMtu(json.optInt("mtu", 0));
+        if (!json.isNull("panelType")) {
+            try {
+                profile.setPanelType(PanelType.valueOf(json.optString("panelType")));
+            } catch (IllegalArgumentException e) {
+                e.printStackTrace();
+            }
+        }
+        profile.setRssi(json.optInt("rssi", 0));
+        profile.setLastSeen(json.optLong("lastSeen", 0));
+        profile.setTransferRate(json.optInt("transferRate", 0));
+        if (!json.isNull("lastPushHash")) {
+            profile.setLastPush(json.optString("lastPushHash"), json.optLong("lastPushTime", 0));
+        }
+        return profile;
+    }
+
+    private static byte[] hexStrToByteArray(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return data;
+    }
+    // Persistence --- END
+}
@@ -0,0 +1,123 @@
+package com.advantech.bleeplib.utils;
+
+import com.advantech.bleeplib.bean.BLEImageWriteStatus;
+
+import java.util.concurrent.Executor;
+
+/**
+ * ExecutorConnectListener delivers the connection events to a listener on an executor, so the
+ * Bluetooth and worker threads never wait for the listener, for internal usage. The executor
+ * should run the events in order, e.g. an executor on the main looper.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class ExecutorConnectListener implements BLEConnectListener {
+    private final BLEConnectListener listener;
+    private final Executor executor;
+
+    ExecutorConnectListener(BLEConnectListener listener, Executor executor) {
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    @Override
+    public void onConnectionStateChange(final int result) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onConnectionStateChange(result);
+            }
+        });
+    }
+
+    @Override
+    public void onConnectionTimeout(final String message) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onConnectionTimeout(message);
+            }
+        });
+    }
+
+    @Override
+    public void onServicesDiscovered(final int result) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onServicesDiscovered(result);
+            }
+        });
+    }
+
+    @Override
+    public void onFirmwareRead(final int result, final byte[] read) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFirmwareRead(result, read);
+            }
+        });
+    }
+
+    @Override
+    public void onLEDRead(final int result, final byte[] read) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onLEDRead(result, read);
+            }
+        });
+    }
+
+    @Override
+    public void onDeviceReady() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDeviceReady();
+            }
+        });
+    }
+
+    @Override
+    public void onLEDWrite(final int result, final byte[] read) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onLEDWrite(result, read);
+            }
+        });
+    }
+
+    @Override
+    public void onImageWrite(final BLEImageWriteStatus status, final int progress, final String message) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onImageWrite(status, progress, message);
+            }
+        });
+    }
+
+    @Override
+    public void onImageRefresh(final boolean isSuccess, final int page) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onImageRefresh(isSuccess, page);
+            }
+        });
+    }
+
+    @Override
+    public void onAlarmDetected(final boolean isWarning) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onAlarmDetected(isWarning);
+            }
+        });
+    }
+}
@@ -0,0 +1,80 @@
+package com.advantech.bleeplib.utils;
+
+import java.util.concurrent.Executor;
+
+/**
+ * ExecutorTaskHandlerCallback delivers the task results of a {@link BLETaskHandler} to a callback
+ * on an executor, for internal usage. The executor should run the results in order.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class ExecutorTaskHandlerCallback implements BLETaskHandlerCallback {
+    private final BLETaskHandlerCallback callback;
+    private final Executor executor;
+
+    ExecutorTaskHandlerCallback(BLETaskHandlerCallback callback, Executor executor) {
+        this.callback = callback;
+        this.executor = executor;
+    }
+
+    @Override
+    public void onSuccess(final String message) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onSuccess(message);
+            }
+        });
+    }
+
+    @Override
+    public void onProgress(final int progress) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onProgress(progress);
+            }
+        });
+    }
+
+    @Override
+    public void onReady(final String message) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onReady(message);
+            }
+        });
+    }
+
+    @Override
+    public void onError(final String message) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(message);
+            }
+        });
+    }
+
+    @Override
+    public void onFirmwareRead(final String firmware) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onFirmwareRead(firmware);
+            }
+        });
+    }
+
+    @Override
+    public void onLEDRead(final byte[] read) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onLEDRead(read);
+            }
+        });
+    }
+}
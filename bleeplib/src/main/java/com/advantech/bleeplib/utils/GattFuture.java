@@ -0,0 +1,87 @@
+package com.advantech.bleeplib.utils;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * GattFuture is the completion of a queued GATT operation, for internal usage. The minimum SDK
+ * level does not provide {@code CompletableFuture}, so this is a small callback future.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class GattFuture {
+    static final int STATUS_TIMEOUT = -1; // no callback within the operation timeout
+    static final int STATUS_NOT_SENT = -2; // the Bluetooth stack rejected the operation
+    static final int STATUS_CANCELLED = -3; // the connection was closed or the operation was cancelled
+
+    interface Listener {
+        void onComplete(int status, byte[] value);
+    }
+
+    private boolean isDone = false;
+    private int status;
+    private byte[] value;
+    private Listener listener;
+
+    /**
+     * Complete the operation. Only the first completion counts.
+     *
+     * @return  {@code true} the operation has been completed by this call;
+     *          {@code false} it was already completed
+     */
+    boolean complete(int status, byte[] value) {
+        Listener listener;
+        synchronized (this) {
+            if (isDone) return false;
+            isDone = true;
+            this.status = status;
+            this.value = value;
+            listener = this.listener;
+            notifyAll();
+        }
+        if (listener != null) listener.onComplete(status, value);
+        return true;
+    }
+
+    void setListener(Listener listener) {
+        boolean isDone;
+        synchronized (this) {
+            this.listener = listener;
+            isDone = this.isDone;
+        }
+        if (isDone) listener.onComplete(status, value);
+    }
+
+    synchronized boolean isDone() {
+        return isDone;
+    }
+
+    synchronized boolean isSuccess() {
+        return isDone && status == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    synchronized int getStatus() {
+        return status;
+    }
+
+    synchronized byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * Wait for the completion. Do not call it on the main thread or a GATT callback thread.
+     *
+     * @param timeout   the maximum time to wait in milliseconds
+     * @return          {@code true} the operation is completed;
+     *                  {@code false} otherwise
+     */
+    synchronized boolean await(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!isDone) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) break;
+            wait(remaining);
+        }
+        return isDone;
+    }
+}
@@ -0,0 +1,126 @@
+package com.advantech.bleeplib.utils;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+import com.advantech.bleeplib.protocol.EpdProtocol;
+
+import java.util.UUID;
+
+/**
+ * GattOperation is a GATT operation in the per-connection {@link GattQueue}, for internal usage.
+ * An operation is executed when it reaches the head of the queue, and it is completed by the
+ * matching GATT callback, or by the timeout.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+abstract class GattOperation {
+    static final int TYPE_READ = 0; // onCharacteristicRead
+    static final int TYPE_WRITE = 1; // onCharacteristicWrite
+    static final int TYPE_DESCRIPTOR = 2; // onDescriptorWrite
+    static final int TYPE_MTU = 3; // onMtuChanged
+    static final int TYPE_RSSI = 4; // onReadRemoteRssi
+    static final int TYPE_IMMEDIATE = 5; // no callback, e.g. connection priority and PHY requests
+
+    static final int PRIORITY_CONTROL = 0; // user commands, e.g. LED and reads
+    static final int PRIORITY_NORMAL = 1; // handshake sequence and image identify
+
+    static final int DEFAULT_TIMEOUT = 5 * 1000; // 5 sec
+
+    final int type;
+    final String uuid; // characteristic uuid in upper case, or null
+    final int priority;
+    final String tag; // operations with the same tag can be cancelled together
+    final GattFuture future = new GattFuture();
+    int timeout = DEFAULT_TIMEOUT;
+    long seq; // FIFO order within the same priority
+    long enqueueTime;
+
+    GattOperation(int type, String uuid, int priority, String tag) {
+        this.type = type;
+        this.uuid = (uuid != null) ? uuid.toUpperCase() : null;
+        this.priority = priority;
+        this.tag = tag;
+    }
+
+    /**
+     * Execute the operation.
+     *
+     * @param gatt  BluetoothGatt object
+     * @return      {@code true} the Bluetooth stack accepted the operation;
+     *              {@code false} otherwise
+     */
+    abstract boolean execute(BluetoothGatt gatt);
+
+    boolean matches(int type, String uuid) {
+        if (this.type != type) return false;
+        return this.uuid == null || uuid == null || this.uuid.equalsIgnoreCase(uuid);
+    }
+
+    // Operations on characteristics --- START
+    static GattOperation read(final BLEDeviceBean bean, final String uuid, int priority, String tag) {
+        return new GattOperation(TYPE_READ, uuid, priority, tag) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                BluetoothGattCharacteristic gattCharacteristic = bean.getCharMap().get(this.uuid);
+                return gattCharacteristic != null && gatt.readCharacteristic(gattCharacteristic);
+            }
+        };
+    }
+
+    static GattOperation write(final BLEDeviceBean bean, final String uuid, final byte[] data, int priority) {
+        return new GattOperation(TYPE_WRITE, uuid, priority, null) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return writeCharacteristic(gatt, bean.getCharMap().get(this.uuid), data);
+            }
+        };
+    }
+
+    static GattOperation descriptor(final BLEDeviceBean bean, final String uuid, int priority, String tag) {
+        return new GattOperation(TYPE_DESCRIPTOR, uuid, priority, tag) {
+            @Override
+            boolean execute(BluetoothGatt gatt) {
+                return enableNotification(gatt, bean.getCharMap().get(this.uuid), UUID.fromString(EpdProtocol.CCC_DESCRIPTOR_UUID), true);
+            }
+        };
+    }
+
+    static boolean writeCharacteristic(BluetoothGatt gatt, BluetoothGattCharacteristic gattCharacteristic, byte[] data) {
+        boolean result = false;
+        if (gattCharacteristic != null) {
+            // the value is shared by the characteristic, so set and write it atomically
+            synchronized (gattCharacteristic) {
+                gattCharacteristic.setValue(data);
+                gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                result = gatt.writeCharacteristic(gattCharacteristic);
+            }
+        }
+        return result;
+    }
+
+    static boolean enableNotification(BluetoothGatt gatt, BluetoothGattCharacteristic gattCharacteristic, UUID descripterUUID, boolean enable) {
+        boolean result = false;
+        if (gattCharacteristic != null) {
+            // Enable Local Notification
+            gatt.setCharacteristicNotification(gattCharacteristic, enable);
+
+            // Enable Remote Notification
+            BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(descripterUUID);
+            if (enable)
+                descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            else
+                descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            result = gatt.writeDescriptor(descriptor);
+        }
+        return result;
+    }
+    // Operations on characteristics --- END
+
+    @Override
+    public String toString() {
+        return "GattOperation{type=" + type + ", uuid=" + uuid + ", priority=" + priority + "}";
+    }
+}
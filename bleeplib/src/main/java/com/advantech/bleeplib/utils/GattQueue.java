@@ -0,0 +1,250 @@
+package com.advantech.bleeplib.utils;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+
+import com.advantech.bleeplib.bean.GattQueueStats;
+import com.advantech.bleeplib.trace.Tracer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * GattQueue serializes the GATT operations of a connection, for internal usage. Android allows
+ * only one outstanding GATT operation per connection, so operations are queued by priority and
+ * executed one by one. Each operation is completed by its GATT callback or by its timeout, and the
+ * next one starts afterward.
+ * <p>
+ * Image blocks are written by the block transfer on the data lane, outside this queue. Queued
+ * operations pre-empt the data lane between blocks: while an operation is queued, the block
+ * transfer stops writing, the operation executes when the blocks in flight are confirmed, and the
+ * block transfer resumes when the queue is empty.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class GattQueue {
+
+    interface DataLane {
+        // whether block writes are accepted by the stack but not yet confirmed
+        boolean isDataInFlight();
+
+        // the queue is empty, the data lane can continue
+        void onQueueIdle();
+    }
+
+    private final BLEDeviceBean bean;
+    private final Handler handler;
+    private DataLane dataLane;
+    private final PriorityQueue<GattOperation> queue = new PriorityQueue<>(11, new Comparator<GattOperation>() {
+        @Override
+        public int compare(GattOperation o1, GattOperation o2) {
+            if (o1.priority != o2.priority) return o1.priority - o2.priority;
+            return Long.compare(o1.seq, o2.seq);
+        }
+    });
+    private GattOperation current;
+    private Runnable timeoutRunnable;
+    private long seq = 0;
+    private volatile boolean isBusy = false; // read by the data lane without the queue lock
+    private boolean isWaitingData = false;
+
+    // metrics
+    private int maxDepth = 0;
+    private long executedCount = 0;
+    private long failedCount = 0;
+    private long timeoutCount = 0;
+    private long preemptCount = 0;
+    private long totalWaitTime = 0;
+
+    GattQueue(BLEDeviceBean bean, Handler handler) {
+        this.bean = bean;
+        this.handler = handler;
+    }
+
+    void setDataLane(DataLane dataLane) {
+        this.dataLane = dataLane;
+    }
+
+    /**
+     * Add an operation to the queue.
+     *
+     * @return  the completion future of the operation
+     */
+    GattFuture enqueue(GattOperation operation) {
+        synchronized (this) {
+            operation.seq = seq++;
+            operation.enqueueTime = System.currentTimeMillis();
+            queue.offer(operation);
+            isBusy = true;
+            int depth = getDepth();
+            if (depth > maxDepth) maxDepth = depth;
+        }
+        next();
+        return operation.future;
+    }
+
+    /**
+     * Whether the data lane has to yield to queued operations.
+     *
+     * @return  {@code true} an operation is queued or in progress;
+     *          {@code false} the data lane can write
+     */
+    boolean isBusy() {
+        return isBusy;
+    }
+
+    synchronized int getDepth() {
+        return queue.size() + (current != null ? 1 : 0);
+    }
+
+    /**
+     * Complete the operation in progress by a GATT callback.
+     *
+     * @param type      operation type
+     * @param uuid      characteristic uuid of the callback
+     * @param status    GATT status of the callback
+     * @param value     value of the callback
+     */
+    void onCallback(int type, String uuid, int status, byte[] value) {
+        GattOperation operation;
+        synchronized (this) {
+            if (current == null || !current.matches(type, uuid)) return;
+            operation = current;
+            finishCurrent();
+            if (status != BluetoothGatt.GATT_SUCCESS) failedCount++;
+        }
+        operation.future.complete(status, value);
+        next();
+    }
+
+    // the blocks in flight are confirmed
+    void onDataIdle() {
+        next();
+    }
+
+    /**
+     * Cancel the queued operations with a tag, e.g. the rest of the handshake sequence.
+     */
+    void cancel(String tag) {
+        List<GattOperation> cancelled = new ArrayList<>();
+        synchronized (this) {
+            Iterator<GattOperation> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                GattOperation operation = iterator.next();
+                if (tag != null && tag.equals(operation.tag)) {
+                    iterator.remove();
+                    cancelled.add(operation);
+                }
+            }
+            updateBusy();
+        }
+        for (GattOperation operation : cancelled) {
+            operation.future.complete(GattFuture.STATUS_CANCELLED, null);
+        }
+    }
+
+    /**
+     * Cancel all operations, e.g. after the disconnection.
+     */
+    void clear() {
+        List<GattOperation> cancelled = new ArrayList<>();
+        synchronized (this) {
+            if (current != null) {
+                cancelled.add(current);
+                finishCurrent();
+            }
+            cancelled.addAll(queue);
+            queue.clear();
+            updateBusy();
+        }
+        for (GattOperation operation : cancelled) {
+            operation.future.complete(GattFuture.STATUS_CANCELLED, null);
+        }
+    }
+
+    synchronized GattQueueStats getStats() {
+        return new GattQueueStats(getDepth(), maxDepth, executedCount, failedCount, timeoutCount, preemptCount,
+                executedCount > 0 ? totalWaitTime / executedCount : 0);
+    }
+
+    // execute the next operation if the connection is free
+    private void next() {
+        while (true) {
+            final GattOperation operation;
+            synchronized (this) {
+                if (current != null) return;
+                if (queue.isEmpty()) break;
+                // pre-empt the data lane between blocks, the data lane stops writing while the
+                // queue is busy, and the operation executes when the blocks in flight are confirmed
+                if (dataLane != null && dataLane.isDataInFlight()) {
+                    if (!isWaitingData) preemptCount++;
+                    isWaitingData = true;
+                    return;
+                }
+                isWaitingData = false;
+                operation = queue.poll();
+                current = operation;
+                executedCount++;
+                totalWaitTime += System.currentTimeMillis() - operation.enqueueTime;
+                if (operation.type != GattOperation.TYPE_IMMEDIATE) {
+                    timeoutRunnable = new Runnable() {
+                        @Override
+                        public void run() {
+                            onTimeout(operation);
+                        }
+                    };
+                    handler.postDelayed(timeoutRunnable, operation.timeout);
+                }
+            }
+
+            boolean result = false;
+            BluetoothGatt gatt = bean.getBluetoothGatt();
+            try {
+                result = gatt != null && operation.execute(gatt);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            synchronized (this) {
+                if (current != operation) continue; // completed in the meantime
+                if (result && operation.type != GattOperation.TYPE_IMMEDIATE) return; // wait for the callback
+                finishCurrent();
+                if (!result) failedCount++;
+            }
+            operation.future.complete(result ? BluetoothGatt.GATT_SUCCESS : GattFuture.STATUS_NOT_SENT, null);
+        }
+        if (dataLane != null) dataLane.onQueueIdle();
+    }
+
+    private void onTimeout(GattOperation operation) {
+        synchronized (this) {
+            if (current != operation) return;
+            current = null;
+            timeoutRunnable = null;
+            timeoutCount++;
+            updateBusy();
+        }
+        if (Tracer.isLoggable(Tracer.ERROR)) {
+            Tracer.trace(Tracer.ERROR, Tracer.PHASE_GATT, bean.getAddress(), -1, GattFuture.STATUS_TIMEOUT, -1, operation.toString());
+        }
+        operation.future.complete(GattFuture.STATUS_TIMEOUT, null);
+        next();
+    }
+
+    private void finishCurrent() {
+        current = null;
+        if (timeoutRunnable != null) {
+            handler.removeCallbacks(timeoutRunnable);
+            timeoutRunnable = null;
+        }
+        updateBusy();
+    }
+
+    private void updateBusy() {
+        isBusy = current != null || !queue.isEmpty();
+    }
+}
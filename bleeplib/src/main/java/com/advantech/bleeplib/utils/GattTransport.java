@@ -0,0 +1,110 @@
+package com.advantech.bleeplib.utils;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothStatusCodes;
+import android.os.Build;
+
+import com.advantech.bleeplib.protocol.EpdProtocol;
+import com.advantech.bleeplib.protocol.EpdTransport;
+
+/**
+ * GattTransport is the Android BluetoothGatt binding of {@link EpdTransport}, for internal usage.
+ * Image block writes go straight to the Bluetooth stack, so they can stream within the in-flight
+ * window; other writes, reads and descriptor writes are serialized in the {@link GattQueue} of the
+ * connection. BLEUtil forwards the block write callbacks and the notifications.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class GattTransport implements EpdTransport {
+    private final BLEDeviceBean bean;
+    private Callback callback;
+
+    GattTransport(BLEDeviceBean bean) {
+        this.bean = bean;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public int write(final String uuid, byte[] value) {
+        if (EpdProtocol.IMAGE_BLOCK_CHAR_UUID.equalsIgnoreCase(uuid)) return writeBlock(value);
+        if (bean.getCharMap().get(uuid.toUpperCase()) == null) return WRITE_ERROR;
+        bean.getGattQueue().enqueue(GattOperation.write(bean, uuid, value, GattOperation.PRIORITY_NORMAL))
+                .setListener(new GattFuture.Listener() {
+                    @Override
+                    public void onComplete(int status, byte[] read) {
+                        if (callback != null) callback.onWriteComplete(uuid, status);
+                    }
+                });
+        return WRITE_SUCCESS;
+    }
+
+    @Override
+    public boolean read(final String uuid) {
+        if (bean.getCharMap().get(uuid.toUpperCase()) == null) return false;
+        bean.getGattQueue().enqueue(GattOperation.read(bean, uuid, GattOperation.PRIORITY_NORMAL, null))
+                .setListener(new GattFuture.Listener() {
+                    @Override
+                    public void onComplete(int status, byte[] read) {
+                        if (callback != null) callback.onRead(uuid, status, read);
+                    }
+                });
+        return true;
+    }
+
+    @Override
+    public boolean enableNotify(final String uuid) {
+        if (bean.getCharMap().get(uuid.toUpperCase()) == null) return false;
+        bean.getGattQueue().enqueue(GattOperation.descriptor(bean, uuid, GattOperation.PRIORITY_NORMAL, null))
+                .setListener(new GattFuture.Listener() {
+                    @Override
+                    public void onComplete(int status, byte[] read) {
+                        if (callback != null) callback.onNotifyEnabled(uuid, status);
+                    }
+                });
+        return true;
+    }
+
+    @Override
+    public boolean isPaused() {
+        return bean.getGattQueue().isBusy();
+    }
+
+    @Override
+    public void onDataIdle() {
+        bean.getGattQueue().onDataIdle();
+    }
+
+    // GATT callbacks --- START
+    void onBlockWritten(int status) {
+        if (callback != null) callback.onWriteComplete(EpdProtocol.IMAGE_BLOCK_CHAR_UUID, status);
+    }
+
+    void onNotify(String uuid, byte[] value) {
+        if (callback != null) callback.onNotify(uuid, value);
+    }
+
+    void onQueueIdle() {
+        if (callback != null) callback.onResume();
+    }
+    // GATT callbacks --- END
+
+    private int writeBlock(byte[] value) {
+        BluetoothGatt gatt = bean.getBluetoothGatt();
+        BluetoothGattCharacteristic gattCharacteristic = bean.getCharMap().get(EpdProtocol.IMAGE_BLOCK_CHAR_UUID);
+        if (gatt == null || gattCharacteristic == null) return WRITE_ERROR;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            int status = gatt.writeCharacteristic(gattCharacteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            if (status == BluetoothStatusCodes.SUCCESS) return WRITE_SUCCESS;
+            if (status == BluetoothStatusCodes.ERROR_GATT_WRITE_REQUEST_BUSY) return WRITE_BUSY;
+            return WRITE_ERROR;
+        }
+        // before Android 13, a rejected write is mostly caused by a busy stack
+        return GattOperation.writeCharacteristic(gatt, gattCharacteristic, value) ? WRITE_SUCCESS : WRITE_BUSY;
+    }
+}
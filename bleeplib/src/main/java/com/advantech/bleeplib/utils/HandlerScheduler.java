@@ -0,0 +1,36 @@
+package com.advantech.bleeplib.utils;
+
+import android.os.Handler;
+
+import com.advantech.bleeplib.protocol.EpdScheduler;
+
+/**
+ * HandlerScheduler runs the timers of the image transfer engines on an Android Handler, for
+ * internal usage.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+class HandlerScheduler implements EpdScheduler {
+    private final Handler handler;
+
+    HandlerScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public long now() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public Object schedule(Runnable task, long delay) {
+        handler.postDelayed(task, delay);
+        return task;
+    }
+
+    @Override
+    public void cancel(Object token) {
+        if (token instanceof Runnable) handler.removeCallbacks((Runnable) token);
+    }
+}
@@ -0,0 +1,142 @@
+package com.advantech.bleeplib.utils;
+
+/**
+ * HandshakeProfile defines the handshake steps between the connection and the task. The full
+ * handshake requests the MTU, enables four notifications one after another, and reads the firmware
+ * version and the LED status. A profile enables only the notifications the task needs, and skips
+ * the firmware and LED reads while the cached values are fresh. Skipped reads are reported from
+ * the cache in the connection listener, and the LED read always reports the end of the handshake.
+ * <p>
+ * Each profile measures the time from the connection to the end of the handshake and to the first
+ * image block, so profiles can be compared on the field.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class HandshakeProfile {
+    public static final int NOTIFY_IMAGE_IDENTIFY = 0x01;
+    public static final int NOTIFY_IMAGE_BLOCK = 0x02;
+    public static final int NOTIFY_IMAGE_STATUS = 0x04;
+    public static final int NOTIFY_DEVICE_EVENT = 0x08; // alarm and image refresh events
+    public static final int NOTIFY_IMAGE = NOTIFY_IMAGE_IDENTIFY | NOTIFY_IMAGE_BLOCK | NOTIFY_IMAGE_STATUS;
+    public static final int NOTIFY_ALL = NOTIFY_IMAGE | NOTIFY_DEVICE_EVENT;
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+
+    // the original handshake: all notifications, always read the firmware version and LED status
+    public static final HandshakeProfile FULL = new HandshakeProfile("FULL", NOTIFY_ALL, true, true, 0, false);
+    // image notifications only, the firmware version (for the block length) is cached for a day
+    public static final HandshakeProfile PUSH_IMAGE = new HandshakeProfile("PUSH_IMAGE", NOTIFY_IMAGE, true, false, DAY, true);
+    // image notifications only, the firmware version for the comparison is cached for an hour
+    public static final HandshakeProfile FIRMWARE_UPGRADE = new HandshakeProfile("FIRMWARE_UPGRADE", NOTIFY_IMAGE, true, false, HOUR, true);
+    // no notification, always read the firmware version and LED status
+    public static final HandshakeProfile CHECK_STATUS = new HandshakeProfile("CHECK_STATUS", 0, true, true, 0, false);
+
+    private final String name;
+    private final int notifications;
+    private final boolean isFirmwareNeeded;
+    private final boolean isLEDNeeded;
+    private final long maxCacheAge;
+    private final boolean isFastLink;
+
+    // metrics
+    private int handshakeCount = 0;
+    private long totalTimeToReady = 0;
+    private int firstBlockCount = 0;
+    private long totalTimeToFirstBlock = 0;
+
+    /**
+     * New a handshake profile.
+     *
+     * @param name              profile name for the logs
+     * @param notifications     notifications to enable, e.g. {@code NOTIFY_IMAGE}
+     * @param isFirmwareNeeded  {@code true} the firmware version is needed, it is read unless the
+     *                          cached one is fresh
+     * @param isLEDNeeded       {@code true} the LED status is needed, it is read unless the cached
+     *                          one is fresh
+     * @param maxCacheAge       the maximum age of the cached values in milliseconds; {@code 0} to
+     *                          always read them
+     * @param isFastLink        {@code true} request the high connection priority together with the
+     *                          MTU, so the rest of the handshake runs on a short connection interval
+     */
+    public HandshakeProfile(String name, int notifications, boolean isFirmwareNeeded, boolean isLEDNeeded, long maxCacheAge, boolean isFastLink) {
+        this.name = name;
+        this.notifications = notifications & NOTIFY_ALL;
+        this.isFirmwareNeeded = isFirmwareNeeded;
+        this.isLEDNeeded = isLEDNeeded;
+        this.maxCacheAge = Math.max(0, maxCacheAge);
+        this.isFastLink = isFastLink;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNotifications() {
+        return notifications;
+    }
+
+    public boolean isFirmwareNeeded() {
+        return isFirmwareNeeded;
+    }
+
+    public boolean isLEDNeeded() {
+        return isLEDNeeded;
+    }
+
+    public long getMaxCacheAge() {
+        return maxCacheAge;
+    }
+
+    public boolean isFastLink() {
+        return isFastLink;
+    }
+
+    // whether a value cached at the time is fresh for this profile
+    boolean isFresh(long cacheTime, long now) {
+        return maxCacheAge > 0 && cacheTime > 0 && now - cacheTime < maxCacheAge;
+    }
+
+    synchronized void onHandshakeDone(long timeToReady) {
+        handshakeCount++;
+        totalTimeToReady += timeToReady;
+    }
+
+    synchronized void onFirstBlock(long timeToFirstBlock) {
+        firstBlockCount++;
+        totalTimeToFirstBlock += timeToFirstBlock;
+    }
+
+    public synchronized int getHandshakeCount() {
+        return handshakeCount;
+    }
+
+    /**
+     * Get the average time from the connection request to the end of the handshake.
+     *
+     * @return  the average time in milliseconds, or {@code -1} if not measured
+     */
+    public synchronized long getAverageTimeToReady() {
+        return handshakeCount > 0 ? totalTimeToReady / handshakeCount : -1;
+    }
+
+    /**
+     * Get the average time from the connection request to the first image block.
+     *
+     * @return  the average time in milliseconds, or {@code -1} if not measured
+     */
+    public synchronized long getAverageTimeToFirstBlock() {
+        return firstBlockCount > 0 ? totalTimeToFirstBlock / firstBlockCount : -1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "HandshakeProfile{" +
+                "name=" + name +
+                ", handshakes=" + handshakeCount +
+                ", timeToReady=" + getAverageTimeToReady() + " ms" +
+                ", timeToFirstBlock=" + getAverageTimeToFirstBlock() + " ms" +
+                '}';
+    }
+}
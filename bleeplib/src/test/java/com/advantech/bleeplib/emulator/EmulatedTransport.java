@@ -0,0 +1,339 @@
+package com.advantech.bleeplib.emulator;
+
+import com.advantech.bleeplib.protocol.EpdProtocol;
+import com.advantech.bleeplib.protocol.EpdTransport;
+
+import java.util.Random;
+
+/**
+ * EmulatedTransport is an {@link EpdTransport} over an emulated BLE link to an {@link EpdEmulator},
+ * in place of the {@code GattTransport} of {@code BLEUtil}. Writes share the link one packet at a time (the air time of
+ * each packet), and they are confirmed when they leave the link, like no-response writes on
+ * Android. The Bluetooth stack buffers at most {@code maxInFlight} writes, and it reports busy
+ * beyond that. Packets and notifications arrive after the link latency (plus a random jitter, in
+ * order), and image blocks and block notifications are lost with the loss rate. The connection
+ * takes the connect time, and it fails with the connect failure rate.
+ * <p>
+ * With a connection interval, the packets leave only in connection events: a write joins the
+ * running event if it is queued behind the packet on the air, otherwise it waits for the next
+ * event, and the writes are confirmed at the end of their event. A transfer which writes the next
+ * block on the write confirmation then sends one block per connection interval.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class EmulatedTransport implements EpdTransport, EpdEmulator.Link {
+    public static final int DEFAULT_LATENCY = 15; // ms
+    public static final int DEFAULT_WRITE_TIME = 4; // air time of a packet, ms
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    public static final int DEFAULT_CONNECT_TIME = 300; // ms
+    public static final int DEFAULT_REQUESTED_MTU = 251; // the MTU which BLEUtil requests
+    private static final int ATT_HEADER_LEN = 3;
+
+    public interface ConnectCallback {
+        void onConnectionStateChange(boolean isConnected);
+    }
+
+    private final VirtualClock clock;
+    private final EpdEmulator device;
+    private final Random random;
+    private Callback callback;
+
+    // configuration
+    private int latency = DEFAULT_LATENCY;
+    private int jitter = 0;
+    private int writeTime = DEFAULT_WRITE_TIME;
+    private int connectionInterval = 0; // ms, 0: the packets leave back-to-back
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private double lossRate = 0;
+    private int connectTime = DEFAULT_CONNECT_TIME;
+    private double connectFailureRate = 0;
+    private int requestedMtu = DEFAULT_REQUESTED_MTU;
+
+    // state
+    private boolean isConnected = false;
+    private int connection = 0; // events of an old connection are dropped
+    private int inFlight = 0;
+    private long linkFreeAt = 0; // the link is busy with writes until this time
+    private long lastUplinkAt = 0; // packets arrive in order
+    private long lastDownlinkAt = 0;
+
+    // statistics
+    private int writeCount = 0;
+    private int busyCount = 0;
+    private int lostWrites = 0;
+    private int lostNotifications = 0;
+    private int connectFailures = 0;
+
+    /**
+     * New a transport to a device emulator.
+     *
+     * @param clock     the clock of the simulation
+     * @param device    the device emulator
+     * @param seed      the seed of the random loss, jitter and connect failures
+     */
+    public EmulatedTransport(VirtualClock clock, EpdEmulator device, long seed) {
+        this.clock = clock;
+        this.device = device;
+        this.random = new Random(seed);
+        device.setLink(this);
+    }
+
+    // Configuration --- START
+    public void setLatency(int latency, int jitter) {
+        this.latency = Math.max(0, latency);
+        this.jitter = Math.max(0, jitter);
+    }
+
+    public void setWriteTime(int writeTime) {
+        this.writeTime = Math.max(0, writeTime);
+    }
+
+    public void setConnectionInterval(int connectionInterval) {
+        this.connectionInterval = Math.max(0, connectionInterval);
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    public void setConnectTime(int connectTime) {
+        this.connectTime = Math.max(0, connectTime);
+    }
+
+    public void setConnectFailureRate(double connectFailureRate) {
+        this.connectFailureRate = connectFailureRate;
+    }
+
+    public void setRequestedMtu(int requestedMtu) {
+        this.requestedMtu = requestedMtu;
+    }
+    // Configuration --- END
+
+    /**
+     * Connect to the device. The MTU exchange is included in the connect time.
+     *
+     * @param connectCallback   the connection result
+     */
+    public void connect(final ConnectCallback connectCallback) {
+        final int id = ++connection;
+        clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (id != connection) return;
+                if (connectFailureRate > 0 && random.nextDouble() < connectFailureRate) {
+                    connectFailures++;
+                    connectCallback.onConnectionStateChange(false);
+                    return;
+                }
+                isConnected = true;
+                inFlight = 0;
+                connectCallback.onConnectionStateChange(true);
+            }
+        }, connectTime);
+    }
+
+    // drop the link, the events in flight are lost
+    public void disconnect() {
+        connection++;
+        isConnected = false;
+        inFlight = 0;
+        device.onDisconnect();
+    }
+
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    // the negotiated ATT MTU
+    public int getMtu() {
+        return Math.min(requestedMtu, device.getMtu());
+    }
+
+    public EpdEmulator getDevice() {
+        return device;
+    }
+
+    // EpdTransport --- START
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public int write(final String uuid, byte[] value) {
+        if (!isConnected || value == null || value.length > getMtu() - ATT_HEADER_LEN) return WRITE_ERROR;
+        final boolean isBlock = EpdProtocol.IMAGE_BLOCK_CHAR_UUID.equalsIgnoreCase(uuid);
+        if (isBlock && inFlight >= maxInFlight) {
+            busyCount++;
+            return WRITE_BUSY;
+        }
+        final byte[] packet = value.clone();
+        final int id = connection;
+        writeCount++;
+        inFlight++;
+        long start = getSendTime();
+        linkFreeAt = start + writeTime;
+        // confirmed when the packet leaves the link, or at the end of its connection event
+        final long confirmAt = (connectionInterval > 0)
+                ? start / connectionInterval * connectionInterval + connectionInterval : linkFreeAt;
+        clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (id != connection) return;
+                if (isBlock && lossRate > 0 && random.nextDouble() < lossRate) {
+                    lostWrites++;
+                } else {
+                    uplink(id, new Runnable() {
+                        @Override
+                        public void run() {
+                            device.write(uuid, packet);
+                        }
+                    });
+                }
+                clock.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (id != connection) return;
+                        inFlight--;
+                        if (callback != null) callback.onWriteComplete(uuid, STATUS_SUCCESS);
+                    }
+                }, confirmAt - clock.now());
+            }
+        }, linkFreeAt - clock.now());
+        return WRITE_SUCCESS;
+    }
+
+    // the time at which the next packet goes on the air
+    private long getSendTime() {
+        long now = clock.now();
+        if (connectionInterval <= 0) return Math.max(now, linkFreeAt);
+        long start;
+        if (now < linkFreeAt) {
+            start = linkFreeAt; // queued behind the packet on the air
+        } else {
+            start = (now + connectionInterval - 1) / connectionInterval * connectionInterval; // the next connection event
+        }
+        long event = start / connectionInterval * connectionInterval;
+        // no air time left in the event
+        if (start + writeTime > event + connectionInterval) start = event + connectionInterval;
+        return start;
+    }
+
+    @Override
+    public boolean read(final String uuid) {
+        if (!isConnected) return false;
+        final int id = connection;
+        uplink(id, new Runnable() {
+            @Override
+            public void run() {
+                final byte[] value = device.read(uuid);
+                downlink(id, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (callback != null) callback.onRead(uuid, STATUS_SUCCESS, value);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean enableNotify(final String uuid) {
+        if (!isConnected) return false;
+        final int id = connection;
+        uplink(id, new Runnable() {
+            @Override
+            public void run() {
+                device.enableNotify(uuid);
+                downlink(id, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (callback != null) callback.onNotifyEnabled(uuid, STATUS_SUCCESS);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean isPaused() {
+        return false;
+    }
+
+    @Override
+    public void onDataIdle() {
+    }
+    // EpdTransport --- END
+
+    // EpdEmulator.Link --- START
+    @Override
+    public void notify(final String uuid, byte[] value) {
+        if (!isConnected) return;
+        if (EpdProtocol.IMAGE_BLOCK_CHAR_UUID.equalsIgnoreCase(uuid) && lossRate > 0 && random.nextDouble() < lossRate) {
+            lostNotifications++;
+            return;
+        }
+        final byte[] notify_data = value.clone();
+        downlink(connection, new Runnable() {
+            @Override
+            public void run() {
+                if (callback != null) callback.onNotify(uuid, notify_data);
+            }
+        });
+    }
+    // EpdEmulator.Link --- END
+
+    // central -> device
+    private void uplink(final int id, final Runnable task) {
+        lastUplinkAt = Math.max(lastUplinkAt, clock.now() + nextLatency());
+        schedule(id, task, lastUplinkAt);
+    }
+
+    // device -> central
+    private void downlink(final int id, final Runnable task) {
+        lastDownlinkAt = Math.max(lastDownlinkAt, clock.now() + nextLatency());
+        schedule(id, task, lastDownlinkAt);
+    }
+
+    private void schedule(final int id, final Runnable task, long time) {
+        clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (id == connection && isConnected) task.run();
+            }
+        }, time - clock.now());
+    }
+
+    private int nextLatency() {
+        return (jitter > 0) ? latency + random.nextInt(jitter + 1) : latency;
+    }
+
+    // Statistics --- START
+    public int getWriteCount() {
+        return writeCount;
+    }
+
+    public int getBusyCount() {
+        return busyCount;
+    }
+
+    public int getLostWrites() {
+        return lostWrites;
+    }
+
+    public int getLostNotifications() {
+        return lostNotifications;
+    }
+
+    public int getConnectFailures() {
+        return connectFailures;
+    }
+    // Statistics --- END
+}
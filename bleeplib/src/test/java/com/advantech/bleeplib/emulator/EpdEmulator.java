@@ -0,0 +1,338 @@
+package com.advantech.bleeplib.emulator;
+
+import com.advantech.bleeplib.frame.FrameCodec;
+import com.advantech.bleeplib.protocol.EpdProtocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * EpdEmulator is a software model of the GATT server of an Advantech EPD device. It speaks the
+ * protocol of {@code BLEUtil}:
+ * <pre>
+ * 1. the image header is written to the image identify characteristic; an invalid header is
+ *    rejected by an image identify notification;
+ * 2. the device notifies the block number it needs next, and it requests the expected block again
+ *    if a block is lost or out of order;
+ * 3. after the last block, the frame is committed to the flash and the CRC value is verified, and
+ *    the result is notified on the image status characteristic (00 - 04);
+ * 4. an image with the refresh flag is refreshed, and a refresh event is notified on the device
+ *    event characteristic.
+ * </pre>
+ * A partially received frame is kept across disconnections, so a transfer resumes from the
+ * expected block if the same header is written again. The flash write time, commit time and
+ * refresh time are configurable, and all timing runs on a {@link VirtualClock}.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class EpdEmulator {
+    public static final String DEFAULT_FIRMWARE_VERSION = "1.0.0";
+    public static final int DEFAULT_MTU = 247; // ATT MTU which the device supports
+    public static final int DEFAULT_MAX_IMAGE_SIZE = 1024 * 1024;
+
+    // notifications of the device, delivered by the link
+    public interface Link {
+        void notify(String uuid, byte[] value);
+    }
+
+    private final VirtualClock clock;
+    private final Random random;
+    private Link link;
+
+    // configuration
+    private int mtu = DEFAULT_MTU;
+    private int blockLength = FrameCodec.BLOCK_LEN;
+    private int flashWriteTime = 0; // per block, ms
+    private int flashCommitTime = 200; // before the image status, ms
+    private int refreshTime = 1000; // before the refresh event, ms
+    private int maxImageSize = DEFAULT_MAX_IMAGE_SIZE;
+    private double corruptRate = 0; // probability that a received block is corrupted
+    private boolean isFlashError = false;
+    private String firmwareVersion = DEFAULT_FIRMWARE_VERSION;
+    private String nextFirmwareVersion; // firmware version after a successful upgrade
+    private byte ledState = 0x2a; // all LEDs closed
+
+    // state
+    private final Set<String> notifyUuids = new HashSet<>(); // enabled notifications
+    private byte[] header; // image header of the frame in transfer
+    private byte[] frameData;
+    private int totalBlocks;
+    private int expectedBlock;
+    private long busyUntil = 0; // the flash is busy until this time
+
+    // statistics
+    private int identifyCount = 0;
+    private int receivedBlocks = 0;
+    private int unexpectedBlocks = 0;
+    private int resumeCount = 0;
+    private int[] statusCounts = new int[5];
+    private int refreshCount = 0;
+
+    /**
+     * New a device emulator.
+     *
+     * @param clock     the clock of the simulation
+     * @param seed      the seed of the random corruption
+     */
+    public EpdEmulator(VirtualClock clock, long seed) {
+        this.clock = clock;
+        this.random = new Random(seed);
+    }
+
+    void setLink(Link link) {
+        this.link = link;
+    }
+
+    // Configuration --- START
+    public void setMtu(int mtu) {
+        this.mtu = Math.max(23, mtu);
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    public void setBlockLength(int blockLength) {
+        this.blockLength = blockLength;
+    }
+
+    public void setFlashWriteTime(int flashWriteTime) {
+        this.flashWriteTime = Math.max(0, flashWriteTime);
+    }
+
+    public void setFlashCommitTime(int flashCommitTime) {
+        this.flashCommitTime = Math.max(0, flashCommitTime);
+    }
+
+    public void setRefreshTime(int refreshTime) {
+        this.refreshTime = Math.max(0, refreshTime);
+    }
+
+    public void setMaxImageSize(int maxImageSize) {
+        this.maxImageSize = maxImageSize;
+    }
+
+    public void setCorruptRate(double corruptRate) {
+        this.corruptRate = corruptRate;
+    }
+
+    public void setFlashError(boolean isFlashError) {
+        this.isFlashError = isFlashError;
+    }
+
+    public void setFirmwareVersion(String firmwareVersion) {
+        this.firmwareVersion = firmwareVersion;
+    }
+
+    public String getFirmwareVersion() {
+        return firmwareVersion;
+    }
+
+    public void setNextFirmwareVersion(String nextFirmwareVersion) {
+        this.nextFirmwareVersion = nextFirmwareVersion;
+    }
+
+    public byte getLedState() {
+        return ledState;
+    }
+    // Configuration --- END
+
+    // GATT server --- START
+    byte[] read(String uuid) {
+        if (EpdProtocol.FIRMWARE_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            return firmwareVersion.getBytes(StandardCharsets.UTF_8);
+        } else if (EpdProtocol.LED_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            return new byte[]{ledState};
+        }
+        return new byte[0];
+    }
+
+    void enableNotify(String uuid) {
+        notifyUuids.add(uuid.toUpperCase());
+    }
+
+    // the client characteristic configuration is not kept for unbonded clients
+    void onDisconnect() {
+        notifyUuids.clear();
+    }
+
+    void write(String uuid, byte[] value) {
+        if (EpdProtocol.IMAGE_ID_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            onIdentify(value);
+        } else if (EpdProtocol.IMAGE_BLOCK_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            onBlock(value);
+        } else if (EpdProtocol.LED_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            if (value != null && value.length > 0) writeLED(value[0]);
+        }
+    }
+    // GATT server --- END
+
+    // each 2-bit field: 0b11 open, 0b10 close, otherwise unchanged
+    private void writeLED(byte value) {
+        int led = ledState;
+        for (int i = 0; i < 3; i++) {
+            int bits = (value >> (i * 2)) & 0b11;
+            if ((bits & 0b10) != 0) led = (led & ~(0b11 << (i * 2))) | (bits << (i * 2));
+        }
+        ledState = (byte) led;
+    }
+
+    private void onIdentify(byte[] value) {
+        identifyCount++;
+        if (value == null || value.length < FrameCodec.IMAGE_HEADER_LEN) {
+            notifyClient(EpdProtocol.IMAGE_ID_CHAR_UUID, new byte[]{0x00});
+            return;
+        }
+        int type = FrameCodec.readImageType(value);
+        int length = FrameCodec.readFrameLength(value);
+        if ((type != FrameCodec.IMAGE_TYPE_IMAGE && type != FrameCodec.IMAGE_TYPE_FIRMWARE) || length <= FrameCodec.IMAGE_HEADER_LEN) {
+            notifyClient(EpdProtocol.IMAGE_ID_CHAR_UUID, new byte[]{0x00});
+            return;
+        }
+        if (length > maxImageSize) {
+            finish(EpdProtocol.STATUS_IDENTIFY_ERROR);
+            return;
+        }
+        byte[] newHeader = Arrays.copyOf(value, FrameCodec.IMAGE_HEADER_LEN);
+        if (header != null && Arrays.equals(header, newHeader) && expectedBlock > 0 && expectedBlock < totalBlocks) {
+            // the same image identity, continue from the expected block
+            resumeCount++;
+        } else {
+            header = newHeader;
+            frameData = new byte[length];
+            System.arraycopy(newHeader, 0, frameData, 0, newHeader.length);
+            totalBlocks = FrameCodec.getTotalBlockNumber(length, blockLength);
+            expectedBlock = 0;
+        }
+        requestBlock(expectedBlock);
+    }
+
+    // blocks are written to the flash one by one
+    private void onBlock(final byte[] value) {
+        long start = Math.max(clock.now(), busyUntil);
+        busyUntil = start + flashWriteTime;
+        clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                processBlock(value);
+            }
+        }, busyUntil - clock.now());
+    }
+
+    private void processBlock(byte[] value) {
+        if (header == null || value == null || value.length < 2) return;
+        int block_number = EpdProtocol.parseBlockNumber(value);
+        if (block_number >= totalBlocks) {
+            finish(EpdProtocol.STATUS_BLOCK_OVERFLOW);
+            return;
+        }
+        if (block_number != expectedBlock) {
+            // lost or repeated block, ask for the expected block again
+            unexpectedBlocks++;
+            requestBlock(expectedBlock);
+            return;
+        }
+        receivedBlocks++;
+        int from = FrameCodec.IMAGE_HEADER_LEN + block_number * blockLength;
+        int count = Math.max(0, Math.min(Math.min(blockLength, value.length - 2), frameData.length - from));
+        System.arraycopy(value, 2, frameData, from, count);
+        if (corruptRate > 0 && count > 0 && random.nextDouble() < corruptRate) {
+            frameData[from] ^= 0x5a;
+        }
+        expectedBlock++;
+        if (expectedBlock < totalBlocks) {
+            requestBlock(expectedBlock);
+            return;
+        }
+        // commit the frame to the flash, and then verify it
+        long start = Math.max(clock.now(), busyUntil);
+        busyUntil = start + flashCommitTime;
+        clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        }, busyUntil - clock.now());
+    }
+
+    private void commit() {
+        if (frameData == null) return;
+        byte[] frame = frameData;
+        if (FrameCodec.readFrameCRC(frame) != FrameCodec.crc16CCITT(frame, 2, frame.length)) {
+            finish(EpdProtocol.STATUS_CRC_ERROR);
+            return;
+        }
+        if (isFlashError) {
+            finish(EpdProtocol.STATUS_FLASH_ERROR);
+            return;
+        }
+        int type = FrameCodec.readImageType(frame);
+        final int page = frame[14] & 0xff;
+        boolean isRefresh = frame[15] == 0x01;
+        finish(EpdProtocol.STATUS_SUCCESS);
+        if (type == FrameCodec.IMAGE_TYPE_FIRMWARE) {
+            if (nextFirmwareVersion != null) firmwareVersion = nextFirmwareVersion;
+        } else if (isRefresh) {
+            clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    refreshCount++;
+                    notifyClient(EpdProtocol.DEVICE_EVENT_CHAR_UUID, new byte[]{EpdProtocol.EVENT_EPD, EpdProtocol.EVENT_SRC_REFRESH, 0x00, (byte) page});
+                }
+            }, refreshTime);
+        }
+    }
+
+    private void finish(int status) {
+        statusCounts[status]++;
+        header = null;
+        frameData = null;
+        expectedBlock = 0;
+        totalBlocks = 0;
+        notifyClient(EpdProtocol.IMAGE_STATUS_CHAR_UUID, new byte[]{(byte) status});
+    }
+
+    private void requestBlock(int block_number) {
+        notifyClient(EpdProtocol.IMAGE_BLOCK_CHAR_UUID, new byte[]{(byte) block_number, (byte) (block_number >> 8)});
+    }
+
+    private void notifyClient(String uuid, byte[] value) {
+        if (link != null && notifyUuids.contains(uuid.toUpperCase())) link.notify(uuid, value);
+    }
+
+    // Statistics --- START
+    public int getIdentifyCount() {
+        return identifyCount;
+    }
+
+    public int getReceivedBlocks() {
+        return receivedBlocks;
+    }
+
+    public int getUnexpectedBlocks() {
+        return unexpectedBlocks;
+    }
+
+    public int getResumeCount() {
+        return resumeCount;
+    }
+
+    public int getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * Get the number of transfers which ended with a status.
+     *
+     * @param status    {@code EpdProtocol.STATUS_SUCCESS} to {@code EpdProtocol.STATUS_IDENTIFY_ERROR}
+     * @return          the number of transfers
+     */
+    public int getStatusCount(int status) {
+        return statusCounts[status];
+    }
+    // Statistics --- END
+}
@@ -0,0 +1,255 @@
+package com.advantech.bleeplib.emulator;
+
+import com.advantech.bleeplib.bean.PanelType;
+import com.advantech.bleeplib.bean.TransferStats;
+import com.advantech.bleeplib.frame.FrameArena;
+import com.advantech.bleeplib.frame.FrameCodec;
+import com.advantech.bleeplib.frame.FrameSource;
+import com.advantech.bleeplib.protocol.EpdProtocol;
+import com.advantech.bleeplib.protocol.TransferCheckpoints;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connect, push and firmware flows of the image transfer engine against the device emulator.
+ */
+public class EpdEmulatorTest {
+    private static final long MAX_TIME = 10 * 60 * 1000; // 10 min of virtual time
+
+    private final FrameArena arena = new FrameArena();
+
+    private FrameSource imageFrame(int page, int action, int seed) {
+        return imageFrame(PanelType.EPD250, page, action, seed);
+    }
+
+    private FrameSource imageFrame(PanelType panelType, int page, int action, int seed) {
+        byte[] planeData = new byte[FrameCodec.getPlaneLength(panelType)];
+        for (int i = 0; i < planeData.length; i++) {
+            planeData[i] = (byte) (i * 31 + seed);
+        }
+        return arena.put(FrameCodec.addPaddingData(FrameCodec.frameImage(planeData, page, action), FrameCodec.BLOCK_LEN));
+    }
+
+    private FrameSource firmwareFrame() {
+        byte[] packageData = new byte[20000];
+        for (int i = 0; i < packageData.length; i++) {
+            packageData[i] = (byte) (i * 7);
+        }
+        return arena.put(FrameCodec.addPaddingData(FrameCodec.frameFirmware(packageData), FrameCodec.BLOCK_LEN));
+    }
+
+    // records the result of a session
+    private static class Result implements EpdSession.Listener {
+        Boolean isReady;
+        int status = Integer.MIN_VALUE;
+
+        @Override
+        public void onReady(boolean isSuccess) {
+            isReady = isSuccess;
+        }
+
+        @Override
+        public void onTransferFinished(int status) {
+            this.status = status;
+        }
+    }
+
+    private EpdSession newSession(VirtualClock clock, EpdEmulator device, long seed, Result result) {
+        EmulatedTransport transport = new EmulatedTransport(clock, device, seed);
+        EpdSession session = new EpdSession("AA:BB:CC:DD:EE:" + seed, clock, transport, new TransferCheckpoints());
+        session.setListener(result);
+        return session;
+    }
+
+    // connect, push a frame and wait for the result
+    private int connectAndPush(VirtualClock clock, EpdSession session, Result result, FrameSource frame) {
+        session.open();
+        clock.runUntilIdle(MAX_TIME);
+        assertEquals(Boolean.TRUE, result.isReady);
+        assertTrue(session.push(frame));
+        clock.runUntilIdle(MAX_TIME);
+        return result.status;
+    }
+
+    @Test
+    public void pushImage_success() {
+        VirtualClock clock = new VirtualClock();
+        EpdEmulator device = new EpdEmulator(clock, 1);
+        Result result = new Result();
+        EpdSession session = newSession(clock, device, 1, result);
+
+        assertEquals(EpdProtocol.STATUS_SUCCESS, connectAndPush(clock, session, result, imageFrame(2, 1, 0)));
+        assertEquals(EpdEmulator.DEFAULT_FIRMWARE_VERSION, session.getFirmwareVersion());
+        assertEquals(2, session.getRefreshPage());
+        assertEquals(1, device.getRefreshCount());
+        assertEquals(0, device.getUnexpectedBlocks());
+        assertTrue(session.getTimeToReady() > 0);
+        assertTrue(session.getTransferTime() > 0);
+    }
+
+    @Test
+    public void push_recoversFromLoss() {
+        VirtualClock clock = new VirtualClock();
+        EpdEmulator device = new EpdEmulator(clock, 2);
+        Result result = new Result();
+        EpdSession session = newSession(clock, device, 2, result);
+        session.getTransport().setLossRate(0.1);
+        session.getTransport().setLatency(20, 10);
+        session.getEngine().setWindow(4);
+
+        assertEquals(EpdProtocol.STATUS_SUCCESS, connectAndPush(clock, session, result, firmwareFrame()));
+        assertTrue(session.getTransport().getLostWrites() > 0);
+        TransferStats stats = session.getEngine().getTransferStats();
+        assertTrue(stats.getRetransmittedBlocks() > 0);
+        // one rewind per lost block, not one per block written after it
+        assertTrue(stats.getRewindCount() <= session.getTransport().getLostWrites() + session.getTransport().getLostNotifications());
+        assertTrue(stats.getWrittenBlocks() < stats.getTotalBlocks() * 3);
+    }
+
+    @Test
+    public void pushImage_windowSpeedsUpLossyLink() {
+        FrameSource frame = imageFrame(PanelType.EPD353, 1, 1, 9);
+        TransferStats[] stats = new TransferStats[2];
+        int[] windows = {1, EmulatedTransport.DEFAULT_MAX_IN_FLIGHT};
+        for (int i = 0; i < windows.length; i++) {
+            VirtualClock clock = new VirtualClock();
+            EpdEmulator device = new EpdEmulator(clock, 9);
+            Result result = new Result();
+            EpdSession session = newSession(clock, device, 9, result);
+            session.getTransport().setConnectionInterval(30);
+            session.getTransport().setLatency(20, 0);
+            session.getTransport().setLossRate(0.01);
+            session.getEngine().setWindow(windows[i]);
+            assertEquals(EpdProtocol.STATUS_SUCCESS, connectAndPush(clock, session, result, frame));
+            stats[i] = session.getEngine().getTransferStats();
+            assertTrue(stats[i].getRetransmittedBlocks() > 0);
+        }
+        assertEquals(560, stats[0].getTotalBlocks());
+        // one block per connection event with window 1 (about 17.5 s), the air time limits the larger window (about 2.9 s)
+        assertTrue(stats[0].getElapsedTime() > 15 * 1000);
+        assertTrue(stats[1].getElapsedTime() < stats[0].getElapsedTime() / 4);
+    }
+
+    @Test
+    public void pushImage_statusCodes() {
+        VirtualClock clock = new VirtualClock();
+        EpdEmulator device = new EpdEmulator(clock, 3);
+        Result result = new Result();
+        EpdSession session = newSession(clock, device, 3, result);
+
+        device.setCorruptRate(1);
+        assertEquals(EpdProtocol.STATUS_CRC_ERROR, connectAndPush(clock, session, result, imageFrame(1, 0, 2)));
+        device.setCorruptRate(0);
+        device.setFlashError(true);
+        assertTrue(session.push(imageFrame(1, 0, 3)));
+        clock.runUntilIdle(MAX_TIME);
+        assertEquals(EpdProtocol.STATUS_FLASH_ERROR, result.status);
+        device.setFlashError(false);
+        // a block beyond the frame arrives right after the image header
+        assertTrue(session.push(imageFrame(1, 0, 4)));
+        byte[] packet = new byte[FrameCodec.BLOCK_LEN + 2];
+        packet[0] = (byte) 0xff;
+        packet[1] = (byte) 0xff;
+        session.getTransport().write(EpdProtocol.IMAGE_BLOCK_CHAR_UUID, packet);
+        clock.runUntilIdle(MAX_TIME);
+        assertEquals(EpdProtocol.STATUS_BLOCK_OVERFLOW, result.status);
+        device.setMaxImageSize(1024);
+        assertTrue(session.push(imageFrame(1, 0, 5)));
+        clock.runUntilIdle(MAX_TIME);
+        assertEquals(EpdProtocol.STATUS_IDENTIFY_ERROR, result.status);
+    }
+
+    @Test
+    public void firmwareUpgrade_newVersionAfterReconnect() {
+        VirtualClock clock = new VirtualClock();
+        EpdEmulator device = new EpdEmulator(clock, 4);
+        device.setNextFirmwareVersion("1.0.1");
+        Result result = new Result();
+        EpdSession session = newSession(clock, device, 4, result);
+
+        assertEquals(EpdProtocol.STATUS_SUCCESS, connectAndPush(clock, session, result, firmwareFrame()));
+        assertEquals(0, device.getRefreshCount());
+        session.close();
+        session.open();
+        clock.runUntilIdle(MAX_TIME);
+        assertEquals("1.0.1", session.getFirmwareVersion());
+    }
+
+    @Test
+    public void push_resumesAfterDisconnection() {
+        VirtualClock clock = new VirtualClock();
+        EpdEmulator device = new EpdEmulator(clock, 5);
+        Result result = new Result();
+        EpdSession session = newSession(clock, device, 5, result);
+        FrameSource frame = firmwareFrame();
+
+        session.open();
+        clock.runUntilIdle(MAX_TIME);
+        assertTrue(session.push(frame));
+        clock.advance(150);
+        session.close();
+        clock.runUntilIdle(MAX_TIME);
+        assertEquals(Integer.MIN_VALUE, result.status);
+
+        assertEquals(EpdProtocol.STATUS_SUCCESS, connectAndPush(clock, session, result, frame));
+        assertEquals(1, device.getResumeCount());
+        assertTrue(session.getEngine().getTransferStats().getResumedBlock() > 0);
+    }
+
+    @Test
+    public void simulation_isDeterministic() {
+        long[] times = new long[2];
+        for (int i = 0; i < times.length; i++) {
+            VirtualClock clock = new VirtualClock();
+            EpdEmulator device = new EpdEmulator(clock, 6);
+            device.setFlashWriteTime(1);
+            Result result = new Result();
+            EpdSession session = newSession(clock, device, 6, result);
+            session.getTransport().setLossRate(0.02);
+            session.getTransport().setLatency(10, 20);
+            assertEquals(EpdProtocol.STATUS_SUCCESS, connectAndPush(clock, session, result, imageFrame(1, 0, 7)));
+            times[i] = clock.now();
+        }
+        assertEquals(times[0], times[1]);
+    }
+
+    @Test
+    public void pushImage_manyDevicesOnOneClock() {
+        VirtualClock clock = new VirtualClock();
+        FrameSource frame = imageFrame(1, 1, 8);
+        List<EpdSession> sessions = new ArrayList<>();
+        final List<Result> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            EpdEmulator device = new EpdEmulator(clock, i);
+            final Result result = new Result();
+            final EpdSession session = newSession(clock, device, 100 + i, result);
+            session.getTransport().setLossRate(0.01);
+            session.setListener(new EpdSession.Listener() {
+                @Override
+                public void onReady(boolean isSuccess) {
+                    result.onReady(isSuccess);
+                    if (isSuccess) session.push(frame);
+                }
+
+                @Override
+                public void onTransferFinished(int status) {
+                    result.onTransferFinished(status);
+                }
+            });
+            sessions.add(session);
+            results.add(result);
+        }
+        for (EpdSession session : sessions) {
+            session.open();
+        }
+        assertTrue(clock.runUntilIdle(MAX_TIME));
+        for (Result result : results) {
+            assertEquals(EpdProtocol.STATUS_SUCCESS, result.status);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.advantech.bleeplib.emulator;
+
+import com.advantech.bleeplib.bean.TransferStats;
+import com.advantech.bleeplib.frame.FrameSource;
+import com.advantech.bleeplib.protocol.EpdProtocol;
+import com.advantech.bleeplib.protocol.EpdTransport;
+import com.advantech.bleeplib.protocol.ImageTransferEngine;
+import com.advantech.bleeplib.protocol.TransferCheckpoints;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * EpdSession runs the connect, handshake and push flows of {@code BLEUtil} over an
+ * {@link EmulatedTransport}: connect (with the MTU exchange), enable the image identify, image
+ * block, image status and device event notifications, read the firmware version and the LED
+ * status, and then push frames with a real {@link ImageTransferEngine}.
+ * <p>
+ * Only the image transfer engine is the library code. The handshake is a copy of the steps of
+ * {@code BLEUtil.startHandshake}, run straight on the transport: the {@code GattQueue} with its
+ * timeouts and the pre-emption of the block transfer, the {@code HandshakeProfile} variants and
+ * the reads skipped by the {@code DeviceProfileStore} are not covered here, and a change of the
+ * handshake in {@code BLEUtil} has to be copied to this class.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class EpdSession implements EpdTransport.Callback {
+    private static final String[] NOTIFY_UUIDS = {
+            EpdProtocol.IMAGE_ID_CHAR_UUID,
+            EpdProtocol.IMAGE_BLOCK_CHAR_UUID,
+            EpdProtocol.IMAGE_STATUS_CHAR_UUID,
+            EpdProtocol.DEVICE_EVENT_CHAR_UUID
+    };
+
+    public interface Listener {
+        // the handshake is done, or the connection failed
+        void onReady(boolean isSuccess);
+
+        // see the STATUS_* codes in EpdProtocol
+        void onTransferFinished(int status);
+    }
+
+    private final VirtualClock clock;
+    private final EmulatedTransport transport;
+    private final ImageTransferEngine engine;
+    private Listener listener;
+
+    private int handshakeStep = 0;
+    private long connectTime = -1;
+    private long readyTime = -1;
+    private long startTime = -1;
+    private long finishTime = -1;
+    private String firmwareVersion;
+    private byte[] ledState;
+    private int refreshPage = -1;
+
+    /**
+     * New a session to an emulated device.
+     *
+     * @param deviceId      device id, e.g. the mac address
+     * @param clock         the clock of the simulation
+     * @param transport     the transport to the device emulator
+     * @param checkpoints   checkpoints shared by all sessions, or {@code null}
+     */
+    public EpdSession(String deviceId, VirtualClock clock, EmulatedTransport transport, TransferCheckpoints checkpoints) {
+        this.clock = clock;
+        this.transport = transport;
+        this.engine = new ImageTransferEngine(deviceId, transport, clock, checkpoints);
+        // the session runs the handshake, and forwards the rest to the engine
+        transport.setCallback(this);
+        engine.setListener(new ImageTransferEngine.Listener() {
+            @Override
+            public void onBlockRequested(int blockNumber, int totalBlockNumber) {
+            }
+
+            @Override
+            public void onTransferStarted(TransferStats stats, int blockNumber) {
+            }
+
+            @Override
+            public void onTransferStalled(int blockNumber, boolean isGivenUp) {
+            }
+
+            @Override
+            public void onTransferFinished(int status) {
+                finishTime = EpdSession.this.clock.now();
+                if (listener != null) listener.onTransferFinished(status);
+            }
+
+            @Override
+            public void onAlarmDetected(boolean isWarning) {
+            }
+
+            @Override
+            public void onImageRefresh(boolean isSuccess, int page) {
+                if (isSuccess) refreshPage = page;
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // connect and run the handshake
+    public void open() {
+        connectTime = clock.now();
+        readyTime = -1;
+        handshakeStep = 0;
+        transport.connect(new EmulatedTransport.ConnectCallback() {
+            @Override
+            public void onConnectionStateChange(boolean isConnected) {
+                if (!isConnected) {
+                    if (listener != null) listener.onReady(false);
+                    return;
+                }
+                nextHandshakeStep();
+            }
+        });
+    }
+
+    // the checkpoint is kept, so the next push of the same frame resumes
+    public void close() {
+        engine.stop();
+        transport.disconnect();
+    }
+
+    /**
+     * Push a frame. The frame must fit the negotiated MTU of the transport.
+     *
+     * @param frameSource   the frame
+     * @return              {@code true} the image header has been sent;
+     *                      {@code false} otherwise
+     */
+    public boolean push(FrameSource frameSource) {
+        startTime = clock.now();
+        finishTime = -1;
+        return engine.start(frameSource);
+    }
+
+    // MTU -> image descriptors -> firmware -> LED status
+    private void nextHandshakeStep() {
+        int step = handshakeStep++;
+        if (step < NOTIFY_UUIDS.length) {
+            transport.enableNotify(NOTIFY_UUIDS[step]);
+        } else if (step == NOTIFY_UUIDS.length) {
+            transport.read(EpdProtocol.FIRMWARE_CHAR_UUID);
+        } else if (step == NOTIFY_UUIDS.length + 1) {
+            transport.read(EpdProtocol.LED_CHAR_UUID);
+        } else {
+            readyTime = clock.now();
+            if (listener != null) listener.onReady(true);
+        }
+    }
+
+    // EpdTransport.Callback --- START
+    @Override
+    public void onWriteComplete(String uuid, int status) {
+        engine.onWriteComplete(uuid, status);
+    }
+
+    @Override
+    public void onRead(String uuid, int status, byte[] value) {
+        if (EpdProtocol.FIRMWARE_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            firmwareVersion = new String(value, StandardCharsets.UTF_8).trim();
+        } else if (EpdProtocol.LED_CHAR_UUID.equalsIgnoreCase(uuid)) {
+            ledState = value;
+        }
+        if (readyTime < 0) nextHandshakeStep();
+    }
+
+    @Override
+    public void onNotifyEnabled(String uuid, int status) {
+        if (readyTime < 0) nextHandshakeStep();
+    }
+
+    @Override
+    public void onNotify(String uuid, byte[] value) {
+        engine.onNotify(uuid, value);
+    }
+
+    @Override
+    public void onResume() {
+        engine.onResume();
+    }
+    // EpdTransport.Callback --- END
+
+    public ImageTransferEngine getEngine() {
+        return engine;
+    }
+
+    public EmulatedTransport getTransport() {
+        return transport;
+    }
+
+    public String getFirmwareVersion() {
+        return firmwareVersion;
+    }
+
+    public byte[] getLedState() {
+        return ledState;
+    }
+
+    public int getRefreshPage() {
+        return refreshPage;
+    }
+
+    // time from connect to the end of the handshake, or -1
+    public long getTimeToReady() {
+        return (readyTime >= 0) ? readyTime - connectTime : -1;
+    }
+
+    // time from push to the image status, or -1
+    public long getTransferTime() {
+        return (finishTime >= 0) ? finishTime - startTime : -1;
+    }
+}
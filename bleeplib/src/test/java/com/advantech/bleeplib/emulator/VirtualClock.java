@@ -0,0 +1,123 @@
+package com.advantech.bleeplib.emulator;
+
+import com.advantech.bleeplib.protocol.EpdScheduler;
+
+import java.util.PriorityQueue;
+
+/**
+ * VirtualClock is a single-threaded discrete-event scheduler. Tasks run in the order of their time
+ * and then in the order they were scheduled, and the time only moves when the clock is run, so a
+ * simulation over the emulated devices is deterministic and runs as fast as the CPU allows.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class VirtualClock implements EpdScheduler {
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long now = 0;
+    private long seq = 0;
+    private long executed = 0;
+
+    private static final class Task implements Comparable<Task> {
+        final long time;
+        final long seq;
+        final Runnable runnable;
+        boolean isCancelled = false;
+
+        Task(long time, long seq, Runnable runnable) {
+            this.time = time;
+            this.seq = seq;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            if (time != o.time) return (time < o.time) ? -1 : 1;
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    @Override
+    public Object schedule(Runnable task, long delay) {
+        Task t = new Task(now + Math.max(0, delay), seq++, task);
+        tasks.add(t);
+        return t;
+    }
+
+    @Override
+    public void cancel(Object token) {
+        if (token instanceof Task) ((Task) token).isCancelled = true;
+    }
+
+    /**
+     * Run the next task and move the time to it.
+     *
+     * @return  {@code true} a task has run;
+     *          {@code false} no task is pending
+     */
+    public boolean runNext() {
+        Task t;
+        do {
+            t = tasks.poll();
+            if (t == null) return false;
+        } while (t.isCancelled);
+        now = t.time;
+        executed++;
+        t.runnable.run();
+        return true;
+    }
+
+    /**
+     * Run all tasks up to a time, and move the time to it.
+     *
+     * @param time  the time in milliseconds
+     */
+    public void runUntil(long time) {
+        while (!tasks.isEmpty() && tasks.peek().time <= time) {
+            runNext();
+        }
+        now = Math.max(now, time);
+    }
+
+    /**
+     * Run all tasks within a duration from now.
+     *
+     * @param duration  the duration in milliseconds
+     */
+    public void advance(long duration) {
+        runUntil(now + duration);
+    }
+
+    /**
+     * Run until no task is pending or the time limit is reached, e.g. to stop a stalled
+     * simulation.
+     *
+     * @param maxTime   the time limit in milliseconds
+     * @return          {@code true} no task is pending;
+     *                  {@code false} the time limit is reached
+     */
+    public boolean runUntilIdle(long maxTime) {
+        while (!tasks.isEmpty()) {
+            if (tasks.peek().time > maxTime) return false;
+            runNext();
+        }
+        return true;
+    }
+
+    public int getPendingCount() {
+        int count = 0;
+        for (Task t : tasks) {
+            if (!t.isCancelled) count++;
+        }
+        return count;
+    }
+
+    public long getExecutedCount() {
+        return executed;
+    }
+}
@@ -0,0 +1,76 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.emulator.VirtualClock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connection limit of the concurrency controller.
+ */
+public class ConcurrencyControllerTest {
+
+    @Test
+    public void concurrencyController_lowersLimitOnFailures() {
+        VirtualClock clock = new VirtualClock();
+        ConnectionScheduler scheduler = new ConnectionScheduler(4, clock);
+        ConcurrencyController controller = new ConcurrencyController(scheduler, clock);
+        final List<Integer> limits = new ArrayList<>();
+        controller.setListener(new ConcurrencyController.Listener() {
+            @Override
+            public void onLimitChanged(int limit, List<String> promotedMacs) {
+                limits.add(limit);
+            }
+        });
+        for (int i = 0; i < 2 * 4; i++) {
+            clock.advance(500);
+            controller.onConnectResult(i % 4 == 0, 500); // GATT 133 in three of four connections
+        }
+        assertEquals(Arrays.asList(3), limits);
+        assertEquals(3, scheduler.getMaxConnectionNumber());
+        // the bounds keep the limit
+        controller.setBounds(5, 8);
+        assertEquals(5, controller.getLimit());
+        assertEquals(Arrays.asList(3, 5), limits);
+        assertFalse(controller.isLatencyLowered());
+    }
+
+    @Test
+    public void concurrencyController_agesLatencyBaseline() {
+        VirtualClock clock = new VirtualClock();
+        ConnectionScheduler scheduler = new ConnectionScheduler(4, clock);
+        ConcurrencyController controller = new ConcurrencyController(scheduler, clock);
+        final List<Integer> limits = new ArrayList<>();
+        controller.setListener(new ConcurrencyController.Listener() {
+            @Override
+            public void onLimitChanged(int limit, List<String> promotedMacs) {
+                limits.add(limit);
+            }
+        });
+        // near devices
+        runWindows(clock, controller, 1, 500);
+        // the device mix moves to farther devices, which connect slower and slower
+        long latency = 1500;
+        for (int i = 0; i < 20; i++) {
+            runWindows(clock, controller, 1, latency);
+            latency = latency * 115 / 100;
+        }
+        // lowered once by the step, not down to the lower bound
+        assertEquals(Arrays.asList(3), limits);
+        assertTrue(controller.isLatencyLowered());
+        assertEquals(1, controller.getChangeCount());
+    }
+
+    // windows of successful connections
+    private static void runWindows(VirtualClock clock, ConcurrencyController controller, int windows, long latency) {
+        for (int i = 0; i < windows * ConcurrencyController.MIN_SAMPLES; i++) {
+            clock.advance(latency);
+            controller.onConnectResult(true, latency);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.emulator.VirtualClock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Slot release and idle connections of the connection pool.
+ */
+public class ConnectionPoolTest {
+
+    // a connection whose disconnection event is reported by the test
+    private static class Link {
+        final String mac;
+        boolean isReady = true;
+        boolean isDisconnected = false;
+
+        Link(String mac) {
+            this.mac = mac;
+        }
+    }
+
+    private final VirtualClock clock = new VirtualClock();
+    private final ConnectionScheduler scheduler = new ConnectionScheduler(1, clock);
+    private final List<String> disconnected = new ArrayList<>();
+    private final List<String> released = new ArrayList<>();
+    private final List<String> connected = new ArrayList<>();
+    private final ConnectionPool<Link> pool = new ConnectionPool<>(scheduler, clock, new ConnectionPool.Host<Link>() {
+        @Override
+        public boolean isReusable(Link link) {
+            return link.isReady && !link.isDisconnected;
+        }
+
+        @Override
+        public boolean isDisconnected(Link link) {
+            return link.isDisconnected;
+        }
+
+        @Override
+        public void disconnect(Link link) {
+            disconnected.add(link.mac);
+        }
+
+        @Override
+        public void onReleased(Link link) {
+            released.add(link.mac);
+        }
+
+        @Override
+        public void connect(String address) {
+            connected.add(address);
+        }
+    });
+
+    @Test
+    public void release_keepsReusableConnectionIdle() {
+        pool.setIdleConnectionTime(10 * 1000);
+        Link link = connect("A");
+        assertTrue(pool.release("A", link));
+        assertTrue(pool.isIdle("A"));
+        assertEquals(1, pool.getIdleCount());
+        assertSame(link, pool.reuse("A"));
+        assertNull(pool.reuse("A"));
+        assertFalse(pool.isIdle("A"));
+
+        // the idle connection expires
+        assertTrue(pool.release("A", link));
+        clock.advance(10 * 1000);
+        assertEquals(Arrays.asList("A"), disconnected);
+        assertTrue(pool.isReleasing("A"));
+        onEvent(link);
+        assertEquals(Arrays.asList("A"), released);
+        assertEquals(0, scheduler.getActiveCount());
+        assertTrue(connected.isEmpty());
+    }
+
+    @Test
+    public void release_disconnectsWhenNotReusableOrDevicesWait() {
+        Link link = connect("A");
+        assertFalse(pool.release("A", link)); // no idle connection time
+        assertEquals(Arrays.asList("A"), disconnected);
+        onEvent(link);
+
+        pool.setIdleConnectionTime(10 * 1000);
+        link = connect("A");
+        link.isReady = false; // e.g. the handshake or a transfer is running
+        assertFalse(pool.release("A", link));
+        onEvent(link);
+
+        link = connect("A");
+        assertFalse(scheduler.acquire("B"));
+        assertFalse(pool.release("A", link)); // a slot of the pool is never kept from a waiting device
+        onEvent(link);
+        assertEquals(Arrays.asList("A", "A", "A"), disconnected);
+        assertEquals(Arrays.asList("B"), connected);
+        assertTrue(scheduler.isActive("B"));
+    }
+
+    @Test
+    public void evict_handsSlotToWaitingDevice() {
+        pool.setIdleConnectionTime(10 * 1000);
+        Link link = connect("A");
+        assertTrue(pool.release("A", link));
+        assertFalse(scheduler.acquire("B"));
+        assertEquals("A", pool.evict());
+        assertFalse(pool.isIdle("A"));
+        assertNull(pool.evict());
+        onEvent(link);
+        assertEquals(Arrays.asList("A"), released);
+        assertEquals(Arrays.asList("B"), connected);
+        assertTrue(scheduler.isActive("B"));
+    }
+
+    @Test
+    public void disconnect_fallbackReleasesSlotWithoutEvent() {
+        Link link = connect("A");
+        assertFalse(scheduler.acquire("B"));
+        pool.disconnect("A", link, false); // e.g. a pending connection is cancelled
+        clock.advance(scheduler.getReleaseTimeout() - 1);
+        assertTrue(released.isEmpty());
+        clock.advance(1);
+        assertEquals(Arrays.asList("A"), released);
+        assertEquals(Arrays.asList("B"), connected);
+        // a late event is not released again
+        link.isDisconnected = true;
+        assertFalse(pool.onDisconnected("A", link));
+        assertEquals(1, released.size());
+    }
+
+    @Test
+    public void disconnect_reconnectionKeepsSlot() {
+        Link link = connect("A");
+        assertFalse(scheduler.acquire("B"));
+        link.isDisconnected = true; // the link is lost during a task
+        assertFalse(pool.onDisconnected("A", link));
+        pool.disconnect("A", link, true);
+        assertEquals(Arrays.asList("A"), released);
+        assertTrue(disconnected.isEmpty()); // released at once, without a disconnect request
+        assertEquals(Arrays.asList("A"), connected);
+        assertTrue(scheduler.isActive("A"));
+        assertTrue(scheduler.isWaiting("B"));
+    }
+
+    @Test
+    public void onDisconnected_releasesDroppedIdleConnection() {
+        pool.setIdleConnectionTime(10 * 1000);
+        Link link = connect("A");
+        assertTrue(pool.release("A", link));
+        assertFalse(scheduler.acquire("B"));
+        link.isDisconnected = true; // e.g. out of range
+        assertTrue(pool.onDisconnected("A", link));
+        assertFalse(pool.isIdle("A"));
+        assertEquals(Arrays.asList("A"), released);
+        assertEquals(Arrays.asList("B"), connected);
+        // the expiry timer of the dropped connection has been cancelled
+        clock.advance(10 * 1000);
+        assertTrue(disconnected.isEmpty());
+    }
+
+    @Test
+    public void setIdleConnectionTime_zeroEvictsIdleConnections() {
+        ConnectionScheduler scheduler = new ConnectionScheduler(2, clock);
+        final List<String> requests = new ArrayList<>();
+        ConnectionPool<Link> pool = new ConnectionPool<>(scheduler, clock, new ConnectionPool.Host<Link>() {
+            @Override
+            public boolean isReusable(Link link) {
+                return true;
+            }
+
+            @Override
+            public boolean isDisconnected(Link link) {
+                return false;
+            }
+
+            @Override
+            public void disconnect(Link link) {
+                requests.add(link.mac);
+            }
+
+            @Override
+            public void onReleased(Link link) {
+            }
+
+            @Override
+            public void connect(String address) {
+            }
+        });
+        pool.setIdleConnectionTime(10 * 1000);
+        assertTrue(scheduler.acquire("A"));
+        assertTrue(scheduler.acquire("B"));
+        assertTrue(pool.release("A", new Link("A")));
+        assertTrue(pool.release("B", new Link("B")));
+        pool.setIdleConnectionTime(0);
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(Arrays.asList("A", "B"), requests); // least recently used first
+        clock.advance(scheduler.getReleaseTimeout());
+        assertEquals(0, scheduler.getActiveCount());
+    }
+
+    private Link connect(String mac) {
+        assertTrue(scheduler.acquire(mac));
+        return new Link(mac);
+    }
+
+    // the disconnection event after a disconnect request
+    private void onEvent(Link link) {
+        link.isDisconnected = true;
+        assertTrue(pool.onDisconnected(link.mac, link));
+        assertFalse(pool.isReleasing(link.mac));
+    }
+}
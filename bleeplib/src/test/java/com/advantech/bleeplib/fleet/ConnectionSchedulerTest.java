@@ -0,0 +1,139 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.bean.ConnectionPriority;
+import com.advantech.bleeplib.bean.ConnectionQueueStats;
+import com.advantech.bleeplib.emulator.VirtualClock;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connection slots, waiting order and priorities of the connection scheduler.
+ */
+public class ConnectionSchedulerTest {
+
+    @Test
+    public void connectionScheduler_handsSlotToWaitingDevice() {
+        VirtualClock clock = new VirtualClock();
+        ConnectionScheduler scheduler = new ConnectionScheduler(2, clock);
+        assertTrue(scheduler.acquire("A"));
+        assertTrue(scheduler.acquire("B"));
+        assertFalse(scheduler.acquire("C"));
+        assertFalse(scheduler.acquire("D"));
+        assertTrue(scheduler.acquire("A")); // a reconnection keeps its slot
+        assertEquals(2, scheduler.getWaitingCount());
+
+        clock.advance(500);
+        assertEquals("C", scheduler.release("A"));
+        assertTrue(scheduler.isActive("C"));
+        assertTrue(scheduler.cancel("D"));
+        assertNull(scheduler.release("B"));
+        assertNull(scheduler.release("B"));
+        assertEquals(1, scheduler.getActiveCount());
+        assertEquals(500, scheduler.getStats().getAverageWaitTime());
+        assertEquals(2 * 500, scheduler.getStats().getSlotTime());
+    }
+
+    @Test
+    public void connectionScheduler_cancelledDeviceIsNotPromoted() {
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, new VirtualClock());
+        assertTrue(scheduler.acquire("A"));
+        assertFalse(scheduler.acquire("B", ConnectionPriority.INTERACTIVE, 0));
+        assertFalse(scheduler.acquire("C"));
+        assertEquals(2, scheduler.getWaitingCount());
+
+        assertTrue(scheduler.cancel("B"));
+        assertFalse(scheduler.isWaiting("B"));
+        assertFalse(scheduler.isActiveOrWaiting("B"));
+        assertFalse(scheduler.cancel("B")); // no longer waiting
+        assertFalse(scheduler.cancel("A")); // a connected device is not cancelled
+        assertEquals(1, scheduler.getWaitingCount());
+
+        assertEquals("C", scheduler.release("A"));
+        assertNull(scheduler.release("C"));
+        assertFalse(scheduler.isActive("B"));
+        assertEquals(0, scheduler.getWaitingCount());
+        // the cancelled device can wait again
+        assertTrue(scheduler.acquire("A"));
+        assertFalse(scheduler.acquire("B"));
+        assertEquals("B", scheduler.release("A"));
+    }
+
+    @Test
+    public void connectionScheduler_raisedLimitPromotesWaitingDevices() {
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, new VirtualClock());
+        assertTrue(scheduler.acquire("A"));
+        assertFalse(scheduler.acquire("B"));
+        assertFalse(scheduler.acquire("C"));
+        assertFalse(scheduler.acquire("D"));
+        assertEquals(Arrays.asList("B", "C"), scheduler.setMaxConnectionNumber(3));
+        assertTrue(scheduler.isActive("C"));
+        // a lowered limit keeps the connections, and the slots are not handed over
+        assertTrue(scheduler.setMaxConnectionNumber(2).isEmpty());
+        assertNull(scheduler.release("A"));
+        assertEquals("D", scheduler.release("B"));
+    }
+
+    @Test
+    public void connectionScheduler_ordersByPriorityAndDeadline() {
+        VirtualClock clock = new VirtualClock();
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, clock);
+        assertTrue(scheduler.acquire("A"));
+        assertFalse(scheduler.acquire("B1", ConnectionPriority.BULK, 0));
+        assertFalse(scheduler.acquire("B2", ConnectionPriority.BULK, 0));
+        assertFalse(scheduler.acquire("B3", ConnectionPriority.BULK, 5000));
+        assertFalse(scheduler.acquire("N1", ConnectionPriority.NORMAL, 0));
+        assertFalse(scheduler.acquire("N2", ConnectionPriority.NORMAL, 0));
+        assertFalse(scheduler.acquire("I1", ConnectionPriority.INTERACTIVE, 0));
+        assertFalse(scheduler.acquire("I1", ConnectionPriority.BULK, 0)); // a waiting device keeps its priority
+        assertEquals(ConnectionPriority.INTERACTIVE, scheduler.getPriority("I1"));
+        assertTrue(scheduler.reprioritize("N2", ConnectionPriority.INTERACTIVE, 0));
+        assertFalse(scheduler.reprioritize("X", ConnectionPriority.INTERACTIVE, 0));
+        assertTrue(scheduler.cancel("N1"));
+        assertFalse(scheduler.isWaiting("N1"));
+
+        clock.advance(1000);
+        // a re-prioritized device keeps its enqueue order within the new class
+        assertEquals("N2", scheduler.release("A"));
+        assertEquals("I1", scheduler.release("N2"));
+        // the earlier deadline goes first within a class
+        assertEquals("B3", scheduler.release("I1"));
+        assertEquals("B1", scheduler.release("B3"));
+        assertEquals("B2", scheduler.release("B1"));
+        ConnectionQueueStats stats = scheduler.getStats();
+        assertEquals(0, stats.getWaitingCount());
+        assertEquals(1000, stats.getAverageWaitTime(ConnectionPriority.INTERACTIVE));
+        assertEquals(0, stats.getMissedDeadlineCount());
+    }
+
+    @Test
+    public void connectionScheduler_overdueDeviceGoesFirst() {
+        VirtualClock clock = new VirtualClock();
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, clock);
+        assertTrue(scheduler.acquire("A"));
+        assertFalse(scheduler.acquire("I", ConnectionPriority.INTERACTIVE, 0));
+        assertFalse(scheduler.acquire("B", ConnectionPriority.BULK, 500));
+        clock.advance(1000);
+        assertEquals("B", scheduler.release("A"));
+        assertEquals(1, scheduler.getStats().getMissedDeadlineCount());
+        assertEquals("I", scheduler.release("B"));
+    }
+
+    @Test
+    public void connectionScheduler_largeQueue() {
+        ConnectionScheduler scheduler = new ConnectionScheduler(4, new VirtualClock());
+        for (int i = 0; i < 100000; i++) {
+            scheduler.acquire("B" + i, ConnectionPriority.BULK, 0);
+        }
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(scheduler.isActiveOrWaiting("B" + i));
+        }
+        assertFalse(scheduler.acquire("I", ConnectionPriority.INTERACTIVE, 0));
+        assertTrue(scheduler.cancel("B50000"));
+        assertEquals("I", scheduler.release("B0"));
+        assertEquals(100000 - 4 - 1, scheduler.getWaitingCount());
+    }
+}
@@ -0,0 +1,708 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.bean.ConnectionPriority;
+import com.advantech.bleeplib.bean.ConnectionQueueStats;
+import com.advantech.bleeplib.bean.DeviceProfile;
+import com.advantech.bleeplib.bean.PanelType;
+import com.advantech.bleeplib.emulator.EmulatedTransport;
+import com.advantech.bleeplib.emulator.EpdEmulator;
+import com.advantech.bleeplib.emulator.EpdSession;
+import com.advantech.bleeplib.emulator.VirtualClock;
+import com.advantech.bleeplib.frame.FrameArena;
+import com.advantech.bleeplib.frame.FrameCodec;
+import com.advantech.bleeplib.frame.FrameSource;
+import com.advantech.bleeplib.protocol.EpdProtocol;
+import com.advantech.bleeplib.protocol.TransferCheckpoints;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * FleetBenchmark runs a campaign, i.e. one push task for each device of a fleet, on a
+ * {@link VirtualClock}. The connection slots and the waiting queue are the real
+ * {@link ConnectionScheduler}, the slot release and the idle connections are the real
+ * {@link ConnectionPool}, the retries are the real {@link RetryPolicy}, and each transfer is the
+ * real image transfer engine over an {@link EmulatedTransport} to an {@link EpdEmulator}. The
+ * task flow follows {@code BLETaskHandler}:
+ * <pre>
+ * connect (or wait for a slot) -&gt; handshake -&gt; push -&gt; disconnect -&gt; release the slot on
+ * the disconnection event -&gt; connect the next device in the waiting queue
+ * </pre>
+ * The disconnection event comes one link latency after the disconnect request. A cancelled pending
+ * connection has no event, and its slot is released by the fallback timer.
+ * A lost connection (a failed connect or a dropped link) reconnects with the slot kept until the
+ * retry policy gives up. The connection timeout (30 s) and the task timeout (60 s) end the task
+ * with an error. The link latency, the air time of a packet (throughput), the connect time and
+ * the failure rates of each device are drawn from distributions, and a campaign with the same seed
+ * gives the same report.
+ * <p>
+ * A gateway capacity models the central: beyond that number of links, every extra link raises the
+ * connect failure rate, and the transfers slow down with the square of the overload. With connection limit
+ * bounds, the limit is adapted by the real {@link ConcurrencyController} as in {@code BLEUtil}.
+ * <p>
+ * The campaign runs with a {@link ConnectionPriority}, and interactive tasks, e.g. LED commands of
+ * an operator, may come to other devices during the campaign.
+ * <p>
+ * With an RSSI distribution, a weaker signal slows down the transfer and raises the failure rates
+ * of a device, and the scan results (the RSSI with some noise) are kept in a device profile, so the
+ * waiting queue can be ordered by a {@link LinkQualityOrder}. Unreachable devices have not been
+ * seen for an hour.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class FleetBenchmark {
+    public static final int CONN_TIMEOUT_TIME = 30 * 1000; // BLEDeviceBean
+    public static final int TASK_TIMEOUT_TIME = 60 * 1000; // BLEDeviceBean
+    private static final long MAX_TIME = 24 * 60 * 60 * 1000L; // a campaign never runs for a day
+
+    // a random variable of a device property
+    public interface Distribution {
+        double sample(Random random);
+    }
+
+    public static Distribution constant(final double value) {
+        return new Distribution() {
+            @Override
+            public double sample(Random random) {
+                return value;
+            }
+        };
+    }
+
+    public static Distribution uniform(final double min, final double max) {
+        return new Distribution() {
+            @Override
+            public double sample(Random random) {
+                return min + (max - min) * random.nextDouble();
+            }
+        };
+    }
+
+    // a long tail, e.g. the latency of devices far away
+    public static Distribution logNormal(final double median, final double sigma) {
+        return new Distribution() {
+            @Override
+            public double sample(Random random) {
+                return median * Math.exp(sigma * random.nextGaussian());
+            }
+        };
+    }
+
+    // configuration
+    private int deviceCount = 100;
+    private long seed = 1;
+    private int maxConnectionNumber = ConnectionScheduler.DEFAULT_MAX_CONNECTION_NUMBER;
+    private int releaseTimeout = ConnectionScheduler.DEFAULT_RELEASE_TIMEOUT;
+    private int releaseDelay = 0; // a fixed delay instead of the disconnection event
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    private int window = 1;
+    private PanelType panelType = PanelType.EPD250;
+    private Distribution latency = uniform(10, 30); // ms
+    private Distribution writeTime = uniform(3, 8); // air time of a packet, ms
+    private Distribution connectTime = uniform(200, 800); // ms
+    private Distribution connectFailureRate = constant(0.05); // e.g. GATT 133
+    private Distribution lossRate = constant(0.005);
+    private Distribution dropRate = constant(0.02); // probability that the link drops during a push
+    private double unreachableRate = 0; // devices out of range never answer
+    private int gatewayCapacity = 0; // links the central handles well, 0: no limit
+    private double overloadFailureRate = 0.1; // connect failure rate of each link beyond the capacity
+    private int minLimit = 0; // bounds of the adaptive connection limit, 0: a fixed limit
+    private ConnectionPriority priority = ConnectionPriority.NORMAL; // of the campaign
+    private Distribution rssi = null; // dBm, null: the link quality does not depend on the signal
+    private boolean isLinkQualityOrder = false;
+    private long staleTime = 0; // defer the devices not seen for this time, 0: never
+    private int interactiveCount = 0; // interactive tasks during the campaign
+    private int interactiveInterval = 10 * 1000; // ms
+    private int maxLimit = 0;
+    private int followUpCount = 0; // tasks after the first one to each device, e.g. the next pages
+    private int thinkTime = 2000; // from the end of a task to the next task to the same device, ms
+    private long idleConnectionTime = 0; // keep the connection after a task, 0: disconnect
+
+    // state of a campaign
+    private VirtualClock clock;
+    private ConnectionScheduler scheduler;
+    private ConcurrencyController controller;
+    private double limitTime; // sum of the connection limit over time, the slot capacity
+    private long limitChangeTime;
+    private int limit;
+    private final Map<String, Device> devices = new HashMap<>();
+    private ConnectionPool<Device> pool;
+    private FrameSource frame;
+    private long lastReleaseTime;
+    private int reusedCount;
+
+    // Configuration --- START
+    public FleetBenchmark setDeviceCount(int deviceCount) {
+        this.deviceCount = deviceCount;
+        return this;
+    }
+
+    public FleetBenchmark setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public FleetBenchmark setMaxConnectionNumber(int maxConnectionNumber) {
+        this.maxConnectionNumber = maxConnectionNumber;
+        return this;
+    }
+
+    public FleetBenchmark setReleaseTimeout(int releaseTimeout) {
+        this.releaseTimeout = releaseTimeout;
+        return this;
+    }
+
+    // release every slot after a fixed delay instead of the disconnection event, e.g. 1000 ms of the old sleeping threads
+    public FleetBenchmark setReleaseDelay(int releaseDelay) {
+        this.releaseDelay = releaseDelay;
+        return this;
+    }
+
+    public FleetBenchmark setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public FleetBenchmark setWindow(int window) {
+        this.window = window;
+        return this;
+    }
+
+    public FleetBenchmark setPanelType(PanelType panelType) {
+        this.panelType = panelType;
+        return this;
+    }
+
+    public FleetBenchmark setLatency(Distribution latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    public FleetBenchmark setWriteTime(Distribution writeTime) {
+        this.writeTime = writeTime;
+        return this;
+    }
+
+    public FleetBenchmark setConnectTime(Distribution connectTime) {
+        this.connectTime = connectTime;
+        return this;
+    }
+
+    public FleetBenchmark setConnectFailureRate(Distribution connectFailureRate) {
+        this.connectFailureRate = connectFailureRate;
+        return this;
+    }
+
+    public FleetBenchmark setLossRate(Distribution lossRate) {
+        this.lossRate = lossRate;
+        return this;
+    }
+
+    public FleetBenchmark setDropRate(Distribution dropRate) {
+        this.dropRate = dropRate;
+        return this;
+    }
+
+    public FleetBenchmark setUnreachableRate(double unreachableRate) {
+        this.unreachableRate = unreachableRate;
+        return this;
+    }
+
+    public FleetBenchmark setGatewayCapacity(int gatewayCapacity, double overloadFailureRate) {
+        this.gatewayCapacity = gatewayCapacity;
+        this.overloadFailureRate = overloadFailureRate;
+        return this;
+    }
+
+    public FleetBenchmark setPriority(ConnectionPriority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    // one interactive task to another device every interval, from one interval after the start
+    public FleetBenchmark setInteractiveTasks(int interactiveCount, int interactiveInterval) {
+        this.interactiveCount = interactiveCount;
+        this.interactiveInterval = interactiveInterval;
+        return this;
+    }
+
+    public FleetBenchmark setRssi(Distribution rssi) {
+        this.rssi = rssi;
+        return this;
+    }
+
+    // order the waiting devices by the scanned RSSI, and defer the devices not seen for the stale time
+    public FleetBenchmark setLinkQualityOrder(boolean enable, long staleTime) {
+        this.isLinkQualityOrder = enable;
+        this.staleTime = staleTime;
+        return this;
+    }
+
+    // adapt the connection limit within the bounds, starting from the max connection number
+    public FleetBenchmark setConnectionLimitBounds(int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    // each device runs the follow-up tasks after a successful task, e.g. page 2 after page 1
+    public FleetBenchmark setFollowUpTasks(int followUpCount, int thinkTime) {
+        this.followUpCount = followUpCount;
+        this.thinkTime = thinkTime;
+        return this;
+    }
+
+    // BLEUtil.setIdleConnectionTime
+    public FleetBenchmark setIdleConnectionTime(long idleConnectionTime) {
+        this.idleConnectionTime = idleConnectionTime;
+        return this;
+    }
+    // Configuration --- END
+
+    // a device of the fleet, with the task state of BLETaskHandler and the connection of BLEDeviceBean
+    private class Device implements EpdSession.Listener {
+        final String mac;
+        final Random random;
+        final EpdSession session;
+        final boolean isUnreachable;
+        ConnectionPriority priority = ConnectionPriority.NORMAL;
+        final double dropProbability;
+        final int disconnectTime; // from the disconnect request to the disconnection event
+        final EmulatedTransport transport;
+        final DeviceProfile profile; // scan results before the campaign
+        final int baseWriteTime;
+        final double baseFailureRate;
+
+        boolean isConnected = false; // BLEUtil holds a BLEDeviceBean
+        boolean isLinkUp = false;
+        boolean isDisconnected = false; // STATE_DISCONNECTED received
+        boolean isDone = false; // the listener is removed
+        boolean isConnectMeasured = false;
+        int tasksLeft = followUpCount;
+        long connectStart = -1;
+        int retry = 0;
+        int attempts = 0;
+        int connection = 0;
+        Object connTimer;
+        Object taskTimer;
+        long admitTime = -1;
+        long pushTime = -1;
+        long transferTime = 0;
+        long endTime = -1;
+        int status = Integer.MIN_VALUE;
+
+        // close seeds give correlated first samples, so each seed is drawn from the seeds of the campaign
+        Device(int index, Random seeds, TransferCheckpoints checkpoints) {
+            this.mac = String.format("00:00:00:%02X:%02X:%02X", (index >> 16) & 0xff, (index >> 8) & 0xff, index & 0xff);
+            this.random = new Random(seeds.nextLong());
+            EpdEmulator emulator = new EpdEmulator(clock, seeds.nextLong());
+            EmulatedTransport transport = new EmulatedTransport(clock, emulator, seeds.nextLong());
+            int deviceLatency = (int) Math.max(1, latency.sample(random));
+            transport.setLatency(deviceLatency, deviceLatency / 2);
+            this.disconnectTime = deviceLatency;
+            this.transport = transport;
+            // a weaker signal gives a slower and lossier link, from -60 dBm (none) to -95 dBm (all)
+            double signal = (rssi != null) ? rssi.sample(random) : 0;
+            double weakness = (rssi != null) ? Math.max(0, Math.min(1, (-60 - signal) / 35)) : 0;
+            this.baseWriteTime = (int) Math.max(1, writeTime.sample(random) * (1 + 3 * weakness));
+            transport.setWriteTime(baseWriteTime);
+            transport.setConnectTime((int) Math.max(1, connectTime.sample(random)));
+            this.baseFailureRate = connectFailureRate.sample(random) + 0.2 * weakness;
+            transport.setConnectFailureRate(baseFailureRate);
+            transport.setLossRate(lossRate.sample(random) + 0.05 * weakness);
+            this.dropProbability = dropRate.sample(random) + 0.1 * weakness;
+            this.isUnreachable = random.nextDouble() < unreachableRate;
+            this.profile = new DeviceProfile(mac);
+            if (rssi != null) profile.setRssi((int) Math.round(signal + 3 * random.nextGaussian()));
+            profile.setLastSeen(isUnreachable ? -60 * 60 * 1000L : 0);
+            this.session = new EpdSession(mac, clock, transport, checkpoints);
+            session.getEngine().setWindow(window);
+            session.setListener(this);
+        }
+
+        @Override
+        public void onReady(boolean isSuccess) {
+            if (isDone) return;
+            onConnectResult(this, isSuccess);
+            if (!isSuccess) {
+                onDisconnected(this); // GATT 133
+                return;
+            }
+            clock.cancel(connTimer);
+            isLinkUp = true;
+            executeTask(this);
+        }
+
+        @Override
+        public void onTransferFinished(int status) {
+            if (isDone) return;
+            if (controller != null && session.getEngine().getTransferStats() != null) {
+                controller.onBytesTransferred(session.getEngine().getTransferStats().getWrittenBytes());
+            }
+            clock.cancel(taskTimer);
+            transferTime += clock.now() - pushTime;
+            pushTime = -1;
+            finish(this, status);
+        }
+    }
+
+    /**
+     * Run a campaign.
+     *
+     * @return  the report
+     */
+    public FleetReport run() {
+        clock = new VirtualClock();
+        scheduler = new ConnectionScheduler(maxConnectionNumber, clock);
+        // with a release delay, no disconnection event comes and every slot is released by the fallback timer
+        scheduler.setReleaseTimeout(releaseDelay > 0 ? releaseDelay : releaseTimeout);
+        pool = new ConnectionPool<>(scheduler, clock, createPoolHost());
+        pool.setIdleConnectionTime(idleConnectionTime);
+        controller = null;
+        limitTime = 0;
+        limitChangeTime = 0;
+        if (maxLimit > 0) {
+            controller = new ConcurrencyController(scheduler, clock);
+            controller.setBounds(minLimit, maxLimit);
+            controller.setListener(new ConcurrencyController.Listener() {
+                @Override
+                public void onLimitChanged(int limit, List<String> promotedMacs) {
+                    onConnectionLimitChanged(limit, promotedMacs);
+                }
+            });
+        }
+        limit = scheduler.getMaxConnectionNumber();
+        if (isLinkQualityOrder) {
+            LinkQualityOrder order = new LinkQualityOrder(new LinkQualityOrder.ProfileSource() {
+                @Override
+                public DeviceProfile getDeviceProfile(String address) {
+                    Device device = devices.get(address);
+                    return (device != null) ? device.profile : null;
+                }
+            }, clock);
+            order.setStaleTime(staleTime);
+            scheduler.setConnectionOrder(order);
+        }
+        devices.clear();
+        reusedCount = 0;
+        lastReleaseTime = 0;
+        TransferCheckpoints checkpoints = new TransferCheckpoints();
+        Random seeds = new Random(seed);
+        List<Device> fleet = new ArrayList<>();
+        for (int i = 0; i < deviceCount + interactiveCount; i++) {
+            Device device = new Device(i, seeds, checkpoints);
+            device.priority = (i < deviceCount) ? priority : ConnectionPriority.INTERACTIVE;
+            devices.put(device.mac, device);
+            fleet.add(device);
+        }
+        frame = newFrame();
+        // all tasks are started at once, like a loop of BLETaskHandler.startTask
+        for (int i = 0; i < deviceCount; i++) {
+            connect(fleet.get(i));
+        }
+        for (int i = 0; i < interactiveCount; i++) {
+            final Device device = fleet.get(deviceCount + i);
+            clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    connect(device);
+                }
+            }, (long) (i + 1) * interactiveInterval);
+        }
+        clock.runUntilIdle(MAX_TIME);
+        return report(fleet, frame.getTotalBlockNumber());
+    }
+
+    // the metrics of the connection slots and the waiting queue of the last campaign
+    public ConnectionQueueStats getQueueStats() {
+        return scheduler.getStats();
+    }
+
+    // the follow-up tasks of the last campaign which ran on an idle connection
+    public int getReusedConnectionCount() {
+        return reusedCount;
+    }
+
+    private FrameSource newFrame() {
+        byte[] planeData = new byte[FrameCodec.getPlaneLength(panelType)];
+        new Random(seed).nextBytes(planeData);
+        return new FrameArena().put(FrameCodec.addPaddingData(FrameCodec.frameImage(planeData, 1, 1), FrameCodec.BLOCK_LEN));
+    }
+
+    // BLEUtil --- START
+    private void connect(final Device device) {
+        if (device.isConnected || scheduler.isWaiting(device.mac)) return;
+        // over the max limit, offer to the waiting queue first (a reconnection keeps its slot)
+        if (!scheduler.acquire(device.mac, device.priority, 0)) {
+            // the waiting device takes the slot of the least recently used idle connection
+            pool.evict();
+            return;
+        }
+        if (device.admitTime < 0) device.admitTime = clock.now();
+        device.isConnected = true;
+        device.isConnectMeasured = false;
+        device.connectStart = clock.now();
+        updateLoad();
+        device.isLinkUp = false;
+        device.isDisconnected = false;
+        device.attempts++;
+        device.connection++;
+        device.connTimer = clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // BLETaskHandler: onConnectionTimeout
+                if (device.isDone) return;
+                if (!device.isLinkUp) onConnectResult(device, false);
+                finish(device, -1);
+            }
+        }, CONN_TIMEOUT_TIME);
+        if (!device.isUnreachable) device.session.open();
+    }
+
+    private void disconnect(Device device) {
+        if (!device.isConnected) return;
+        pool.disconnect(device.mac, device, false);
+    }
+
+    private void reconnect(Device device) {
+        pool.disconnect(device.mac, device, true);
+    }
+
+    // the connections of the pool are the emulated links, as the BluetoothGatt connections of BLEUtil
+    private ConnectionPool.Host<Device> createPoolHost() {
+        return new ConnectionPool.Host<Device>() {
+            @Override
+            public boolean isReusable(Device device) {
+                return device.isLinkUp && device.pushTime < 0 && !device.isDisconnected;
+            }
+
+            @Override
+            public boolean isDisconnected(Device device) {
+                return device.isDisconnected;
+            }
+
+            // the disconnection event comes one link latency later, a cancelled pending connection has no event
+            @Override
+            public void disconnect(final Device device) {
+                boolean hasEvent = device.isLinkUp && releaseDelay <= 0;
+                closeLink(device);
+                if (!hasEvent) return;
+                final int connection = device.connection;
+                clock.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (connection == device.connection && device.isConnected) onDisconnected(device);
+                    }
+                }, device.disconnectTime);
+            }
+
+            @Override
+            public void onReleased(Device device) {
+                closeLink(device);
+                device.isConnected = false;
+                lastReleaseTime = clock.now();
+                updateLoad();
+            }
+
+            @Override
+            public void connect(String address) {
+                FleetBenchmark.this.connect(devices.get(address));
+            }
+        };
+    }
+
+    private void closeLink(Device device) {
+        device.session.close();
+        device.isLinkUp = false;
+        clock.cancel(device.connTimer);
+        clock.cancel(device.taskTimer);
+    }
+
+    private void onConnectResult(Device device, boolean isSuccess) {
+        if (device.isConnectMeasured) return;
+        device.isConnectMeasured = true;
+        if (controller != null) controller.onConnectResult(isSuccess, clock.now() - device.connectStart);
+    }
+
+    private void onConnectionLimitChanged(int newLimit, List<String> promotedMacs) {
+        long now = clock.now();
+        limitTime += (double) limit * (now - limitChangeTime);
+        limitChangeTime = now;
+        limit = newLimit;
+        for (String mac : promotedMacs) {
+            connect(devices.get(mac));
+        }
+    }
+
+    // STATE_DISCONNECTED: the timers are removed and the transfer is stopped, the checkpoint is kept
+    private void onDisconnected(Device device) {
+        device.isDisconnected = true;
+        device.isLinkUp = false;
+        clock.cancel(device.connTimer);
+        clock.cancel(device.taskTimer);
+        if (device.pushTime >= 0) {
+            device.transferTime += clock.now() - device.pushTime;
+            device.pushTime = -1;
+        }
+        device.session.getEngine().stop();
+        if (pool.onDisconnected(device.mac, device)) return;
+        // BLETaskHandler: the connection is lost during the task
+        retryTask(device);
+    }
+    // BLEUtil --- END
+
+    // Gateway --- START
+    // links beyond the capacity of the central fail to connect more often, share its air time, and
+    // collide with each other, so the transfers slow down with the square of the overload
+    private void updateLoad() {
+        if (gatewayCapacity <= 0) return;
+        int load = 0;
+        for (Device device : devices.values()) {
+            if (device.isConnected) load++;
+        }
+        double overload = Math.max(0, load - gatewayCapacity) * overloadFailureRate;
+        double share = Math.max(1.0, (double) load * load / gatewayCapacity / gatewayCapacity);
+        for (Device device : devices.values()) {
+            if (!device.isConnected) continue;
+            device.transport.setConnectFailureRate(Math.min(1.0, device.baseFailureRate + overload));
+            device.transport.setWriteTime((int) Math.round(device.baseWriteTime * share));
+        }
+    }
+
+    // Gateway --- END
+
+    // BLETaskHandler --- START
+    private void executeTask(final Device device) {
+        device.pushTime = clock.now();
+        if (!device.session.push(frame)) {
+            device.pushTime = -1;
+            finish(device, -1);
+            return;
+        }
+        device.taskTimer = clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (device.isDone) return;
+                device.session.getEngine().stop();
+                device.transferTime += clock.now() - device.pushTime;
+                device.pushTime = -1;
+                finish(device, -1);
+            }
+        }, TASK_TIMEOUT_TIME);
+        // the link may drop during the push
+        if (device.dropProbability > 0 && device.random.nextDouble() < device.dropProbability) {
+            final int connection = device.connection;
+            clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (device.isDone || connection != device.connection || device.pushTime < 0) return;
+                    device.session.getTransport().disconnect();
+                    onDisconnected(device);
+                }
+            }, device.random.nextInt(5000));
+        }
+    }
+
+    private void retryTask(Device device) {
+        device.retry++;
+        if (retryPolicy.canRetry(device.retry)) {
+            // 強制斷線並重新連線
+            reconnect(device);
+        } else {
+            finish(device, -1);
+        }
+    }
+
+    // the task is done, and the device is released (autoDisconnect) until its next task
+    private void finish(final Device device, int status) {
+        device.isDone = true;
+        device.status = status;
+        device.endTime = clock.now();
+        if (status != EpdProtocol.STATUS_SUCCESS || device.tasksLeft <= 0) {
+            disconnect(device);
+            return;
+        }
+        device.tasksLeft--;
+        pool.release(device.mac, device);
+        clock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startTask(device);
+            }
+        }, thinkTime);
+    }
+
+    // the next task runs on the idle connection, or connects again
+    private void startTask(Device device) {
+        device.isDone = false;
+        device.retry = 0;
+        if (pool.reuse(device.mac) != null) {
+            reusedCount++;
+            executeTask(device);
+        } else {
+            connect(device);
+        }
+    }
+    // BLETaskHandler --- END
+
+    private FleetReport report(List<Device> fleet, int totalBlockNumber) {
+        long makespan = 0;
+        int succeeded = 0;
+        int failed = 0;
+        int unfinished = 0;
+        long attempts = 0;
+        long writes = 0;
+        long transferTime = 0;
+        List<Long> deviceTimes = new ArrayList<>();
+        List<Long> serviceTimes = new ArrayList<>();
+        for (Device device : fleet) {
+            attempts += device.attempts;
+            writes += device.session.getTransport().getWriteCount();
+            transferTime += device.transferTime;
+            if (device.endTime < 0) {
+                unfinished++;
+                continue;
+            }
+            if (device.status == EpdProtocol.STATUS_SUCCESS) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+            makespan = Math.max(makespan, device.endTime);
+            deviceTimes.add(device.endTime);
+            serviceTimes.add(device.endTime - device.admitTime);
+        }
+        // the slots are held until the last release after the end of the last task, or forever
+        ConnectionQueueStats stats = scheduler.getStats();
+        long endTime = (unfinished > 0) ? clock.now() : Math.max(makespan, lastReleaseTime);
+        double capacity = Math.max(1, limitTime + (double) limit * Math.max(0, endTime - limitChangeTime));
+        return new FleetReport(fleet.size(), succeeded, failed, unfinished, makespan,
+                stats.getSlotTime() / capacity, transferTime / capacity,
+                deviceTimes, serviceTimes, stats.getAverageWaitTime(),
+                (double) attempts / Math.max(1, fleet.size()),
+                (double) writes / Math.max(1, (long) fleet.size() * (totalBlockNumber + 1)),
+                limit);
+    }
+
+    /**
+     * Run a campaign of 1000 devices and print the report.
+     *
+     * @param args  [device count] [max connection number] [seed]
+     */
+    public static void main(String[] args) {
+        FleetBenchmark benchmark = new FleetBenchmark()
+                .setDeviceCount(args.length > 0 ? Integer.parseInt(args[0]) : 1000)
+                .setMaxConnectionNumber(args.length > 1 ? Integer.parseInt(args[1]) : ConnectionScheduler.DEFAULT_MAX_CONNECTION_NUMBER)
+                .setSeed(args.length > 2 ? Long.parseLong(args[2]) : 1)
+                .setLatency(logNormal(20, 0.5))
+                .setUnreachableRate(0.01);
+        long start = System.currentTimeMillis();
+        FleetReport report = benchmark.run();
+        System.out.println(report);
+        System.out.println("simulated in " + (System.currentTimeMillis() - start) + " ms");
+    }
+}
@@ -0,0 +1,145 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.bean.ConnectionPriority;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connection slots, retries and campaign metrics of the fleet benchmark.
+ */
+public class FleetBenchmarkTest {
+
+    @Test
+    public void campaign_cleanFleet() {
+        FleetReport report = new FleetBenchmark()
+                .setDeviceCount(40)
+                .setConnectFailureRate(FleetBenchmark.constant(0))
+                .setLossRate(FleetBenchmark.constant(0))
+                .setDropRate(FleetBenchmark.constant(0))
+                .run();
+        assertEquals(40, report.getSucceeded());
+        assertEquals(0, report.getUnfinished());
+        assertEquals(1.0, report.getRetryAmplification(), 1e-9);
+        assertEquals(1.0, report.getWriteAmplification(), 1e-9);
+        assertTrue(report.getSlotUtilization() > 0.5 && report.getSlotUtilization() <= 1.0);
+        assertTrue(report.getTransferUtilization() < report.getSlotUtilization());
+        assertTrue(report.getDeviceTime(50) <= report.getDeviceTime(95));
+        assertTrue(report.getDeviceTime(95) <= report.getDeviceTime(99));
+        assertEquals(report.getMakespan(), report.getDeviceTime(100));
+    }
+
+    @Test
+    public void campaign_failuresReleaseSlots() {
+        FleetReport report = new FleetBenchmark()
+                .setDeviceCount(30)
+                .setConnectFailureRate(FleetBenchmark.constant(0.5))
+                .setDropRate(FleetBenchmark.constant(0.3))
+                .setUnreachableRate(0.1)
+                .run();
+        // given-up tasks and timeouts release their slots, so the waiting devices are served
+        assertEquals(0, report.getUnfinished());
+        assertTrue(report.getFailed() > 0);
+        assertTrue(report.getSucceeded() > 0);
+        assertTrue(report.getRetryAmplification() > 1.0);
+        assertTrue(report.getDeviceTime(99) >= FleetBenchmark.CONN_TIMEOUT_TIME);
+    }
+
+    @Test
+    public void campaign_isDeterministic() {
+        FleetReport first = new FleetBenchmark().setDeviceCount(30).setSeed(7).run();
+        FleetReport second = new FleetBenchmark().setDeviceCount(30).setSeed(7).run();
+        assertEquals(first.toString(), second.toString());
+    }
+
+    @Test
+    public void campaign_releaseOnDisconnectionEvent() {
+        FleetReport event = new FleetBenchmark().setDeviceCount(60).run();
+        FleetReport delay = new FleetBenchmark().setDeviceCount(60).setReleaseDelay(1000).run();
+        assertEquals(0, event.getUnfinished());
+        // about one second of idle slot time per device
+        assertTrue(delay.getMakespan() - event.getMakespan() > 60 * 1000 / 4 / 2);
+        assertTrue(event.getTransferUtilization() > delay.getTransferUtilization());
+    }
+
+    @Test
+    public void campaign_moreSlotsShortenMakespan() {
+        FleetReport four = new FleetBenchmark().setDeviceCount(60).setMaxConnectionNumber(4).run();
+        FleetReport eight = new FleetBenchmark().setDeviceCount(60).setMaxConnectionNumber(8).run();
+        assertTrue(eight.getMakespan() < four.getMakespan());
+        assertTrue(eight.getAverageWaitTime() < four.getAverageWaitTime());
+    }
+
+    @Test
+    public void campaign_adaptiveLimitRaisesOnCapableGateway() {
+        FleetReport fixed = new FleetBenchmark().setDeviceCount(200).setGatewayCapacity(7, 0.1).run();
+        FleetReport adaptive = new FleetBenchmark().setDeviceCount(200).setGatewayCapacity(7, 0.1)
+                .setConnectionLimitBounds(1, 8).run();
+        assertEquals(0, adaptive.getUnfinished());
+        assertTrue(adaptive.getConnectionLimit() > ConnectionScheduler.DEFAULT_MAX_CONNECTION_NUMBER);
+        assertTrue(adaptive.getMakespan() < fixed.getMakespan());
+    }
+
+    @Test
+    public void campaign_adaptiveLimitBacksOffOverloadedGateway() {
+        FleetReport fixed = new FleetBenchmark().setDeviceCount(200).setGatewayCapacity(2, 0.3).run();
+        FleetReport adaptive = new FleetBenchmark().setDeviceCount(200).setGatewayCapacity(2, 0.3)
+                .setConnectionLimitBounds(1, 8).run();
+        assertEquals(0, adaptive.getUnfinished());
+        assertTrue(adaptive.getConnectionLimit() < ConnectionScheduler.DEFAULT_MAX_CONNECTION_NUMBER);
+        assertTrue(adaptive.getRetryAmplification() < fixed.getRetryAmplification());
+    }
+
+    @Test
+    public void campaign_interactiveTasksGoAheadOfBulk() {
+        FleetBenchmark normal = new FleetBenchmark().setDeviceCount(200).setInteractiveTasks(5, 10 * 1000)
+                .setPriority(ConnectionPriority.INTERACTIVE);
+        FleetBenchmark bulk = new FleetBenchmark().setDeviceCount(200).setInteractiveTasks(5, 10 * 1000)
+                .setPriority(ConnectionPriority.BULK);
+        assertEquals(0, normal.run().getUnfinished());
+        assertEquals(0, bulk.run().getUnfinished());
+        long fifoWait = normal.getQueueStats().getAverageWaitTime(ConnectionPriority.INTERACTIVE);
+        long interactiveWait = bulk.getQueueStats().getAverageWaitTime(ConnectionPriority.INTERACTIVE);
+        // behind the campaign, or one release away
+        assertTrue(fifoWait > 10 * 1000);
+        assertTrue(interactiveWait < 5 * 1000);
+    }
+
+    @Test
+    public void campaign_linkQualityOrderRunsGoodLinksFirst() {
+        FleetReport fifo = new FleetBenchmark().setDeviceCount(300).setUnreachableRate(0.03)
+                .setRssi(FleetBenchmark.uniform(-95, -55)).run();
+        FleetReport ordered = new FleetBenchmark().setDeviceCount(300).setUnreachableRate(0.03)
+                .setRssi(FleetBenchmark.uniform(-95, -55)).setLinkQualityOrder(true, 10 * 60 * 1000).run();
+        assertEquals(0, ordered.getUnfinished());
+        assertEquals(fifo.getSucceeded(), ordered.getSucceeded(), 3);
+        // most devices are done much earlier, and the weak devices do not lengthen the campaign
+        assertTrue(ordered.getDeviceTime(50) < fifo.getDeviceTime(50) * 0.8);
+        assertTrue(ordered.getMakespan() <= fifo.getMakespan());
+    }
+
+    @Test
+    public void campaign_idleConnectionsRunFollowUpTasks() {
+        FleetBenchmark disconnected = new FleetBenchmark().setDeviceCount(4).setFollowUpTasks(2, 2000);
+        FleetReport reconnected = disconnected.run();
+        FleetBenchmark pooled = new FleetBenchmark().setDeviceCount(4).setFollowUpTasks(2, 2000).setIdleConnectionTime(10 * 1000);
+        FleetReport reused = pooled.run();
+        assertEquals(4, reused.getSucceeded());
+        // the follow-up tasks skip the connection and the handshake
+        assertEquals(8, pooled.getReusedConnectionCount());
+        assertTrue(reused.getRetryAmplification() < reconnected.getRetryAmplification());
+        assertTrue(reused.getMakespan() < reconnected.getMakespan() * 0.85);
+    }
+
+    @Test
+    public void campaign_idleConnectionsAreEvictedForWaitingDevices() {
+        FleetReport disconnected = new FleetBenchmark().setDeviceCount(100).setFollowUpTasks(1, 2000).run();
+        FleetBenchmark pooled = new FleetBenchmark().setDeviceCount(100).setFollowUpTasks(1, 2000).setIdleConnectionTime(10 * 1000);
+        FleetReport evicted = pooled.run();
+        assertEquals(0, evicted.getUnfinished());
+        assertEquals(disconnected.getSucceeded(), evicted.getSucceeded());
+        // the idle connections never keep a slot from the waiting devices
+        assertEquals(disconnected.getMakespan(), evicted.getMakespan(), disconnected.getMakespan() * 0.01);
+    }
+}
@@ -0,0 +1,149 @@
+package com.advantech.bleeplib.fleet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The report of a campaign of {@link FleetBenchmark}.
+ *
+ * @author Fabian Chung
+ * @version 1.0.0
+ */
+public class FleetReport {
+    private final int deviceCount;
+    private final int succeeded;
+    private final int failed;
+    private final int unfinished;
+    private final long makespan;
+    private final double slotUtilization;
+    private final double transferUtilization;
+    private final List<Long> deviceTimes;
+    private final List<Long> serviceTimes;
+    private final long averageWaitTime;
+    private final double retryAmplification;
+    private final double writeAmplification;
+    private final int connectionLimit;
+
+    FleetReport(int deviceCount, int succeeded, int failed, int unfinished, long makespan,
+                double slotUtilization, double transferUtilization, List<Long> deviceTimes, List<Long> serviceTimes,
+                long averageWaitTime, double retryAmplification, double writeAmplification, int connectionLimit) {
+        this.deviceCount = deviceCount;
+        this.succeeded = succeeded;
+        this.failed = failed;
+        this.unfinished = unfinished;
+        this.makespan = makespan;
+        this.slotUtilization = slotUtilization;
+        this.transferUtilization = transferUtilization;
+        this.deviceTimes = new ArrayList<>(deviceTimes);
+        this.serviceTimes = new ArrayList<>(serviceTimes);
+        Collections.sort(this.deviceTimes);
+        Collections.sort(this.serviceTimes);
+        this.averageWaitTime = averageWaitTime;
+        this.retryAmplification = retryAmplification;
+        this.writeAmplification = writeAmplification;
+        this.connectionLimit = connectionLimit;
+    }
+
+    // nearest rank
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return -1;
+        int rank = (int) Math.ceil(p / 100 * sorted.size());
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, rank - 1)));
+    }
+
+    public int getDeviceCount() {
+        return deviceCount;
+    }
+
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    // tasks still running when the campaign is stopped, e.g. slots which are never released
+    public int getUnfinished() {
+        return unfinished;
+    }
+
+    // time from the start of the campaign to the end of the last task, ms
+    public long getMakespan() {
+        return makespan;
+    }
+
+    // share of the slot capacity (slots x makespan) held by devices, including the release delay
+    public double getSlotUtilization() {
+        return slotUtilization;
+    }
+
+    // share of the slot capacity spent in image transfers
+    public double getTransferUtilization() {
+        return transferUtilization;
+    }
+
+    /**
+     * Get a percentile of the per-device time, i.e. from the start of the campaign to the end of
+     * the task of the device, including the time in the waiting queue.
+     *
+     * @param p     the percentile, e.g. 95
+     * @return      the time in milliseconds; {@code -1} if no task has ended
+     */
+    public long getDeviceTime(double p) {
+        return percentile(deviceTimes, p);
+    }
+
+    /**
+     * Get a percentile of the service time, i.e. from the first connection slot of a device to the
+     * end of its task.
+     *
+     * @param p     the percentile, e.g. 95
+     * @return      the time in milliseconds; {@code -1} if no task has ended
+     */
+    public long getServiceTime(double p) {
+        return percentile(serviceTimes, p);
+    }
+
+    public long getAverageWaitTime() {
+        return averageWaitTime;
+    }
+
+    // connection attempts per device, 1.0 without any retry
+    public double getRetryAmplification() {
+        return retryAmplification;
+    }
+
+    // writes per device over the writes of one clean transfer (the header and the blocks)
+    public double getWriteAmplification() {
+        return writeAmplification;
+    }
+
+    // the connection limit at the end of the campaign
+    public int getConnectionLimit() {
+        return connectionLimit;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "devices %d: succeeded %d, failed %d, unfinished %d%n" +
+                "makespan          %.1f s%n" +
+                "connection limit  %d%n" +
+                "slot utilization  %.1f %% held, %.1f %% transferring%n" +
+                "device time       p50 %.1f s, p95 %.1f s, p99 %.1f s%n" +
+                "service time      p50 %.1f s, p95 %.1f s, p99 %.1f s%n" +
+                "average wait      %.1f s%n" +
+                "amplification     %.2f connections, %.2f writes per device",
+                deviceCount, succeeded, failed, unfinished,
+                makespan / 1000.0,
+                connectionLimit,
+                slotUtilization * 100, transferUtilization * 100,
+                getDeviceTime(50) / 1000.0, getDeviceTime(95) / 1000.0, getDeviceTime(99) / 1000.0,
+                getServiceTime(50) / 1000.0, getServiceTime(95) / 1000.0, getServiceTime(99) / 1000.0,
+                averageWaitTime / 1000.0,
+                retryAmplification, writeAmplification);
+    }
+}
@@ -0,0 +1,67 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.bean.ConnectionPriority;
+import com.advantech.bleeplib.bean.DeviceProfile;
+import com.advantech.bleeplib.emulator.VirtualClock;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ranks of the link quality order.
+ */
+public class LinkQualityOrderTest {
+
+    @Test
+    public void linkQualityOrder_runsGoodLinksFirst() {
+        VirtualClock clock = new VirtualClock();
+        clock.advance(60 * 1000);
+        final Map<String, DeviceProfile> profiles = new HashMap<>();
+        profiles.put("WEAK", profile("WEAK", -90, 0, 60 * 1000));
+        profiles.put("SLOW", profile("SLOW", -60, 3000, 60 * 1000)); // a strong signal, but slow in the past
+        profiles.put("FAST", profile("FAST", -60, 20000, 60 * 1000));
+        profiles.put("GONE", profile("GONE", -60, 20000, 0));
+        LinkQualityOrder order = new LinkQualityOrder(new LinkQualityOrder.ProfileSource() {
+            @Override
+            public DeviceProfile getDeviceProfile(String address) {
+                return profiles.get(address);
+            }
+        }, clock);
+        assertEquals(LinkQualityOrder.RANK_WEAK, order.getRank("WEAK"));
+        assertEquals(LinkQualityOrder.RANK_WEAK, order.getRank("SLOW"));
+        assertEquals(LinkQualityOrder.RANK_FAST, order.getRank("FAST"));
+        assertEquals(LinkQualityOrder.RANK_FAST, order.getRank("GONE"));
+        assertEquals(LinkQualityOrder.RANK_NORMAL, order.getRank("NEW"));
+        order.setStaleTime(30 * 1000);
+        assertEquals(LinkQualityOrder.RANK_DEFERRED, order.getRank("GONE"));
+        assertEquals(LinkQualityOrder.RANK_DEFERRED, order.getRank("NEW"));
+
+        ConnectionScheduler scheduler = new ConnectionScheduler(1, clock);
+        scheduler.setConnectionOrder(order);
+        assertTrue(scheduler.acquire("A"));
+        for (String mac : new String[]{"GONE", "WEAK", "NEW", "FAST"}) {
+            assertFalse(scheduler.acquire(mac, ConnectionPriority.BULK, 0));
+        }
+        assertFalse(scheduler.acquire("SLOW", ConnectionPriority.NORMAL, 0)); // the class goes first
+        // a deferred device is seen again
+        profiles.get("GONE").setLastSeen(clock.now());
+        assertTrue(scheduler.rerank("GONE"));
+        assertEquals("SLOW", scheduler.release("A"));
+        assertEquals("GONE", scheduler.release("SLOW"));
+        assertEquals("FAST", scheduler.release("GONE"));
+        assertEquals("WEAK", scheduler.release("FAST"));
+        assertEquals("NEW", scheduler.release("WEAK"));
+    }
+
+    private static DeviceProfile profile(String mac, int rssi, int transferRate, long lastSeen) {
+        DeviceProfile profile = new DeviceProfile(mac);
+        profile.setRssi(rssi);
+        profile.setTransferRate(transferRate);
+        profile.setLastSeen(lastSeen);
+        return profile;
+    }
+}
@@ -0,0 +1,103 @@
+package com.advantech.bleeplib.fleet;
+
+import com.advantech.bleeplib.bean.FleetProgress;
+import com.advantech.bleeplib.emulator.VirtualClock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rate, steps and fleet summaries of the progress coalescer.
+ */
+public class ProgressCoalescerTest {
+
+    @Test
+    public void progressCoalescer_limitsRateAndKeepsLastProgress() {
+        VirtualClock clock = new VirtualClock();
+        ProgressCoalescer coalescer = new ProgressCoalescer(clock);
+        final Map<String, List<Integer>> updates = new HashMap<>();
+        final List<FleetProgress> summaries = new ArrayList<>();
+        coalescer.setListener(new ProgressCoalescer.Listener() {
+            @Override
+            public void onProgress(String mac, int progress) {
+                updates.get(mac).add(progress);
+            }
+
+            @Override
+            public void onFleetProgress(FleetProgress progress) {
+                summaries.add(progress);
+            }
+        });
+        // four concurrent transfers of 600 blocks, a block every 15 ms
+        int blocks = 600;
+        for (int d = 0; d < 4; d++) {
+            final String mac = "D" + d;
+            updates.put(mac, new ArrayList<Integer>());
+            final ProgressCoalescer target = coalescer;
+            for (int b = 0; b < blocks; b++) {
+                final int progress = Math.round((b + 1) * 100f / blocks);
+                clock.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        target.onProgress(mac, progress);
+                    }
+                }, b * 15L + d);
+            }
+            clock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    target.onFinished(mac, true);
+                }
+            }, blocks * 15L + d);
+        }
+        clock.runUntilIdle(60 * 1000);
+        for (List<Integer> progress : updates.values()) {
+            // 2400 block notifications, at most 4 updates per second of each device
+            assertTrue(progress.size() <= 4 * 9 + 1);
+            assertEquals(100, (int) progress.get(progress.size() - 1));
+        }
+        // a summary each second, and the last one after the transfers finished
+        assertEquals(10, summaries.size());
+        assertEquals(4, summaries.get(0).getTransferCount());
+        FleetProgress last = summaries.get(summaries.size() - 1);
+        assertEquals(0, last.getTransferCount());
+        assertEquals(4, last.getSucceededCount());
+    }
+
+    @Test
+    public void progressCoalescer_deliversPercentageSteps() {
+        VirtualClock clock = new VirtualClock();
+        ProgressCoalescer coalescer = new ProgressCoalescer(clock);
+        coalescer.setRate(0, 10);
+        coalescer.setFleetInterval(0);
+        final List<Integer> updates = new ArrayList<>();
+        coalescer.setListener(new ProgressCoalescer.Listener() {
+            @Override
+            public void onProgress(String mac, int progress) {
+                updates.add(progress);
+            }
+
+            @Override
+            public void onFleetProgress(FleetProgress progress) {
+                fail("no fleet summary");
+            }
+        });
+        for (int progress = 0; progress <= 100; progress++) {
+            coalescer.onProgress("A", progress);
+            coalescer.onProgress("A", progress); // a repeated block
+        }
+        assertEquals(Arrays.asList(0, 10, 20, 30, 40, 50, 60, 70, 80, 90, 100), updates);
+        // a resumed transfer starts again from its checkpoint
+        coalescer.onStopped("A");
+        coalescer.onProgress("A", 55);
+        assertEquals(55, (int) updates.get(updates.size() - 1));
+        assertFalse(clock.runNext());
+    }
+}
@@ -0,0 +1,148 @@
+package com.advantech.bleeplib.frame;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reference counting, deduplication and slab reuse of the frame arena.
+ */
+public class FrameArenaTest {
+    private static final int BLOCK_LEN = 16;
+    private static final int FRAME_BYTES = 10 * (BLOCK_LEN + 2); // a frame of 10 blocks in a slab
+
+    @Test
+    public void put_deduplicatesAndCountsReferences() {
+        FrameArena arena = new FrameArena(1000);
+        byte[] frameData = createFrame(10, 1);
+        ArenaFrame frame = arena.put(frameData, BLOCK_LEN);
+        assertSame(frame, arena.put(frameData.clone(), BLOCK_LEN));
+        assertEquals(2, frame.getRefCount());
+        assertSame(frame, frame.retain());
+        assertEquals(3, frame.getRefCount());
+        assertEquals(1, arena.getFrameCount());
+        assertEquals(2, arena.getPutCount());
+        assertEquals(1, arena.getDedupHitCount());
+        assertEquals(FRAME_BYTES, arena.getLiveBytes());
+        assertBlocks(new ByteArrayFrame(frameData, BLOCK_LEN), frame);
+
+        ArenaFrame other = arena.put(createFrame(10, 2), BLOCK_LEN);
+        assertNotSame(frame, other);
+        assertEquals(2, arena.getFrameCount());
+        assertEquals(2 * FRAME_BYTES, arena.getLiveBytes());
+
+        frame.release();
+        frame.release();
+        assertEquals(1, frame.getRefCount());
+        assertEquals(2, arena.getFrameCount());
+        frame.release();
+        assertEquals(0, frame.getRefCount());
+        assertEquals(1, arena.getFrameCount());
+        assertEquals(FRAME_BYTES, arena.getLiveBytes());
+        assertEquals(2 * FRAME_BYTES, arena.getUsedBytes()); // the hole is reclaimed with the slab
+        frame.release(); // no effect
+        assertEquals(FRAME_BYTES, arena.getLiveBytes());
+        try {
+            frame.retain();
+            fail("a released frame is retained");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // the same content after the release is stored again
+        ArenaFrame stored = arena.put(frameData, BLOCK_LEN);
+        assertNotSame(frame, stored);
+        assertEquals(1, stored.getRefCount());
+        assertBlocks(new ByteArrayFrame(frameData, BLOCK_LEN), stored);
+        assertBlocks(new ByteArrayFrame(createFrame(10, 2), BLOCK_LEN), other);
+    }
+
+    @Test
+    public void release_reusesCurrentSlabInPlace() {
+        FrameArena arena = new FrameArena(1000);
+        ArenaFrame first = arena.put(createFrame(10, 1), BLOCK_LEN);
+        ArenaFrame second = arena.put(createFrame(10, 2), BLOCK_LEN);
+        assertEquals(1, arena.getSlabCount());
+        assertEquals(2 * FRAME_BYTES, arena.getUsedBytes());
+
+        first.release();
+        assertEquals(FRAME_BYTES, arena.getLiveBytes());
+        assertEquals(2 * FRAME_BYTES, arena.getUsedBytes());
+        second.release();
+        assertEquals(0, arena.getLiveBytes());
+        assertEquals(0, arena.getUsedBytes());
+
+        byte[] frameData = createFrame(10, 3);
+        ArenaFrame third = arena.put(frameData, BLOCK_LEN);
+        assertEquals(1, arena.getSlabCount());
+        assertEquals(1000, arena.getCapacityBytes());
+        assertEquals(FRAME_BYTES, arena.getUsedBytes());
+        assertBlocks(new ByteArrayFrame(frameData, BLOCK_LEN), third);
+    }
+
+    @Test
+    public void release_recyclesFreeSlabs() {
+        FrameArena arena = new FrameArena(2 * FRAME_BYTES);
+        ArenaFrame first = arena.put(createFrame(10, 1), BLOCK_LEN);
+        ArenaFrame second = arena.put(createFrame(10, 2), BLOCK_LEN);
+        ArenaFrame third = arena.put(createFrame(10, 3), BLOCK_LEN); // a new slab
+        assertEquals(2, arena.getSlabCount());
+        assertEquals(4 * FRAME_BYTES, arena.getCapacityBytes());
+
+        first.release();
+        second.release();
+        assertEquals(1, arena.getSlabCount());
+        assertEquals(4 * FRAME_BYTES, arena.getCapacityBytes()); // kept as a free slab
+        assertEquals(FRAME_BYTES, arena.getUsedBytes());
+
+        arena.put(createFrame(10, 4), BLOCK_LEN);
+        byte[] frameData = createFrame(10, 5);
+        ArenaFrame fifth = arena.put(frameData, BLOCK_LEN); // takes the free slab
+        assertEquals(2, arena.getSlabCount());
+        assertEquals(4 * FRAME_BYTES, arena.getCapacityBytes());
+        assertEquals(3 * FRAME_BYTES, arena.getLiveBytes());
+        assertBlocks(new ByteArrayFrame(frameData, BLOCK_LEN), fifth);
+        assertBlocks(new ByteArrayFrame(createFrame(10, 3), BLOCK_LEN), third);
+    }
+
+    @Test
+    public void put_largeFrameGetsDedicatedSlab() {
+        FrameArena arena = new FrameArena(2 * FRAME_BYTES);
+        ArenaFrame small = arena.put(createFrame(10, 1), BLOCK_LEN);
+        byte[] frameData = createFrame(50, 2);
+        ArenaFrame large = arena.put(frameData, BLOCK_LEN);
+        assertEquals(2, arena.getSlabCount());
+        assertEquals(7 * FRAME_BYTES, arena.getCapacityBytes());
+        assertEquals(6 * FRAME_BYTES, arena.getLiveBytes());
+        assertBlocks(new ByteArrayFrame(frameData, BLOCK_LEN), large);
+
+        // the next small frame still goes to the current slab
+        arena.put(createFrame(10, 3), BLOCK_LEN);
+        assertEquals(2, arena.getSlabCount());
+
+        large.release();
+        assertEquals(1, arena.getSlabCount());
+        assertEquals(2 * FRAME_BYTES, arena.getCapacityBytes()); // a dedicated slab is not kept
+        assertEquals(2 * FRAME_BYTES, arena.getLiveBytes());
+        assertBlocks(new ByteArrayFrame(createFrame(10, 1), BLOCK_LEN), small);
+    }
+
+    private static void assertBlocks(FrameSource expected, ArenaFrame actual) {
+        assertEquals(expected.getTotalBlockNumber(), actual.getTotalBlockNumber());
+        assertArrayEquals(expected.getHeader(), actual.getHeader());
+        assertArrayEquals(expected.getContentHash(), actual.getContentHash());
+        byte[] expectedPacket = new byte[BLOCK_LEN + 2];
+        byte[] actualPacket = new byte[BLOCK_LEN + 2];
+        for (int i = 0; i < expected.getTotalBlockNumber(); i++) {
+            assertEquals(expected.readBlock(i, expectedPacket), actual.readBlock(i, actualPacket));
+            assertArrayEquals(expectedPacket, actualPacket);
+        }
+    }
+
+    // a frame of whole blocks, so no padding is added
+    private static byte[] createFrame(int blocks, int seed) {
+        byte[] packageData = new byte[blocks * BLOCK_LEN];
+        for (int i = 0; i < packageData.length; i++) packageData[i] = (byte) (i * seed + seed);
+        return FrameCodec.frameFirmware(packageData);
+    }
+}
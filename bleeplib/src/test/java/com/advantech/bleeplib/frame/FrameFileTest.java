@@ -0,0 +1,82 @@
+package com.advantech.bleeplib.frame;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writing and opening frame files.
+ */
+public class FrameFileTest {
+
+    @Test
+    public void write_padsLikeImageGenerator() throws IOException {
+        byte[] frame = createFrame(1000); // not a multiple of the block length
+        byte[] padded = FrameCodec.addPaddingData(frame, FrameCodec.BLOCK_LEN); // as ImageGenerator.generateFrame
+        assertArrayEquals(toFile(padded), toFile(frame));
+
+        File file = File.createTempFile("frame", ".epdf");
+        try {
+            writeFile(file, toFile(frame));
+            MappedFrame mappedFrame = FrameFile.open(file);
+            ByteArrayFrame byteArrayFrame = new ByteArrayFrame(padded, FrameCodec.BLOCK_LEN);
+            assertEquals(byteArrayFrame.getTotalBlockNumber(), mappedFrame.getTotalBlockNumber());
+            byte[] expected = new byte[FrameCodec.BLOCK_LEN + 2];
+            byte[] actual = new byte[FrameCodec.BLOCK_LEN + 2];
+            for (int i = 0; i < mappedFrame.getTotalBlockNumber(); i++) {
+                int length = byteArrayFrame.readBlock(i, expected);
+                assertEquals(length, mappedFrame.readBlock(i, actual));
+                assertArrayEquals(expected, actual);
+            }
+            assertArrayEquals(byteArrayFrame.getContentHash(), mappedFrame.getContentHash());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void open_rejectsWrongContentHash() throws IOException {
+        byte[] data = toFile(createFrame(1000));
+        // the hash of another frame, with a valid CRC
+        byte[] otherHash = FrameCodec.contentHash(new ByteArrayFrame(FrameCodec.addPaddingData(createFrame(999), FrameCodec.BLOCK_LEN), FrameCodec.BLOCK_LEN));
+        System.arraycopy(otherHash, 0, data, FrameFile.HASH_OFFSET, FrameFile.HASH_LEN);
+        File file = File.createTempFile("frame", ".epdf");
+        try {
+            writeFile(file, data);
+            try {
+                FrameFile.open(file);
+                fail("a wrong content hash is accepted");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] createFrame(int length) {
+        byte[] packageData = new byte[length];
+        for (int i = 0; i < length; i++) packageData[i] = (byte) (i * 31 + 7);
+        return FrameCodec.frameFirmware(packageData);
+    }
+
+    private static byte[] toFile(byte[] frameData) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        FrameFile.write(outputStream, null, frameData);
+        return outputStream.toByteArray();
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(data);
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package com.advantech.bleeplib.image;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * BMP, PNG and PBM decoding of the indexed image reader, and the files it rejects.
+ */
+public class IndexedImageReaderTest {
+    private static final int WHITE = 0xffffffff;
+    private static final int BLACK = 0xff000000;
+    private static final int RED = 0xffff0000;
+    private static final int GREEN = 0xff00ff00;
+    private static final int BLUE = 0xff0000ff;
+    private static final int ORANGE = 0xffff8000;
+
+    private static final int WIDTH = 7; // rows need padding in every format
+    private static final int HEIGHT = 5;
+
+    // BMP --- START
+    @Test
+    public void bmp_indexedBitCounts() {
+        int[][] palettes = {{WHITE, BLACK}, {WHITE, BLACK, RED, GREEN, BLUE, ORANGE}, {WHITE, BLACK, RED, GREEN, BLUE, ORANGE}};
+        int[] bitCounts = {1, 4, 8};
+        for (int i = 0; i < bitCounts.length; i++) {
+            int[] indices = pattern(palettes[i].length);
+            IndexedImage image = IndexedImageReader.read(bmpIndexed(bitCounts[i], palettes[i], indices, true));
+            assertNotNull("BMP " + bitCounts[i] + " bit", image);
+            assertImage(image, palettes[i], indices);
+        }
+        // top-down rows
+        int[] indices = pattern(6);
+        assertImage(IndexedImageReader.read(bmpIndexed(8, palettes[1], indices, false)), palettes[1], indices);
+    }
+
+    @Test
+    public void bmp_trueColorBitCounts() {
+        int[] colors = {WHITE, BLACK, RED, GREEN, BLUE, ORANGE};
+        int[] argb = toArgb(colors, pattern(colors.length));
+        for (int bitCount : new int[]{24, 32}) {
+            for (boolean bottomUp : new boolean[]{true, false}) {
+                IndexedImage image = IndexedImageReader.read(bmpTrueColor(bitCount, argb, bottomUp));
+                assertNotNull("BMP " + bitCount + " bit", image);
+                assertPixels(image, argb);
+                assertTrue(image.getPalette().length <= colors.length);
+            }
+        }
+    }
+
+    @Test
+    public void bmp_rejectsBadFiles() {
+        int[] palette = {WHITE, BLACK};
+        byte[] bmp = bmpIndexed(1, palette, pattern(2), true);
+        assertNull("truncated pixels", IndexedImageReader.read(Arrays.copyOf(bmp, bmp.length - 1)));
+        assertNull("truncated header", IndexedImageReader.read(Arrays.copyOf(bmp, 20)));
+
+        byte[] compressed = bmp.clone();
+        putIntLE(compressed, 30, 1); // BI_RLE8
+        assertNull("compressed", IndexedImageReader.read(compressed));
+        byte[] os2 = bmp.clone();
+        putIntLE(os2, 14, 12); // BITMAPCOREHEADER
+        assertNull("OS/2 header", IndexedImageReader.read(os2));
+        byte[] bitCount = bmp.clone();
+        putShortLE(bitCount, 28, 16);
+        assertNull("16 bit", IndexedImageReader.read(bitCount));
+        byte[] zeroWidth = bmp.clone();
+        putIntLE(zeroWidth, 18, 0);
+        assertNull("zero width", IndexedImageReader.read(zeroWidth));
+        byte[] colorsUsed = bmp.clone();
+        putIntLE(colorsUsed, 46, 1); // the pixels use index 1
+        assertNull("index out of the palette", IndexedImageReader.read(colorsUsed));
+
+        // more than 256 colors
+        int[] argb = new int[20 * 20];
+        for (int i = 0; i < argb.length; i++) argb[i] = 0xff000000 | (i * 97);
+        assertNull("too many colors", IndexedImageReader.read(bmpTrueColor(24, 20, 20, argb, true)));
+    }
+    // BMP --- END
+
+    // PNG --- START
+    @Test
+    public void png_indexedBitDepths() {
+        int[] palette = {WHITE, BLACK, RED, GREEN, BLUE, ORANGE};
+        for (int bitDepth : new int[]{1, 2, 4, 8}) {
+            int[] colors = Arrays.copyOf(palette, Math.min(palette.length, 1 << bitDepth));
+            int[] indices = pattern(colors.length);
+            IndexedImage image = IndexedImageReader.read(png(3, bitDepth, colors, packSamples(indices, bitDepth), 0));
+            assertNotNull("PNG indexed " + bitDepth + " bit", image);
+            assertImage(image, colors, indices);
+        }
+    }
+
+    @Test
+    public void png_grayAndTrueColor() {
+        // gray, 2 bit
+        int[] levels = pattern(4);
+        IndexedImage gray = IndexedImageReader.read(png(0, 2, null, packSamples(levels, 2), 0));
+        assertNotNull(gray);
+        assertPixels(gray, toArgb(new int[]{BLACK, 0xff555555, 0xffaaaaaa, WHITE}, levels));
+
+        // gray + alpha, 8 bit
+        byte[] grayAlpha = new byte[WIDTH * HEIGHT * 2];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            grayAlpha[i * 2] = (byte) (levels[i] * 85);
+            grayAlpha[i * 2 + 1] = (byte) 0x80;
+        }
+        IndexedImage image = IndexedImageReader.read(png(4, 8, null, rows(grayAlpha, WIDTH * 2), 0));
+        assertNotNull(image);
+        assertPixels(image, toArgb(new int[]{BLACK, 0xff555555, 0xffaaaaaa, WHITE}, levels));
+
+        // rgb and rgba with every filter type
+        int[] colors = {WHITE, BLACK, RED, GREEN, BLUE, ORANGE};
+        int[] argb = toArgb(colors, pattern(colors.length));
+        for (int channels : new int[]{3, 4}) {
+            for (int filter = 0; filter <= 4; filter++) {
+                byte[] samples = new byte[argb.length * channels];
+                for (int i = 0; i < argb.length; i++) {
+                    samples[i * channels] = (byte) (argb[i] >> 16);
+                    samples[i * channels + 1] = (byte) (argb[i] >> 8);
+                    samples[i * channels + 2] = (byte) argb[i];
+                    if (channels == 4) samples[i * channels + 3] = (byte) 0xff;
+                }
+                image = IndexedImageReader.read(png(channels == 3 ? 2 : 6, 8, null, rows(samples, WIDTH * channels), filter));
+                assertNotNull("channels " + channels + " filter " + filter, image);
+                assertPixels(image, argb);
+            }
+        }
+    }
+
+    @Test
+    public void png_rejectsBadFiles() {
+        int[] palette = {WHITE, BLACK};
+        byte[][] rows = packSamples(pattern(2), 1);
+        byte[] valid = png(3, 1, palette, rows, 0);
+        assertNotNull(IndexedImageReader.read(valid));
+
+        assertNull("truncated", IndexedImageReader.read(Arrays.copyOf(valid, valid.length / 2)));
+        assertNull("missing PLTE", IndexedImageReader.read(png(3, 1, null, rows, 0)));
+        assertNull("index out of the palette", IndexedImageReader.read(png(3, 2, palette, packSamples(pattern(4), 2), 0)));
+        assertNull("16 bit", IndexedImageReader.read(png(0, 16, null, rows(new byte[WIDTH * HEIGHT * 2], WIDTH * 2), 0)));
+
+        byte[] interlaced = valid.clone();
+        interlaced[8 + 8 + 12] = 1; // IHDR interlace method
+        assertNull("interlaced", IndexedImageReader.read(interlaced));
+        byte[] colorType = valid.clone();
+        colorType[8 + 8 + 9] = 5;
+        assertNull("unknown color type", IndexedImageReader.read(colorType));
+        byte[] zeroWidth = valid.clone();
+        putIntBE(zeroWidth, 8 + 8, 0);
+        assertNull("zero width", IndexedImageReader.read(zeroWidth));
+        assertNull("unknown filter", IndexedImageReader.read(png(3, 1, palette, rows, 5)));
+    }
+    // PNG --- END
+
+    // PBM --- START
+    @Test
+    public void pbm_plainAndRaw() {
+        int[] indices = pattern(2);
+        int[] palette = {WHITE, BLACK}; // 1 is black
+
+        StringBuilder plain = new StringBuilder("P1\n# comment\n" + WIDTH + " " + HEIGHT + "\n");
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) plain.append(indices[y * WIDTH + x]).append(' ');
+            plain.append("# row ").append(y).append('\n');
+        }
+        assertImage(IndexedImageReader.read(ascii(plain.toString())), palette, indices);
+
+        byte[][] rows = packSamples(indices, 1);
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        byte[] header = ascii("P4\n" + WIDTH + " " + HEIGHT + "\n");
+        raw.write(header, 0, header.length);
+        for (byte[] row : rows) raw.write(row, 0, row.length);
+        assertImage(IndexedImageReader.read(raw.toByteArray()), palette, indices);
+    }
+
+    @Test
+    public void pbm_rejectsBadFiles() {
+        assertNull("truncated plain", IndexedImageReader.read(ascii("P1\n4 4\n0 1 0 1\n")));
+        assertNull("truncated raw", IndexedImageReader.read(ascii("P4\n16 16\n\u0001\u0002")));
+        assertNull("zero size", IndexedImageReader.read(ascii("P1\n0 4\n0 1 0 1\n")));
+        assertNull("missing size", IndexedImageReader.read(ascii("P4\n#\n#\n#\n")));
+    }
+    // PBM --- END
+
+    @Test
+    public void read_rejectsUnknownData() {
+        assertNull(IndexedImageReader.read((byte[]) null));
+        assertNull(IndexedImageReader.read(new byte[]{'B', 'M'}));
+        assertNull(IndexedImageReader.read(ascii("GIF89a\u0001\u0000\u0001\u0000")));
+        assertNull(IndexedImageReader.read(ascii("P3\n1 1\n255\n0 0 0\n"))); // PPM
+    }
+
+    private static void assertImage(IndexedImage image, int[] palette, int[] indices) {
+        assertNotNull(image);
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        assertPixels(image, toArgb(palette, indices));
+    }
+
+    private static void assertPixels(IndexedImage image, int[] argb) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals("pixel " + x + ", " + y, argb[y * WIDTH + x], image.getPixel(x, y));
+            }
+        }
+    }
+
+    // every color of the palette, in a different order on each row
+    private static int[] pattern(int colors) {
+        int[] indices = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) indices[y * WIDTH + x] = (x + y * 3) % colors;
+        }
+        return indices;
+    }
+
+    private static int[] toArgb(int[] palette, int[] indices) {
+        int[] argb = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) argb[i] = palette[indices[i]];
+        return argb;
+    }
+
+    private static byte[] ascii(String text) {
+        byte[] data = new byte[text.length()];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) text.charAt(i);
+        return data;
+    }
+
+    // BMP writer --- START
+    private static byte[] bmpIndexed(int bitCount, int[] palette, int[] indices, boolean bottomUp) {
+        byte[][] rows = packSamples(indices, bitCount);
+        return bmp(bitCount, WIDTH, HEIGHT, palette, rows, bottomUp);
+    }
+
+    private static byte[] bmpTrueColor(int bitCount, int[] argb, boolean bottomUp) {
+        return bmpTrueColor(bitCount, WIDTH, HEIGHT, argb, bottomUp);
+    }
+
+    private static byte[] bmpTrueColor(int bitCount, int width, int height, int[] argb, boolean bottomUp) {
+        int bytes = bitCount / 8;
+        byte[][] rows = new byte[height][width * bytes];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int color = argb[y * width + x];
+                rows[y][x * bytes] = (byte) color;
+                rows[y][x * bytes + 1] = (byte) (color >> 8);
+                rows[y][x * bytes + 2] = (byte) (color >> 16);
+                if (bytes == 4) rows[y][x * bytes + 3] = (byte) 0xff;
+            }
+        }
+        return bmp(bitCount, width, height, null, rows, bottomUp);
+    }
+
+    private static byte[] bmp(int bitCount, int width, int height, int[] palette, byte[][] rows, boolean bottomUp) {
+        int stride = ((width * bitCount + 31) / 32) * 4;
+        int paletteLen = (palette != null) ? palette.length * 4 : 0;
+        int pixelOffset = 14 + 40 + paletteLen;
+        byte[] data = new byte[pixelOffset + stride * height];
+        data[0] = 'B';
+        data[1] = 'M';
+        putIntLE(data, 2, data.length);
+        putIntLE(data, 10, pixelOffset);
+        putIntLE(data, 14, 40);
+        putIntLE(data, 18, width);
+        putIntLE(data, 22, bottomUp ? height : -height);
+        putShortLE(data, 26, 1);
+        putShortLE(data, 28, bitCount);
+        putIntLE(data, 46, (palette != null) ? palette.length : 0);
+        for (int i = 0; palette != null && i < palette.length; i++) {
+            int p = 54 + i * 4;
+            data[p] = (byte) palette[i];
+            data[p + 1] = (byte) (palette[i] >> 8);
+            data[p + 2] = (byte) (palette[i] >> 16);
+        }
+        for (int y = 0; y < height; y++) {
+            int row = pixelOffset + (bottomUp ? (height - 1 - y) : y) * stride;
+            System.arraycopy(rows[y], 0, data, row, rows[y].length);
+        }
+        return data;
+    }
+    // BMP writer --- END
+
+    // PNG writer --- START
+    private static byte[] png(int colorType, int bitDepth, int[] palette, byte[][] rows, int filter) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'}, 0, 8);
+        byte[] ihdr = new byte[13];
+        putIntBE(ihdr, 0, WIDTH);
+        putIntBE(ihdr, 4, HEIGHT);
+        ihdr[8] = (byte) bitDepth;
+        ihdr[9] = (byte) colorType;
+        writeChunk(out, "IHDR", ihdr);
+        if (palette != null) {
+            byte[] plte = new byte[palette.length * 3];
+            for (int i = 0; i < palette.length; i++) {
+                plte[i * 3] = (byte) (palette[i] >> 16);
+                plte[i * 3 + 1] = (byte) (palette[i] >> 8);
+                plte[i * 3 + 2] = (byte) palette[i];
+            }
+            writeChunk(out, "PLTE", plte);
+        }
+        int channels = (colorType == 2) ? 3 : (colorType == 6) ? 4 : (colorType == 4) ? 2 : 1;
+        int filterUnit = Math.max(1, channels * bitDepth / 8);
+        ByteArrayOutputStream scanlines = new ByteArrayOutputStream();
+        byte[] previous = new byte[rows[0].length];
+        for (byte[] row : rows) {
+            scanlines.write(filter);
+            byte[] filtered = filter(filter, row, previous, filterUnit);
+            scanlines.write(filtered, 0, filtered.length);
+            previous = row;
+        }
+        Deflater deflater = new Deflater();
+        deflater.setInput(scanlines.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            idat.write(buffer, 0, length);
+        }
+        deflater.end();
+        writeChunk(out, "IDAT", idat.toByteArray());
+        writeChunk(out, "IEND", new byte[0]);
+        return out.toByteArray();
+    }
+
+    // the inverse of the reader's unfilter
+    private static byte[] filter(int filter, byte[] row, byte[] previous, int filterUnit) {
+        byte[] filtered = new byte[row.length];
+        for (int i = 0; i < row.length; i++) {
+            int a = i >= filterUnit ? row[i - filterUnit] & 0xff : 0;
+            int b = previous[i] & 0xff;
+            int c = i >= filterUnit ? previous[i - filterUnit] & 0xff : 0;
+            int predictor;
+            switch (filter) {
+                case 1: predictor = a; break;
+                case 2: predictor = b; break;
+                case 3: predictor = (a + b) >> 1; break;
+                case 4:
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    predictor = (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                    break;
+                default: predictor = 0; break;
+            }
+            filtered[i] = (byte) (row[i] - predictor);
+        }
+        return filtered;
+    }
+
+    private static void writeChunk(ByteArrayOutputStream out, String type, byte[] chunk) {
+        byte[] header = new byte[8];
+        putIntBE(header, 0, chunk.length);
+        byte[] typeBytes = ascii(type);
+        System.arraycopy(typeBytes, 0, header, 4, 4);
+        out.write(header, 0, 8);
+        out.write(chunk, 0, chunk.length);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(chunk);
+        byte[] crcBytes = new byte[4];
+        putIntBE(crcBytes, 0, (int) crc.getValue());
+        out.write(crcBytes, 0, 4);
+    }
+    // PNG writer --- END
+
+    // samples of each row, the first sample in the high bits
+    private static byte[][] packSamples(int[] samples, int bitDepth) {
+        byte[][] rows = new byte[HEIGHT][(WIDTH * bitDepth + 7) / 8];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int bit = x * bitDepth;
+                rows[y][bit / 8] |= samples[y * WIDTH + x] << (8 - bitDepth - bit % 8);
+            }
+        }
+        return rows;
+    }
+
+    private static byte[][] rows(byte[] samples, int rowBytes) {
+        byte[][] rows = new byte[samples.length / rowBytes][];
+        for (int y = 0; y < rows.length; y++) rows[y] = Arrays.copyOfRange(samples, y * rowBytes, (y + 1) * rowBytes);
+        return rows;
+    }
+
+    private static void putIntLE(byte[] data, int p, int value) {
+        data[p] = (byte) value;
+        data[p + 1] = (byte) (value >> 8);
+        data[p + 2] = (byte) (value >> 16);
+        data[p + 3] = (byte) (value >> 24);
+    }
+
+    private static void putShortLE(byte[] data, int p, int value) {
+        data[p] = (byte) value;
+        data[p + 1] = (byte) (value >> 8);
+    }
+
+    private static void putIntBE(byte[] data, int p, int value) {
+        data[p] = (byte) (value >> 24);
+        data[p + 1] = (byte) (value >> 16);
+        data[p + 2] = (byte) (value >> 8);
+        data[p + 3] = (byte) value;
+    }
+}
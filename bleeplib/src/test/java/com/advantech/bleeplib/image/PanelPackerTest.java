@@ -0,0 +1,138 @@
+package com.advantech.bleeplib.image;
+
+import com.advantech.bleeplib.bean.PanelType;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * The packed planes of the panel packer, compared with the per-pixel conversion of the Bitmap path.
+ */
+public class PanelPackerTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 24;
+
+    // panel colors, and colors which need the nearest-color search
+    private static final int[] COLORS = {0xffffffff, 0xff000000, 0xffff0000, 0xff00ff00, 0xff0000ff, 0xffff8000,
+            0xffffff00, 0xff808080, 0xfff01010, 0xff10e020, 0xffeeeeee, 0xff202020, 0x00ffffff, 0xffff7f01};
+
+    @Test
+    public void packEPD250_matchesBitmapPath() {
+        IndexedImage image = createImage();
+        assertArrayEquals(referenceEPD250(image), PanelPacker.packEPD250(new PanelPacker(PanelType.EPD250).toCodes(image), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void packEPD252_matchesBitmapPath() {
+        IndexedImage image = createImage();
+        assertArrayEquals(referenceEPD252(image), PanelPacker.packEPD252(new PanelPacker(PanelType.EPD252).toCodes(image), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void packEPD353_matchesBitmapPath() {
+        IndexedImage image = createImage();
+        assertArrayEquals(referenceEPD353(image), PanelPacker.packEPD353(new PanelPacker(PanelType.EPD353).toCodes(image), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void toCodes_indexedImageMatchesPixelConversion() {
+        IndexedImage image = createImage();
+        for (PanelType panelType : new PanelType[]{PanelType.EPD250, PanelType.EPD252, PanelType.EPD353}) {
+            byte[] codes = new PanelPacker(panelType).toCodes(image);
+            // toCodes(Bitmap) converts each pixel of a row with toCode
+            PanelPacker packer = new PanelPacker(panelType);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    assertEquals(panelType + " pixel " + x + ", " + y, packer.toCode(image.getPixel(x, y)), codes[y * WIDTH + x]);
+                }
+            }
+        }
+    }
+
+    private static IndexedImage createImage() {
+        byte[] indices = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                indices[y * WIDTH + x] = (byte) ((x * 5 + y * 3 + x * y) % COLORS.length);
+            }
+        }
+        return new IndexedImage(WIDTH, HEIGHT, COLORS, indices);
+    }
+
+    // The Bitmap path before the panel codes, with getPixel replaced by the image pixels --- START
+    private static byte[] referenceEPD250(IndexedImage image) {
+        byte[] imageData = new byte[WIDTH * HEIGHT / 8];
+        int m = 0;
+        for (int i = 0; i < WIDTH; i++) {
+            for (int j = (HEIGHT - 1); j >= 0; j = j - 8) {
+                byte total = 0;
+                for (int k = 0; k < 8; k++) {
+                    RGBTriple rgbTriple = Dithering.findNearestColor(image.getPixel(i, j - k), Dithering.bw);
+                    if (rgbTriple.channels[2] == 0xff) { // white
+                        total = (byte) (total + (byte) (1 << (7 - k)));
+                    }
+                }
+                imageData[m] = total;
+                m++;
+            }
+        }
+        return imageData;
+    }
+
+    private static byte[] referenceEPD252(IndexedImage image) {
+        byte[] imageData = new byte[WIDTH * HEIGHT / 4];
+        int m = 0;
+        for (int i = 0; i < WIDTH; i++) {
+            for (int j = (HEIGHT - 1); j >= 0; j = j - 8) {
+                byte total = 0;
+                byte total_2 = 0;
+                for (int k = 0; k < 8; k++) {
+                    RGBTriple rgbTriple = Dithering.findNearestColor(image.getPixel(i, j - k), Dithering.bwr);
+                    if (rgbTriple.channels[2] == 0xff) { // white
+                        total = (byte) (total + (byte) (1 << (7 - k)));
+                    } else if (rgbTriple.channels[0] == 0xff) { // red
+                        total_2 = (byte) (total_2 + (byte) (1 << (7 - k)));
+                    }
+                }
+                imageData[m] = total;
+                imageData[m + (WIDTH * HEIGHT) / 8] = total_2;
+                m++;
+            }
+        }
+        return imageData;
+    }
+
+    private static byte[] referenceEPD353(IndexedImage image) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (int y = 0; y < HEIGHT; y++) {
+            int total = 0;
+            int k = 0;
+            for (int x = 0; x < WIDTH; x++) {
+                RGBTriple rgbTriple = Dithering.findNearestColor(image.getPixel(x, y), Dithering.sevenColor);
+                int r = rgbTriple.channels[0];
+                int g = rgbTriple.channels[1];
+                int b = rgbTriple.channels[2];
+                int code;
+                if (r == 0 && g == 0 && b == 0) code = 0b000; // Black
+                else if (r == 0 && g == 255 && b == 0) code = 0b010; // Green
+                else if (r == 0 && g == 0 && b == 255) code = 0b011; // Blue
+                else if (r == 255 && g == 0 && b == 0) code = 0b100; // Red
+                else if (r == 255 && g == 255 && b == 0) code = 0b101; // Yellow
+                else if (r == 255 && g == 128 && b == 0) code = 0b110; // Orange
+                else code = 0b001; // White
+                total |= code << ((1 - k) * 4);
+                k++;
+                if (k >= 2) {
+                    os.write(total);
+                    k = 0;
+                    total = 0;
+                }
+            }
+        }
+        return os.toByteArray();
+    }
+    // The Bitmap path before the panel codes --- END
+}
@@ -0,0 +1,83 @@
+package com.advantech.bleeplib.trace;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Level gating, ring buffer and allocations of the tracer.
+ */
+public class TracerTest {
+
+    @Test
+    public void tracer_writesEventsOfTheLevel() {
+        int level = Tracer.getLevel();
+        TraceSink sink = Tracer.getSink();
+        try {
+            RingBufferSink ring = new RingBufferSink(3);
+            Tracer.setSink(ring);
+            Tracer.setLevel(Tracer.DEBUG);
+            Tracer.trace(Tracer.VERBOSE, Tracer.PHASE_TRANSFER, "AA", 1, -1, 600, "Writing image blocks");
+            assertFalse(Tracer.isLoggable(Tracer.VERBOSE));
+            assertEquals(0, ring.getCount());
+
+            Tracer.setLevel(Tracer.VERBOSE);
+            for (int block = 1; block <= 5; block++) {
+                Tracer.trace(Tracer.VERBOSE, Tracer.PHASE_TRANSFER, "AA", block, -1, 600, "Writing image blocks");
+            }
+            Tracer.trace(Tracer.ERROR, Tracer.PHASE_GATT, "AA", -1, 133, -1, "timeout");
+            assertEquals(6, ring.getCount());
+            List<TraceEvent> events = ring.getEvents();
+            assertEquals(3, events.size()); // the oldest events are overwritten
+            assertEquals(4, events.get(0).getBlock());
+            assertEquals(5, events.get(1).getBlock());
+            assertEquals(133, events.get(2).getStatus());
+            assertTrue(events.get(2).toString().endsWith(" E/gatt AA status=133 timeout"));
+            assertTrue(events.get(1).toString().endsWith(" V/transfer AA block=5 value=600 Writing image blocks"));
+
+            Tracer.setLevel(Tracer.NONE);
+            Tracer.trace(Tracer.ERROR, Tracer.PHASE_GATT, "AA", "timeout");
+            assertEquals(6, ring.getCount());
+        } finally {
+            Tracer.setLevel(level);
+            Tracer.setSink(sink);
+        }
+    }
+
+    @Test
+    public void tracer_blockEventsDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return;
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported()) return;
+        int level = Tracer.getLevel();
+        TraceSink sink = Tracer.getSink();
+        try {
+            RingBufferSink ring = new RingBufferSink(1024);
+            Tracer.setSink(ring);
+            long tid = Thread.currentThread().getId();
+            // a disabled level, and then the ring buffer
+            int[] levels = {Tracer.DEBUG, Tracer.VERBOSE};
+            for (int l : levels) {
+                Tracer.setLevel(l);
+                writeBlocks(20000); // warm up
+                long before = threadBean.getThreadAllocatedBytes(tid);
+                writeBlocks(100000);
+                long allocated = threadBean.getThreadAllocatedBytes(tid) - before;
+                assertTrue("allocated " + allocated + " bytes at level " + l, allocated < 4096);
+            }
+        } finally {
+            Tracer.setLevel(level);
+            Tracer.setSink(sink);
+        }
+    }
+
+    private static void writeBlocks(int count) {
+        for (int block = 0; block < count; block++) {
+            Tracer.trace(Tracer.VERBOSE, Tracer.PHASE_TRANSFER, "AA", block, -1, count, "Writing image blocks");
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.advantech.bleeplib.utils;
+
+import com.advantech.bleeplib.bean.DeviceProfile;
+import com.advantech.bleeplib.bean.PanelType;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Scan results and the size limit of the device profile store, in memory.
+ */
+public class DeviceProfileStoreTest {
+
+    @Test
+    public void putScanResult_storesEpdDevicesOnly() {
+        DeviceProfileStore store = new DeviceProfileStore();
+        store.putScanResult("00:00:00:00:00:01", "Advantech_EPD-353", -60);
+        store.putScanResult("00:00:00:00:00:02", "Phone", -50);
+        store.putScanResult("00:00:00:00:00:03", null, -70);
+        assertEquals(1, store.getAll().size());
+        DeviceProfile profile = store.get("00:00:00:00:00:01");
+        assertEquals(PanelType.EPD353, profile.getPanelType());
+        assertEquals(-60, profile.getRssi());
+        assertNull(store.get("00:00:00:00:00:02"));
+    }
+
+    @Test
+    public void putScanResult_updatesConnectedDevices() {
+        DeviceProfileStore store = new DeviceProfileStore();
+        store.putMtu("00:00:00:00:00:02", 247); // a connected device which advertises another name
+        store.putScanResult("00:00:00:00:00:02", "Other", -55);
+        DeviceProfile profile = store.get("00:00:00:00:00:02");
+        assertEquals(-55, profile.getRssi());
+        assertEquals(247, profile.getMtu());
+        assertNull(profile.getPanelType());
+    }
+
+    @Test
+    public void obtain_removesOldestProfileWhenFull() throws InterruptedException {
+        DeviceProfileStore store = new DeviceProfileStore();
+        store.putFirmwareVersion("oldest", "1.0.0");
+        Thread.sleep(2); // a later update time for the other profiles
+        for (int i = 1; i < DeviceProfileStore.MAX_PROFILES; i++) {
+            store.putScanResult("mac" + i, "Advantech_EPD-250", -60);
+        }
+        assertEquals(DeviceProfileStore.MAX_PROFILES, store.getAll().size());
+        store.putScanResult("newest", "Advantech_EPD-252", -60);
+        assertEquals(DeviceProfileStore.MAX_PROFILES, store.getAll().size());
+        assertNull(store.get("oldest"));
+        assertNotNull(store.get("newest"));
+        assertNotNull(store.get("mac1"));
+    }
+}